@@ -0,0 +1,39 @@
+package library;
+
+public enum BackPressure {
+    /**
+     * Publishers overwrite events the subscriber has not read yet, and never wait for it.
+     * A subscriber that falls a whole ring behind catches up from the event log, or skips
+     * the overwritten events if there is none.
+     */
+    OVERWRITE("overwrite"),
+    /**
+     * Publishers wait for the subscriber when it is a whole ring behind, so it sees every event.
+     * Its listener must not call back into the library's mutating methods.
+     */
+    BLOCK("block");
+
+    /**
+     * The name of the policy on command lines.
+     */
+    private final String label;
+
+    /**
+     * Constructs a back-pressure policy.
+     *
+     * @param label the name of the policy on command lines
+     */
+    BackPressure(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Returns the name of the policy on command lines.
+     *
+     * @return the policy name
+     */
+    @Override
+    public String toString() {
+        return label;
+    }
+}
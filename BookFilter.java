@@ -0,0 +1,72 @@
+package library;
+
+import java.util.function.Predicate;
+
+public class BookFilter implements Predicate<Book> {
+    
+    /**
+     * The availability status to match, or null to match any.
+     */
+    private BookStatus status;
+    /**
+     * The earliest publication year to match.
+     */
+    private int fromYear = Integer.MIN_VALUE;
+    /**
+     * The latest publication year to match.
+     */
+    private int toYear = Integer.MAX_VALUE;
+    /**
+     * The author to match, ignoring case, or null to match any.
+     */
+    private String author;
+    
+    /**
+     * Matches only books with the given availability status.
+     *
+     * @param status the availability status
+     * @return this filter
+     */
+    public BookFilter status(BookStatus status) {
+        this.status = status;
+        return this;
+    }
+    
+    /**
+     * Matches only books published in the given range of years.
+     *
+     * @param fromYear the earliest publication year (inclusive)
+     * @param toYear   the latest publication year (inclusive)
+     * @return this filter
+     */
+    public BookFilter publishedBetween(int fromYear, int toYear) {
+        this.fromYear = fromYear;
+        this.toYear = toYear;
+        return this;
+    }
+    
+    /**
+     * Matches only books by the given author, ignoring case.
+     *
+     * @param author the author
+     * @return this filter
+     */
+    public BookFilter author(String author) {
+        this.author = author;
+        return this;
+    }
+    
+    /**
+     * Returns whether a book matches every condition of the filter.
+     *
+     * @param book the book to test
+     * @return true if the book matches
+     */
+    @Override
+    public boolean test(Book book) {
+        return (status == null || book.getAvailabilityStatus() == status)
+                && book.getPublicationYear() >= fromYear
+                && book.getPublicationYear() <= toYear
+                && (author == null || book.getAuthor().equalsIgnoreCase(author));
+    }
+}
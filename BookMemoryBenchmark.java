@@ -0,0 +1,217 @@
+package library;
+
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Reports the heap a book takes, as the current Book with its copy counts and as the original
+ * Book that held its state in availability and association strings, in the manner of a
+ * JOL footprint report but without the tool.
+ * Each count is the growth of the heap in use after a full collection, divided by the number of
+ * books: shallow, with every book sharing one title, author and ISBN, so only the objects
+ * themselves count; with strings of its own per book; and per book of a populated library,
+ * which adds the indexes. Readers and loans are measured too, since the original Book pointed
+ * at its reader's ID while the library now keeps each loan in its own indexes.
+ * Five million books in a library need a heap of about 7 GB: java -Xmx7g library.BookMemoryBenchmark
+ *
+ * Usage: java library.BookMemoryBenchmark [--books 5000000] [--library-books 5000000]
+ */
+public class BookMemoryBenchmark {
+
+    /**
+     * The number of books added per call of addBooks while populating.
+     */
+    private static final int BATCH = 10000;
+
+    /**
+     * A book as it was first modelled, with its state held in strings.
+     */
+    private static class LegacyBook {
+
+        /**
+         * The unique identifier (ISBN) of the book.
+         */
+        private String ISBN;
+        /**
+         * The title of the book.
+         */
+        private String title;
+        /**
+         * The author of the book.
+         */
+        private String author;
+        /**
+         * The publication year of the book.
+         */
+        private int publicationYear;
+        /**
+         * Denote availability of the book ("available", "borrowed")
+         */
+        private String availabilityStatus;
+        /**
+         * The readerId associated with the book. "no association" if the book is available
+         */
+        private String association;
+
+        /**
+         * Constructs a LegacyBook as the original Book constructor did.
+         *
+         * @param title           the title of the book
+         * @param author          the author of the book
+         * @param ISBN            the ISBN of the book
+         * @param publicationYear the publication year of the book
+         */
+        LegacyBook(String title, String author, String ISBN, int publicationYear) {
+            this.title = title;
+            this.author = author;
+            this.ISBN = ISBN;
+            this.publicationYear = publicationYear;
+            this.availabilityStatus = "available";
+            this.association = "no association";
+        }
+
+        /**
+         * Returns a value depending on every field, so no field is optimized away.
+         *
+         * @return the sum of the lengths of the fields and the publication year
+         */
+        int checksum() {
+            return ISBN.length() + title.length() + author.length() + publicationYear + availabilityStatus.length()
+                    + association.length();
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     */
+    public static void main(String[] args) {
+        int bookCount = 5000000;
+        int libraryBookCount = 5000000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--books":
+                bookCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "--library-books":
+                libraryBookCount = Integer.parseInt(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "%-36s %12s\n", "model", "bytes each");
+        long sink = 0;
+
+        // The objects alone, sharing their strings; the array of references is counted separately
+        long baseline = usedHeap();
+        Object[] array = new Object[bookCount];
+        long arrayBytes = usedHeap() - baseline;
+        for (int i = 0; i < bookCount; i++) {
+            array[i] = new Book("Title", "Author", "978", 2000);
+        }
+        report("Book, shallow", usedHeap() - baseline - arrayBytes, bookCount);
+        sink += ((Book) array[bookCount - 1]).getAvailableCopies();
+        for (int i = 0; i < bookCount; i++) {
+            array[i] = null;
+        }
+        baseline = usedHeap() - arrayBytes;
+        for (int i = 0; i < bookCount; i++) {
+            array[i] = new LegacyBook("Title", "Author", "978", 2000);
+        }
+        report("original Book, shallow", usedHeap() - baseline - arrayBytes, bookCount);
+        sink += ((LegacyBook) array[bookCount - 1]).checksum();
+        for (int i = 0; i < bookCount; i++) {
+            array[i] = null;
+        }
+
+        // With a title, author and ISBN of their own
+        baseline = usedHeap() - arrayBytes;
+        for (int i = 0; i < bookCount; i++) {
+            array[i] = new Book("Title " + i, "Author " + (i % 100000), isbn(i), 1900 + i % 125);
+        }
+        report("Book, with strings", usedHeap() - baseline - arrayBytes, bookCount);
+        sink += ((Book) array[bookCount - 1]).getAvailableCopies();
+        for (int i = 0; i < bookCount; i++) {
+            array[i] = null;
+        }
+        baseline = usedHeap() - arrayBytes;
+        for (int i = 0; i < bookCount; i++) {
+            array[i] = new LegacyBook("Title " + i, "Author " + (i % 100000), isbn(i), 1900 + i % 125);
+        }
+        report("original Book, with strings", usedHeap() - baseline - arrayBytes, bookCount);
+        sink += ((LegacyBook) array[bookCount - 1]).checksum();
+        Reference.reachabilityFence(array);
+        array = null;
+
+        // In a populated library, then with a reader per ten books, then with every tenth book lent
+        baseline = usedHeap();
+        Library library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        library.getMetrics().setEnabled(false);
+        List<Book> books = new ArrayList<Book>(BATCH);
+        for (int b = 0; b < libraryBookCount; b++) {
+            books.add(new Book("Title " + b, "Author " + (b % 100000), isbn(b), 1900 + b % 125));
+            if (books.size() == BATCH || b == libraryBookCount - 1) {
+                library.addBooks(books);
+                books.clear();
+            }
+        }
+        long populated = usedHeap();
+        report("Library, per book", populated - baseline, libraryBookCount);
+        int readerCount = Math.max(1, libraryBookCount / 10);
+        List<Reader> readers = new ArrayList<Reader>(readerCount);
+        for (int r = 0; r < readerCount; r++) {
+            readers.add(new Reader("R" + r, "Reader " + r, "r" + r + "@example.com"));
+        }
+        library.addReaders(readers);
+        readers = null;
+        long withReaders = usedHeap();
+        report("Library, per reader", withReaders - populated, readerCount);
+        for (int r = 0; r < readerCount; r++) {
+            library.borrowBook("R" + r, isbn(r * 10));
+        }
+        report("Library, per loan", usedHeap() - withReaders, readerCount);
+        sink += library.getMetrics().getBooksOnLoan();
+        Reference.reachabilityFence(library);
+        System.out.printf(Locale.ROOT, "(checksum %d)\n", sink);
+    }
+
+    /**
+     * Prints the heap taken per record.
+     *
+     * @param name  the name of the model measured
+     * @param bytes the growth of the heap in use, in bytes
+     * @param count the number of records
+     */
+    private static void report(String name, long bytes, int count) {
+        System.out.printf(Locale.ROOT, "%-36s %12.1f\n", name, (double) bytes / count);
+    }
+
+    /**
+     * Returns the heap in use after a full collection.
+     *
+     * @return the heap in use, in bytes
+     */
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Returns the ISBN of the i-th book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+}
@@ -0,0 +1,36 @@
+package library;
+
+public enum BookStatus {
+    /**
+     * The book is in the library and can be borrowed.
+     */
+    AVAILABLE("available"),
+    /**
+     * The book is on loan to a reader.
+     */
+    BORROWED("borrowed");
+
+    /**
+     * The label shown to users for this status.
+     */
+    private final String label;
+
+    /**
+     * Constructs a BookStatus with the specified display label.
+     *
+     * @param label the label shown to users
+     */
+    BookStatus(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Returns the display label of the status.
+     *
+     * @return the display label
+     */
+    @Override
+    public String toString() {
+        return label;
+    }
+}
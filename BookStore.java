@@ -0,0 +1,63 @@
+package library;
+
+public interface BookStore extends Iterable<Book> {
+    
+    /**
+     * Returns the book with the given ISBN.
+     *
+     * @param ISBN the ISBN of the book
+     * @return the book, or null if not found
+     */
+    Book get(String ISBN);
+    
+    /**
+     * Returns whether the store holds a book with the given ISBN.
+     *
+     * @param ISBN the ISBN of the book
+     * @return whether the book is stored
+     */
+    default boolean contains(String ISBN) {
+        return get(ISBN) != null;
+    }
+    
+    /**
+     * Formats the information of the book with the given ISBN as Book.formatInfo does.
+     * Stores keeping books serialized can format the stored fields without building a Book.
+     *
+     * @param ISBN the ISBN of the book
+     * @return the information of the book, or null if not found
+     */
+    default String formatInfo(String ISBN) {
+        Book book = get(ISBN);
+        return book == null ? null : book.formatInfo();
+    }
+    
+    /**
+     * Stores a book, replacing any book with the same ISBN.
+     *
+     * @param book the book to store
+     */
+    void put(Book book);
+    
+    /**
+     * Writes back a book returned by get after its information or borrower changed.
+     *
+     * @param book the changed book
+     */
+    void update(Book book);
+    
+    /**
+     * Removes the book with the given ISBN.
+     *
+     * @param ISBN the ISBN of the book
+     * @return the removed book, or null if not found
+     */
+    Book remove(String ISBN);
+    
+    /**
+     * Returns the number of books in the store.
+     *
+     * @return the number of books
+     */
+    int size();
+}
@@ -0,0 +1,275 @@
+package library;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+
+/**
+ * Loads books and readers from delimited text files.
+ * Book lines hold ISBN, title, author and publication year; reader lines hold
+ * ID, name and contact. Files ending in .tsv are tab-separated, others are
+ * comma-separated with optional double-quoted fields. Blank lines and lines
+ * starting with '#' are skipped, as is a header line starting with "ISBN" or "ID".
+ * The file is streamed in chunks that are parsed in parallel, then de-duplicated
+ * and added to the library in file order, so the first occurrence of a key wins.
+ */
+public class BulkLoader {
+    
+    /**
+     * The number of lines parsed by one task.
+     */
+    private static final int CHUNK_LINES = 16384;
+    
+    /**
+     * The library to load into.
+     */
+    private final Library library;
+    /**
+     * The pool parsing chunks.
+     */
+    private final ForkJoinPool pool;
+    
+    /**
+     * Constructs a BulkLoader parsing on the common fork-join pool.
+     *
+     * @param library the library to load into
+     */
+    public BulkLoader(Library library) {
+        this(library, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Constructs a BulkLoader parsing on the given pool.
+     *
+     * @param library the library to load into
+     * @param pool    the pool parsing chunks
+     */
+    public BulkLoader(Library library, ForkJoinPool pool) {
+        this.library = library;
+        this.pool = pool;
+    }
+    
+    /**
+     * Loads books from a file.
+     *
+     * @param file the file of book lines
+     * @return the report of added, duplicate and malformed records
+     * @throws IOException if the file cannot be read
+     */
+    public ImportReport importBooks(Path file) throws IOException {
+        return load(file, BulkLoader::parseBook, Book::getISBN, library::addBooks);
+    }
+    
+    /**
+     * Loads readers from a file.
+     *
+     * @param file the file of reader lines
+     * @return the report of added, duplicate and malformed records
+     * @throws IOException if the file cannot be read
+     */
+    public ImportReport importReaders(Path file) throws IOException {
+        return load(file, BulkLoader::parseReader, Reader::getId, library::addReaders);
+    }
+    
+    /**
+     * Parses the fields of a book line.
+     *
+     * @param fields the ISBN, title, author and publication year
+     * @return the book, or null if the line is malformed
+     */
+    private static Book parseBook(String[] fields) {
+        if (fields.length != 4 || fields[0].isEmpty()) {
+            return null;
+        }
+        try {
+            return new Book(fields[1], fields[2], fields[0], Integer.parseInt(fields[3].trim()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Parses the fields of a reader line.
+     *
+     * @param fields the ID, name and contact
+     * @return the reader, or null if the line is malformed
+     */
+    private static Reader parseReader(String[] fields) {
+        if (fields.length != 3 || fields[0].isEmpty()) {
+            return null;
+        }
+        return new Reader(fields[0], fields[1], fields[2]);
+    }
+    
+    /**
+     * Loads records from a file.
+     * The calling thread reads ahead while the pool parses earlier chunks, keeping a
+     * bounded number of chunks in flight. Chunks are consumed in file order.
+     *
+     * @param file   the file to load
+     * @param parser parses the fields of a line, returning null if the line is malformed
+     * @param key    returns the ISBN or reader ID of a record
+     * @param adder  adds records to the library, returning those already present
+     * @return the report of added, duplicate and malformed records
+     * @throws IOException if the file cannot be read
+     */
+    private <T> ImportReport load(Path file, Function<String[], T> parser, Function<T, String> key,
+            Function<List<T>, List<T>> adder) throws IOException {
+        char delimiter = file.getFileName().toString().toLowerCase().endsWith(".tsv") ? '\t' : ',';
+        int window = pool.getParallelism() * 2;
+        ArrayDeque<Future<ParsedChunk<T>>> inFlight = new ArrayDeque<Future<ParsedChunk<T>>>();
+        ImportReport report = new ImportReport();
+        Set<String> seen = new HashSet<String>();
+        
+        try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            long lineNumber = 0;
+            boolean done = false;
+            while (!done || !inFlight.isEmpty()) {
+                // Read ahead until the window is full
+                while (!done && inFlight.size() < window) {
+                    List<String> lines = new ArrayList<String>(CHUNK_LINES);
+                    String line;
+                    while (lines.size() < CHUNK_LINES && (line = in.readLine()) != null) {
+                        lines.add(line);
+                    }
+                    long firstLine = lineNumber + 1;
+                    lineNumber += lines.size();
+                    done = lines.size() < CHUNK_LINES;
+                    if (!lines.isEmpty()) {
+                        inFlight.add(pool.submit(() -> parseChunk(lines, firstLine, delimiter, parser)));
+                    }
+                }
+                if (inFlight.isEmpty()) {
+                    break;
+                }
+                
+                // De-duplicate the oldest chunk against the file so far, then add it
+                ParsedChunk<T> chunk = await(inFlight.remove());
+                List<T> unique = new ArrayList<T>(chunk.records.size());
+                for (T record : chunk.records) {
+                    if (seen.add(key.apply(record))) {
+                        unique.add(record);
+                    } else {
+                        report.addDuplicate(key.apply(record));
+                    }
+                }
+                List<T> rejected = adder.apply(unique);
+                for (T record : rejected) {
+                    report.addDuplicate(key.apply(record));
+                }
+                report.addAdded(unique.size() - rejected.size());
+                for (long malformed : chunk.malformedLines) {
+                    report.addMalformedLine(malformed);
+                }
+            }
+        } finally {
+            for (Future<ParsedChunk<T>> future : inFlight) {
+                future.cancel(false);
+            }
+        }
+        return report;
+    }
+    
+    /**
+     * Parses a chunk of lines.
+     *
+     * @param lines     the lines
+     * @param firstLine the line number of the first line
+     * @param delimiter the field delimiter
+     * @param parser    parses the fields of a line
+     * @return the parsed chunk
+     */
+    private static <T> ParsedChunk<T> parseChunk(List<String> lines, long firstLine, char delimiter,
+            Function<String[], T> parser) {
+        ParsedChunk<T> chunk = new ParsedChunk<T>();
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            long lineNumber = firstLine + i;
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = split(line, delimiter);
+            if (lineNumber == 1 && (fields[0].equalsIgnoreCase("ISBN") || fields[0].equalsIgnoreCase("ID"))) {
+                continue;
+            }
+            T record = parser.apply(fields);
+            if (record == null) {
+                chunk.malformedLines.add(lineNumber);
+            } else {
+                chunk.records.add(record);
+            }
+        }
+        return chunk;
+    }
+    
+    /**
+     * Waits for a chunk to be parsed.
+     *
+     * @param future the parsing task
+     * @return the parsed chunk
+     * @throws IOException if parsing failed or was interrupted
+     */
+    private static <T> ParsedChunk<T> await(Future<ParsedChunk<T>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Import failed", e.getCause());
+        }
+    }
+    
+    /**
+     * Splits a line into fields.
+     *
+     * @param line      the line
+     * @param delimiter the field delimiter
+     * @return the fields, with quotes removed from comma-separated fields
+     */
+    private static String[] split(String line, char delimiter) {
+        List<String> fields = new ArrayList<String>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (delimiter == ',' && c == '"') {
+                // A doubled quote inside a quoted field is a literal quote
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == delimiter && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+    
+    /**
+     * The records and malformed line numbers of one chunk of a file.
+     *
+     * @param <T> the record type
+     */
+    private static class ParsedChunk<T> {
+        final List<T> records = new ArrayList<T>();
+        final List<Long> malformedLines = new ArrayList<Long>();
+    }
+}
@@ -0,0 +1,156 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Function;
+
+/**
+ * The sorted keys of a library's books and readers, for listing them page by page in ISBN
+ * and reader ID order without a catalog scan, and the printing of listings.
+ * A cursor is the last key of the previous page, so pages stay stable while records are
+ * added or removed between them.
+ */
+class CatalogListing {
+
+    /**
+     * The separator printed before and after each listed record.
+     */
+    static final String SEPARATOR = "--------------------\n";
+
+    /**
+     * The ISBNs of the books in sorted order.
+     */
+    private final NavigableSet<String> ISBNs = new ConcurrentSkipListSet<String>();
+    /**
+     * The reader IDs in sorted order.
+     */
+    private final NavigableSet<String> readerIds = new ConcurrentSkipListSet<String>();
+
+    // Keys
+
+    /**
+     * Adds the key of a book.
+     *
+     * @param ISBN the ISBN of the book
+     */
+    void addBook(String ISBN) {
+        ISBNs.add(ISBN);
+    }
+
+    /**
+     * Removes the key of a book.
+     *
+     * @param ISBN the ISBN of the book
+     */
+    void removeBook(String ISBN) {
+        ISBNs.remove(ISBN);
+    }
+
+    /**
+     * Adds the key of a reader.
+     *
+     * @param readerId the ID of the reader
+     */
+    void addReader(String readerId) {
+        readerIds.add(readerId);
+    }
+
+    /**
+     * Removes the key of a reader.
+     *
+     * @param readerId the ID of the reader
+     */
+    void removeReader(String readerId) {
+        readerIds.remove(readerId);
+    }
+
+    /**
+     * Returns the ISBNs of the books.
+     *
+     * @return a live view of the ISBNs, in sorted order
+     */
+    NavigableSet<String> getISBNs() {
+        return ISBNs;
+    }
+
+    /**
+     * Returns the IDs of the readers.
+     *
+     * @return a live view of the reader IDs, in sorted order
+     */
+    NavigableSet<String> getReaderIds() {
+        return readerIds;
+    }
+
+    // Pages
+
+    /**
+     * Lists one page of the books matching a filter, in ISBN order.
+     *
+     * @param books    the books of the library
+     * @param filter   the filter the books must match
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param pageSize the maximum number of books on the page
+     * @return the page of books and the cursor of the next page
+     */
+    Page<Book> listBooks(BookStore books, BookFilter filter, String cursor, int pageSize) {
+        List<Book> items = new ArrayList<Book>(pageSize);
+        NavigableSet<String> keys = cursor == null ? ISBNs : ISBNs.tailSet(cursor, false);
+        for (String ISBN : keys) {
+            Book book = books.get(ISBN);
+            // Skip books removed since their key was read
+            if (book != null && filter.test(book)) {
+                items.add(book);
+                if (items.size() == pageSize) {
+                    return new Page<Book>(items, ISBN);
+                }
+            }
+        }
+        return new Page<Book>(items, null);
+    }
+
+    /**
+     * Lists one page of the readers, in ID order.
+     *
+     * @param readers  the readers of the library, indexed by reader ID
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param pageSize the maximum number of readers on the page
+     * @return the page of readers and the cursor of the next page
+     */
+    Page<Reader> listReaders(Map<String, Reader> readers, String cursor, int pageSize) {
+        List<Reader> items = new ArrayList<Reader>(pageSize);
+        NavigableSet<String> keys = cursor == null ? readerIds : readerIds.tailSet(cursor, false);
+        for (String readerId : keys) {
+            Reader reader = readers.get(readerId);
+            // Skip readers removed since their key was read
+            if (reader != null) {
+                items.add(reader);
+                if (items.size() == pageSize) {
+                    return new Page<Reader>(items, readerId);
+                }
+            }
+        }
+        return new Page<Reader>(items, null);
+    }
+
+    // Printing
+
+    /**
+     * Prints records, each followed by a separator, then flushes the sink.
+     *
+     * @param <T>     the type of the records
+     * @param output  the sink to print to
+     * @param records the records, in listing order
+     * @param format  formats a record
+     */
+    static <T> void print(OutputSink output, Iterable<T> records, Function<T, String> format) {
+        for (T record : records) {
+            output.print(format.apply(record));
+            output.print(SEPARATOR);
+        }
+        output.flush();
+    }
+}
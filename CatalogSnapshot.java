@@ -0,0 +1,232 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * An immutable, point-in-time view of the books and readers of a library.
+ * The library replaces its current snapshot atomically after each change, sharing every
+ * unchanged record with the previous one, so reading a snapshot takes no lock and a listing
+ * over one snapshot sees the catalog as it was at a single moment, even while books are
+ * borrowed. Each snapshot keeps its records twice, in a sorted tree for listings and in a hash
+ * trie for lookups by key, sharing the records themselves. The books of a snapshot are copies
+ * that must not be changed.
+ */
+public class CatalogSnapshot {
+
+    /**
+     * The snapshot of an empty library.
+     */
+    static final CatalogSnapshot EMPTY = new CatalogSnapshot(0, PersistentSortedMap.<Book>empty(),
+            PersistentHashMap.<Book>empty(), PersistentSortedMap.<Reader>empty(), PersistentHashMap.<Reader>empty());
+
+    /**
+     * The number of changes made to the library before this snapshot was taken.
+     */
+    private final long version;
+    /**
+     * The books, in ISBN order.
+     */
+    private final PersistentSortedMap<Book> books;
+    /**
+     * The same books, hashed by ISBN.
+     */
+    private final PersistentHashMap<Book> bookIndex;
+    /**
+     * The readers, in reader ID order.
+     */
+    private final PersistentSortedMap<Reader> readers;
+    /**
+     * The same readers, hashed by reader ID.
+     */
+    private final PersistentHashMap<Reader> readerIndex;
+
+    /**
+     * Constructs a snapshot of the given books and readers.
+     *
+     * @param version     the number of changes made before the snapshot
+     * @param books       the books, in ISBN order
+     * @param bookIndex   the same books, hashed by ISBN
+     * @param readers     the readers, in reader ID order
+     * @param readerIndex the same readers, hashed by reader ID
+     */
+    private CatalogSnapshot(long version, PersistentSortedMap<Book> books, PersistentHashMap<Book> bookIndex,
+            PersistentSortedMap<Reader> readers, PersistentHashMap<Reader> readerIndex) {
+        this.version = version;
+        this.books = books;
+        this.bookIndex = bookIndex;
+        this.readers = readers;
+        this.readerIndex = readerIndex;
+    }
+
+    /**
+     * Returns the first snapshot of the given books and readers, indexing them for lookups.
+     *
+     * @param books   the books, in ISBN order
+     * @param readers the readers, in reader ID order
+     * @return the snapshot
+     */
+    static CatalogSnapshot of(PersistentSortedMap<Book> books, PersistentSortedMap<Reader> readers) {
+        PersistentHashMap<Book> bookIndex = PersistentHashMap.empty();
+        for (Book book : books) {
+            bookIndex = bookIndex.put(book.getISBN(), book);
+        }
+        PersistentHashMap<Reader> readerIndex = PersistentHashMap.empty();
+        for (Reader reader : readers) {
+            readerIndex = readerIndex.put(reader.getId(), reader);
+        }
+        return new CatalogSnapshot(0, books, bookIndex, readers, readerIndex);
+    }
+
+    /**
+     * Returns a snapshot with a book added or replaced.
+     *
+     * @param book the copy of the book to store
+     * @return the new snapshot
+     */
+    CatalogSnapshot withBook(Book book) {
+        return new CatalogSnapshot(version + 1, books.put(book.getISBN(), book), bookIndex.put(book.getISBN(), book),
+                readers, readerIndex);
+    }
+
+    /**
+     * Returns a snapshot without a book.
+     *
+     * @param ISBN the ISBN of the book
+     * @return the new snapshot
+     */
+    CatalogSnapshot withoutBook(String ISBN) {
+        return new CatalogSnapshot(version + 1, books.remove(ISBN), bookIndex.remove(ISBN), readers, readerIndex);
+    }
+
+    /**
+     * Returns a snapshot with a reader added or replaced.
+     *
+     * @param reader the reader
+     * @return the new snapshot
+     */
+    CatalogSnapshot withReader(Reader reader) {
+        return new CatalogSnapshot(version + 1, books, bookIndex, readers.put(reader.getId(), reader),
+                readerIndex.put(reader.getId(), reader));
+    }
+
+    /**
+     * Returns a snapshot without a reader.
+     *
+     * @param readerId the ID of the reader
+     * @return the new snapshot
+     */
+    CatalogSnapshot withoutReader(String readerId) {
+        return new CatalogSnapshot(version + 1, books, bookIndex, readers.remove(readerId), readerIndex.remove(readerId));
+    }
+
+    /**
+     * Returns the number of changes made to the library before this snapshot was taken.
+     * A later snapshot has a higher version.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the book with the given ISBN.
+     *
+     * @param ISBN the ISBN of the book
+     * @return the book, or null if not found
+     */
+    public Book getBook(String ISBN) {
+        return bookIndex.get(ISBN);
+    }
+
+    /**
+     * Returns the reader with the given ID.
+     *
+     * @param readerId the ID of the reader
+     * @return the reader, or null if not found
+     */
+    public Reader getReader(String readerId) {
+        return readerIndex.get(readerId);
+    }
+
+    /**
+     * Returns the number of books.
+     *
+     * @return the number of books
+     */
+    public int getBookCount() {
+        return bookIndex.size();
+    }
+
+    /**
+     * Returns the number of readers.
+     *
+     * @return the number of readers
+     */
+    public int getReaderCount() {
+        return readerIndex.size();
+    }
+
+    /**
+     * Returns the books in ISBN order.
+     *
+     * @return the books
+     */
+    public Iterable<Book> books() {
+        return books;
+    }
+
+    /**
+     * Returns the readers in ID order.
+     *
+     * @return the readers
+     */
+    public Iterable<Reader> readers() {
+        return readers;
+    }
+
+    /**
+     * Lists one page of the books matching a filter, in ISBN order.
+     *
+     * @param filter   the filter the books must match
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param pageSize the maximum number of books on the page
+     * @return the page of books and the cursor of the next page
+     */
+    public Page<Book> listBooks(BookFilter filter, String cursor, int pageSize) {
+        List<Book> items = new ArrayList<Book>(pageSize);
+        Iterator<Book> after = books.valuesAfter(cursor);
+        while (after.hasNext()) {
+            Book book = after.next();
+            if (filter.test(book)) {
+                items.add(book);
+                if (items.size() == pageSize) {
+                    return new Page<Book>(items, book.getISBN());
+                }
+            }
+        }
+        return new Page<Book>(items, null);
+    }
+
+    /**
+     * Lists one page of the readers, in ID order.
+     *
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param pageSize the maximum number of readers on the page
+     * @return the page of readers and the cursor of the next page
+     */
+    public Page<Reader> listReaders(String cursor, int pageSize) {
+        List<Reader> items = new ArrayList<Reader>(pageSize);
+        Iterator<Reader> after = readers.valuesAfter(cursor);
+        while (after.hasNext()) {
+            Reader reader = after.next();
+            items.add(reader);
+            if (items.size() == pageSize) {
+                return new Page<Reader>(items, reader.getId());
+            }
+        }
+        return new Page<Reader>(items, null);
+    }
+}
@@ -0,0 +1,394 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The loans and holds of a library: the holding of each book in circulation, and the indexes
+ * of each reader's loans and holds and of the loans by due time.
+ * A holding is changed only under its book's lock, which the library takes; the reader indexes
+ * are changed with atomic per-reader updates, so readers removed meanwhile can be refused
+ * under the lock of any book.
+ */
+class Circulation {
+
+    /**
+     * The copies and hold queues of the books in circulation, indexed by ISBN.
+     * A book has an entry only while a copy is on loan or a reader is waiting for it,
+     * and each entry is guarded by its book's lock.
+     */
+    private final Map<String, Holding> holdings = new ConcurrentHashMap<String, Holding>();
+    /**
+     * The ISBNs of the books borrowed by each reader, indexed by reader ID.
+     * Readers with no borrowed books have no entry.
+     */
+    private final Map<String, Set<String>> loans = new ConcurrentHashMap<String, Set<String>>();
+    /**
+     * The ISBNs of the books each reader is waiting for, indexed by reader ID.
+     * Readers with no holds have no entry.
+     */
+    private final Map<String, Set<String>> holds = new ConcurrentHashMap<String, Set<String>>();
+    /**
+     * The number of copies currently borrowed.
+     */
+    private final LongAdder booksOnLoan = new LongAdder();
+    /**
+     * The active loans with their checkout and due times, ordered by due time.
+     */
+    private final LoanIndex loanIndex = new LoanIndex();
+    /**
+     * Notified of loans carried over with their own due times, which may already have passed.
+     */
+    private final List<Consumer<Loan>> carriedLoanListeners = new CopyOnWriteArrayList<Consumer<Loan>>();
+
+    // Holdings
+
+    /**
+     * Returns the holding of a book in circulation. The caller must hold the book's lock.
+     *
+     * @param ISBN the ISBN of the book
+     * @return the holding, or null if no copy is on loan and nobody is waiting
+     */
+    Holding get(String ISBN) {
+        return holdings.get(ISBN);
+    }
+
+    /**
+     * Returns the holding of a book, putting the book in circulation with every copy free
+     * if it has none. The caller must hold the book's lock.
+     *
+     * @param book the book
+     * @return the holding
+     */
+    Holding holdingOf(Book book) {
+        Holding holding = holdings.get(book.getISBN());
+        if (holding == null) {
+            holding = new Holding(book.getISBN(), book.getCopies());
+            holdings.put(book.getISBN(), holding);
+        }
+        return holding;
+    }
+
+    /**
+     * Takes a book out of circulation once its holding is idle. The caller must hold the book's lock.
+     *
+     * @param holding the holding of the book
+     */
+    void release(Holding holding) {
+        if (holding.isIdle()) {
+            holdings.remove(holding.getISBN());
+        }
+    }
+
+    /**
+     * Takes a book out of circulation, dropping its loans and holds.
+     * The caller must hold the book's lock, or be restoring the library.
+     *
+     * @param ISBN the ISBN of the book
+     */
+    void drop(String ISBN) {
+        Holding holding = holdings.remove(ISBN);
+        if (holding == null) {
+            return;
+        }
+        for (Loan loan : new ArrayList<Loan>(holding.getLoans())) {
+            removeLoan(holding, loan.getReaderId());
+        }
+        for (String readerId : holding.getHolds()) {
+            trackHold(readerId, ISBN, false);
+        }
+    }
+
+    /**
+     * Returns the loans of the copies of a book. The caller must hold the book's lock.
+     *
+     * @param ISBN the ISBN of the book
+     * @return a copy of the loans, empty if no copy is on loan
+     */
+    List<Loan> getCopyLoans(String ISBN) {
+        Holding holding = holdings.get(ISBN);
+        return holding == null ? new ArrayList<Loan>() : new ArrayList<Loan>(holding.getLoans());
+    }
+
+    /**
+     * Returns the readers waiting for a copy of a book. The caller must hold the book's lock.
+     *
+     * @param ISBN the ISBN of the book
+     * @return a copy of the reader IDs, longest-waiting first
+     */
+    List<String> getHoldQueue(String ISBN) {
+        Holding holding = holdings.get(ISBN);
+        return holding == null ? new ArrayList<String>() : holding.getHolds();
+    }
+
+    // Loans
+
+    /**
+     * Records the loan of a copy taken from a holding, in the holding, the reader-to-loans
+     * index and the due-time index.
+     *
+     * @param holding the holding the copy was taken from
+     * @param loan    the loan
+     */
+    void addLoan(Holding holding, Loan loan) {
+        addLoan(holding, loan, null);
+    }
+
+    /**
+     * Records the loan of a copy taken from a holding, unless the borrowing reader has been
+     * removed meanwhile, in which case the copy is put back.
+     * Removal marks the reader inside the same reader-to-loans entry update that adds the
+     * loan, so a reader is never removed while a loan is being added for it.
+     *
+     * @param holding the holding the copy was taken from
+     * @param loan    the loan
+     * @param reader  the borrowing reader, or null when restoring
+     * @return whether the loan was recorded
+     */
+    boolean addLoan(Holding holding, Loan loan, Reader reader) {
+        String ISBN = loan.getISBN();
+        boolean[] added = new boolean[1];
+        loans.compute(loan.getReaderId(), (id, borrowed) -> {
+            if (reader != null && reader.isRemoved()) {
+                return borrowed;
+            }
+            if (borrowed == null) {
+                borrowed = ConcurrentHashMap.newKeySet();
+            }
+            if (borrowed.add(ISBN)) {
+                booksOnLoan.increment();
+            }
+            added[0] = true;
+            return borrowed;
+        });
+        if (!added[0]) {
+            holding.put(loan.getCopy());
+            release(holding);
+            return false;
+        }
+        holding.addLoan(loan);
+        loanIndex.add(loan);
+        return true;
+    }
+
+    /**
+     * Removes the loan of a reader from a holding, putting the copy back, and from the
+     * reader-to-loans index, dropping readers left with no loans, and the due-time index.
+     *
+     * @param holding  the holding of the borrowed book
+     * @param readerId the ID of the borrowing reader
+     * @return the removed loan, or null if the reader has no copy of the book
+     */
+    Loan removeLoan(Holding holding, String readerId) {
+        Loan loan = holding.removeLoan(readerId);
+        if (loan == null) {
+            return null;
+        }
+        holding.put(loan.getCopy());
+        loanIndex.remove(loan);
+        loans.computeIfPresent(readerId, (id, borrowed) -> {
+            if (borrowed.remove(loan.getISBN())) {
+                booksOnLoan.decrement();
+            }
+            return borrowed.isEmpty() ? null : borrowed;
+        });
+        return loan;
+    }
+
+    /**
+     * Returns the ISBNs of the books a reader has borrowed.
+     *
+     * @param readerId the ID of the reader
+     * @return a copy of the reader's borrowed ISBNs, empty if there are none
+     */
+    Set<String> getLoans(String readerId) {
+        Set<String> borrowed = loans.get(readerId);
+        return borrowed == null ? Collections.<String>emptySet() : new HashSet<String>(borrowed);
+    }
+
+    /**
+     * Marks a reader removed unless they have borrowed books, in the same update of their
+     * reader-to-loans entry that a borrow makes, so no borrow can add a loan once this has passed.
+     *
+     * @param reader the reader to remove
+     * @return the number of books the reader has borrowed, or 0 if the reader was marked
+     */
+    int markRemoved(Reader reader) {
+        int[] borrowed = new int[1];
+        loans.compute(reader.getId(), (id, borrowing) -> {
+            if (borrowing != null && !borrowing.isEmpty()) {
+                borrowed[0] = borrowing.size();
+                return borrowing;
+            }
+            reader.markRemoved();
+            return null;
+        });
+        return borrowed[0];
+    }
+
+    /**
+     * Returns the number of copies currently borrowed.
+     *
+     * @return the number of loans
+     */
+    long getBooksOnLoan() {
+        return booksOnLoan.sum();
+    }
+
+    /**
+     * Returns the loans overdue at a time, most overdue first.
+     *
+     * @param now   the time, in epoch milliseconds
+     * @param limit the maximum number of loans to return
+     * @return the overdue loans
+     */
+    List<Loan> getOverdueLoans(long now, int limit) {
+        return loanIndex.overdue(now, limit);
+    }
+
+    /**
+     * Returns the loans next to become overdue after a time, soonest due first.
+     *
+     * @param now   the time, in epoch milliseconds
+     * @param count the maximum number of loans to return
+     * @return the loans not yet overdue
+     */
+    List<Loan> getNextDueLoans(long now, int count) {
+        return loanIndex.nextDue(now, count);
+    }
+
+    /**
+     * Returns the loans ordered after a given loan by due time and due before a time.
+     *
+     * @param after the loan to continue after, exclusive
+     * @param to    the latest due time, in epoch milliseconds (exclusive)
+     * @param limit the maximum number of loans to return
+     * @return the loans, earliest due first
+     */
+    List<Loan> getLoansDueAfter(Loan after, long to, int limit) {
+        return loanIndex.dueAfter(after, to, limit);
+    }
+
+    /**
+     * Returns whether a loan is still active.
+     *
+     * @param loan the loan
+     * @return whether the loan is in the due-time index
+     */
+    boolean isOnLoan(Loan loan) {
+        return loanIndex.contains(loan);
+    }
+
+    /**
+     * Registers a listener notified of each loan restored or transferred with its own due time.
+     *
+     * @param listener the listener, called while the loan's book is locked
+     */
+    void addCarriedLoanListener(Consumer<Loan> listener) {
+        carriedLoanListeners.add(listener);
+    }
+
+    /**
+     * Unregisters a listener registered by addCarriedLoanListener.
+     *
+     * @param listener the listener
+     */
+    void removeCarriedLoanListener(Consumer<Loan> listener) {
+        carriedLoanListeners.remove(listener);
+    }
+
+    /**
+     * Notifies the carried loan listeners of a restored or transferred loan, once it is in
+     * the due-time index.
+     *
+     * @param loan the loan
+     */
+    void loanCarried(Loan loan) {
+        for (Consumer<Loan> listener : carriedLoanListeners) {
+            listener.accept(loan);
+        }
+    }
+
+    // Holds
+
+    /**
+     * Records that a reader joined or left the hold queue of a book in the reader-to-holds index,
+     * dropping readers left with no holds.
+     *
+     * @param readerId the ID of the reader
+     * @param ISBN     the ISBN of the book
+     * @param waiting  whether the reader joined rather than left the queue
+     */
+    void trackHold(String readerId, String ISBN, boolean waiting) {
+        if (waiting) {
+            holds.computeIfAbsent(readerId, id -> ConcurrentHashMap.newKeySet()).add(ISBN);
+        } else {
+            holds.computeIfPresent(readerId, (id, waitingFor) -> {
+                waitingFor.remove(ISBN);
+                return waitingFor.isEmpty() ? null : waitingFor;
+            });
+        }
+    }
+
+    /**
+     * Records that a reader joined the hold queue of a book in the reader-to-holds index,
+     * unless the reader has been removed meanwhile.
+     * Removal reads the reader's holds with an update of the same entry after marking the
+     * reader, so it sees every hold added before the mark and cancels it.
+     *
+     * @param reader the waiting reader
+     * @param ISBN   the ISBN of the book
+     * @return whether the hold was recorded
+     */
+    boolean addHold(Reader reader, String ISBN) {
+        boolean[] added = new boolean[1];
+        holds.compute(reader.getId(), (id, waitingFor) -> {
+            if (reader.isRemoved()) {
+                return waitingFor;
+            }
+            if (waitingFor == null) {
+                waitingFor = ConcurrentHashMap.newKeySet();
+            }
+            waitingFor.add(ISBN);
+            added[0] = true;
+            return waitingFor;
+        });
+        return added[0];
+    }
+
+    /**
+     * Returns the ISBNs of the books a reader is waiting for.
+     *
+     * @param readerId the ID of the reader
+     * @return a copy of the ISBNs, empty if there are none
+     */
+    Set<String> getHolds(String readerId) {
+        Set<String> waiting = holds.get(readerId);
+        return waiting == null ? Collections.<String>emptySet() : new HashSet<String>(waiting);
+    }
+
+    /**
+     * Returns the holds of a reader marked removed, reading them with an update of their
+     * reader-to-holds entry, so a hold being placed concurrently is either seen here or
+     * refused by the mark.
+     *
+     * @param readerId the ID of the removed reader
+     * @return a copy of the ISBNs the reader is waiting for
+     */
+    Set<String> getHoldsOfRemoved(String readerId) {
+        Set<String> waiting = new HashSet<String>();
+        holds.computeIfPresent(readerId, (id, waitingFor) -> {
+            waiting.addAll(waitingFor);
+            return waitingFor;
+        });
+        return waiting;
+    }
+}
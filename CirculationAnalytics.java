@@ -0,0 +1,152 @@
+package library;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Aggregations over the loan history of a library: the most borrowed titles, the most active
+ * readers, and loans by author and by publication year. Each query counts the loans checked out
+ * in a period with one parallel scan of the history, then groups the counts of the few distinct
+ * books or readers. Books removed from the catalog keep their counts by ISBN but are left out
+ * of the author and year groupings.
+ */
+public class CirculationAnalytics {
+
+    /**
+     * Orders counts from most to fewest loans, then by key.
+     */
+    private static final Comparator<Map.Entry<String, Long>> MOST_LOANS =
+            Comparator.comparing((Map.Entry<String, Long> entry) -> entry.getValue()).reversed()
+                    .thenComparing(Map.Entry::getKey);
+
+    /**
+     * The library whose catalog groups the books.
+     */
+    private final Library library;
+    /**
+     * The history of completed loans.
+     */
+    private final LoanHistory history;
+
+    /**
+     * Constructs the analytics of a library with a loan history.
+     *
+     * @param library the library
+     * @throws IllegalStateException if the library keeps no loan history
+     */
+    public CirculationAnalytics(Library library) {
+        if (library.getLoanHistory() == null) {
+            throw new IllegalStateException("The library keeps no loan history");
+        }
+        this.library = library;
+        this.history = library.getLoanHistory();
+    }
+
+    /**
+     * Returns the most borrowed books of a period.
+     *
+     * @param limit the maximum number of books to return
+     * @param from  the start of the period, in epoch milliseconds, inclusive
+     * @param to    the end of the period, in epoch milliseconds, exclusive
+     * @return the ISBNs with their loan counts, most loans first
+     */
+    public List<Map.Entry<String, Long>> topTitles(int limit, long from, long to) {
+        long[] counts = history.countByBook(from, to);
+        return top(limit, counts, history.books());
+    }
+
+    /**
+     * Returns the readers who borrowed most in a period.
+     *
+     * @param limit the maximum number of readers to return
+     * @param from  the start of the period, in epoch milliseconds, inclusive
+     * @param to    the end of the period, in epoch milliseconds, exclusive
+     * @return the reader IDs with their loan counts, most loans first
+     */
+    public List<Map.Entry<String, Long>> topReaders(int limit, long from, long to) {
+        long[] counts = history.countByReader(from, to);
+        return top(limit, counts, history.readers());
+    }
+
+    /**
+     * Returns the loans of a period by author.
+     *
+     * @param from the start of the period, in epoch milliseconds, inclusive
+     * @param to   the end of the period, in epoch milliseconds, exclusive
+     * @return the loan counts by author, most loans first
+     */
+    public Map<String, Long> loansByAuthor(long from, long to) {
+        long[] counts = history.countByBook(from, to);
+        String[] ISBNs = history.books();
+        Map<String, Long> byAuthor = new HashMap<String, Long>();
+        for (int i = 0; i < counts.length; i++) {
+            Book book = counts[i] == 0 ? null : library.findBook(ISBNs[i]);
+            if (book != null) {
+                byAuthor.merge(book.getAuthor(), counts[i], Long::sum);
+            }
+        }
+        List<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(byAuthor.entrySet());
+        entries.sort(MOST_LOANS);
+        Map<String, Long> sorted = new LinkedHashMap<String, Long>();
+        for (Map.Entry<String, Long> entry : entries) {
+            sorted.put(entry.getKey(), entry.getValue());
+        }
+        return sorted;
+    }
+
+    /**
+     * Returns the loans of a period by the publication year of the book.
+     *
+     * @param from the start of the period, in epoch milliseconds, inclusive
+     * @param to   the end of the period, in epoch milliseconds, exclusive
+     * @return the loan counts by publication year, in year order
+     */
+    public SortedMap<Integer, Long> loansByPublicationYear(long from, long to) {
+        long[] counts = history.countByBook(from, to);
+        String[] ISBNs = history.books();
+        SortedMap<Integer, Long> byYear = new TreeMap<Integer, Long>();
+        for (int i = 0; i < counts.length; i++) {
+            Book book = counts[i] == 0 ? null : library.findBook(ISBNs[i]);
+            if (book != null) {
+                byYear.merge(book.getPublicationYear(), counts[i], Long::sum);
+            }
+        }
+        return byYear;
+    }
+
+    /**
+     * Selects the keys with the most loans, keeping a heap of the best seen so far.
+     *
+     * @param limit  the maximum number of keys to return
+     * @param counts the loan counts, by number
+     * @param keys   the keys, by number
+     * @return the keys with their counts, most loans first
+     */
+    private static List<Map.Entry<String, Long>> top(int limit, long[] counts, String[] keys) {
+        PriorityQueue<Map.Entry<String, Long>> best = new PriorityQueue<Map.Entry<String, Long>>(MOST_LOANS.reversed());
+        for (int i = 0; i < counts.length && limit > 0; i++) {
+            if (counts[i] == 0) {
+                continue;
+            }
+            Map.Entry<String, Long> entry = new AbstractMap.SimpleImmutableEntry<String, Long>(keys[i], counts[i]);
+            if (best.size() < limit) {
+                best.add(entry);
+            } else if (MOST_LOANS.compare(entry, best.peek()) < 0) {
+                best.poll();
+                best.add(entry);
+            }
+        }
+        List<Map.Entry<String, Long>> sorted = new ArrayList<Map.Entry<String, Long>>(best);
+        sorted.sort(MOST_LOANS);
+        return Collections.unmodifiableList(sorted);
+    }
+}
@@ -0,0 +1,258 @@
+package library;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Measures the throughput of a library cluster as shards are added, then the cost of adding
+ * a shard to a populated cluster.
+ * For each cluster size, shard processes are started on loopback with fresh data, populated
+ * through a ShardRouter, and driven by client threads with a circulation mix of 80% book
+ * lookups, 10% borrows and 10% returns. The rebalance phase borrows a share of the books,
+ * adds a shard, and checks that every book and loan is still found through the router.
+ *
+ * Usage: java library.ClusterBenchmark [--shards 1,2,4,8] [--books 20000] [--readers 2000]
+ *        [--threads 32] [--seconds 10] [--heap 256m]
+ */
+public class ClusterBenchmark {
+
+    /**
+     * The number of threads populating a cluster.
+     */
+    private static final int LOAD_THREADS = 16;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     * @throws Exception if the cluster fails
+     */
+    public static void main(String[] args) throws Exception {
+        List<Integer> sizes = new ArrayList<Integer>(List.of(1, 2, 4, 8));
+        int books = 20000;
+        int readers = 2000;
+        int threads = 32;
+        double seconds = 10;
+        String heap = "256m";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--shards":
+                sizes.clear();
+                for (String size : args[i + 1].split(",")) {
+                    sizes.add(Integer.parseInt(size.trim()));
+                }
+                break;
+            case "--books":
+                books = Integer.parseInt(args[i + 1]);
+                break;
+            case "--readers":
+                readers = Integer.parseInt(args[i + 1]);
+                break;
+            case "--threads":
+                threads = Integer.parseInt(args[i + 1]);
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            case "--heap":
+                heap = args[i + 1];
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf("%-8s %14s %10s %10s %10s\n", "shards", "ops/s", "p50 us", "p99 us", "max us");
+        for (int size : sizes) {
+            Path directory = Files.createTempDirectory("library-cluster");
+            try (LibraryCluster cluster = LibraryCluster.start(directory, size, heap)) {
+                ShardRouter router = new ShardRouter(cluster.getShards());
+                populate(router, books, readers);
+                LatencyHistogram latency = new LatencyHistogram();
+                long operations = drive(router, books, readers, threads, seconds, latency);
+                System.out.printf(Locale.ROOT, "%-8d %14.0f %10.0f %10.0f %10.0f\n", size, operations / seconds,
+                        latency.getPercentile(0.5) / 1e3, latency.getPercentile(0.99) / 1e3, latency.getMax() / 1e3);
+            } finally {
+                delete(directory);
+            }
+        }
+        rebalance(Math.max(1, sizes.get(sizes.size() - 1) - 1), books, readers, heap);
+    }
+
+    /**
+     * Adds the books and readers through a router, from several threads.
+     *
+     * @param router  the router
+     * @param books   the number of books
+     * @param readers the number of readers
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static void populate(ShardRouter router, int books, int readers) throws InterruptedException {
+        parallel(LOAD_THREADS, t -> {
+            for (int i = t; i < readers; i += LOAD_THREADS) {
+                router.addReader("R" + i, "Reader " + i, "r" + i + "@example.com");
+            }
+            for (int i = t; i < books; i += LOAD_THREADS) {
+                router.addBook(isbn(i), "Title " + i, "Author " + (i % 1000), 1900 + i % 125, 2);
+            }
+        });
+    }
+
+    /**
+     * Drives the circulation mix through a router for a period.
+     *
+     * @param router  the router
+     * @param books   the number of books
+     * @param readers the number of readers
+     * @param threads the number of client threads
+     * @param seconds the length of the period
+     * @param latency receives the latency of every call
+     * @return the number of calls made
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static long drive(ShardRouter router, int books, int readers, int threads, double seconds,
+            LatencyHistogram latency) throws InterruptedException {
+        AtomicLong operations = new AtomicLong();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        parallel(threads, t -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            // Each thread borrows as its own readers, so it knows which loans it can return
+            List<String[]> borrowed = new ArrayList<String[]>();
+            long count = 0;
+            while (System.nanoTime() < deadline) {
+                int choice = random.nextInt(100);
+                long start = System.nanoTime();
+                if (choice < 80 || (choice >= 90 && borrowed.isEmpty())) {
+                    router.searchBookByISBN(isbn(random.nextInt(books)));
+                } else if (choice < 90) {
+                    String readerId = "R" + (t + threads * random.nextInt(Math.max(1, readers / threads)));
+                    String ISBN = isbn(random.nextInt(books));
+                    if (router.borrowBook(readerId, ISBN) == Outcome.SUCCESS) {
+                        borrowed.add(new String[] { readerId, ISBN });
+                    }
+                } else {
+                    String[] loan = borrowed.remove(random.nextInt(borrowed.size()));
+                    router.returnBook(loan[0], loan[1]);
+                }
+                latency.record(System.nanoTime() - start);
+                count++;
+            }
+            operations.addAndGet(count);
+        });
+        return operations.get();
+    }
+
+    /**
+     * Measures adding a shard to a populated cluster with books on loan, and checks that
+     * every book and loan is found through the router afterwards.
+     *
+     * @param size    the number of shards before the new one
+     * @param books   the number of books
+     * @param readers the number of readers
+     * @param heap    the maximum heap of each shard process
+     * @throws Exception if the cluster fails or a book or loan is lost
+     */
+    private static void rebalance(int size, int books, int readers, String heap) throws Exception {
+        Path directory = Files.createTempDirectory("library-cluster");
+        try (LibraryCluster cluster = LibraryCluster.start(directory, size, heap)) {
+            ShardRouter router = new ShardRouter(cluster.getShards());
+            populate(router, books, readers);
+            // Lend a tenth of the books, one per reader in turn
+            long lent = 0;
+            for (int i = 0; i < books; i += 10) {
+                if (router.borrowBook("R" + (i / 10 % readers), isbn(i)) == Outcome.SUCCESS) {
+                    lent++;
+                }
+            }
+
+            String name = cluster.startShard();
+            URI address = cluster.getShards().get(name);
+            long start = System.nanoTime();
+            int moved = router.addShard(name, address);
+            double elapsed = (System.nanoTime() - start) / 1e9;
+            System.out.printf(Locale.ROOT, "Adding %s to %d shards moved %d of %d books (%.1f%%) in %.2f s\n",
+                    name, size, moved, books, 100.0 * moved / books, elapsed);
+
+            long found = 0;
+            for (int i = 0; i < books; i++) {
+                if (router.searchBookByISBN(isbn(i)) != null) {
+                    found++;
+                }
+            }
+            long loans = 0;
+            for (int i = 0; i < readers; i++) {
+                loans += router.getLoans("R" + i).size();
+            }
+            System.out.printf("After rebalancing: %d of %d books and %d of %d loans found\n", found, books, loans, lent);
+            if (found != books || loans != lent) {
+                throw new IllegalStateException("Rebalancing lost books or loans");
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * Runs a body on several threads and waits for all of them.
+     *
+     * @param threads the number of threads
+     * @param body    the body, given the index of its thread
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if a thread failed
+     */
+    private static void parallel(int threads, IntConsumer body) throws InterruptedException {
+        List<Thread> started = new ArrayList<Thread>();
+        List<Throwable> failures = new ArrayList<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread thread = new Thread(() -> body.accept(index));
+            thread.setUncaughtExceptionHandler((failed, e) -> {
+                synchronized (failures) {
+                    failures.add(e);
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+        for (Thread thread : started) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("A client thread failed", failures.get(0));
+        }
+    }
+
+    /**
+     * Returns the ISBN of the i-th book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param directory the directory
+     * @throws IOException if a file cannot be deleted
+     */
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package library;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Applies every change to a library on one writer thread, in the order submitted.
+ * Callers submit commands to a bounded queue and get a future completed with the outcome;
+ * the writer drains the queue in batches, applies each batch without contending for any
+ * lock, then makes the whole batch durable with one journal commit before completing its
+ * futures. Reads go to the library directly, from its lock-free catalog snapshots.
+ * <p>
+ * When the queue is full, a caller waits up to the admission timeout for room, which slows
+ * producers to the writer's pace; a command still not admitted is shed, its future failing
+ * with a RejectedExecutionException, so an overloaded library answers some callers quickly
+ * rather than all of them late. Futures complete on a completer thread, in the order the
+ * commands were applied, so continuations that block or run long hold up other callers'
+ * outcomes but never the writer. If the writer is interrupted or fails, every command it has
+ * not applied fails with a RejectedExecutionException.
+ */
+public class CommandEngine implements Closeable {
+
+    /**
+     * The largest number of commands applied before their batch is committed.
+     */
+    static final int MAX_BATCH = 1024;
+
+    /**
+     * One submitted change and the future of its outcome.
+     */
+    private static final class Command {
+        private final Function<Library, Outcome> change;
+        private final CompletableFuture<Outcome> outcome = new CompletableFuture<Outcome>();
+
+        private Command(Function<Library, Outcome> change) {
+            this.change = change;
+        }
+    }
+
+    /**
+     * The library the commands change.
+     */
+    private final Library library;
+    /**
+     * The commands waiting for the writer.
+     */
+    private final BlockingQueue<Command> queue;
+    /**
+     * The longest a caller waits for room in the queue before its command is shed, in nanoseconds.
+     */
+    private final long admissionNanos;
+    /**
+     * The writer thread.
+     */
+    private final Thread writer;
+    /**
+     * Completes the futures of each applied batch, off the writer thread.
+     */
+    private final ExecutorService completer = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "library-completer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * The number of commands applied.
+     */
+    private final LongAdder applied = new LongAdder();
+    /**
+     * The number of batches applied.
+     */
+    private final LongAdder batches = new LongAdder();
+    /**
+     * The number of commands shed because the queue stayed full.
+     */
+    private final LongAdder shed = new LongAdder();
+    /**
+     * Whether the engine still admits commands.
+     */
+    private volatile boolean running = true;
+    /**
+     * Whether the writer has stopped taking commands from the queue.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Starts an engine applying changes to a library. The library switches to snapshot reads,
+     * and from now on must only be changed through the engine.
+     *
+     * @param library          the library to change
+     * @param capacity         the number of commands the queue holds
+     * @param admissionTimeout the longest a caller waits for room in a full queue; zero sheds at once
+     */
+    public CommandEngine(Library library, int capacity, Duration admissionTimeout) {
+        this.library = library;
+        this.queue = new ArrayBlockingQueue<Command>(capacity);
+        this.admissionNanos = admissionTimeout.toNanos();
+        library.setSnapshotReads(true);
+        writer = new Thread(this::run, "library-writer");
+        library.setBatchingThread(writer);
+        writer.start();
+    }
+
+    /**
+     * Returns the library, for reads.
+     *
+     * @return the library
+     */
+    public Library getLibrary() {
+        return library;
+    }
+
+    // Command Methods
+
+    /**
+     * Submits adding a book.
+     *
+     * @param ISBN            the ISBN of the book
+     * @param title           the title of the book
+     * @param author          the author of the book
+     * @param publicationYear the publication year of the book
+     * @param copies          the number of copies
+     * @return the future outcome: SUCCESS or DUPLICATE_BOOK
+     */
+    public CompletableFuture<Outcome> addBook(String ISBN, String title, String author, int publicationYear, int copies) {
+        return submit(library -> library.addBook(ISBN, title, author, publicationYear, copies));
+    }
+
+    /**
+     * Submits removing a book.
+     *
+     * @param ISBN the ISBN of the book
+     * @return the future outcome: SUCCESS or BOOK_NOT_FOUND
+     */
+    public CompletableFuture<Outcome> removeBook(String ISBN) {
+        return submit(library -> library.removeBook(ISBN));
+    }
+
+    /**
+     * Submits updating the catalog information of a book.
+     *
+     * @param ISBN            the ISBN of the book
+     * @param title           the new title
+     * @param author          the new author
+     * @param publicationYear the new publication year
+     * @return the future outcome: SUCCESS or BOOK_NOT_FOUND
+     */
+    public CompletableFuture<Outcome> updateBook(String ISBN, String title, String author, int publicationYear) {
+        return submit(library -> library.updateBook(ISBN, title, author, publicationYear));
+    }
+
+    /**
+     * Submits adding a reader.
+     *
+     * @param readerId the ID of the reader
+     * @param name     the name of the reader
+     * @param contact  the contact of the reader
+     * @return the future outcome: SUCCESS or DUPLICATE_READER
+     */
+    public CompletableFuture<Outcome> addReader(String readerId, String name, String contact) {
+        return submit(library -> library.addReader(readerId, name, contact));
+    }
+
+    /**
+     * Submits removing a reader who has no borrowed books.
+     *
+     * @param readerId the ID of the reader
+     * @return the future outcome: SUCCESS, READER_NOT_FOUND or READER_HAS_LOANS
+     */
+    public CompletableFuture<Outcome> removeReader(String readerId) {
+        return submit(library -> library.removeReader(readerId));
+    }
+
+    /**
+     * Submits borrowing a book.
+     *
+     * @param readerId the ID of the borrowing reader
+     * @param ISBN     the ISBN of the book
+     * @return the future outcome: SUCCESS, READER_NOT_FOUND, BOOK_NOT_FOUND, ALREADY_HAS_COPY or ALREADY_BORROWED
+     */
+    public CompletableFuture<Outcome> borrowBook(String readerId, String ISBN) {
+        return submit(library -> library.borrowBook(readerId, ISBN));
+    }
+
+    /**
+     * Submits returning a book.
+     *
+     * @param readerId the ID of the returning reader
+     * @param ISBN     the ISBN of the book
+     * @return the future outcome: SUCCESS, READER_NOT_FOUND, BOOK_NOT_FOUND, ALREADY_RETURNED or NOT_BORROWED_BY_READER
+     */
+    public CompletableFuture<Outcome> returnBook(String readerId, String ISBN) {
+        return submit(library -> library.returnBook(readerId, ISBN));
+    }
+
+    /**
+     * Queues a change, waiting up to the admission timeout for room.
+     *
+     * @param change the change, applied on the writer thread
+     * @return the future outcome, failed with a RejectedExecutionException if the command was shed
+     */
+    private CompletableFuture<Outcome> submit(Function<Library, Outcome> change) {
+        Command command = new Command(change);
+        boolean admitted = false;
+        if (running) {
+            try {
+                admitted = queue.offer(command) || (admissionNanos > 0 && queue.offer(command, admissionNanos, TimeUnit.NANOSECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (!admitted) {
+            shed.increment();
+            command.outcome.completeExceptionally(new RejectedExecutionException(running
+                    ? "Library is overloaded: " + queue.size() + " changes waiting"
+                    : "Library command engine is closed"));
+        } else if (stopped) {
+            // The writer stopped without seeing this command, so nobody else will fail it
+            failQueued();
+        }
+        return command.outcome;
+    }
+
+    // Writer Methods
+
+    /**
+     * Applies batches of commands until closed and drained, or interrupted.
+     * However the writer stops, the commands it did not apply are failed.
+     */
+    private void run() {
+        List<Command> batch = new ArrayList<Command>(MAX_BATCH);
+        try {
+            while (running || !queue.isEmpty()) {
+                Command first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - batch.size());
+                apply(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Stop admitting; the commands still queued are failed below
+        } finally {
+            running = false;
+            stopped = true;
+            RejectedExecutionException closed = new RejectedExecutionException("Library command engine stopped");
+            for (Command command : batch) {
+                shed.increment();
+                command.outcome.completeExceptionally(closed);
+            }
+            failQueued();
+        }
+    }
+
+    /**
+     * Applies a batch of commands in order, commits it, then hands the futures to the
+     * completer thread.
+     *
+     * @param batch the commands
+     */
+    private void apply(List<Command> batch) {
+        Command[] commands = batch.toArray(new Command[0]);
+        Outcome[] outcomes = new Outcome[commands.length];
+        Throwable[] failures = new Throwable[commands.length];
+        for (int i = 0; i < commands.length; i++) {
+            try {
+                outcomes[i] = commands[i].change.apply(library);
+            } catch (Throwable e) {
+                failures[i] = e;
+            }
+        }
+        try {
+            library.commitBatch();
+        } catch (Throwable e) {
+            // Nothing in the batch is known to be durable
+            complete(() -> {
+                for (Command command : commands) {
+                    command.outcome.completeExceptionally(e);
+                }
+            });
+            return;
+        }
+        applied.add(commands.length);
+        batches.increment();
+        complete(() -> {
+            for (int i = 0; i < commands.length; i++) {
+                if (failures[i] != null) {
+                    commands[i].outcome.completeExceptionally(failures[i]);
+                } else {
+                    commands[i].outcome.complete(outcomes[i]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Runs the completion of a batch's futures on the completer thread, or on the calling
+     * thread once the completer is shut down.
+     *
+     * @param completion completes the futures
+     */
+    private void complete(Runnable completion) {
+        try {
+            completer.execute(completion);
+        } catch (RejectedExecutionException e) {
+            completion.run();
+        }
+    }
+
+    /**
+     * Fails every command still in the queue, once nothing will apply them.
+     */
+    private void failQueued() {
+        Command late;
+        while ((late = queue.poll()) != null) {
+            shed.increment();
+            late.outcome.completeExceptionally(new RejectedExecutionException("Library command engine is closed"));
+        }
+    }
+
+    // Statistics Methods
+
+    /**
+     * Returns the number of commands waiting for the writer.
+     *
+     * @return the queue length
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of commands applied.
+     *
+     * @return the number of commands
+     */
+    public long getAppliedCount() {
+        return applied.sum();
+    }
+
+    /**
+     * Returns the number of batches applied, each made durable with one commit.
+     *
+     * @return the number of batches
+     */
+    public long getBatchCount() {
+        return batches.sum();
+    }
+
+    /**
+     * Returns the number of commands shed because the queue stayed full.
+     *
+     * @return the number of commands
+     */
+    public long getShedCount() {
+        return shed.sum();
+    }
+
+    /**
+     * Stops admitting commands, applies those already admitted, and returns the library
+     * to committing each change itself. Waits up to the writer's poll interval for it to notice,
+     * and for the futures of the applied commands to be completed.
+     */
+    @Override
+    public void close() {
+        running = false;
+        try {
+            writer.join();
+            completer.shutdown();
+            completer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        library.setBatchingThread(null);
+        // Refuse commands admitted while the writer was finishing
+        failQueued();
+    }
+}
@@ -0,0 +1,464 @@
+package library;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs one-line commands against a library without any menu, for scripts and nightly jobs.
+ * Each command prints one compact tab-separated result line starting with its line number,
+ * or only failures are printed. Runs of consecutive borrows, returns or additions go through
+ * the batch methods of Library, so each run is made durable with a single commit.
+ *
+ * Commands, with arguments separated by spaces or tabs and quoted when they contain spaces:
+ *   ADD_BOOK isbn title author year [copies]   UPDATE_BOOK isbn title author year
+ *   REMOVE_BOOK isbn                           FIND_BOOK isbn
+ *   SET_COPIES isbn copies                     HOLDS isbn
+ *   ADD_READER id name contact                 REMOVE_READER id [CASCADE]
+ *   FIND_READER id                             LOANS id
+ *   BORROW readerId isbn                       RETURN readerId isbn
+ *   HOLD readerId isbn                         CANCEL_HOLD readerId isbn
+ *   SEARCH words...                            OVERDUE [limit]
+ *   TOP_TITLES [limit]                         TOP_READERS [limit]
+ *   SEARCH_READERS start of name or contact...
+ * Blank lines and lines starting with '#' are skipped.
+ */
+public class CommandRunner {
+
+    /**
+     * The largest number of commands run together as one batch.
+     */
+    private static final int MAX_BATCH = 4096;
+    /**
+     * The number of books listed by a SEARCH command, or readers by a SEARCH_READERS command.
+     */
+    private static final int SEARCH_LIMIT = 20;
+    /**
+     * The number of books or readers listed by a TOP_TITLES or TOP_READERS command when no limit is given.
+     */
+    private static final int TOP_LIMIT = 10;
+
+    /**
+     * The library the commands run against.
+     */
+    private final Library library;
+    /**
+     * The sink receiving the result lines.
+     */
+    private final OutputSink output;
+    /**
+     * Whether to print only the commands that failed.
+     */
+    private final boolean errorsOnly;
+    /**
+     * The command name of the batch being collected, or null if none is.
+     */
+    private String batchCommand;
+    /**
+     * The arguments of the commands in the batch being collected.
+     */
+    private final List<String[]> batchArgs = new ArrayList<String[]>();
+    /**
+     * The line numbers of the commands in the batch being collected.
+     */
+    private final long[] batchLines = new long[MAX_BATCH];
+    /**
+     * The number of commands that did not succeed.
+     */
+    private long failures;
+
+    /**
+     * Constructs a CommandRunner. The library's own messages should be silenced.
+     *
+     * @param library    the library to run commands against
+     * @param output     the sink receiving the result lines
+     * @param errorsOnly whether to print only the commands that failed
+     */
+    public CommandRunner(Library library, OutputSink output, boolean errorsOnly) {
+        this.library = library;
+        this.output = output;
+        this.errorsOnly = errorsOnly;
+    }
+
+    /**
+     * Runs every command read from a reader, then flushes the results.
+     *
+     * @param in the reader of the commands, one per line
+     * @return the number of commands that did not succeed
+     * @throws IOException if the commands cannot be read
+     */
+    public long run(BufferedReader in) throws IOException {
+        String line;
+        long lineNumber = 0;
+        while ((line = in.readLine()) != null) {
+            lineNumber++;
+            String trimmed = line.trim();
+            if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                continue;
+            }
+            try {
+                execute(lineNumber, tokenize(trimmed));
+            } catch (IllegalArgumentException e) {
+                runBatch();
+                fail(lineNumber, "ERROR\t" + e.getMessage());
+            }
+        }
+        runBatch();
+        output.flush();
+        return failures;
+    }
+
+    /**
+     * Runs one command, or adds it to the batch being collected.
+     *
+     * @param lineNumber the line number of the command
+     * @param tokens     the command name and its arguments
+     * @throws IllegalArgumentException if the command is unknown or malformed
+     */
+    private void execute(long lineNumber, String[] tokens) {
+        String command = tokens[0].toUpperCase(Locale.ROOT);
+        switch (command) {
+        case "BORROW":
+        case "RETURN":
+            expectArguments(tokens, 2);
+            collect(command, lineNumber, tokens);
+            return;
+        case "ADD_BOOK":
+            if (tokens.length != 6) {
+                expectArguments(tokens, 4);
+            } else {
+                parseCount(tokens[5]);
+            }
+            parseYear(tokens[4]);
+            collect(command, lineNumber, tokens);
+            return;
+        case "ADD_READER":
+            expectArguments(tokens, 3);
+            collect(command, lineNumber, tokens);
+            return;
+        default:
+            break;
+        }
+
+        // Every other command runs alone, after the batch collected before it
+        runBatch();
+        switch (command) {
+        case "UPDATE_BOOK":
+            expectArguments(tokens, 4);
+            report(lineNumber, library.updateBook(tokens[1], tokens[2], tokens[3], parseYear(tokens[4])));
+            break;
+        case "REMOVE_BOOK":
+            expectArguments(tokens, 1);
+            report(lineNumber, library.removeBook(tokens[1]));
+            break;
+        case "FIND_BOOK":
+            expectArguments(tokens, 1);
+            Book book = library.searchBookByISBN(tokens[1]);
+            if (book == null) {
+                report(lineNumber, Outcome.BOOK_NOT_FOUND);
+            } else {
+                succeed(lineNumber, book.getISBN() + "\t" + book.getTitle() + "\t" + book.getAuthor() + "\t"
+                        + book.getPublicationYear() + "\t" + book.getAvailabilityStatus() + "\t"
+                        + book.getAvailableCopies() + "/" + book.getCopies());
+            }
+            break;
+        case "SET_COPIES":
+            expectArguments(tokens, 2);
+            report(lineNumber, library.setCopies(tokens[1], parseCount(tokens[2])));
+            break;
+        case "HOLDS":
+            expectArguments(tokens, 1);
+            if (library.searchBookByISBN(tokens[1]) == null) {
+                report(lineNumber, Outcome.BOOK_NOT_FOUND);
+            } else {
+                succeed(lineNumber, String.join(",", library.getHoldQueue(tokens[1])));
+            }
+            break;
+        case "HOLD":
+            expectArguments(tokens, 2);
+            report(lineNumber, library.placeHold(tokens[1], tokens[2]));
+            break;
+        case "CANCEL_HOLD":
+            expectArguments(tokens, 2);
+            report(lineNumber, library.cancelHold(tokens[1], tokens[2]));
+            break;
+        case "REMOVE_READER":
+            if (tokens.length == 3 && tokens[2].equalsIgnoreCase("CASCADE")) {
+                report(lineNumber, library.removeReader(tokens[1], true));
+                break;
+            }
+            expectArguments(tokens, 1);
+            report(lineNumber, library.removeReader(tokens[1]));
+            break;
+        case "FIND_READER":
+            expectArguments(tokens, 1);
+            Reader reader = library.searchReaderById(tokens[1]);
+            if (reader == null) {
+                report(lineNumber, Outcome.READER_NOT_FOUND);
+            } else {
+                succeed(lineNumber, reader.getId() + "\t" + reader.getName() + "\t" + reader.getContact());
+            }
+            break;
+        case "LOANS":
+            expectArguments(tokens, 1);
+            if (library.searchReaderById(tokens[1]) == null) {
+                report(lineNumber, Outcome.READER_NOT_FOUND);
+            } else {
+                succeed(lineNumber, String.join(",", library.getLoans(tokens[1])));
+            }
+            break;
+        case "OVERDUE":
+            if (tokens.length > 2) {
+                expectArguments(tokens, 1);
+            }
+            StringBuilder overdue = new StringBuilder();
+            for (Loan loan : library.getOverdueLoans(tokens.length == 2 ? parseCount(tokens[1]) : Integer.MAX_VALUE)) {
+                overdue.append(overdue.length() == 0 ? "" : ",").append(loan.getISBN());
+            }
+            succeed(lineNumber, overdue.toString());
+            break;
+        case "TOP_TITLES":
+        case "TOP_READERS":
+            if (tokens.length > 2) {
+                expectArguments(tokens, 1);
+            }
+            if (library.getLoanHistory() == null) {
+                throw new IllegalArgumentException("No loan history is kept");
+            }
+            CirculationAnalytics analytics = new CirculationAnalytics(library);
+            int limit = tokens.length == 2 ? parseCount(tokens[1]) : TOP_LIMIT;
+            StringBuilder top = new StringBuilder();
+            for (Map.Entry<String, Long> entry : command.equals("TOP_TITLES")
+                    ? analytics.topTitles(limit, Long.MIN_VALUE, Long.MAX_VALUE)
+                    : analytics.topReaders(limit, Long.MIN_VALUE, Long.MAX_VALUE)) {
+                top.append(top.length() == 0 ? "" : ",").append(entry.getKey()).append(':').append(entry.getValue());
+            }
+            succeed(lineNumber, top.toString());
+            break;
+        case "SEARCH":
+            if (tokens.length < 2) {
+                throw new IllegalArgumentException("SEARCH needs at least one word");
+            }
+            StringBuilder ISBNs = new StringBuilder();
+            for (Book match : library.searchBooks(String.join(" ", List.of(tokens).subList(1, tokens.length)), SEARCH_LIMIT)) {
+                ISBNs.append(ISBNs.length() == 0 ? "" : ",").append(match.getISBN());
+            }
+            succeed(lineNumber, ISBNs.toString());
+            break;
+        case "SEARCH_READERS":
+            if (tokens.length < 2) {
+                throw new IllegalArgumentException("SEARCH_READERS needs the start of a name or contact");
+            }
+            StringBuilder readerIds = new StringBuilder();
+            for (Reader match : library.findReaders(String.join(" ", List.of(tokens).subList(1, tokens.length)), SEARCH_LIMIT)) {
+                readerIds.append(readerIds.length() == 0 ? "" : ",").append(match.getId());
+            }
+            succeed(lineNumber, readerIds.toString());
+            break;
+        default:
+            throw new IllegalArgumentException("Unknown command " + tokens[0]);
+        }
+    }
+
+    /**
+     * Adds a command to the batch being collected, first running a batch of another command.
+     *
+     * @param command    the command name
+     * @param lineNumber the line number of the command
+     * @param tokens     the command name and its arguments
+     */
+    private void collect(String command, long lineNumber, String[] tokens) {
+        if (!command.equals(batchCommand) || batchArgs.size() == MAX_BATCH) {
+            runBatch();
+            batchCommand = command;
+        }
+        batchLines[batchArgs.size()] = lineNumber;
+        batchArgs.add(tokens);
+    }
+
+    /**
+     * Runs the batch collected so far, if any, and reports each of its commands in order.
+     */
+    private void runBatch() {
+        if (batchCommand == null) {
+            return;
+        }
+        int size = batchArgs.size();
+        switch (batchCommand) {
+        case "BORROW":
+        case "RETURN":
+            String[] readerIds = new String[size];
+            String[] ISBNs = new String[size];
+            for (int i = 0; i < size; i++) {
+                readerIds[i] = batchArgs.get(i)[1];
+                ISBNs[i] = batchArgs.get(i)[2];
+            }
+            Outcome[] outcomes = batchCommand.equals("BORROW")
+                    ? library.borrowBatch(readerIds, ISBNs)
+                    : library.returnBatch(readerIds, ISBNs);
+            for (int i = 0; i < size; i++) {
+                report(batchLines[i], outcomes[i]);
+            }
+            break;
+        case "ADD_BOOK":
+            List<Book> books = new ArrayList<Book>(size);
+            for (String[] tokens : batchArgs) {
+                books.add(new Book(tokens[2], tokens[3], tokens[1], parseYear(tokens[4]),
+                        tokens.length == 6 ? parseCount(tokens[5]) : 1));
+            }
+            Set<Book> rejectedBooks = Collections.newSetFromMap(new IdentityHashMap<Book, Boolean>());
+            rejectedBooks.addAll(library.addBooks(books));
+            for (int i = 0; i < size; i++) {
+                report(batchLines[i], rejectedBooks.contains(books.get(i)) ? Outcome.DUPLICATE_BOOK : Outcome.SUCCESS);
+            }
+            break;
+        default:
+            List<Reader> readers = new ArrayList<Reader>(size);
+            for (String[] tokens : batchArgs) {
+                readers.add(new Reader(tokens[1], tokens[2], tokens[3]));
+            }
+            Set<Reader> rejectedReaders = Collections.newSetFromMap(new IdentityHashMap<Reader, Boolean>());
+            rejectedReaders.addAll(library.addReaders(readers));
+            for (int i = 0; i < size; i++) {
+                report(batchLines[i], rejectedReaders.contains(readers.get(i)) ? Outcome.DUPLICATE_READER : Outcome.SUCCESS);
+            }
+        }
+        batchCommand = null;
+        batchArgs.clear();
+    }
+
+    /**
+     * Prints the result line of a command's outcome.
+     *
+     * @param lineNumber the line number of the command
+     * @param outcome    the outcome of the command
+     */
+    private void report(long lineNumber, Outcome outcome) {
+        if (outcome == Outcome.SUCCESS) {
+            succeed(lineNumber, null);
+        } else {
+            fail(lineNumber, outcome.toString());
+        }
+    }
+
+    /**
+     * Prints the result line of a successful command, unless only failures are printed.
+     *
+     * @param lineNumber the line number of the command
+     * @param detail     the data the command returned, or null if none
+     */
+    private void succeed(long lineNumber, String detail) {
+        if (!errorsOnly) {
+            output.print(detail == null ? lineNumber + "\tOK\n" : lineNumber + "\tOK\t" + detail + "\n");
+        }
+    }
+
+    /**
+     * Prints the result line of a failed command.
+     *
+     * @param lineNumber the line number of the command
+     * @param result     the outcome or error of the command
+     */
+    private void fail(long lineNumber, String result) {
+        failures++;
+        output.print(lineNumber + "\t" + result + "\n");
+    }
+
+    /**
+     * Checks that a command has the expected number of arguments.
+     *
+     * @param tokens    the command name and its arguments
+     * @param arguments the expected number of arguments
+     * @throws IllegalArgumentException if the number differs
+     */
+    private static void expectArguments(String[] tokens, int arguments) {
+        if (tokens.length != arguments + 1) {
+            throw new IllegalArgumentException(tokens[0] + " takes " + arguments + " argument(s) but got " + (tokens.length - 1));
+        }
+    }
+
+    /**
+     * Parses a publication year.
+     *
+     * @param text the year
+     * @return the year
+     * @throws IllegalArgumentException if the text is not an integer
+     */
+    private static int parseYear(String text) {
+        try {
+            return Integer.parseInt(text);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid publication year " + text);
+        }
+    }
+
+    /**
+     * Parses a count of results or copies.
+     *
+     * @param text the count
+     * @return the count
+     * @throws IllegalArgumentException if the text is not a positive integer
+     */
+    private static int parseCount(String text) {
+        try {
+            int count = Integer.parseInt(text);
+            if (count > 0) {
+                return count;
+            }
+        } catch (NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid count " + text);
+    }
+
+    /**
+     * Splits a command line into words separated by spaces or tabs.
+     * A word may be double-quoted to contain spaces, with "" standing for a quote.
+     *
+     * @param line the command line, not blank
+     * @return the words
+     * @throws IllegalArgumentException if a quote is not closed
+     */
+    static String[] tokenize(String line) {
+        List<String> tokens = new ArrayList<String>();
+        int i = 0;
+        while (i < line.length()) {
+            char c = line.charAt(i);
+            if (c == ' ' || c == '\t') {
+                i++;
+                continue;
+            }
+            StringBuilder token = new StringBuilder();
+            if (c == '"') {
+                i++;
+                while (true) {
+                    if (i >= line.length()) {
+                        throw new IllegalArgumentException("Unclosed quote");
+                    }
+                    c = line.charAt(i++);
+                    if (c == '"') {
+                        if (i < line.length() && line.charAt(i) == '"') {
+                            token.append('"');
+                            i++;
+                            continue;
+                        }
+                        break;
+                    }
+                    token.append(c);
+                }
+            } else {
+                while (i < line.length() && line.charAt(i) != ' ' && line.charAt(i) != '\t') {
+                    token.append(line.charAt(i++));
+                }
+            }
+            tokens.add(token.toString());
+        }
+        return tokens.toArray(new String[0]);
+    }
+}
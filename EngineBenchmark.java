@@ -0,0 +1,336 @@
+package library;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+/**
+ * Compares the single-writer CommandEngine with libraries changed under locks.
+ * Each client thread borrows a book as one of its own readers and returns it, over and over,
+ * with a share of book lookups in between. The libraries compared are:
+ *   synchronized  a library whose every call holds one lock, the library object itself
+ *   striped       the concurrent library, locking only the stripes of the changed records
+ *   engine        the CommandEngine, each client waiting for every outcome
+ *   engine-async  the CommandEngine, each client keeping a window of changes in flight
+ * With --journal on, every library is persisted, so the cost of making changes durable is
+ * included. A last phase floods a small engine queue to show load shedding and back-pressure.
+ *
+ * Usage: java library.EngineBenchmark [--threads 1,4,16] [--seconds 5] [--books 10000]
+ *        [--reads 50] [--window 64] [--capacity 4096] [--journal off]
+ */
+public class EngineBenchmark {
+
+    /**
+     * The libraries compared.
+     */
+    private static final String[] MODES = { "synchronized", "striped", "engine", "engine-async" };
+    /**
+     * The number of readers each client thread borrows as.
+     */
+    private static final int READERS_PER_THREAD = 100;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     * @throws Exception if the library cannot be persisted
+     */
+    public static void main(String[] args) throws Exception {
+        List<Integer> threadCounts = new ArrayList<Integer>(List.of(1, 4, 16));
+        double seconds = 5;
+        int books = 10000;
+        int reads = 50;
+        int window = 64;
+        int capacity = 4096;
+        boolean journal = false;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--threads":
+                threadCounts.clear();
+                for (String count : args[i + 1].split(",")) {
+                    threadCounts.add(Integer.parseInt(count.trim()));
+                }
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            case "--books":
+                books = Integer.parseInt(args[i + 1]);
+                break;
+            case "--reads":
+                reads = Integer.parseInt(args[i + 1]);
+                break;
+            case "--window":
+                window = Integer.parseInt(args[i + 1]);
+                break;
+            case "--capacity":
+                capacity = Integer.parseInt(args[i + 1]);
+                break;
+            case "--journal":
+                journal = args[i + 1].equals("on");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf("%-14s %8s %14s %12s %10s %10s %10s %12s\n", "library", "threads", "changes/s", "reads/s",
+                "p50 us", "p99 us", "max us", "batch size");
+        int maxThreads = 1;
+        for (String mode : MODES) {
+            for (int threads : threadCounts) {
+                maxThreads = Math.max(maxThreads, threads);
+                Path directory = journal ? Files.createTempDirectory("library-engine") : null;
+                try {
+                    run(mode, threads, seconds, books, reads, window, capacity, directory);
+                } finally {
+                    delete(directory);
+                }
+            }
+        }
+        overload(maxThreads, seconds, books, 256, Duration.ZERO);
+        overload(maxThreads, seconds, books, 256, Duration.ofMillis(5));
+    }
+
+    /**
+     * Runs the circulation mix against one library and prints a row of results.
+     *
+     * @param mode      the library compared
+     * @param threads   the number of client threads
+     * @param seconds   the length of the run
+     * @param books     the number of books
+     * @param reads     the percentage of operations that are lookups
+     * @param window    the number of changes each engine-async client keeps in flight
+     * @param capacity  the capacity of the engine's queue
+     * @param directory the directory to persist the library in, or null to keep it in memory
+     * @throws Exception if the library cannot be persisted
+     */
+    private static void run(String mode, int threads, double seconds, int books, int reads, int window, int capacity,
+            Path directory) throws Exception {
+        Library library = populate(!mode.equals("synchronized"), books, threads * READERS_PER_THREAD);
+        Journal journal = directory == null ? null : Journal.open(directory, library);
+        CommandEngine engine = mode.startsWith("engine") ? new CommandEngine(library, capacity, Duration.ofSeconds(10)) : null;
+        if (mode.equals("striped")) {
+            library.setSnapshotReads(true);
+        }
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong changes = new AtomicLong();
+        AtomicLong lookups = new AtomicLong();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        parallel(threads, t -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            Deque<CompletableFuture<Outcome>> inFlight = new ArrayDeque<CompletableFuture<Outcome>>();
+            long changed = 0;
+            long looked = 0;
+            String readerId = null;
+            String ISBN = null;
+            while (System.nanoTime() < deadline) {
+                if (random.nextInt(100) < reads) {
+                    if (mode.equals("synchronized")) {
+                        synchronized (library) {
+                            library.searchBookByISBN(isbn(random.nextInt(books)));
+                        }
+                    } else {
+                        library.searchBookByISBN(isbn(random.nextInt(books)));
+                    }
+                    looked++;
+                    continue;
+                }
+                // Alternate between borrowing a random book and returning it
+                boolean borrowing = readerId == null;
+                if (borrowing) {
+                    readerId = "R" + (t * READERS_PER_THREAD + random.nextInt(READERS_PER_THREAD));
+                    ISBN = isbn(random.nextInt(books));
+                }
+                String reader = readerId;
+                String book = ISBN;
+                long start = System.nanoTime();
+                switch (mode) {
+                case "synchronized":
+                    synchronized (library) {
+                        change(library, borrowing, reader, book);
+                    }
+                    latency.record(System.nanoTime() - start);
+                    break;
+                case "striped":
+                    change(library, borrowing, reader, book);
+                    latency.record(System.nanoTime() - start);
+                    break;
+                case "engine":
+                    (borrowing ? engine.borrowBook(reader, book) : engine.returnBook(reader, book)).join();
+                    latency.record(System.nanoTime() - start);
+                    break;
+                default:
+                    CompletableFuture<Outcome> outcome = borrowing ? engine.borrowBook(reader, book) : engine.returnBook(reader, book);
+                    outcome.whenComplete((result, e) -> latency.record(System.nanoTime() - start));
+                    inFlight.add(outcome);
+                    if (inFlight.size() >= window) {
+                        inFlight.poll().join();
+                    }
+                }
+                if (!borrowing) {
+                    readerId = null;
+                }
+                changed++;
+            }
+            for (CompletableFuture<Outcome> outcome : inFlight) {
+                outcome.join();
+            }
+            changes.addAndGet(changed);
+            lookups.addAndGet(looked);
+        });
+        String batchSize = "";
+        if (engine != null) {
+            engine.close();
+            batchSize = String.format(Locale.ROOT, "%.1f", (double) engine.getAppliedCount() / Math.max(1, engine.getBatchCount()));
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        System.out.printf(Locale.ROOT, "%-14s %8d %14.0f %12.0f %10.1f %10.1f %10.0f %12s\n", mode, threads,
+                changes.get() / seconds, lookups.get() / seconds, latency.getPercentile(0.5) / 1e3,
+                latency.getPercentile(0.99) / 1e3, latency.getMax() / 1e3, batchSize);
+    }
+
+    /**
+     * Floods a small engine queue with changes, never waiting for outcomes, and prints how
+     * many were applied and shed and how long the applied ones took.
+     *
+     * @param threads          the number of client threads
+     * @param seconds          the length of the run
+     * @param books            the number of books
+     * @param capacity         the capacity of the engine's queue
+     * @param admissionTimeout the longest a client waits for room in the queue
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static void overload(int threads, double seconds, int books, int capacity, Duration admissionTimeout)
+            throws InterruptedException {
+        Library library = populate(true, books, threads * READERS_PER_THREAD);
+        CommandEngine engine = new CommandEngine(library, capacity, admissionTimeout);
+        LatencyHistogram latency = new LatencyHistogram();
+        AtomicLong offered = new AtomicLong();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        parallel(threads, t -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long count = 0;
+            while (System.nanoTime() < deadline) {
+                String readerId = "R" + (t * READERS_PER_THREAD + random.nextInt(READERS_PER_THREAD));
+                long start = System.nanoTime();
+                engine.borrowBook(readerId, isbn(random.nextInt(books))).whenComplete((result, e) -> {
+                    if (e == null) {
+                        latency.record(System.nanoTime() - start);
+                    }
+                });
+                count++;
+            }
+            offered.addAndGet(count);
+        });
+        engine.close();
+        System.out.printf(Locale.ROOT,
+                "Overload, queue %d, admission timeout %d ms: %.0f changes/s offered, %.0f/s applied, %.1f%% shed, p99 %.1f us\n",
+                capacity, admissionTimeout.toMillis(), offered.get() / seconds, engine.getAppliedCount() / seconds,
+                100.0 * engine.getShedCount() / Math.max(1, offered.get()), latency.getPercentile(0.99) / 1e3);
+    }
+
+    /**
+     * Borrows or returns a book directly.
+     *
+     * @param library   the library
+     * @param borrowing whether to borrow rather than return
+     * @param readerId  the ID of the reader
+     * @param ISBN      the ISBN of the book
+     * @return the outcome
+     */
+    private static Outcome change(Library library, boolean borrowing, String readerId, String ISBN) {
+        return borrowing ? library.borrowBook(readerId, ISBN) : library.returnBook(readerId, ISBN);
+    }
+
+    /**
+     * Creates a silent library holding books with two copies each and readers.
+     *
+     * @param concurrent whether the library is shared between threads without an outer lock
+     * @param books      the number of books
+     * @param readers    the number of readers
+     * @return the library
+     */
+    private static Library populate(boolean concurrent, int books, int readers) {
+        Library library = new Library(concurrent);
+        library.setOutput(OutputSink.SILENT);
+        for (int i = 0; i < books; i++) {
+            library.addBook(isbn(i), "Title " + i, "Author " + (i % 1000), 1900 + i % 125, 2);
+        }
+        for (int i = 0; i < readers; i++) {
+            library.addReader("R" + i, "Reader " + i, "r" + i + "@example.com");
+        }
+        return library;
+    }
+
+    /**
+     * Runs a body on several threads and waits for all of them.
+     *
+     * @param threads the number of threads
+     * @param body    the body, given the index of its thread
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if a thread failed
+     */
+    private static void parallel(int threads, IntConsumer body) throws InterruptedException {
+        List<Thread> started = new ArrayList<Thread>();
+        List<Throwable> failures = new ArrayList<Throwable>();
+        for (int t = 0; t < threads; t++) {
+            int index = t;
+            Thread thread = new Thread(() -> body.accept(index));
+            thread.setUncaughtExceptionHandler((failed, e) -> {
+                synchronized (failures) {
+                    failures.add(e);
+                }
+            });
+            thread.start();
+            started.add(thread);
+        }
+        for (Thread thread : started) {
+            thread.join();
+        }
+        if (!failures.isEmpty()) {
+            throw new IllegalStateException("A client thread failed", failures.get(0));
+        }
+    }
+
+    /**
+     * Returns the ISBN of the i-th book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param directory the directory, or null
+     * @throws IOException if a file cannot be deleted
+     */
+    private static void delete(Path directory) throws IOException {
+        if (directory == null) {
+            return;
+        }
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
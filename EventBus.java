@@ -0,0 +1,447 @@
+package library;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Delivers the library's changes to subscribers as numbered events, through a ring of
+ * preallocated event slots.
+ * A publisher claims the next sequence number with one atomic increment, fills the slot
+ * for it and marks the slot published; it takes no lock and allocates nothing, so the
+ * library can publish while holding a record's lock. Each subscriber reads the ring on its
+ * own thread at its own pace. Memory is bounded by the ring: a subscriber more than a ring
+ * behind either holds publishers back or loses events to them, depending on its
+ * back-pressure policy, and a lossy subscriber catches up from the event log if the bus has one.
+ * Publishers held back by a BLOCK subscriber wait in awaitCapacity before taking a lock,
+ * while the subscriber is half a ring behind, so a publish made under the lock only waits
+ * once more events than the other half are published at the same time.
+ */
+public class EventBus {
+
+    /**
+     * The default number of events in the ring.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    // Results of reading a slot
+    static final int READ = 0;
+    static final int PENDING = 1;
+    static final int LOST = 2;
+
+    /**
+     * Marks a slot being written, in the published sequence numbers.
+     */
+    private static final long WRITING = Long.MIN_VALUE;
+    /**
+     * The number of times a waiting thread spins before yielding, then parking.
+     */
+    private static final int SPINS = 100;
+
+    /**
+     * The event slots, indexed by sequence number modulo the capacity.
+     */
+    private final LibraryEvent[] slots;
+    /**
+     * The capacity minus one, masking a sequence number to its slot.
+     */
+    private final int mask;
+    /**
+     * The sequence number of the event in each slot, or WRITING while a publisher fills it.
+     */
+    private final AtomicLongArray published;
+    /**
+     * The last sequence number claimed by a publisher.
+     */
+    private final AtomicLong claimed = new AtomicLong();
+    /**
+     * The sequence number of the first event published through this bus.
+     */
+    private volatile long firstSequence;
+    /**
+     * The subscribers using the BLOCK policy, which publishers wait for.
+     */
+    private final CopyOnWriteArrayList<EventSubscription> gating = new CopyOnWriteArrayList<EventSubscription>();
+    /**
+     * The lowest position of the BLOCK subscribers when last computed, so publishers
+     * need not read every position on each event.
+     */
+    private volatile long gatingPosition = Long.MAX_VALUE;
+    /**
+     * The number of events whose publisher waited for a BLOCK subscriber.
+     */
+    private final LongAdder blockedPublishes = new LongAdder();
+    /**
+     * The event log lossy subscribers catch up from, or null if there is none.
+     */
+    private volatile EventLog log;
+
+    /**
+     * Constructs an EventBus with the default capacity, numbering events from 1.
+     */
+    public EventBus() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructs an EventBus numbering events from 1.
+     *
+     * @param capacity the number of events in the ring, a power of two
+     * @throws IllegalArgumentException if the capacity is not a power of two
+     */
+    public EventBus(int capacity) {
+        if (capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Event bus capacity must be a power of two, not " + capacity);
+        }
+        slots = new LibraryEvent[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new LibraryEvent();
+        }
+        mask = capacity - 1;
+        published = new AtomicLongArray(capacity);
+        startAt(1);
+    }
+
+    /**
+     * Numbers the events of this bus from the given sequence number, so numbering carries
+     * on from an event log. Only allowed before any event is published.
+     *
+     * @param sequence the sequence number of the first event, at least 1
+     * @throws IllegalStateException if an event was already published
+     */
+    synchronized void startAt(long sequence) {
+        if (claimed.get() >= firstSequence && firstSequence > 0) {
+            throw new IllegalStateException("Events were already published from " + firstSequence);
+        }
+        // Each slot holds the event a ring before the first one its publisher fills
+        for (int i = 0; i < slots.length; i++) {
+            published.set((int) (sequence + i) & mask, sequence + i - slots.length);
+        }
+        firstSequence = sequence;
+        claimed.set(sequence - 1);
+    }
+
+    /**
+     * Waits until the BLOCK subscribers are less than half a ring behind, less the events about
+     * to be published, so a publisher can wait here before taking a record's lock rather than
+     * in a publish made while holding it.
+     *
+     * @param events the number of events about to be published
+     */
+    public void awaitCapacity(int events) {
+        if (gating.isEmpty()) {
+            return;
+        }
+        long lag = slots.length / 2 - Math.min(Math.max(events, 0), slots.length / 2);
+        // The cached position is reset to Long.MIN_VALUE when the subscribers change
+        long cached = gatingPosition;
+        if (cached != Long.MIN_VALUE && claimed.get() - cached <= lag) {
+            return;
+        }
+        long position = minimumGatingPosition();
+        if (claimed.get() - position > lag) {
+            blockedPublishes.increment();
+            for (int idle = 0; claimed.get() - position > lag; idle++) {
+                idle(idle, 10000);
+                position = minimumGatingPosition();
+            }
+        }
+        gatingPosition = position;
+    }
+
+    // Publishing methods, called by the library while holding the lock of the changed record
+
+    /**
+     * Publishes the addition or update of a book, with its details.
+     *
+     * @param type BOOK_ADDED or BOOK_UPDATED
+     * @param time the time of the change, in epoch milliseconds
+     * @param book the book after the change
+     */
+    public void publishBook(EventType type, long time, Book book) {
+        long sequence = claim();
+        slots[(int) sequence & mask].set(type, sequence, time, book.getISBN(), book.getTitle(), book.getAuthor(),
+                book.getPublicationYear(), book.getCopies(), null, null, null, 0, 0);
+        publish(sequence);
+    }
+
+    /**
+     * Publishes a changed number of copies of a book.
+     *
+     * @param time   the time of the change, in epoch milliseconds
+     * @param ISBN   the ISBN of the book
+     * @param copies the new number of copies
+     */
+    public void publishCopies(long time, String ISBN, int copies) {
+        long sequence = claim();
+        slots[(int) sequence & mask].set(EventType.COPIES_CHANGED, sequence, time, ISBN, null, null,
+                0, copies, null, null, null, 0, 0);
+        publish(sequence);
+    }
+
+    /**
+     * Publishes the addition of a reader, with their details.
+     *
+     * @param time   the time of the change, in epoch milliseconds
+     * @param reader the added reader
+     */
+    public void publishReader(long time, Reader reader) {
+        long sequence = claim();
+        slots[(int) sequence & mask].set(EventType.READER_ADDED, sequence, time, null, null, null,
+                0, 0, reader.getId(), reader.getName(), reader.getContact(), 0, 0);
+        publish(sequence);
+    }
+
+    /**
+     * Publishes the removal of a book or reader.
+     *
+     * @param type BOOK_REMOVED or READER_REMOVED
+     * @param time the time of the change, in epoch milliseconds
+     * @param key  the ISBN of the book or the ID of the reader
+     */
+    public void publishRemoval(EventType type, long time, String key) {
+        long sequence = claim();
+        boolean book = type == EventType.BOOK_REMOVED;
+        slots[(int) sequence & mask].set(type, sequence, time, book ? key : null, null, null,
+                0, 0, book ? null : key, null, null, 0, 0);
+        publish(sequence);
+    }
+
+    /**
+     * Publishes a borrowed or returned copy.
+     *
+     * @param type BOOK_BORROWED or BOOK_RETURNED
+     * @param time the time of the change, in epoch milliseconds
+     * @param loan the new or ended loan
+     */
+    public void publishLoan(EventType type, long time, Loan loan) {
+        long sequence = claim();
+        slots[(int) sequence & mask].set(type, sequence, time, loan.getISBN(), null, null,
+                0, 0, loan.getReaderId(), null, null, loan.getCopy(),
+                type == EventType.BOOK_BORROWED ? loan.getDueTime() : 0);
+        publish(sequence);
+    }
+
+    /**
+     * Publishes a reader joining or leaving the hold queue of a book.
+     *
+     * @param type     HOLD_PLACED or HOLD_CANCELLED
+     * @param time     the time of the change, in epoch milliseconds
+     * @param ISBN     the ISBN of the book
+     * @param readerId the ID of the reader
+     */
+    public void publishHold(EventType type, long time, String ISBN, String readerId) {
+        long sequence = claim();
+        slots[(int) sequence & mask].set(type, sequence, time, ISBN, null, null,
+                0, 0, readerId, null, null, 0, 0);
+        publish(sequence);
+    }
+
+    /**
+     * Claims the next sequence number and marks its slot as being written.
+     * Waits for BLOCK subscribers a whole ring behind, and for a publisher a ring earlier
+     * still filling the same slot.
+     *
+     * @return the claimed sequence number
+     */
+    private long claim() {
+        long sequence = claimed.incrementAndGet();
+        long overwritten = sequence - slots.length;
+        if (overwritten > gatingPosition) {
+            awaitGating(overwritten);
+        }
+        int index = (int) sequence & mask;
+        for (int idle = 0; published.get(index) != overwritten; idle++) {
+            idle(idle, 1000);
+        }
+        // Readers that see the marker know the slot's fields may be torn
+        published.set(index, WRITING);
+        VarHandle.storeStoreFence();
+        return sequence;
+    }
+
+    /**
+     * Marks a filled slot published, making it visible to subscribers.
+     *
+     * @param sequence the sequence number of the event in the slot
+     */
+    private void publish(long sequence) {
+        published.setRelease((int) sequence & mask, sequence);
+    }
+
+    /**
+     * Waits until every BLOCK subscriber has handled the event about to be overwritten.
+     *
+     * @param overwritten the sequence number of the event in the claimed slot
+     */
+    private void awaitGating(long overwritten) {
+        long position = minimumGatingPosition();
+        if (position < overwritten) {
+            blockedPublishes.increment();
+            for (int idle = 0; position < overwritten; idle++) {
+                idle(idle, 10000);
+                position = minimumGatingPosition();
+            }
+        }
+        gatingPosition = position;
+    }
+
+    /**
+     * Returns the lowest position of the BLOCK subscribers.
+     *
+     * @return the lowest last-handled sequence number, or Long.MAX_VALUE if there are none
+     */
+    private long minimumGatingPosition() {
+        long minimum = Long.MAX_VALUE;
+        for (EventSubscription subscription : gating) {
+            minimum = Math.min(minimum, subscription.getPosition());
+        }
+        return minimum;
+    }
+
+    /**
+     * Waits briefly, spinning first, then yielding, then parking.
+     *
+     * @param idle      the number of times the caller has waited so far
+     * @param parkNanos the time to park for once spinning and yielding have not helped
+     */
+    static void idle(int idle, long parkNanos) {
+        if (idle < SPINS) {
+            Thread.onSpinWait();
+        } else if (idle < 2 * SPINS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(parkNanos);
+        }
+    }
+
+    // Subscriber methods
+
+    /**
+     * Subscribes to events published from now on.
+     *
+     * @param name         the name of the subscriber, naming its thread
+     * @param backPressure what publishers do when the subscriber is a whole ring behind
+     * @param listener     receives each event, on the subscriber's thread
+     * @return the started subscription
+     */
+    public EventSubscription subscribe(String name, BackPressure backPressure, Consumer<LibraryEvent> listener) {
+        return subscribe(name, claimed.get() + 1, backPressure, listener);
+    }
+
+    /**
+     * Subscribes to events from a sequence number, such as one after the last event a
+     * subscriber handled before a restart. Events no longer in the ring are read from the
+     * event log. A listener that is also Flushable is flushed after each batch of events.
+     *
+     * @param name         the name of the subscriber, naming its thread
+     * @param from         the sequence number of the first event to deliver, at least 1
+     * @param backPressure what publishers do when the subscriber is a whole ring behind
+     * @param listener     receives each event, on the subscriber's thread
+     * @return the started subscription
+     * @throws IllegalArgumentException if from is less than 1
+     */
+    public EventSubscription subscribe(String name, long from, BackPressure backPressure, Consumer<LibraryEvent> listener) {
+        if (from < 1) {
+            throw new IllegalArgumentException("Events are numbered from 1, not " + from);
+        }
+        EventSubscription subscription = new EventSubscription(this, name, from, backPressure, listener);
+        if (backPressure == BackPressure.BLOCK) {
+            gating.add(subscription);
+            gatingPosition = Long.MIN_VALUE;
+        }
+        subscription.start();
+        return subscription;
+    }
+
+    /**
+     * Stops publishers waiting for a closed or failed subscription.
+     *
+     * @param subscription the subscription
+     */
+    void unsubscribe(EventSubscription subscription) {
+        if (gating.remove(subscription)) {
+            gatingPosition = Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * Copies a published event into a subscriber's own slot. The copy is checked against
+     * the ring afterwards, so an event overwritten while it was copied is never delivered.
+     *
+     * @param sequence the sequence number of the event
+     * @param into     the slot to copy into
+     * @return READ if copied, PENDING if not yet published, or LOST if no longer in the ring
+     */
+    int read(long sequence, LibraryEvent into) {
+        if (sequence < firstSequence) {
+            return LOST;
+        }
+        int index = (int) sequence & mask;
+        long current = published.getAcquire(index);
+        if (current != sequence) {
+            return current > sequence ? LOST : PENDING;
+        }
+        into.copyFrom(slots[index]);
+        VarHandle.acquireFence();
+        return published.get(index) == sequence ? READ : LOST;
+    }
+
+    /**
+     * Returns the sequence number of the oldest event that may still be in the ring.
+     *
+     * @return the oldest sequence number
+     */
+    long oldestSequence() {
+        return Math.max(firstSequence, claimed.get() - slots.length + 1);
+    }
+
+    /**
+     * Attaches the event log lossy subscribers catch up from.
+     *
+     * @param log the event log, or null to detach it
+     */
+    void setLog(EventLog log) {
+        this.log = log;
+    }
+
+    /**
+     * Returns the event log lossy subscribers catch up from.
+     *
+     * @return the event log, or null if there is none
+     */
+    EventLog getLog() {
+        return log;
+    }
+
+    /**
+     * Returns the sequence number of the last event claimed by a publisher.
+     *
+     * @return the sequence number, or one less than the first if nothing was published
+     */
+    public long lastSequence() {
+        return claimed.get();
+    }
+
+    /**
+     * Returns the number of events in the ring.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Returns the number of events whose publisher waited for a BLOCK subscriber.
+     *
+     * @return the number of blocked publishes
+     */
+    public long getBlockedPublishes() {
+        return blockedPublishes.sum();
+    }
+}
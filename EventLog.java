@@ -0,0 +1,327 @@
+package library;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Appends every event of a bus to a file, so subscribers can resume from a sequence number
+ * after a restart, or catch up after falling out of the ring.
+ * The log is itself a BLOCK subscriber of the bus: it writes each batch of events with one
+ * write, and publishers only wait for it if it falls a whole ring behind. Records are framed
+ * with their length and checksum like journal records, and a torn record at the end of the
+ * file is dropped on open. Events are forced to disk when the log is closed; after a crash the
+ * log may end before the journal, and numbering carries on after its last event.
+ */
+public class EventLog implements Consumer<LibraryEvent>, Flushable, Closeable {
+
+    /**
+     * The number of events between two entries of the offset index.
+     */
+    private static final int INDEX_INTERVAL = 4096;
+    /**
+     * The longest record the log can hold; a longer length read from the file marks a torn record.
+     */
+    private static final int MAX_RECORD_LENGTH = 1 << 20;
+
+    /**
+     * The file holding the events.
+     */
+    private final Path file;
+    /**
+     * The channel appending to the file.
+     */
+    private final FileChannel channel;
+    /**
+     * The file offsets of every INDEX_INTERVAL-th event, by sequence number, so a reader
+     * starts near the event it wants.
+     */
+    private final ConcurrentSkipListMap<Long, Long> offsets = new ConcurrentSkipListMap<Long, Long>();
+    /**
+     * Records encoded but not yet written to the file.
+     */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    /**
+     * Scratch buffer used to encode a single record.
+     */
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    /**
+     * Encoder writing into the record buffer.
+     */
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    /**
+     * The length of the file up to the last written record.
+     */
+    private volatile long size;
+    /**
+     * The sequence number of the last written event.
+     */
+    private volatile long lastSequence;
+    /**
+     * The sequence number of the last encoded event.
+     */
+    private long pendingSequence;
+    /**
+     * The subscription feeding the log.
+     */
+    private EventSubscription subscription;
+
+    /**
+     * Constructs an EventLog over a file, dropping a torn record at its end.
+     *
+     * @param file the file holding the events
+     * @throws IOException if the file cannot be read or opened
+     */
+    private EventLog(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        LibraryEvent event = new LibraryEvent();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            int length;
+            while ((length = readRecord(in, event)) >= 0) {
+                index(event.getSequence(), size);
+                lastSequence = event.getSequence();
+                size += 8 + length;
+            }
+        }
+        channel.truncate(size);
+        channel.position(size);
+        pendingSequence = lastSequence;
+    }
+
+    /**
+     * Opens the event log in a directory and attaches it to a bus, which numbers its events
+     * after the last one in the log. Must be called before anything is published on the bus.
+     *
+     * @param directory the directory holding the log
+     * @param bus       the bus whose events are logged
+     * @return the opened log
+     * @throws IOException if the log cannot be read or created
+     * @throws IllegalStateException if the bus already published an event
+     */
+    public static EventLog open(Path directory, EventBus bus) throws IOException {
+        Files.createDirectories(directory);
+        EventLog log = new EventLog(directory.resolve("events.log"));
+        bus.startAt(log.lastSequence + 1);
+        bus.setLog(log);
+        log.subscription = bus.subscribe("log", log.lastSequence + 1, BackPressure.BLOCK, log);
+        return log;
+    }
+
+    /**
+     * Encodes an event for the next write. Called on the subscriber's thread.
+     *
+     * @param event the event
+     */
+    @Override
+    public void accept(LibraryEvent event) {
+        try {
+            recordOut.writeLong(event.getSequence());
+            recordOut.writeLong(event.getTime());
+            recordOut.writeUTF(event.getType().name());
+            writeOptional(recordOut, event.getISBN());
+            writeOptional(recordOut, event.getTitle());
+            writeOptional(recordOut, event.getAuthor());
+            recordOut.writeInt(event.getPublicationYear());
+            recordOut.writeInt(event.getCopies());
+            writeOptional(recordOut, event.getReaderId());
+            writeOptional(recordOut, event.getName());
+            writeOptional(recordOut, event.getContact());
+            recordOut.writeInt(event.getCopy());
+            recordOut.writeLong(event.getDueTime());
+
+            byte[] bytes = record.toByteArray();
+            record.reset();
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length);
+            index(event.getSequence(), size + pending.size());
+            DataOutputStream out = new DataOutputStream(pending);
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        pendingSequence = event.getSequence();
+    }
+
+    /**
+     * Writes the encoded events to the file. Called on the subscriber's thread after each batch.
+     *
+     * @throws IOException if the events cannot be written
+     */
+    @Override
+    public void flush() throws IOException {
+        if (pending.size() == 0) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(pending.toByteArray());
+        pending.reset();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        size = channel.position();
+        lastSequence = pendingSequence;
+    }
+
+    /**
+     * Records the offset of an event in the index if it is an indexed one.
+     *
+     * @param sequence the sequence number of the event
+     * @param offset   the offset of its record in the file
+     */
+    private void index(long sequence, long offset) {
+        if (sequence % INDEX_INTERVAL == 0 || offsets.isEmpty()) {
+            offsets.put(sequence, offset);
+        }
+    }
+
+    /**
+     * Delivers the written events from a sequence number onwards, in order.
+     * The listener is given one reused event.
+     *
+     * @param from     the sequence number of the first event to deliver
+     * @param listener receives each event
+     * @return the number of events delivered
+     */
+    public long read(long from, Consumer<LibraryEvent> listener) {
+        long end = size;
+        Map.Entry<Long, Long> start = offsets.floorEntry(from);
+        long offset = start == null ? 0 : start.getValue();
+        long delivered = 0;
+        try (FileChannel reader = FileChannel.open(file, StandardOpenOption.READ)) {
+            reader.position(offset);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(reader), 1 << 16));
+            LibraryEvent event = new LibraryEvent();
+            int length;
+            while (offset < end && (length = readRecord(in, event)) >= 0) {
+                offset += 8 + length;
+                if (event.getSequence() >= from) {
+                    listener.accept(event);
+                    delivered++;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return delivered;
+    }
+
+    /**
+     * Reads one framed record into an event.
+     *
+     * @param in    the decoder over the file
+     * @param event the event to fill
+     * @return the length of the record without its frame, or -1 if no whole record with a
+     *         valid checksum was left
+     * @throws IOException if the file cannot be read
+     */
+    private static int readRecord(DataInputStream in, LibraryEvent event) throws IOException {
+        byte[] bytes;
+        int checksum;
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_RECORD_LENGTH) {
+                return -1;
+            }
+            bytes = new byte[length];
+            checksum = in.readInt();
+            in.readFully(bytes);
+        } catch (EOFException e) {
+            return -1;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        if ((int) crc.getValue() != checksum) {
+            return -1;
+        }
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+        long sequence = record.readLong();
+        long time = record.readLong();
+        EventType type = EventType.valueOf(record.readUTF());
+        String ISBN = readOptional(record);
+        String title = readOptional(record);
+        String author = readOptional(record);
+        int publicationYear = record.readInt();
+        int copies = record.readInt();
+        String readerId = readOptional(record);
+        String name = readOptional(record);
+        String contact = readOptional(record);
+        int copy = record.readInt();
+        long dueTime = record.readLong();
+        event.set(type, sequence, time, ISBN, title, author, publicationYear, copies, readerId, name, contact, copy, dueTime);
+        return bytes.length;
+    }
+
+    /**
+     * Returns the sequence number of the last event written to the file.
+     *
+     * @return the sequence number, or 0 if the log is empty
+     */
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Returns the subscription feeding the log.
+     *
+     * @return the subscription
+     */
+    public EventSubscription getSubscription() {
+        return subscription;
+    }
+
+    /**
+     * Writes the events published so far, forces them to disk and closes the file.
+     *
+     * @throws IOException if the file cannot be written or closed
+     */
+    @Override
+    public void close() throws IOException {
+        subscription.close();
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Writes a string that may be null, preceded by whether it is present.
+     *
+     * @param out   the encoder
+     * @param value the string, or null
+     * @throws IOException if the string cannot be written
+     */
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads a string written by writeOptional.
+     *
+     * @param in the decoder
+     * @return the string, or null if it was absent
+     * @throws IOException if the string cannot be read
+     */
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
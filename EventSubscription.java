@@ -0,0 +1,258 @@
+package library;
+
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * A subscriber of an event bus, reading the ring on its own thread.
+ * Events are delivered in sequence order, in batches of those already published; the
+ * subscriber's position advances once per batch, after a Flushable listener is flushed.
+ * When the subscriber has fallen out of the ring it reads the missed events from the bus's
+ * event log, or skips them if the log does not have them, counting them as missed.
+ */
+public class EventSubscription implements Closeable {
+
+    /**
+     * The largest number of events delivered between two position updates.
+     */
+    private static final int BATCH = 1024;
+    /**
+     * The time to park for when no event has been published for a while.
+     */
+    private static final long PARK_NANOS = 100000;
+
+    /**
+     * The bus the events are read from.
+     */
+    private final EventBus bus;
+    /**
+     * The name of the subscriber.
+     */
+    private final String name;
+    /**
+     * What publishers do when the subscriber is a whole ring behind.
+     */
+    private final BackPressure backPressure;
+    /**
+     * Receives each event.
+     */
+    private final Consumer<LibraryEvent> listener;
+    /**
+     * The subscriber's own slot, which events are copied into before delivery.
+     */
+    private final LibraryEvent event = new LibraryEvent();
+    /**
+     * The thread reading the ring.
+     */
+    private final Thread thread;
+    /**
+     * The sequence number of the next event to deliver. Only used by the subscriber's thread.
+     */
+    private long next;
+    /**
+     * The sequence number of the last event handled, published once per batch.
+     */
+    private volatile long position;
+    /**
+     * The number of events skipped because neither the ring nor the event log had them.
+     */
+    private volatile long missed;
+    /**
+     * Whether the subscription is still open.
+     */
+    private volatile boolean running = true;
+    /**
+     * The exception that stopped the listener, or null.
+     */
+    private volatile RuntimeException failure;
+
+    /**
+     * Constructs a subscription. The bus starts it once registered.
+     *
+     * @param bus          the bus the events are read from
+     * @param name         the name of the subscriber
+     * @param from         the sequence number of the first event to deliver
+     * @param backPressure what publishers do when the subscriber is a whole ring behind
+     * @param listener     receives each event
+     */
+    EventSubscription(EventBus bus, String name, long from, BackPressure backPressure, Consumer<LibraryEvent> listener) {
+        this.bus = bus;
+        this.name = name;
+        this.backPressure = backPressure;
+        this.listener = listener;
+        this.next = from;
+        this.position = from - 1;
+        this.thread = new Thread(this::run, "events-" + name);
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Starts reading the ring.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Delivers events until closed, then delivers the events already published and stops.
+     */
+    private void run() {
+        try {
+            int idle = 0;
+            while (true) {
+                boolean stopping = !running;
+                int delivered = 0;
+                while (delivered < BATCH) {
+                    int result = bus.read(next, event);
+                    if (result == EventBus.PENDING) {
+                        break;
+                    }
+                    if (result == EventBus.LOST) {
+                        delivered += catchUp();
+                        continue;
+                    }
+                    deliver(event);
+                    delivered++;
+                }
+                if (delivered > 0) {
+                    if (listener instanceof Flushable) {
+                        ((Flushable) listener).flush();
+                    }
+                    position = next - 1;
+                    idle = 0;
+                } else if (stopping) {
+                    break;
+                } else {
+                    EventBus.idle(idle++, PARK_NANOS);
+                }
+            }
+        } catch (IOException e) {
+            failure = new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            running = false;
+            bus.unsubscribe(this);
+        }
+        if (failure != null) {
+            System.err.printf("Event subscriber %s stopped at event %d: %s%n", name, next, failure);
+        }
+    }
+
+    /**
+     * Delivers the events that fell out of the ring from the event log, or skips them if
+     * the log does not have them.
+     *
+     * @return the number of events delivered
+     */
+    private int catchUp() {
+        long from = next;
+        EventLog log = bus.getLog();
+        if (log != null && log != listener) {
+            log.read(from, this::deliver);
+            if (next > from) {
+                return (int) Math.min(next - from, BATCH);
+            }
+        }
+        long oldest = bus.oldestSequence();
+        if (oldest > next) {
+            missed += oldest - next;
+            next = oldest;
+        }
+        return 0;
+    }
+
+    /**
+     * Delivers an event to the listener unless it was delivered already, counting
+     * any events skipped before it as missed.
+     *
+     * @param delivered the event
+     */
+    private void deliver(LibraryEvent delivered) {
+        long sequence = delivered.getSequence();
+        if (sequence < next) {
+            return;
+        }
+        if (sequence > next) {
+            missed += sequence - next;
+        }
+        listener.accept(delivered);
+        next = sequence + 1;
+    }
+
+    /**
+     * Returns the name of the subscriber.
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns what publishers do when the subscriber is a whole ring behind.
+     *
+     * @return the back-pressure policy
+     */
+    public BackPressure getBackPressure() {
+        return backPressure;
+    }
+
+    /**
+     * Returns the sequence number of the last event handled. Resuming a later subscription
+     * after it delivers every later event exactly once.
+     *
+     * @return the sequence number, or one less than the first if none was handled
+     */
+    public long getPosition() {
+        return position;
+    }
+
+    /**
+     * Returns the number of events skipped because neither the ring nor the event log had them.
+     *
+     * @return the number of missed events
+     */
+    public long getMissed() {
+        return missed;
+    }
+
+    /**
+     * Returns the exception that stopped the listener.
+     *
+     * @return the exception, or null if the listener has not failed
+     */
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Returns whether the subscription is still delivering events.
+     *
+     * @return false once closed or failed
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops the subscription once the events already published are delivered, and waits
+     * for it unless called from the listener.
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(thread);
+        if (Thread.currentThread() != thread) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
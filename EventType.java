@@ -0,0 +1,68 @@
+package library;
+
+public enum EventType {
+    /**
+     * A book was added, with its title, author, publication year and copies.
+     */
+    BOOK_ADDED("bookAdded"),
+    /**
+     * The title, author or publication year of a book changed.
+     */
+    BOOK_UPDATED("bookUpdated"),
+    /**
+     * A book was removed, ending its loans and holds.
+     */
+    BOOK_REMOVED("bookRemoved"),
+    /**
+     * The number of copies of a book changed.
+     */
+    COPIES_CHANGED("copiesChanged"),
+    /**
+     * A reader was added, with their name and contact.
+     */
+    READER_ADDED("readerAdded"),
+    /**
+     * A reader was removed.
+     */
+    READER_REMOVED("readerRemoved"),
+    /**
+     * A copy of a book was lent to a reader, with its due time.
+     */
+    BOOK_BORROWED("bookBorrowed"),
+    /**
+     * A reader returned a copy of a book.
+     */
+    BOOK_RETURNED("bookReturned"),
+    /**
+     * A reader joined the hold queue of a book.
+     */
+    HOLD_PLACED("holdPlaced"),
+    /**
+     * A reader left the hold queue of a book without being lent a copy.
+     */
+    HOLD_CANCELLED("holdCancelled");
+
+    /**
+     * The name of the event in logs and JSON.
+     */
+    private final String label;
+
+    /**
+     * Constructs an event type.
+     *
+     * @param label the name of the event in logs and JSON
+     */
+    EventType(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Returns the name of the event in logs and JSON.
+     *
+     * @return the event name
+     */
+    @Override
+    public String toString() {
+        return label;
+    }
+}
@@ -0,0 +1,118 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An immutable consistent-hashing ring assigning keys to shards.
+ * Each shard is placed on the ring at many points, and a key belongs to the shard of the
+ * first point at or after the key's hash. Adding a shard therefore moves only the keys that
+ * now fall just before its points, about 1/n of them, and spreads them over every old shard.
+ */
+public class HashRing {
+
+    /**
+     * The number of points each shard is placed at, smoothing the share of keys per shard.
+     */
+    private static final int POINTS_PER_SHARD = 160;
+
+    /**
+     * The shards, in the order they joined.
+     */
+    private final List<String> shards;
+    /**
+     * The hashes of the points, in ascending order.
+     */
+    private final long[] points;
+    /**
+     * The shard of each point, by position.
+     */
+    private final String[] owners;
+
+    /**
+     * Constructs a ring over shards.
+     *
+     * @param shards the names of the shards, such as their addresses
+     * @throws IllegalArgumentException if there are no shards or a name is repeated
+     */
+    public HashRing(List<String> shards) {
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("A ring needs at least one shard");
+        }
+        if (shards.stream().distinct().count() != shards.size()) {
+            throw new IllegalArgumentException("Shards must have distinct names");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<String>(shards));
+        long[][] placed = new long[shards.size() * POINTS_PER_SHARD][];
+        int next = 0;
+        for (int s = 0; s < shards.size(); s++) {
+            for (int i = 0; i < POINTS_PER_SHARD; i++) {
+                placed[next++] = new long[] { hash(shards.get(s) + "#" + i), s };
+            }
+        }
+        Arrays.sort(placed, (a, b) -> Long.compare(a[0], b[0]));
+        points = new long[placed.length];
+        owners = new String[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = placed[i][0];
+            owners[i] = shards.get((int) placed[i][1]);
+        }
+    }
+
+    /**
+     * Returns a ring with another shard added.
+     *
+     * @param shard the name of the new shard
+     * @return the new ring
+     */
+    public HashRing withShard(String shard) {
+        List<String> grown = new ArrayList<String>(shards);
+        grown.add(shard);
+        return new HashRing(grown);
+    }
+
+    /**
+     * Returns the shard a key belongs to.
+     *
+     * @param key the key, such as an ISBN
+     * @return the name of the shard
+     */
+    public String owner(String key) {
+        int index = Arrays.binarySearch(points, hash(key));
+        if (index < 0) {
+            index = -index - 1;
+        }
+        return owners[index == points.length ? 0 : index];
+    }
+
+    /**
+     * Returns the shards, in the order they joined.
+     *
+     * @return the names of the shards
+     */
+    public List<String> getShards() {
+        return shards;
+    }
+
+    /**
+     * Hashes a key with 64-bit FNV-1a, then mixes the bits so keys that differ only in their
+     * last characters, like consecutive ISBNs, land far apart on the ring.
+     *
+     * @param key the key
+     * @return the hash
+     */
+    private static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,63 @@
+package library;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class HeapBookStore implements BookStore {
+    /**
+     * The books, indexed by ISBN.
+     */
+    private final Map<String, Book> books;
+    
+    /**
+     * Constructs a HeapBookStore.
+     * A concurrent store can be shared by many threads but iterates in no particular order;
+     * otherwise books iterate in the order they were added.
+     *
+     * @param concurrent whether the store is shared between threads
+     */
+    public HeapBookStore(boolean concurrent) {
+        if (concurrent) {
+            books = new ConcurrentHashMap<String, Book>();
+        } else {
+            books = new LinkedHashMap<String, Book>();
+        }
+    }
+    
+    @Override
+    public Book get(String ISBN) {
+        return books.get(ISBN);
+    }
+    
+    @Override
+    public boolean contains(String ISBN) {
+        return books.containsKey(ISBN);
+    }
+    
+    @Override
+    public void put(Book book) {
+        books.put(book.getISBN(), book);
+    }
+    
+    @Override
+    public void update(Book book) {
+        // Books are held by reference, so the change is already stored
+    }
+    
+    @Override
+    public Book remove(String ISBN) {
+        return books.remove(ISBN);
+    }
+    
+    @Override
+    public int size() {
+        return books.size();
+    }
+    
+    @Override
+    public Iterator<Book> iterator() {
+        return books.values().iterator();
+    }
+}
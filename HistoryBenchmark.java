@@ -0,0 +1,142 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntSupplier;
+
+/**
+ * Measures circulation analytics over a large loan history at several degrees of parallelism.
+ * Each query runs inside a fork-join pool of the given size, so its parallel scan of the
+ * history uses that many threads; the speedup over one thread shows how the scan scales
+ * with cores. Loans are skewed towards a few popular books, as real circulation is.
+ * A hundred million loans need a heap of about 4 GB: java -Xmx4g library.HistoryBenchmark
+ *
+ * Usage: java library.HistoryBenchmark [--events 100000000] [--books 100000] [--readers 1000000]
+ *        [--parallelism 1,2,4] [--seconds 2]
+ */
+public class HistoryBenchmark {
+
+    /**
+     * The span over which checkout times are spread, one year in milliseconds.
+     */
+    private static final long HISTORY_SPAN = 365L * 24 * 60 * 60 * 1000;
+    /**
+     * The longest loan, 28 days in milliseconds.
+     */
+    private static final long MAX_LOAN = 28L * 24 * 60 * 60 * 1000;
+    /**
+     * The number of distinct authors the books are spread over.
+     */
+    private static final int AUTHORS = 5000;
+    /**
+     * The number of titles or readers returned by the top queries.
+     */
+    private static final int TOP = 100;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     * @throws Exception if a query fails
+     */
+    public static void main(String[] args) throws Exception {
+        int events = 100000000;
+        int bookCount = 100000;
+        int readerCount = 1000000;
+        List<Integer> parallelism = new ArrayList<Integer>();
+        for (int p = 1; p < Runtime.getRuntime().availableProcessors(); p *= 2) {
+            parallelism.add(p);
+        }
+        parallelism.add(Runtime.getRuntime().availableProcessors());
+        double seconds = 2;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--events":
+                events = Integer.parseInt(args[i + 1]);
+                break;
+            case "--books":
+                bookCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "--readers":
+                readerCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "--parallelism":
+                parallelism.clear();
+                for (String p : args[i + 1].split(",")) {
+                    parallelism.add(Integer.parseInt(p.trim()));
+                }
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        // Catalog the books, then fill the history with loans of skewed popularity over the span
+        long start = System.nanoTime();
+        Library library = new Library();
+        library.setOutput(OutputSink.SILENT);
+        String[] ISBNs = new String[bookCount];
+        for (int i = 0; i < bookCount; i++) {
+            ISBNs[i] = String.format("978%010d", i);
+            library.addBook(ISBNs[i], "Title " + i, "Author " + (i % AUTHORS), 1900 + i % 125);
+        }
+        String[] readerIds = new String[readerCount];
+        for (int i = 0; i < readerCount; i++) {
+            readerIds[i] = "R" + i;
+        }
+        LoanHistory history = LoanHistory.inMemory();
+        library.setLoanHistory(history);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < events; i++) {
+            double u = random.nextDouble();
+            long checkout = (long) i * HISTORY_SPAN / events;
+            history.append(ISBNs[(int) (bookCount * u * u * u)], readerIds[random.nextInt(readerCount)],
+                    checkout, checkout + random.nextLong(MAX_LOAN));
+        }
+        System.out.printf("Populated %d loans in %.1f s\n", history.size(), (System.nanoTime() - start) / 1e9);
+
+        CirculationAnalytics analytics = new CirculationAnalytics(library);
+        long quarter = HISTORY_SPAN - HISTORY_SPAN / 4;
+        for (int p : parallelism) {
+            ForkJoinPool pool = new ForkJoinPool(p);
+            System.out.printf("Parallelism %d\n", p);
+            measure(pool, "topTitles (all time)", seconds, () -> analytics.topTitles(TOP, Long.MIN_VALUE, Long.MAX_VALUE).size());
+            measure(pool, "topTitles (last quarter)", seconds, () -> analytics.topTitles(TOP, quarter, HISTORY_SPAN).size());
+            measure(pool, "topReaders (all time)", seconds, () -> analytics.topReaders(TOP, Long.MIN_VALUE, Long.MAX_VALUE).size());
+            measure(pool, "loansByAuthor (all time)", seconds, () -> analytics.loansByAuthor(Long.MIN_VALUE, Long.MAX_VALUE).size());
+            measure(pool, "loansByPublicationYear", seconds, () -> analytics.loansByPublicationYear(Long.MIN_VALUE, Long.MAX_VALUE).size());
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Runs a query repeatedly inside a fork-join pool for a period and prints its average latency.
+     *
+     * @param pool    the pool whose threads run the parallel scans
+     * @param name    the name of the query
+     * @param seconds the length of the period
+     * @param query   the query, returning a value so it is not optimized away
+     * @throws InterruptedException if interrupted while waiting for the pool
+     * @throws ExecutionException   if the query fails
+     */
+    private static void measure(ForkJoinPool pool, String name, double seconds, IntSupplier query)
+            throws InterruptedException, ExecutionException {
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long runs = 0;
+        long sink = 0;
+        do {
+            sink += pool.submit(query::getAsInt).get();
+            runs++;
+        } while (System.nanoTime() < deadline);
+        double milliseconds = (System.nanoTime() - start) / 1e6 / runs;
+        System.out.printf(Locale.ROOT, "  %-30s %12.1f ms/op  (%d runs, checksum %d)\n", name, milliseconds, runs, sink);
+    }
+}
@@ -0,0 +1,258 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The copies of one book and the readers waiting for them.
+ * Free copies are kept on a stack, so taking or putting back a copy costs O(1), and holds
+ * are kept in arrival order, so a returned copy goes to the longest-waiting reader without
+ * a scan. A reader has at most one copy of a book and one hold on it.
+ * Not thread-safe: the library changes a holding only while holding its book's lock.
+ */
+public class Holding {
+
+    // Holding attributes
+    private final String ISBN;
+    private int copies;
+    // The numbers of the free copies; the first freeCount entries form a stack
+    private int[] free;
+    private int freeCount;
+    // The position of each copy in the free stack, or -1 if it is on loan; indexed by copy - 1
+    private int[] position;
+    // The loans of the copies on loan, by reader ID
+    private final Map<String, Loan> loans = new HashMap<String, Loan>(4);
+    // The IDs of the readers waiting for a copy, in arrival order; null until a hold is placed
+    private Set<String> holds;
+
+    /**
+     * Constructs a Holding with every copy free and no holds.
+     *
+     * @param ISBN   the ISBN of the book
+     * @param copies the number of copies, at least 1
+     */
+    public Holding(String ISBN, int copies) {
+        this.ISBN = ISBN;
+        this.free = new int[copies];
+        this.position = new int[copies];
+        setCopies(copies);
+    }
+
+    /**
+     * Changes the number of copies. New copies are free; removed copies must be free.
+     *
+     * @param copies the new number of copies, at least 1
+     * @throws IllegalStateException if a removed copy is on loan
+     */
+    public void setCopies(int copies) {
+        if (!canSetCopies(copies)) {
+            throw new IllegalStateException("Copy of book ISBN " + ISBN + " above " + copies + " is on loan");
+        }
+        if (copies > free.length) {
+            free = Arrays.copyOf(free, copies);
+            position = Arrays.copyOf(position, copies);
+        }
+        // Withdraw the highest-numbered copies, or add copies so the lowest-numbered is taken first
+        for (int copy = this.copies; copy > copies; copy--) {
+            take(copy);
+        }
+        for (int copy = copies; copy > this.copies; copy--) {
+            position[copy - 1] = -1;
+            put(copy);
+        }
+        this.copies = copies;
+    }
+
+    /**
+     * Returns whether the number of copies can change, because no removed copy is on loan.
+     *
+     * @param copies the new number of copies
+     * @return true if every copy above the new count is free
+     */
+    public boolean canSetCopies(int copies) {
+        for (int copy = copies + 1; copy <= this.copies; copy++) {
+            if (position[copy - 1] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Takes a free copy off the stack.
+     *
+     * @return the copy number, or 0 if no copy is free
+     */
+    public int take() {
+        if (freeCount == 0) {
+            return 0;
+        }
+        int copy = free[--freeCount];
+        position[copy - 1] = -1;
+        return copy;
+    }
+
+    /**
+     * Takes a given copy off the stack, moving the top of the stack into its place.
+     *
+     * @param copy the copy number
+     * @return true if the copy was free
+     */
+    public boolean take(int copy) {
+        if (copy < 1 || copy > copies || position[copy - 1] < 0) {
+            return false;
+        }
+        int top = free[--freeCount];
+        free[position[copy - 1]] = top;
+        position[top - 1] = position[copy - 1];
+        position[copy - 1] = -1;
+        return true;
+    }
+
+    /**
+     * Puts a copy back on the stack.
+     *
+     * @param copy the copy number, which must be on loan
+     */
+    public void put(int copy) {
+        position[copy - 1] = freeCount;
+        free[freeCount++] = copy;
+    }
+
+    /**
+     * Records the loan of a copy taken off the stack.
+     *
+     * @param loan the loan
+     */
+    public void addLoan(Loan loan) {
+        loans.put(loan.getReaderId(), loan);
+    }
+
+    /**
+     * Removes the loan of a reader. The copy stays off the stack until put back.
+     *
+     * @param readerId the ID of the reader
+     * @return the removed loan, or null if the reader has no copy
+     */
+    public Loan removeLoan(String readerId) {
+        return loans.remove(readerId);
+    }
+
+    /**
+     * Returns the loan of a reader.
+     *
+     * @param readerId the ID of the reader
+     * @return the loan, or null if the reader has no copy
+     */
+    public Loan getLoan(String readerId) {
+        return loans.get(readerId);
+    }
+
+    /**
+     * Returns the loans of the copies on loan.
+     *
+     * @return a live view of the loans
+     */
+    public Collection<Loan> getLoans() {
+        return loans.values();
+    }
+
+    /**
+     * Adds a reader to the end of the hold queue.
+     *
+     * @param readerId the ID of the reader
+     * @return true if the reader was not already waiting
+     */
+    public boolean addHold(String readerId) {
+        if (holds == null) {
+            holds = new LinkedHashSet<String>();
+        }
+        return holds.add(readerId);
+    }
+
+    /**
+     * Removes a reader from the hold queue.
+     *
+     * @param readerId the ID of the reader
+     * @return true if the reader was waiting
+     */
+    public boolean removeHold(String readerId) {
+        return holds != null && holds.remove(readerId);
+    }
+
+    /**
+     * Removes the longest-waiting reader from the hold queue.
+     *
+     * @return the ID of the reader, or null if nobody is waiting
+     */
+    public String pollHold() {
+        if (holds == null || holds.isEmpty()) {
+            return null;
+        }
+        Iterator<String> first = holds.iterator();
+        String readerId = first.next();
+        first.remove();
+        return readerId;
+    }
+
+    /**
+     * Returns the readers waiting for a copy.
+     *
+     * @return a copy of the reader IDs, longest-waiting first
+     */
+    public List<String> getHolds() {
+        return holds == null ? new ArrayList<String>() : new ArrayList<String>(holds);
+    }
+
+    /**
+     * Returns the number of readers waiting for a copy.
+     *
+     * @return the length of the hold queue
+     */
+    public int getHoldCount() {
+        return holds == null ? 0 : holds.size();
+    }
+
+    /**
+     * Returns whether every copy is free and nobody is waiting, so the holding can be dropped.
+     *
+     * @return true if the holding has no loans and no holds
+     */
+    public boolean isIdle() {
+        return freeCount == copies && getHoldCount() == 0;
+    }
+
+    /**
+     * Returns the ISBN of the book.
+     *
+     * @return the ISBN of the book
+     */
+    public String getISBN() {
+        return ISBN;
+    }
+
+    /**
+     * Returns the number of copies.
+     *
+     * @return the number of copies
+     */
+    public int getCopies() {
+        return copies;
+    }
+
+    /**
+     * Returns the number of free copies.
+     *
+     * @return the number of copies not on loan
+     */
+    public int getAvailable() {
+        return freeCount;
+    }
+}
@@ -0,0 +1,103 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class ImportReport {
+    
+    /**
+     * The number of records added to the library.
+     */
+    private long added;
+    /**
+     * The keys (ISBNs or reader IDs) of records rejected as duplicates,
+     * either repeated in the file or already in the library.
+     */
+    private final List<String> duplicates = new ArrayList<String>();
+    /**
+     * The line numbers of lines that could not be parsed.
+     */
+    private final List<Long> malformedLines = new ArrayList<Long>();
+    
+    /**
+     * Counts records added to the library.
+     *
+     * @param count the number of records added
+     */
+    void addAdded(long count) {
+        added += count;
+    }
+    
+    /**
+     * Records a record rejected as a duplicate.
+     *
+     * @param key the ISBN or reader ID of the record
+     */
+    void addDuplicate(String key) {
+        duplicates.add(key);
+    }
+    
+    /**
+     * Records a line that could not be parsed.
+     *
+     * @param lineNumber the line number, starting from 1
+     */
+    void addMalformedLine(long lineNumber) {
+        malformedLines.add(lineNumber);
+    }
+    
+    /**
+     * Returns the number of records added to the library.
+     *
+     * @return the number of records added
+     */
+    public long getAdded() {
+        return added;
+    }
+    
+    /**
+     * Returns the keys of records rejected as duplicates.
+     *
+     * @return the ISBNs or reader IDs of the duplicates
+     */
+    public List<String> getDuplicates() {
+        return duplicates;
+    }
+    
+    /**
+     * Returns the line numbers of lines that could not be parsed.
+     *
+     * @return the malformed line numbers
+     */
+    public List<Long> getMalformedLines() {
+        return malformedLines;
+    }
+    
+    /**
+     * Displays a summary of the import on an output sink.
+     *
+     * @param output the sink receiving the summary
+     */
+    public void displayInfo(OutputSink output) {
+        if (output.isEnabled()) {
+            output.print(formatInfo());
+            output.flush();
+        }
+    }
+    
+    /**
+     * Formats a summary of the import as shown by displayInfo.
+     * Lists up to the first ten duplicates and malformed lines.
+     *
+     * @return the summary, one line per count
+     */
+    public String formatInfo() {
+        String lineSeparator = System.lineSeparator();
+        return "Added: " + added + lineSeparator
+                + "Duplicates rejected: " + duplicates.size()
+                + (duplicates.isEmpty() ? "" : " " + duplicates.subList(0, Math.min(10, duplicates.size()))) + lineSeparator
+                + "Malformed lines: " + malformedLines.size()
+                + (malformedLines.isEmpty() ? "" : " " + malformedLines.subList(0, Math.min(10, malformedLines.size())))
+                + lineSeparator;
+    }
+}
@@ -0,0 +1,1093 @@
+package library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+
+public class Journal {
+    
+    // Record types
+    private static final byte ADD_BOOK = 1;
+    private static final byte REMOVE_BOOK = 2;
+    private static final byte UPDATE_BOOK = 3;
+    private static final byte ADD_READER = 4;
+    private static final byte REMOVE_READER = 5;
+    private static final byte BORROW = 6;
+    private static final byte RETURN = 7;
+    private static final byte BORROW_DUE = 8;
+    private static final byte ADD_COPIES = 9;
+    private static final byte SET_COPIES = 10;
+    private static final byte BORROW_COPY = 11;
+    private static final byte RETURN_COPY = 12;
+    private static final byte HOLD = 13;
+    private static final byte CANCEL_HOLD = 14;
+    
+    // Snapshot entry types
+    private static final byte SNAPSHOT_END = 0;
+    private static final byte SNAPSHOT_BOOK = 1;
+    private static final byte SNAPSHOT_READER = 2;
+    private static final byte SNAPSHOT_LOANED_BOOK = 3;
+    private static final byte SNAPSHOT_HOLDING = 4;
+    
+    /**
+     * Marks the start of a snapshot file.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x4C4D5331;
+    /**
+     * The default minimum number of journal records written between two snapshots.
+     */
+    private static final int SNAPSHOT_INTERVAL = 100000;
+    
+    /**
+     * The directory holding the snapshot and journal segments.
+     */
+    private final Path directory;
+    /**
+     * The library whose mutations are journaled.
+     */
+    private final Library library;
+    /**
+     * Guards writing to and rotating the current segment. Taken before the journal's own lock.
+     */
+    private final Object flushLock = new Object();
+    /**
+     * Guards taking snapshots, so only one runs at a time.
+     */
+    private final Object snapshotLock = new Object();
+    /**
+     * Records appended but not yet written to the segment.
+     */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    /**
+     * Scratch buffer used to encode a single record.
+     */
+    private final ByteArrayOutputStream record = new ByteArrayOutputStream();
+    /**
+     * Encoder writing into the record buffer.
+     */
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    /**
+     * The segment currently being appended to.
+     */
+    private FileChannel channel;
+    /**
+     * The generation number of the current segment.
+     */
+    private long generation;
+    /**
+     * The sequence number of the last appended record.
+     */
+    private long sequence;
+    /**
+     * The sequence number of the last record forced to disk.
+     */
+    private volatile long durableSequence;
+    /**
+     * The number of records appended since the last snapshot. Read by committing threads
+     * without the journal's lock.
+     */
+    private final AtomicInteger recordsSinceSnapshot = new AtomicInteger();
+    /**
+     * The minimum number of journal records written between two automatic snapshots.
+     */
+    private volatile int snapshotInterval = SNAPSHOT_INTERVAL;
+    /**
+     * Takes automatic snapshots of a concurrent library, so committing threads never write one themselves.
+     */
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "journal-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    /**
+     * Whether an automatic snapshot is queued or being taken.
+     */
+    private final AtomicBoolean snapshotPending = new AtomicBoolean();
+    /**
+     * The number of entries in the last snapshot. A new snapshot is taken once the journal
+     * has grown as large, so bulk loads into a large library do not rewrite it repeatedly.
+     */
+    private volatile long snapshotEntries;
+    /**
+     * The log shipping records to replicas once they are on disk, or null if the library is not replicated.
+     */
+    private volatile ReplicationLog replication;
+
+    /**
+     * Constructs a Journal appending to a new segment of the given generation.
+     *
+     * @param directory  the directory holding the snapshot and journal segments
+     * @param library    the library whose mutations are journaled
+     * @param generation the generation number of the first segment
+     * @throws IOException if the segment cannot be created
+     */
+    private Journal(Path directory, Library library, long generation) throws IOException {
+        this.directory = directory;
+        this.library = library;
+        this.generation = generation;
+        this.channel = openSegment(generation);
+    }
+    
+    /**
+     * Opens the journal in a directory, restoring its state into a library.
+     * Loads the latest snapshot, replays the journal segments written after it,
+     * then attaches the journal so further mutations of the library are recorded.
+     *
+     * @param directory the directory holding the snapshot and journal segments
+     * @param library   the empty library to restore into
+     * @return the opened journal
+     * @throws IOException if the data cannot be read or the journal cannot be created
+     */
+    public static Journal open(Path directory, Library library) throws IOException {
+        return open(directory, library, 0);
+    }
+    
+    /**
+     * Opens the journal in a directory, restoring its state into a library whose book store
+     * already holds the catalog up to a checkpoint, as one opened by openStore does.
+     * The snapshot and segments the checkpoint covers restore only readers, loans and holds;
+     * their books, copies and catalog changes are already in the store.
+     *
+     * @param directory       the directory holding the snapshot and journal segments
+     * @param library         the library to restore into, empty apart from its book store
+     * @param storeCheckpoint the generation the book store holds every earlier catalog record of,
+     *                        or 0 if it holds none
+     * @return the opened journal
+     * @throws IOException if the data cannot be read or the journal cannot be created
+     */
+    public static Journal open(Path directory, Library library, long storeCheckpoint) throws IOException {
+        Files.createDirectories(directory);
+        
+        // Load the snapshot, which tells the first segment to replay
+        long firstGeneration = 0;
+        Path snapshot = directory.resolve("snapshot.dat");
+        if (Files.exists(snapshot)) {
+            firstGeneration = readSnapshot(snapshot, library, storeCheckpoint);
+        }
+        
+        // Replay the remaining segments in order, then continue in a fresh one
+        long nextGeneration = firstGeneration;
+        int replayed = 0;
+        for (long segment : listSegments(directory)) {
+            if (segment >= firstGeneration) {
+                replayed += replay(directory.resolve(segmentName(segment)), library, segment < storeCheckpoint);
+                nextGeneration = segment + 1;
+            }
+        }
+        Journal journal = new Journal(directory, library, nextGeneration);
+        // The replayed records are not yet in a snapshot, so they count towards the next one
+        journal.recordsSinceSnapshot.set(replayed);
+        library.setJournal(journal);
+        return journal;
+    }
+    
+    /**
+     * Opens the mapped book store kept in the books directory of a data directory, for a library
+     * about to be restored from the journal there. A store closed at a checkpoint the journal
+     * still replays from is kept, so opening the journal need not rewrite its books; any other
+     * store, including one that was not closed cleanly, is created afresh and refilled by replay.
+     *
+     * @param directory the directory holding the snapshot and journal segments
+     * @param capacity  the maximum number of books of the store
+     * @return the store, whose getCheckpoint is the checkpoint to pass to open, or 0 if it is new
+     * @throws IOException if the store cannot be opened or created
+     */
+    public static MappedBookStore openStore(Path directory, int capacity) throws IOException {
+        Path books = directory.resolve("books");
+        if (Files.exists(books.resolve("header.col"))) {
+            MappedBookStore store;
+            try {
+                store = MappedBookStore.open(books, capacity);
+            } catch (IOException e) {
+                store = null;
+            }
+            if (store != null) {
+                long checkpoint = store.getCheckpoint();
+                List<Long> segments = listSegments(directory);
+                long nextGeneration = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+                if (checkpoint > 0 && checkpoint >= readSnapshotGeneration(directory)
+                        && checkpoint <= nextGeneration) {
+                    return store;
+                }
+                store.close();
+            }
+        }
+        return MappedBookStore.create(books, capacity);
+    }
+    
+    /**
+     * Checkpoints a mapped book store at the end of the journal once the journal is closed,
+     * so the next open replays only the readers, loans and holds of the records before now.
+     *
+     * @param store the book store of the journaled library
+     */
+    public void checkpoint(MappedBookStore store) {
+        synchronized (flushLock) {
+            store.checkpoint(generation + 1);
+        }
+    }
+    
+    /**
+     * Starts a journal for a library that already holds its state, as a promoted replica does.
+     * Writes a snapshot of the library over any data in the directory, then attaches the journal,
+     * numbering its records on from the given sequence number so replicas can keep following.
+     *
+     * @param directory the directory to hold the snapshot and journal segments
+     * @param library   the library to journal
+     * @param sequence  the sequence number of the last record the library holds
+     * @return the attached journal
+     * @throws IOException if the snapshot or journal cannot be written
+     */
+    public static Journal attach(Path directory, Library library, long sequence) throws IOException {
+        Files.createDirectories(directory);
+        long generation = 0;
+        for (long segment : listSegments(directory)) {
+            generation = Math.max(generation, segment + 1);
+        }
+        Journal journal = new Journal(directory, library, generation);
+        journal.sequence = sequence;
+        journal.durableSequence = sequence;
+        journal.writeSnapshot(generation);
+        for (long segment : listSegments(directory)) {
+            if (segment < generation) {
+                Files.deleteIfExists(directory.resolve(segmentName(segment)));
+            }
+        }
+        library.setJournal(journal);
+        return journal;
+    }
+    
+    /**
+     * Ships every record from now on to replicas through a log, once the record is on disk.
+     * The log is restarted after the last record appended unless it already ends there.
+     *
+     * @param log the replication log
+     */
+    synchronized void setReplicationLog(ReplicationLog log) {
+        if (log.getLastSequence() != sequence) {
+            log.reset(log.getEpoch(), sequence);
+        }
+        log.advance(durableSequence);
+        replication = log;
+    }
+    
+    // Record methods, called by the library while holding the lock of the changed record
+    
+    /**
+     * Appends a record for an added book, with its number of copies.
+     *
+     * @param book the added book
+     * @return the sequence number of the record
+     */
+    synchronized long logAddBook(Book book) {
+        try {
+            recordOut.writeByte(ADD_COPIES);
+            writeBook(recordOut, book);
+            recordOut.writeInt(book.getCopies());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return appendRecord();
+    }
+    
+    /**
+     * Appends a record for a removed book.
+     *
+     * @param ISBN the ISBN of the removed book
+     * @return the sequence number of the record
+     */
+    long logRemoveBook(String ISBN) {
+        return log(REMOVE_BOOK, ISBN, null);
+    }
+    
+    /**
+     * Appends a record for an updated book.
+     *
+     * @param book the book after the update
+     * @return the sequence number of the record
+     */
+    synchronized long logUpdateBook(Book book) {
+        try {
+            recordOut.writeByte(UPDATE_BOOK);
+            writeBook(recordOut, book);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return appendRecord();
+    }
+    
+    /**
+     * Appends a record for a changed number of copies.
+     *
+     * @param ISBN   the ISBN of the book
+     * @param copies the new number of copies
+     * @return the sequence number of the record
+     */
+    synchronized long logSetCopies(String ISBN, int copies) {
+        try {
+            recordOut.writeByte(SET_COPIES);
+            recordOut.writeUTF(ISBN);
+            recordOut.writeInt(copies);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return appendRecord();
+    }
+    
+    /**
+     * Appends a record for an added reader.
+     *
+     * @param reader the added reader
+     * @return the sequence number of the record
+     */
+    synchronized long logAddReader(Reader reader) {
+        try {
+            recordOut.writeByte(ADD_READER);
+            writeReader(recordOut, reader);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return appendRecord();
+    }
+    
+    /**
+     * Appends a record for a removed reader.
+     *
+     * @param readerId the ID of the removed reader
+     * @return the sequence number of the record
+     */
+    long logRemoveReader(String readerId) {
+        return log(REMOVE_READER, readerId, null);
+    }
+    
+    /**
+     * Appends a record for a borrowed copy, with its checkout and due times.
+     *
+     * @param loan the new loan
+     * @return the sequence number of the record
+     */
+    synchronized long logBorrow(Loan loan) {
+        try {
+            recordOut.writeByte(BORROW_COPY);
+            writeLoan(recordOut, loan);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return appendRecord();
+    }
+    
+    /**
+     * Appends a record for a returned copy.
+     *
+     * @param ISBN     the ISBN of the returned book
+     * @param readerId the ID of the returning reader
+     * @return the sequence number of the record
+     */
+    long logReturn(String ISBN, String readerId) {
+        return log(RETURN_COPY, ISBN, readerId);
+    }
+    
+    /**
+     * Appends a record for a reader joining the hold queue of a book.
+     *
+     * @param ISBN     the ISBN of the book
+     * @param readerId the ID of the waiting reader
+     * @return the sequence number of the record
+     */
+    long logHold(String ISBN, String readerId) {
+        return log(HOLD, ISBN, readerId);
+    }
+    
+    /**
+     * Appends a record for a reader leaving the hold queue of a book.
+     *
+     * @param ISBN     the ISBN of the book
+     * @param readerId the ID of the reader
+     * @return the sequence number of the record
+     */
+    long logCancelHold(String ISBN, String readerId) {
+        return log(CANCEL_HOLD, ISBN, readerId);
+    }
+    
+    /**
+     * Appends a record made of a type and one or two keys.
+     *
+     * @param type   the record type
+     * @param key    the first key
+     * @param second the second key, or null if the record has one key
+     * @return the sequence number of the record
+     */
+    private synchronized long log(byte type, String key, String second) {
+        try {
+            recordOut.writeByte(type);
+            recordOut.writeUTF(key);
+            if (second != null) {
+                recordOut.writeUTF(second);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return appendRecord();
+    }
+    
+    /**
+     * Frames the encoded record with its length and checksum and queues it for writing.
+     * Must be called while holding the journal's lock.
+     *
+     * @return the sequence number of the record
+     */
+    private long appendRecord() {
+        byte[] bytes = record.toByteArray();
+        record.reset();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+        DataOutputStream out = new DataOutputStream(pending);
+        try {
+            out.writeInt(bytes.length);
+            out.writeInt((int) crc.getValue());
+            out.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        recordsSinceSnapshot.incrementAndGet();
+        sequence++;
+        if (replication != null) {
+            replication.append(sequence, bytes);
+        }
+        return sequence;
+    }
+    
+    /**
+     * Returns the sequence number of the last appended record.
+     *
+     * @return the sequence number, or 0 if nothing was appended
+     */
+    synchronized long lastSequence() {
+        return sequence;
+    }
+    
+    /**
+     * Waits until the record with the given sequence number is on disk.
+     * Writes and forces every record queued so far, so a burst of concurrent
+     * mutations shares one fsync. Takes a snapshot when enough records have been written
+     * since the last one: in the background for a concurrent library, whose indexes can be
+     * read while they change, and on the committing thread otherwise, since a single-threaded
+     * library's indexes may only be read by the thread changing them.
+     *
+     * @param entry the sequence number of the record, or 0 if nothing was recorded
+     */
+    public void commit(long entry) {
+        if (entry > durableSequence) {
+            synchronized (flushLock) {
+                // Another thread may have forced this record while we waited
+                if (entry > durableSequence) {
+                    flush();
+                }
+            }
+        }
+        if (recordsSinceSnapshot.get() >= Math.max(snapshotInterval, snapshotEntries)
+                && snapshotPending.compareAndSet(false, true)) {
+            if (library.isConcurrent()) {
+                snapshotter.execute(this::automaticSnapshot);
+            } else {
+                automaticSnapshot();
+            }
+        }
+    }
+    
+    /**
+     * Takes an automatic snapshot, reporting a failure on the library's output sink.
+     * The journal still holds every record, so the next snapshot can catch up.
+     */
+    private void automaticSnapshot() {
+        try {
+            snapshot();
+        } catch (RuntimeException e) {
+            OutputSink output = library.getOutput();
+            if (output.isEnabled()) {
+                output.print(String.format("Failed to snapshot library data: %s\n", e.getMessage()));
+                output.flush();
+            }
+        } finally {
+            snapshotPending.set(false);
+        }
+    }
+    
+    /**
+     * Sets how many records are written between two automatic snapshots. A snapshot
+     * is also not taken before the journal has grown as large as the last snapshot.
+     *
+     * @param records the minimum number of records, or Integer.MAX_VALUE to take snapshots only when asked
+     */
+    void setSnapshotInterval(int records) {
+        snapshotInterval = records;
+    }
+    
+    /**
+     * Writes and forces every queued record. Must be called while holding the flush lock.
+     */
+    private void flush() {
+        byte[] batch;
+        long upTo;
+        synchronized (this) {
+            batch = pending.toByteArray();
+            pending.reset();
+            upTo = sequence;
+        }
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(batch);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        durableSequence = upTo;
+        if (replication != null) {
+            replication.advance(upTo);
+        }
+    }
+    
+    /**
+     * Takes a compacting snapshot of the library.
+     * Starts a new journal segment, which marks the position the snapshot replays from,
+     * writes the library state, then deletes the segments the snapshot covers. Mutations
+     * may continue while the snapshot is written; they are in the new segment and are
+     * replayed over the snapshot.
+     */
+    public void snapshot() {
+        synchronized (snapshotLock) {
+            long snapshotGeneration;
+            synchronized (flushLock) {
+                synchronized (this) {
+                    if (recordsSinceSnapshot.get() == 0) {
+                        return;
+                    }
+                    flush();
+                    try {
+                        channel.close();
+                        generation++;
+                        channel = openSegment(generation);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    recordsSinceSnapshot.set(0);
+                    snapshotGeneration = generation;
+                }
+            }
+            try {
+                writeSnapshot(snapshotGeneration);
+                for (long segment : listSegments(directory)) {
+                    if (segment < snapshotGeneration) {
+                        Files.deleteIfExists(directory.resolve(segmentName(segment)));
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+    
+    /**
+     * Waits for a background snapshot to finish, writes every queued record and closes
+     * the current segment.
+     *
+     * @throws IOException if the segment cannot be closed
+     */
+    public void close() throws IOException {
+        snapshotter.shutdown();
+        try {
+            snapshotter.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (flushLock) {
+            flush();
+            channel.close();
+        }
+    }
+    
+    // Snapshot and replay
+    
+    /**
+     * Writes the library state to a new snapshot file and moves it over the old one.
+     *
+     * @param snapshotGeneration the first segment not covered by the snapshot
+     * @throws IOException if the snapshot cannot be written
+     */
+    private void writeSnapshot(long snapshotGeneration) throws IOException {
+        Path temporary = directory.resolve("snapshot.tmp");
+        try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16));
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(snapshotGeneration);
+            snapshotEntries = writeState(out);
+            out.flush();
+            file.getChannel().force(true);
+        }
+        Files.move(temporary, directory.resolve("snapshot.dat"),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    /**
+     * Writes the state of the library as snapshot entries, ending with SNAPSHOT_END.
+     * The library may change while this runs; replaying the records appended meanwhile repeats the changes.
+     *
+     * @param out the encoder to write to
+     * @return the number of entries written
+     * @throws IOException if writing fails
+     */
+    long writeState(DataOutputStream out) throws IOException {
+        long entries = 0;
+        for (Reader reader : library.allReaders()) {
+            out.writeByte(SNAPSHOT_READER);
+            writeReader(out, reader);
+            entries++;
+        }
+        for (Book book : library.allBooks()) {
+            // Loans and holds may change while this runs; the journal replayed after it repeats them
+            List<Loan> loans = library.getCopyLoans(book.getISBN());
+            List<String> waiting = library.getHoldQueue(book.getISBN());
+            out.writeByte(SNAPSHOT_HOLDING);
+            writeBook(out, book);
+            out.writeInt(book.getCopies());
+            out.writeInt(loans.size());
+            for (Loan loan : loans) {
+                writeLoan(out, loan);
+            }
+            out.writeInt(waiting.size());
+            for (String readerId : waiting) {
+                out.writeUTF(readerId);
+            }
+            entries++;
+        }
+        out.writeByte(SNAPSHOT_END);
+        return entries;
+    }
+    
+    /**
+     * Loads a snapshot file into a library.
+     *
+     * @param snapshot        the snapshot file
+     * @param library         the library to load into
+     * @param storeCheckpoint the generation the library's book store holds every earlier
+     *                        catalog record of, or 0
+     * @return the first segment not covered by the snapshot
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    private static long readSnapshot(Path snapshot, Library library, long storeCheckpoint) throws IOException {
+        try (InputStream file = Files.newInputStream(snapshot)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16));
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a library snapshot: " + snapshot);
+            }
+            long snapshotGeneration = in.readLong();
+            readState(in, library, storeCheckpoint > 0 && snapshotGeneration <= storeCheckpoint);
+            return snapshotGeneration;
+        }
+    }
+    
+    /**
+     * Reads the first segment not covered by the snapshot in a directory, without loading it.
+     *
+     * @param directory the directory holding the snapshot and journal segments
+     * @return the first segment not covered by the snapshot, or 0 if there is none
+     * @throws IOException if the snapshot cannot be read or is corrupt
+     */
+    private static long readSnapshotGeneration(Path directory) throws IOException {
+        Path snapshot = directory.resolve("snapshot.dat");
+        if (!Files.exists(snapshot)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshot))) {
+            if (in.readInt() != SNAPSHOT_MAGIC) {
+                throw new IOException("Not a library snapshot: " + snapshot);
+            }
+            return in.readLong();
+        }
+    }
+    
+    /**
+     * Loads snapshot entries written by writeState into a library, up to SNAPSHOT_END.
+     *
+     * @param in      the decoder to read from
+     * @param library the library to load into
+     * @throws IOException if the entries cannot be read or are corrupt
+     */
+    static void readState(DataInputStream in, Library library) throws IOException {
+        readState(in, library, false);
+    }
+    
+    /**
+     * Loads snapshot entries written by writeState into a library, up to SNAPSHOT_END.
+     *
+     * @param in           the decoder to read from
+     * @param library      the library to load into
+     * @param storeCurrent whether the library's book store already holds the snapshot's books,
+     *                     so only their loans and holds are loaded
+     * @throws IOException if the entries cannot be read or are corrupt
+     */
+    private static void readState(DataInputStream in, Library library, boolean storeCurrent) throws IOException {
+        while (true) {
+            byte type = in.readByte();
+            if (type == SNAPSHOT_END) {
+                return;
+            } else if (type == SNAPSHOT_READER) {
+                library.putReader(readReader(in));
+            } else if (type == SNAPSHOT_BOOK) {
+                // Written before books had copies
+                Book book = readBook(in);
+                String borrower = readOptional(in);
+                if (!storeCurrent) {
+                    library.putBook(book);
+                }
+                if (borrower != null) {
+                    applyBorrow(library, new Loan(book.getISBN(), 0, borrower, 0, 0));
+                }
+            } else if (type == SNAPSHOT_LOANED_BOOK) {
+                Book book = readBook(in);
+                Loan loan = readLegacyLoan(in);
+                if (!storeCurrent) {
+                    library.putBook(book);
+                }
+                applyBorrow(library, loan);
+            } else if (type == SNAPSHOT_HOLDING) {
+                Book book = readBook(in);
+                book.setCopies(in.readInt());
+                book.setAvailableCopies(book.getCopies());
+                if (!storeCurrent) {
+                    library.putBook(book);
+                }
+                for (int loans = in.readInt(); loans > 0; loans--) {
+                    applyBorrow(library, readLoan(in));
+                }
+                for (int waiting = in.readInt(); waiting > 0; waiting--) {
+                    applyHold(library, book.getISBN(), in.readUTF(), true);
+                }
+            } else {
+                throw new IOException("Corrupt library snapshot entry type " + type);
+            }
+        }
+    }
+    
+    /**
+     * Replays the records of a journal segment into a library.
+     * Stops at the first torn or corrupt record, which was never acknowledged.
+     *
+     * @param segment      the journal segment
+     * @param library      the library to replay into
+     * @param storeCurrent whether the library's book store already holds the segment's catalog changes
+     * @return the number of records replayed
+     * @throws IOException if the segment cannot be read
+     */
+    private static int replay(Path segment, Library library, boolean storeCurrent) throws IOException {
+        try (InputStream file = Files.newInputStream(segment)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(file, 1 << 16));
+            CRC32 crc = new CRC32();
+            for (int records = 0; ; records++) {
+                byte[] bytes;
+                int checksum;
+                try {
+                    bytes = new byte[in.readInt()];
+                    checksum = in.readInt();
+                    in.readFully(bytes);
+                } catch (EOFException e) {
+                    return records;
+                }
+                crc.reset();
+                crc.update(bytes, 0, bytes.length);
+                if ((int) crc.getValue() != checksum) {
+                    return records;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(bytes)), library, storeCurrent);
+            }
+        }
+    }
+    
+    /**
+     * Applies one record shipped from a primary's journal to a replica library.
+     *
+     * @param record  the encoded record, without its length and checksum
+     * @param library the library to apply to
+     * @throws IOException if the record is corrupt
+     */
+    static void applyRecord(byte[] record, Library library) throws IOException {
+        apply(new DataInputStream(new ByteArrayInputStream(record)), library, false);
+    }
+    
+    /**
+     * Applies one journal record to a library.
+     *
+     * @param in           the decoder over the record
+     * @param library      the library to apply to
+     * @param storeCurrent whether the library's book store already holds the record's catalog
+     *                     change, which is then skipped
+     * @throws IOException if the record is corrupt
+     */
+    private static void apply(DataInputStream in, Library library, boolean storeCurrent) throws IOException {
+        byte type = in.readByte();
+        if (storeCurrent && (type == ADD_BOOK || type == ADD_COPIES || type == SET_COPIES || type == REMOVE_BOOK
+                || type == UPDATE_BOOK)) {
+            return;
+        }
+        switch (type) {
+        case ADD_BOOK:
+            library.putBook(readBook(in));
+            break;
+        case ADD_COPIES:
+            Book added = readBook(in);
+            added.setCopies(in.readInt());
+            added.setAvailableCopies(added.getCopies());
+            library.putBook(added);
+            break;
+        case SET_COPIES:
+            library.restoreCopies(in.readUTF(), in.readInt());
+            break;
+        case REMOVE_BOOK:
+            library.dropBook(in.readUTF());
+            break;
+        case UPDATE_BOOK:
+            Book update = readBook(in);
+            Book book = library.findBook(update.getISBN());
+            if (book != null) {
+                update.setCopies(book.getCopies());
+                library.putBook(update);
+            }
+            break;
+        case ADD_READER:
+            library.putReader(readReader(in));
+            break;
+        case REMOVE_READER:
+            library.dropReader(in.readUTF());
+            break;
+        case BORROW:
+            // Written before due dates were kept
+            String ISBN = in.readUTF();
+            applyBorrow(library, new Loan(ISBN, 0, in.readUTF(), 0, 0));
+            break;
+        case BORROW_DUE:
+            // Written before copies were numbered
+            applyBorrow(library, readLegacyLoan(in));
+            break;
+        case BORROW_COPY:
+            applyBorrow(library, readLoan(in));
+            break;
+        case RETURN:
+            // Written before books had copies, returning the only one
+            library.restoreReturn(in.readUTF(), null);
+            break;
+        case RETURN_COPY:
+            library.restoreReturn(in.readUTF(), in.readUTF());
+            break;
+        case HOLD:
+        case CANCEL_HOLD:
+            applyHold(library, in.readUTF(), in.readUTF(), type == HOLD);
+            break;
+        default:
+            throw new IOException("Unknown journal record type " + type);
+        }
+    }
+    
+    /**
+     * Restores a loan, sharing the reader's ID instance when the reader exists.
+     *
+     * @param library the library being restored
+     * @param loan    the loan, with copy 0 and times 0 where unknown
+     */
+    private static void applyBorrow(Library library, Loan loan) {
+        Reader reader = library.findReader(loan.getReaderId());
+        if (reader != null) {
+            loan = new Loan(loan.getISBN(), loan.getCopy(), reader.getId(), loan.getCheckoutTime(), loan.getDueTime());
+        }
+        library.restoreLoan(loan);
+    }
+    
+    /**
+     * Restores a reader joining or leaving a hold queue, sharing the reader's ID instance
+     * when the reader exists.
+     *
+     * @param library  the library being restored
+     * @param ISBN     the ISBN of the book
+     * @param readerId the ID of the reader
+     * @param waiting  whether the reader joins rather than leaves the queue
+     */
+    private static void applyHold(Library library, String ISBN, String readerId, boolean waiting) {
+        Reader reader = library.findReader(readerId);
+        library.restoreHold(ISBN, reader == null ? readerId : reader.getId(), waiting);
+    }
+    
+    // Encoding helpers
+    
+    /**
+     * Encodes the catalog fields of a book.
+     *
+     * @param out  the encoder to write to
+     * @param book the book to encode
+     * @throws IOException if writing fails
+     */
+    private static void writeBook(DataOutputStream out, Book book) throws IOException {
+        out.writeUTF(book.getISBN());
+        out.writeUTF(book.getTitle());
+        out.writeUTF(book.getAuthor());
+        out.writeInt(book.getPublicationYear());
+    }
+    
+    /**
+     * Decodes a book written by writeBook.
+     *
+     * @param in the decoder to read from
+     * @return the decoded book, available
+     * @throws IOException if reading fails
+     */
+    private static Book readBook(DataInputStream in) throws IOException {
+        String ISBN = in.readUTF();
+        String title = in.readUTF();
+        String author = in.readUTF();
+        int publicationYear = in.readInt();
+        return new Book(title, author, ISBN, publicationYear);
+    }
+    
+    /**
+     * Encodes a reader.
+     *
+     * @param out    the encoder to write to
+     * @param reader the reader to encode
+     * @throws IOException if writing fails
+     */
+    private static void writeReader(DataOutputStream out, Reader reader) throws IOException {
+        out.writeUTF(reader.getId());
+        out.writeUTF(reader.getName());
+        out.writeUTF(reader.getContact());
+    }
+    
+    /**
+     * Decodes a reader written by writeReader.
+     *
+     * @param in the decoder to read from
+     * @return the decoded reader
+     * @throws IOException if reading fails
+     */
+    private static Reader readReader(DataInputStream in) throws IOException {
+        return new Reader(in.readUTF(), in.readUTF(), in.readUTF());
+    }
+    
+    /**
+     * Encodes a loan.
+     *
+     * @param out  the encoder to write to
+     * @param loan the loan to encode
+     * @throws IOException if writing fails
+     */
+    private static void writeLoan(DataOutputStream out, Loan loan) throws IOException {
+        out.writeUTF(loan.getISBN());
+        out.writeInt(loan.getCopy());
+        out.writeUTF(loan.getReaderId());
+        out.writeLong(loan.getCheckoutTime());
+        out.writeLong(loan.getDueTime());
+    }
+    
+    /**
+     * Decodes a loan written by writeLoan.
+     *
+     * @param in the decoder to read from
+     * @return the decoded loan
+     * @throws IOException if reading fails
+     */
+    private static Loan readLoan(DataInputStream in) throws IOException {
+        return new Loan(in.readUTF(), in.readInt(), in.readUTF(), in.readLong(), in.readLong());
+    }
+    
+    /**
+     * Decodes a loan written before copies were numbered.
+     *
+     * @param in the decoder to read from
+     * @return the decoded loan, with copy 0
+     * @throws IOException if reading fails
+     */
+    private static Loan readLegacyLoan(DataInputStream in) throws IOException {
+        return new Loan(in.readUTF(), 0, in.readUTF(), in.readLong(), in.readLong());
+    }
+    
+    /**
+     * Decodes a string that may be null, written as a presence flag then the string.
+     *
+     * @param in the decoder to read from
+     * @return the decoded string, or null
+     * @throws IOException if reading fails
+     */
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+    
+    // Segment files
+    
+    /**
+     * Opens a journal segment for appending, creating it if needed.
+     *
+     * @param segment the generation number of the segment
+     * @return the channel appending to the segment
+     * @throws IOException if the segment cannot be opened
+     */
+    private FileChannel openSegment(long segment) throws IOException {
+        return FileChannel.open(directory.resolve(segmentName(segment)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+    
+    /**
+     * Returns the file name of a journal segment.
+     *
+     * @param segment the generation number of the segment
+     * @return the file name of the segment
+     */
+    private static String segmentName(long segment) {
+        return "journal-" + segment + ".log";
+    }
+    
+    /**
+     * Lists the generation numbers of the journal segments in a directory, in ascending order.
+     *
+     * @param directory the directory holding the journal segments
+     * @return the sorted generation numbers
+     * @throws IOException if the directory cannot be listed
+     */
+    private static List<Long> listSegments(Path directory) throws IOException {
+        List<Long> segments = new ArrayList<Long>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "journal-*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    segments.add(Long.parseLong(name.substring("journal-".length(), name.length() - ".log".length())));
+                } catch (NumberFormatException e) {
+                    // Not a segment written by the journal
+                }
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+}
@@ -0,0 +1,319 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads and writes the small JSON documents exchanged by the HTTP server.
+ * Only flat objects are read, every value a string, number, boolean or null, and listings
+ * whose "items" array holds such objects or strings.
+ */
+public class Json {
+
+    /**
+     * Not instantiated; all methods are static.
+     */
+    private Json() {
+    }
+
+    /**
+     * Parses a flat JSON object.
+     *
+     * @param text the JSON text
+     * @return the values of the object by name, as text; null values are absent
+     * @throws IllegalArgumentException if the text is not a flat JSON object
+     */
+    public static Map<String, String> parseObject(String text) {
+        int[] position = { skipSpace(text, 0) };
+        Map<String, String> values = readObject(text, position, null);
+        if (skipSpace(text, position[0]) != text.length()) {
+            throw new IllegalArgumentException("Unexpected text after JSON object");
+        }
+        return values;
+    }
+
+    /**
+     * Parses a listing answered by the server: a JSON object whose "items" array holds flat objects.
+     *
+     * @param text   the JSON text
+     * @param fields receives the other values of the object by name, or null to skip them
+     * @return the items, each with its values by name
+     * @throws IllegalArgumentException if the text is not such a listing
+     */
+    public static List<Map<String, String>> parseItems(String text, Map<String, String> fields) {
+        List<Map<String, String>> items = new ArrayList<Map<String, String>>();
+        for (Object item : parseListing(text, fields)) {
+            if (!(item instanceof Map)) {
+                throw new IllegalArgumentException("Expected an object item but found " + item);
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, String> values = (Map<String, String>) item;
+            items.add(values);
+        }
+        return items;
+    }
+
+    /**
+     * Parses a listing answered by the server whose "items" array holds strings.
+     *
+     * @param text the JSON text
+     * @return the items
+     * @throws IllegalArgumentException if the text is not such a listing
+     */
+    public static List<String> parseStringItems(String text) {
+        List<String> items = new ArrayList<String>();
+        for (Object item : parseListing(text, null)) {
+            if (!(item instanceof String)) {
+                throw new IllegalArgumentException("Expected a string item but found " + item);
+            }
+            items.add((String) item);
+        }
+        return items;
+    }
+
+    /**
+     * Parses a JSON object whose "items" array holds flat objects or strings.
+     *
+     * @param text   the JSON text
+     * @param fields receives the other values of the object by name, or null to skip them
+     * @return the items, as maps of values by name or strings
+     */
+    private static List<Object> parseListing(String text, Map<String, String> fields) {
+        int[] position = { skipSpace(text, 0) };
+        List<Object> items = new ArrayList<Object>();
+        Map<String, String> values = readObject(text, position, items);
+        if (skipSpace(text, position[0]) != text.length()) {
+            throw new IllegalArgumentException("Unexpected text after JSON object");
+        }
+        if (fields != null) {
+            fields.putAll(values);
+        }
+        return items;
+    }
+
+    /**
+     * Reads a flat object, or a listing object whose "items" array is collected.
+     *
+     * @param text     the JSON text
+     * @param position the current position
+     * @param items    receives the items of an "items" array, or null if arrays are not allowed
+     * @return the values of the object by name, as text; null values are absent
+     */
+    private static Map<String, String> readObject(String text, int[] position, List<Object> items) {
+        Map<String, String> values = new LinkedHashMap<String, String>();
+        expect(text, position, '{');
+        if (peek(text, position) == '}') {
+            position[0]++;
+            return values;
+        }
+        while (true) {
+            String name = readString(text, position);
+            expect(text, position, ':');
+            if (items != null && name.equals("items") && peek(text, position) == '[') {
+                readItems(text, position, items);
+            } else {
+                String value = readValue(text, position);
+                if (value != null) {
+                    values.put(name, value);
+                }
+            }
+            if (peek(text, position) == ',') {
+                position[0]++;
+                continue;
+            }
+            expect(text, position, '}');
+            return values;
+        }
+    }
+
+    /**
+     * Reads an array of flat objects or strings.
+     *
+     * @param text     the JSON text
+     * @param position the current position
+     * @param items    receives the items, as maps of values by name or strings
+     */
+    private static void readItems(String text, int[] position, List<Object> items) {
+        expect(text, position, '[');
+        if (peek(text, position) == ']') {
+            position[0]++;
+            return;
+        }
+        while (true) {
+            items.add(peek(text, position) == '{' ? readObject(text, position, null) : readValue(text, position));
+            if (peek(text, position) == ',') {
+                position[0]++;
+                continue;
+            }
+            expect(text, position, ']');
+            return;
+        }
+    }
+
+    /**
+     * Quotes a string as a JSON string literal.
+     *
+     * @param value the string, or null
+     * @return the JSON literal, or null if the string is null
+     */
+    public static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                quoted.append("\\\"");
+                break;
+            case '\\':
+                quoted.append("\\\\");
+                break;
+            case '\n':
+                quoted.append("\\n");
+                break;
+            case '\r':
+                quoted.append("\\r");
+                break;
+            case '\t':
+                quoted.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    quoted.append(String.format("\\u%04x", (int) c));
+                } else {
+                    quoted.append(c);
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * Returns the next non-space character without consuming it.
+     *
+     * @param text     the JSON text
+     * @param position the current position, advanced past any spaces
+     * @return the next character
+     */
+    private static char peek(String text, int[] position) {
+        position[0] = skipSpace(text, position[0]);
+        if (position[0] >= text.length()) {
+            throw new IllegalArgumentException("Unexpected end of JSON");
+        }
+        return text.charAt(position[0]);
+    }
+
+    /**
+     * Consumes the next non-space character, which must be the expected one.
+     *
+     * @param text     the JSON text
+     * @param position the current position
+     * @param expected the expected character
+     */
+    private static void expect(String text, int[] position, char expected) {
+        if (peek(text, position) != expected) {
+            throw new IllegalArgumentException("Expected '" + expected + "' at position " + position[0]);
+        }
+        position[0]++;
+    }
+
+    /**
+     * Reads a string, number, boolean or null value.
+     *
+     * @param text     the JSON text
+     * @param position the current position
+     * @return the value as text, or null for a JSON null
+     */
+    private static String readValue(String text, int[] position) {
+        char c = peek(text, position);
+        if (c == '"') {
+            return readString(text, position);
+        }
+        if (c == '{' || c == '[') {
+            throw new IllegalArgumentException("Nested values are not supported at position " + position[0]);
+        }
+        int start = position[0];
+        while (position[0] < text.length() && ",}] \t\r\n".indexOf(text.charAt(position[0])) < 0) {
+            position[0]++;
+        }
+        String literal = text.substring(start, position[0]);
+        if (literal.equals("null")) {
+            return null;
+        }
+        if (literal.equals("true") || literal.equals("false") || literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) {
+            return literal;
+        }
+        throw new IllegalArgumentException("Invalid JSON value at position " + start);
+    }
+
+    /**
+     * Reads a string literal.
+     *
+     * @param text     the JSON text
+     * @param position the current position
+     * @return the unescaped string
+     */
+    private static String readString(String text, int[] position) {
+        expect(text, position, '"');
+        StringBuilder value = new StringBuilder();
+        while (position[0] < text.length()) {
+            char c = text.charAt(position[0]++);
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            if (position[0] >= text.length()) {
+                break;
+            }
+            char escaped = text.charAt(position[0]++);
+            switch (escaped) {
+            case 'b':
+                value.append('\b');
+                break;
+            case 'f':
+                value.append('\f');
+                break;
+            case 'n':
+                value.append('\n');
+                break;
+            case 'r':
+                value.append('\r');
+                break;
+            case 't':
+                value.append('\t');
+                break;
+            case 'u':
+                if (position[0] + 4 > text.length()) {
+                    throw new IllegalArgumentException("Invalid escape at position " + position[0]);
+                }
+                value.append((char) Integer.parseInt(text.substring(position[0], position[0] + 4), 16));
+                position[0] += 4;
+                break;
+            default:
+                value.append(escaped);
+            }
+        }
+        throw new IllegalArgumentException("Unterminated JSON string");
+    }
+
+    /**
+     * Skips spaces.
+     *
+     * @param text     the JSON text
+     * @param position the position to start from
+     * @return the position of the next non-space character, or the length of the text
+     */
+    private static int skipSpace(String text, int position) {
+        while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
+}
@@ -0,0 +1,224 @@
+package library;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed-size histogram of latencies in nanoseconds.
+ * Like HdrHistogram, buckets are linear below 32 and then split every power of two into
+ * 32 sub-buckets, so every recorded value is kept within about 3% of its true value.
+ * Each thread records into one of several stripes chosen by its ID, so threads recording
+ * at once rarely update the same counters; reads merge the stripes. Recording is lock-free
+ * and allocates only when a thread is the first to use its stripe.
+ */
+public class LatencyHistogram {
+    
+    /**
+     * The number of bits selecting a sub-bucket within a power of two.
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+    /**
+     * The number of sub-buckets within a power of two.
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * The number of buckets, enough for any non-negative long.
+     */
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+    /**
+     * The number of stripes, a power of two of about twice the processors and at most 16,
+     * since each stripe holds a full set of buckets.
+     */
+    private static final int STRIPES = Math.min(16,
+            Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1);
+    
+    /**
+     * The stripes, created when a thread first records into them.
+     */
+    private final AtomicReferenceArray<Stripe> stripes = new AtomicReferenceArray<Stripe>(STRIPES);
+    
+    /**
+     * The counters of one stripe.
+     */
+    private static class Stripe {
+        /**
+         * The number of values recorded in each bucket.
+         */
+        final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        /**
+         * The number of values recorded.
+         */
+        final AtomicLong count = new AtomicLong();
+        /**
+         * The sum of the values recorded.
+         */
+        final AtomicLong total = new AtomicLong();
+        /**
+         * The largest value recorded.
+         */
+        final AtomicLong max = new AtomicLong();
+    }
+    
+    /**
+     * Records a latency.
+     *
+     * @param nanos the latency in nanoseconds; negative values count as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        Stripe stripe = stripe();
+        stripe.counts.incrementAndGet(bucketOf(value));
+        stripe.count.incrementAndGet();
+        stripe.total.addAndGet(value);
+        long largest = stripe.max.get();
+        while (value > largest && !stripe.max.compareAndSet(largest, value)) {
+            largest = stripe.max.get();
+        }
+    }
+    
+    /**
+     * Returns the stripe of the current thread, creating it if no thread has used it yet.
+     *
+     * @return the stripe
+     */
+    private Stripe stripe() {
+        long id = Thread.currentThread().getId();
+        int index = (int) (id ^ (id >>> 16)) & (STRIPES - 1);
+        Stripe stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new Stripe());
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+    
+    /**
+     * Returns the number of values recorded.
+     *
+     * @return the count
+     */
+    public long getCount() {
+        long n = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes.get(s);
+            if (stripe != null) {
+                n += stripe.count.get();
+            }
+        }
+        return n;
+    }
+    
+    /**
+     * Returns the mean of the values recorded.
+     *
+     * @return the mean in nanoseconds, or 0 if nothing was recorded
+     */
+    public double getMean() {
+        long n = 0;
+        long total = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes.get(s);
+            if (stripe != null) {
+                n += stripe.count.get();
+                total += stripe.total.get();
+            }
+        }
+        return n == 0 ? 0 : (double) total / n;
+    }
+    
+    /**
+     * Returns the largest value recorded.
+     *
+     * @return the maximum in nanoseconds
+     */
+    public long getMax() {
+        long largest = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes.get(s);
+            if (stripe != null) {
+                largest = Math.max(largest, stripe.max.get());
+            }
+        }
+        return largest;
+    }
+    
+    /**
+     * Returns the value below which a fraction of the recorded values fall.
+     *
+     * @param fraction the fraction, between 0 and 1
+     * @return the highest value of the bucket holding the percentile, in nanoseconds
+     */
+    public long getPercentile(double fraction) {
+        // Merge the stripes once, so both passes see the same counts
+        long[] counts = new long[BUCKETS];
+        long n = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes.get(s);
+            if (stripe != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] += stripe.counts.get(i);
+                }
+            }
+        }
+        for (int i = 0; i < BUCKETS; i++) {
+            n += counts[i];
+        }
+        long rank = Math.max(1, (long) Math.ceil(fraction * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(highestValueOf(i), getMax());
+            }
+        }
+        return 0;
+    }
+    
+    /**
+     * Clears every recorded value.
+     */
+    public void reset() {
+        for (int s = 0; s < STRIPES; s++) {
+            Stripe stripe = stripes.get(s);
+            if (stripe != null) {
+                for (int i = 0; i < BUCKETS; i++) {
+                    stripe.counts.set(i, 0);
+                }
+                stripe.count.set(0);
+                stripe.total.set(0);
+                stripe.max.set(0);
+            }
+        }
+    }
+    
+    /**
+     * Returns the bucket recording a value.
+     *
+     * @param value the non-negative value
+     * @return the index of the bucket
+     */
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+    
+    /**
+     * Returns the highest value recorded in a bucket.
+     *
+     * @param bucket the index of the bucket
+     * @return the highest value of the bucket
+     */
+    private static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
@@ -1,182 +1,1612 @@
 package library;
 
+import java.time.Clock;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class Library {
     /**
-     * The book list of the library.
+     * The number of lock stripes guarding books and readers. Must be a power of two.
      */
-    private ArrayList<Book> books;
+    private static final int LOCK_STRIPES = 1024;
     /**
-     * The reader list of the library.
+     * The default time a book may be borrowed for.
      */
-    private ArrayList<Reader> readers;
+    private static final Duration DEFAULT_LOAN_PERIOD = Duration.ofDays(14);
     
     /**
-     * Constructs a Library object.
-     * Initializes the books and readers lists.
+     * The books of the library, indexed by ISBN.
+     */
+    private BookStore books;
+    /**
+     * The readers of the library, indexed by reader ID.
+     * Keeps insertion order so listings match the order readers were added.
+     */
+    private Map<String, Reader> readers;
+    /**
+     * The locks guarding books and readers, selected by ISBN or reader ID hash.
+     * Operations on records in different stripes never contend.
+     */
+    private final Object[] locks;
+    /**
+     * Whether the library is shared between threads, so its indexes may be read while they change.
+     */
+    private final boolean concurrent;
+    /**
+     * The journal recording mutations, or null if the library is not persisted.
+     */
+    private Journal journal;
+    /**
+     * The thread applying a CommandEngine's commands, whose changes are made durable once
+     * per batch rather than once per change, or null if every change commits itself.
+     */
+    private volatile Thread batchingThread;
+    /**
+     * The bus receiving an event for every mutation, or null if changes are not published.
+     */
+    private EventBus events;
+    /**
+     * The history receiving every completed loan, or null if loans are forgotten once returned.
+     */
+    private volatile LoanHistory history;
+    /**
+     * The latest point-in-time view of the books and readers, replaced after every change,
+     * or holding null unless snapshot reads are enabled.
+     */
+    private final AtomicReference<CatalogSnapshot> snapshot = new AtomicReference<CatalogSnapshot>();
+    /**
+     * The cache of formatted book information, or null if books are formatted on every display.
+     */
+    private volatile RecordCache<String> bookInfoCache;
+    /**
+     * The cache of formatted reader information, or null if readers are formatted on every display.
+     */
+    private volatile RecordCache<String> readerInfoCache;
+    /**
+     * The caches of rendered books, invalidated whenever a book changes.
+     */
+    private final List<RecordCache<?>> bookCaches = new CopyOnWriteArrayList<RecordCache<?>>();
+    /**
+     * The caches of rendered readers, invalidated whenever a reader changes.
+     */
+    private final List<RecordCache<?>> readerCaches = new CopyOnWriteArrayList<RecordCache<?>>();
+    /**
+     * The index of book titles and authors, for word searches.
+     */
+    private final SearchIndex searchIndex = new SearchIndex();
+    /**
+     * The index of reader names and contacts, for autocompleting reader lookups.
+     */
+    private final ReaderIndex readerIndex = new ReaderIndex();
+    /**
+     * The loans and holds of the books and readers.
+     */
+    private final Circulation circulation = new Circulation();
+    /**
+     * The sorted keys of the books and readers, for cursor-based listing.
+     */
+    private final CatalogListing listing = new CatalogListing();
+    /**
+     * The clock giving checkout times and deciding which loans are overdue.
+     */
+    private Clock clock = Clock.systemUTC();
+    /**
+     * The time a book may be borrowed for.
+     */
+    private Duration loanPeriod = DEFAULT_LOAN_PERIOD;
+    /**
+     * The latencies and outcomes of operations, and the catalog gauges.
+     */
+    private final Metrics metrics;
+    /**
+     * The sink receiving messages and displayed information.
+     */
+    private OutputSink output = WriterSink.console();
+    
+    /**
+     * Constructs a Library object for single-threaded use.
+     * Initializes the books and readers indexes.
      */
     public Library() {
-    	books = new ArrayList<Book>();
-    	readers = new ArrayList<Reader>();
+    	this(false);
+    }
+    
+    /**
+     * Constructs a Library object keeping its books on the heap.
+     * In concurrent mode the books and readers indexes are concurrent maps, so
+     * the library can be shared by many threads. Paged listings stay in ISBN and reader ID order.
+     *
+     * @param concurrent whether the library is shared between threads
+     */
+    public Library(boolean concurrent) {
+    	this(new HeapBookStore(concurrent), concurrent);
+    }
+    
+    /**
+     * Constructs a Library object keeping its books in the given store.
+     * Books already in the store are indexed for listing and searching.
+     *
+     * @param books      the store holding the books
+     * @param concurrent whether the library is shared between threads
+     */
+    public Library(BookStore books, boolean concurrent) {
+    	this.books = books;
+    	this.concurrent = concurrent;
+    	if (concurrent) {
+    		readers = new ConcurrentHashMap<String, Reader>();
+    	} else {
+    		readers = new LinkedHashMap<String, Reader>();
+    	}
+    	locks = new Object[LOCK_STRIPES];
+    	for (int i = 0; i < LOCK_STRIPES; i++) {
+    		locks[i] = new Object();
+    	}
+    	metrics = new Metrics(() -> this.books.size(), () -> readers.size(), circulation::getBooksOnLoan);
+    	for (Book book : books) {
+    		listing.addBook(book.getISBN());
+    		searchIndex.add(book);
+    	}
+    }
+    
+    /**
+     * Returns the lock guarding the book or reader with the given key.
+     *
+     * @param key the ISBN of the book or the ID of the reader
+     * @return the lock stripe for the key
+     */
+    private Object lockFor(String key) {
+    	return locks[stripeOf(key)];
+    }
+    
+    /**
+     * Returns the index of the lock stripe guarding the book or reader with the given key.
+     *
+     * @param key the ISBN of the book or the ID of the reader
+     * @return the index of the lock stripe
+     */
+    private static int stripeOf(String key) {
+    	int hash = key.hashCode();
+    	return (hash ^ (hash >>> 16)) & (LOCK_STRIPES - 1);
+    }
+    
+    /**
+     * Sets the sink receiving messages and displayed information.
+     * Use OutputSink.SILENT when only the returned outcomes are needed.
+     *
+     * @param output the output sink
+     */
+    public void setOutput(OutputSink output) {
+    	this.output = output;
+    }
+    
+    /**
+     * Returns the sink receiving messages and displayed information.
+     *
+     * @return the output sink
+     */
+    public OutputSink getOutput() {
+    	return output;
+    }
+    
+    /**
+     * Sets the clock giving checkout times and deciding which loans are overdue.
+     *
+     * @param clock the clock
+     */
+    public void setClock(Clock clock) {
+    	this.clock = clock;
+    }
+    
+    /**
+     * Sets the time a book may be borrowed for. Only affects later loans.
+     *
+     * @param loanPeriod the loan period
+     */
+    public void setLoanPeriod(Duration loanPeriod) {
+    	this.loanPeriod = loanPeriod;
+    }
+    
+    /**
+     * Sets whether lookups and listings read immutable catalog snapshots.
+     * With snapshot reads, every change to a book or reader publishes a new snapshot, copying
+     * O(log n) tree nodes, and lookups and listings read the latest snapshot without taking
+     * a lock, seeing the catalog as it was at one moment. Suits read-mostly use; the
+     * snapshot keeps a copy of every book on the heap. Enable it before sharing the library.
+     *
+     * @param enabled whether to read snapshots
+     */
+    public void setSnapshotReads(boolean enabled) {
+    	if (!enabled) {
+    		snapshot.set(null);
+    		return;
+    	}
+    	List<String> ISBNs = new ArrayList<String>();
+    	List<Book> copies = new ArrayList<Book>();
+    	for (String ISBN : listing.getISBNs()) {
+    		Book book = books.get(ISBN);
+    		if (book != null) {
+    			ISBNs.add(ISBN);
+    			copies.add(book.copy());
+    		}
+    	}
+    	List<String> readerIds = new ArrayList<String>();
+    	List<Reader> readerList = new ArrayList<Reader>();
+    	for (String readerId : listing.getReaderIds()) {
+    		Reader reader = readers.get(readerId);
+    		if (reader != null) {
+    			readerIds.add(readerId);
+    			readerList.add(reader);
+    		}
+    	}
+    	snapshot.set(CatalogSnapshot.of(PersistentSortedMap.fromSorted(ISBNs, copies),
+    			PersistentSortedMap.fromSorted(readerIds, readerList)));
+    }
+    
+    /**
+     * Returns the latest point-in-time view of the books and readers. Reading several pages
+     * from one snapshot lists the catalog as it was when the snapshot was taken.
+     *
+     * @return the snapshot, or null unless snapshot reads are enabled
+     */
+    public CatalogSnapshot getSnapshot() {
+    	return snapshot.get();
+    }
+    
+    /**
+     * Publishes a changed book to the snapshot, if snapshot reads are enabled, and drops its
+     * cached renderings. The caller must hold the book's lock, or be restoring the library.
+     *
+     * @param book the book after the change
+     */
+    private void bookChanged(Book book) {
+    	if (snapshot.get() != null) {
+    		Book copy = book.copy();
+    		snapshot.updateAndGet(current -> current == null ? null : current.withBook(copy));
+    	}
+    	for (RecordCache<?> cache : bookCaches) {
+    		cache.invalidate(book.getISBN());
+    	}
+    }
+    
+    /**
+     * Removes a book from the snapshot, if snapshot reads are enabled, and drops its cached renderings.
+     *
+     * @param ISBN the ISBN of the removed book
+     */
+    private void bookRemoved(String ISBN) {
+    	if (snapshot.get() != null) {
+    		snapshot.updateAndGet(current -> current == null ? null : current.withoutBook(ISBN));
+    	}
+    	for (RecordCache<?> cache : bookCaches) {
+    		cache.invalidate(ISBN);
+    	}
+    }
+    
+    /**
+     * Publishes an added reader to the snapshot, if snapshot reads are enabled, and drops
+     * cached renderings of a reader with the same ID.
+     *
+     * @param reader the added reader
+     */
+    private void readerChanged(Reader reader) {
+    	if (snapshot.get() != null) {
+    		snapshot.updateAndGet(current -> current == null ? null : current.withReader(reader));
+    	}
+    	for (RecordCache<?> cache : readerCaches) {
+    		cache.invalidate(reader.getId());
+    	}
+    }
+    
+    /**
+     * Removes a reader from the snapshot, if snapshot reads are enabled, and drops their cached renderings.
+     *
+     * @param readerId the ID of the removed reader
+     */
+    private void readerRemoved(String readerId) {
+    	if (snapshot.get() != null) {
+    		snapshot.updateAndGet(current -> current == null ? null : current.withoutReader(readerId));
+    	}
+    	for (RecordCache<?> cache : readerCaches) {
+    		cache.invalidate(readerId);
+    	}
+    }
+    
+    /**
+     * Sets the number of books and of readers whose formatted information is cached for
+     * display. Entries are dropped whenever their record changes, and the least often
+     * displayed are evicted to stay within the capacity.
+     *
+     * @param capacity the largest number of cached books, and of cached readers; 0 disables caching
+     */
+    public void setInfoCacheCapacity(int capacity) {
+    	bookCaches.remove(bookInfoCache);
+    	readerCaches.remove(readerInfoCache);
+    	if (capacity <= 0) {
+    		bookInfoCache = null;
+    		readerInfoCache = null;
+    		return;
+    	}
+    	RecordCache<String> books = new RecordCache<String>(capacity);
+    	RecordCache<String> readers = new RecordCache<String>(capacity);
+    	addBookCache(books);
+    	addReaderCache(readers);
+    	bookInfoCache = books;
+    	readerInfoCache = readers;
+    }
+    
+    /**
+     * Returns the cache of formatted book information.
+     *
+     * @return the cache, or null if book information is not cached
+     */
+    public RecordCache<String> getBookInfoCache() {
+    	return bookInfoCache;
+    }
+    
+    /**
+     * Returns the cache of formatted reader information.
+     *
+     * @return the cache, or null if reader information is not cached
+     */
+    public RecordCache<String> getReaderInfoCache() {
+    	return readerInfoCache;
+    }
+    
+    /**
+     * Registers a cache of rendered books keyed by ISBN, such as a server's JSON, so entries
+     * are invalidated whenever their book changes. The cache must be given the book as read
+     * from the library when rendering.
+     *
+     * @param cache the cache
+     */
+    public void addBookCache(RecordCache<?> cache) {
+    	bookCaches.add(cache);
+    }
+    
+    /**
+     * Registers a cache of rendered readers keyed by reader ID, so entries are invalidated
+     * whenever their reader changes.
+     *
+     * @param cache the cache
+     */
+    public void addReaderCache(RecordCache<?> cache) {
+    	readerCaches.add(cache);
+    }
+    
+    /**
+     * Formats the information of a book, from the cache if enabled.
+     *
+     * @param book the book, as just read from the store or a snapshot
+     * @return the information of the book
+     */
+    private String formatInfo(Book book) {
+    	RecordCache<String> cache = bookInfoCache;
+    	return cache == null ? book.formatInfo() : cache.get(book.getISBN(), book, Book::formatInfo);
+    }
+    
+    /**
+     * Formats the information of a reader, from the cache if enabled.
+     *
+     * @param reader the reader
+     * @return the information of the reader
+     */
+    private String formatInfo(Reader reader) {
+    	RecordCache<String> cache = readerInfoCache;
+    	return cache == null ? reader.formatInfo() : cache.get(reader.getId(), reader, Reader::formatInfo);
+    }
+    
+    /**
+     * Returns the current time of the library's clock.
+     *
+     * @return the time, in epoch milliseconds
+     */
+    public long currentTime() {
+    	return clock.millis();
+    }
+    
+    /**
+     * Returns the latencies and outcomes of operations, and the catalog gauges.
+     *
+     * @return the metrics of the library
+     */
+    public Metrics getMetrics() {
+    	return metrics;
+    }
+    
+    /**
+     * Formats a message to the output sink and flushes it.
+     * Skips formatting when the sink discards output.
+     *
+     * @param format the message format
+     * @param args   the message arguments
+     */
+    private void report(String format, Object... args) {
+    	if (output.isEnabled()) {
+    		output.print(String.format(format, args));
+    		output.flush();
+    	}
+    }
+    
+    /**
+     * Prints already formatted text to the output sink and flushes it.
+     *
+     * @param text the text, or null to print nothing
+     */
+    private void show(String text) {
+    	if (text != null && output.isEnabled()) {
+    		output.print(text);
+    		output.flush();
+    	}
+    }
+    
+    // Persistence Methods
+    
+    /**
+     * Attaches the journal that records every successful mutation.
+     *
+     * @param journal the journal, or null to stop recording
+     */
+    void setJournal(Journal journal) {
+    	this.journal = journal;
+    }
+    
+    /**
+     * Attaches the bus receiving an event for every successful mutation.
+     * Events are published while the changed record is locked, so the events of one book
+     * or reader are numbered in the order its changes were made. A change waits for room on
+     * the bus before it takes the lock, so a lagging event log never holds the lock up.
+     *
+     * @param events the event bus, or null to stop publishing
+     */
+    public void setEventBus(EventBus events) {
+    	this.events = events;
+    }
+    
+    /**
+     * Waits, before a change takes a record's lock, until the event bus can take the events
+     * the change publishes without waiting for a BLOCK subscriber such as the event log.
+     *
+     * @param count the most events the change publishes
+     */
+    private void awaitEvents(int count) {
+    	EventBus bus = events;
+    	if (bus != null) {
+    		bus.awaitCapacity(count);
+    	}
+    }
+    
+    /**
+     * Attaches the history receiving every completed loan when its book is returned.
+     * Loans completed while restoring the library are already in the history and are not added again.
+     *
+     * @param history the loan history, or null to stop recording
+     */
+    public void setLoanHistory(LoanHistory history) {
+    	this.history = history;
+    }
+    
+    /**
+     * Returns the history of completed loans.
+     *
+     * @return the loan history, or null if loans are forgotten once returned
+     */
+    public LoanHistory getLoanHistory() {
+    	return history;
+    }
+    
+    /**
+     * Waits until a journal record is on disk, if the library is persisted.
+     *
+     * @param entry the sequence number of the record, or 0 if nothing was recorded
+     */
+    private void commit(long entry) {
+    	if (journal != null && Thread.currentThread() != batchingThread) {
+    		journal.commit(entry);
+    	}
+    }
+    
+    /**
+     * Sets the thread whose changes are made durable in batches by calling commitBatch,
+     * instead of each change waiting for the disk.
+     *
+     * @param thread the batching thread, or null to commit every change
+     */
+    void setBatchingThread(Thread thread) {
+    	batchingThread = thread;
+    }
+    
+    /**
+     * Waits until every change of the batching thread is on disk, if the library is persisted.
+     */
+    void commitBatch() {
+    	if (journal != null) {
+    		journal.commit(journal.lastSequence());
+    	}
+    }
+    
+    /**
+     * Returns whether the library is shared between threads. Only a concurrent library's
+     * books and readers can be read by another thread while they change.
+     *
+     * @return whether the library is concurrent
+     */
+    boolean isConcurrent() {
+    	return concurrent;
+    }
+    
+    /**
+     * Returns every book, for snapshots.
+     *
+     * @return a live view of the books
+     */
+    Iterable<Book> allBooks() {
+    	return books;
+    }
+    
+    /**
+     * Returns every reader, for snapshots.
+     *
+     * @return a live view of the readers
+     */
+    Collection<Reader> allReaders() {
+    	return readers.values();
+    }
+    
+    /**
+     * Looks up a book while restoring the library or grouping its loans, without counting it in the metrics.
+     *
+     * @param ISBN the ISBN of the book
+     * @return the book, or null if not found
+     */
+    Book findBook(String ISBN) {
+    	return books.get(ISBN);
+    }
+    
+    /**
+     * Looks up a reader while restoring the library, without counting it in the metrics.
+     *
+     * @param readerId the ID of the reader
+     * @return the reader, or null if not found
+     */
+    Reader findReader(String readerId) {
+    	return readers.get(readerId);
+    }
+    
+    /**
+     * Puts a restored book into the library without recording it.
+     * A replaced book keeps its loans and holds. Like the other restore methods, takes the
+     * book's lock, so a replica can apply its primary's changes while serving reads.
+     *
+     * @param book the restored book
+     */
+    void putBook(Book book) {
+    	synchronized (lockFor(book.getISBN())) {
+    		Book old = books.get(book.getISBN());
+    		if (old != null) {
+    			searchIndex.remove(old);
+    		}
+    		Holding holding = circulation.get(book.getISBN());
+    		if (holding != null && holding.getCopies() != book.getCopies()) {
+    			if (holding.canSetCopies(book.getCopies())) {
+    				holding.setCopies(book.getCopies());
+    			} else {
+    				book.setCopies(holding.getCopies());
+    			}
+    		}
+    		book.setAvailableCopies(holding == null ? book.getCopies() : holding.getAvailable());
+    		books.put(book);
+    		bookChanged(book);
+    		listing.addBook(book.getISBN());
+    		searchIndex.add(book);
+    	}
+    }
+    
+    /**
+     * Sets the number of copies of a restored book, without recording it.
+     * The change is skipped if a withdrawn copy is on loan, which only a snapshot taken
+     * while the library changed can record; the journal replayed after it repeats the change.
+     *
+     * @param ISBN   the ISBN of the book
+     * @param copies the number of copies
+     */
+    void restoreCopies(String ISBN, int copies) {
+    	synchronized (lockFor(ISBN)) {
+    		Book book = books.get(ISBN);
+    		if (book == null) {
+    			return;
+    		}
+    		Holding holding = circulation.get(ISBN);
+    		if (holding == null) {
+    			book.setCopies(copies);
+    			book.setAvailableCopies(copies);
+    			books.update(book);
+    			bookChanged(book);
+    		} else if (holding.canSetCopies(copies)) {
+    			holding.setCopies(copies);
+    			book.setCopies(copies);
+    			updateCirculation(book, holding);
+    		}
+    	}
+    }
+    
+    /**
+     * Restores the loan of a copy, without recording it.
+     * A loan of the same reader is replaced, and a hold of the reader is fulfilled.
+     * Loans restored from data written before copies were numbered take any free copy, and
+     * loans restored from data written before due dates were kept start now.
+     *
+     * @param loan the restored loan, with copy 0 if unknown and due time 0 if unknown
+     */
+    void restoreLoan(Loan loan) {
+    	synchronized (lockFor(loan.getISBN())) {
+    		Book book = books.get(loan.getISBN());
+    		if (book == null) {
+    			return;
+    		}
+    		String readerId = loan.getReaderId();
+    		Holding holding = circulation.holdingOf(book);
+    		circulation.removeLoan(holding, readerId);
+    		if (holding.removeHold(readerId)) {
+    			circulation.trackHold(readerId, book.getISBN(), false);
+    		}
+    		int copy = holding.take(loan.getCopy()) ? loan.getCopy() : holding.take();
+    		if (copy != 0) {
+    			Loan restored = loan.getDueTime() == 0
+    					? newLoan(readerId, book.getISBN(), copy)
+    					: new Loan(book.getISBN(), copy, readerId, loan.getCheckoutTime(), loan.getDueTime());
+    			circulation.addLoan(holding, restored);
+    			circulation.loanCarried(restored);
+    		}
+    		updateCirculation(book, holding);
+    	}
+    }
+    
+    /**
+     * Restores the return of a copy, without recording it.
+     *
+     * @param ISBN     the ISBN of the book
+     * @param readerId the ID of the returning reader, or null to return any copy,
+     *                 as recorded before copies were numbered
+     */
+    void restoreReturn(String ISBN, String readerId) {
+    	synchronized (lockFor(ISBN)) {
+    		Book book = books.get(ISBN);
+    		Holding holding = circulation.get(ISBN);
+    		if (book == null || holding == null) {
+    			return;
+    		}
+    		if (readerId == null && !holding.getLoans().isEmpty()) {
+    			readerId = holding.getLoans().iterator().next().getReaderId();
+    		}
+    		if (readerId != null) {
+    			circulation.removeLoan(holding, readerId);
+    		}
+    		updateCirculation(book, holding);
+    	}
+    }
+    
+    /**
+     * Restores a reader joining or leaving the hold queue of a book, without recording it.
+     *
+     * @param ISBN     the ISBN of the book
+     * @param readerId the ID of the reader
+     * @param waiting  whether the reader joins rather than leaves the queue
+     */
+    void restoreHold(String ISBN, String readerId, boolean waiting) {
+    	synchronized (lockFor(ISBN)) {
+    		Book book = books.get(ISBN);
+    		if (book == null || (waiting && readers.get(readerId) == null)) {
+    			return;
+    		}
+    		Holding holding = waiting ? circulation.holdingOf(book) : circulation.get(ISBN);
+    		if (holding == null) {
+    			return;
+    		}
+    		boolean changed = waiting ? holding.addHold(readerId) : holding.removeHold(readerId);
+    		if (changed) {
+    			circulation.trackHold(readerId, ISBN, waiting);
+    		}
+    		updateCirculation(book, holding);
+    	}
+    }
+    
+    /**
+     * Removes a book while restoring the library, without recording it.
+     *
+     * @param ISBN the ISBN of the book
+     */
+    void dropBook(String ISBN) {
+    	synchronized (lockFor(ISBN)) {
+    		Book book = books.remove(ISBN);
+    		if (book != null) {
+    			bookRemoved(ISBN);
+    			listing.removeBook(ISBN);
+    			searchIndex.remove(book);
+    			circulation.drop(ISBN);
+    		}
+    	}
+    }
+    
+    /**
+     * Puts a restored reader into the library without recording it.
+     *
+     * @param reader the restored reader
+     */
+    void putReader(Reader reader) {
+    	Reader old = readers.put(reader.getId(), reader);
+    	if (old != null) {
+    		old.markRemoved();
+    		readerIndex.remove(old);
+    	}
+    	readerIndex.add(reader);
+    	readerChanged(reader);
+    	listing.addReader(reader.getId());
+    }
+    
+    /**
+     * Removes a reader while restoring the library, without recording it.
+     *
+     * @param readerId the ID of the reader
+     */
+    void dropReader(String readerId) {
+    	Reader reader = readers.remove(readerId);
+    	if (reader != null) {
+    		reader.markRemoved();
+    		readerIndex.remove(reader);
+    		readerRemoved(readerId);
+    		listing.removeReader(readerId);
+    		for (String ISBN : getHolds(readerId)) {
+    			restoreHold(ISBN, readerId, false);
+    		}
+    	}
+    }
+    
+    /**
+     * Removes every book and reader without recording it, before a replica reloads
+     * the library from a snapshot of its primary.
+     */
+    void dropAll() {
+    	for (String ISBN : new ArrayList<String>(listing.getISBNs())) {
+    		dropBook(ISBN);
+    	}
+    	for (String readerId : new ArrayList<String>(listing.getReaderIds())) {
+    		dropReader(readerId);
+    	}
+    }
+    
+    // Book-related Methods
+    
+    /**
+     * Searches for a book in the library based on its ISBN.
+     *
+     * @param ISBN the ISBN of the book to search for
+     * @return the book with the specified ISBN, or null if not found
+     */
+    public Book searchBookByISBN(String ISBN) {
+    	// Look up the ISBN index, null if not found
+    	long start = metrics.start();
+    	CatalogSnapshot view = snapshot.get();
+        Book book = view != null ? view.getBook(ISBN) : books.get(ISBN);
+        metrics.record(Operation.SEARCH_BOOK, start, book == null ? Outcome.BOOK_NOT_FOUND : Outcome.SUCCESS);
+        return book;
+    }
+    
+    /**
+     * Adds a book with a single copy to the library.
+     * Shows an error message if a book with the same ISBN already exists.
+     *
+     * @param ISBN            the ISBN of the book
+     * @param title           the title of the book
+     * @param author          the author of the book
+     * @param publicationYear the publication year of the book
+     * @return SUCCESS or DUPLICATE_BOOK
+     */
+    public Outcome addBook(String ISBN, String title, String author, int publicationYear) {
+    	return addBook(ISBN, title, author, publicationYear, 1);
+    }
+    
+    /**
+     * Adds a book to the library with a number of copies.
+     * Shows an error message if a book with the same ISBN already exists.
+     *
+     * @param ISBN            the ISBN of the book
+     * @param title           the title of the book
+     * @param author          the author of the book
+     * @param publicationYear the publication year of the book
+     * @param copies          the number of copies, from 1 to Book.MAX_COPIES
+     * @return SUCCESS or DUPLICATE_BOOK
+     * @throws IllegalArgumentException if copies is less than 1 or more than Book.MAX_COPIES
+     */
+    public Outcome addBook(String ISBN, String title, String author, int publicationYear, int copies) {
+    	Book book = new Book(title, author, ISBN, publicationYear, copies);
+    	long start = metrics.start();
+    	long entry = 0;
+    	awaitEvents(1);
+    	synchronized (lockFor(ISBN)) {
+    		if (books.contains(ISBN)) {
+    			report("Book ISBN %s failed to add. There is the same book in the system.\n", ISBN);
+    			return metrics.record(Operation.ADD_BOOK, start, Outcome.DUPLICATE_BOOK);
+    		}
+    		books.put(book);
+    		bookChanged(book);
+    		listing.addBook(ISBN);
+    		searchIndex.add(book);
+    		if (journal != null) {
+    			entry = journal.logAddBook(book);
+    		}
+    		if (events != null) {
+    			events.publishBook(EventType.BOOK_ADDED, clock.millis(), book);
+    		}
+    	}
+    	commit(entry);
+        report("Book ISBN %s added successfully.\n", ISBN);
+        return metrics.record(Operation.ADD_BOOK, start, Outcome.SUCCESS);
+    }
+    
+    /**
+     * Adds many books to the library at once, without showing a message per book.
+     * Books whose ISBN is already in the library are not added.
+     * The whole batch is made durable together.
+     *
+     * @param newBooks the books to add
+     * @return the books that were not added because their ISBN already exists
+     */
+    public List<Book> addBooks(List<Book> newBooks) {
+    	List<Book> rejected = new ArrayList<Book>();
+    	long entry = 0;
+    	for (Book book : newBooks) {
+    		awaitEvents(1);
+    		synchronized (lockFor(book.getISBN())) {
+    			if (books.contains(book.getISBN())) {
+    				rejected.add(book);
+    				continue;
+    			}
+    			books.put(book);
+    			bookChanged(book);
+    			listing.addBook(book.getISBN());
+    			searchIndex.add(book);
+    			if (journal != null) {
+    				entry = journal.logAddBook(book);
+    			}
+    			if (events != null) {
+    				events.publishBook(EventType.BOOK_ADDED, clock.millis(), book);
+    			}
+    		}
+    	}
+    	commit(entry);
+    	return rejected;
+    }
+    
+    /**
+     * Removes a book from the library based on its ISBN.
+     * Shows an error message if the book is not found.
+     *
+     * @param ISBN the ISBN of the book to remove
+     * @return SUCCESS or BOOK_NOT_FOUND
+     */
+    public Outcome removeBook(String ISBN) {
+        long start = metrics.start();
+        long entry = 0;
+        awaitEvents(1);
+        synchronized (lockFor(ISBN)) {
+        	Book book = books.remove(ISBN);
+        	if (book == null) {
+        		report("Book ISBN %s not found.\n", ISBN);
+        		return metrics.record(Operation.REMOVE_BOOK, start, Outcome.BOOK_NOT_FOUND);
+        	}
+        	bookRemoved(ISBN);
+        	listing.removeBook(ISBN);
+        	searchIndex.remove(book);
+        	// Drop the loans and holds of the book, so readers do not keep dangling ones
+        	circulation.drop(ISBN);
+        	if (journal != null) {
+        		entry = journal.logRemoveBook(ISBN);
+        	}
+        	if (events != null) {
+        		events.publishRemoval(EventType.BOOK_REMOVED, clock.millis(), ISBN);
+        	}
+        }
+        commit(entry);
+        report("Book ISBN %s removed successfully.\n", ISBN);
+        return metrics.record(Operation.REMOVE_BOOK, start, Outcome.SUCCESS);
+    }
+
+    /**
+     * Updates the information of a book in the library based on its ISBN.
+     * Shows an error message if the book is not found.
+     *
+     * @param ISBN              the ISBN of the book to update
+     * @param title             the updated title of the book
+     * @param author            the updated author of the book
+     * @param publicationYear   the updated publication year of the book
+     * @return SUCCESS or BOOK_NOT_FOUND
+     */
+    public Outcome updateBook(String ISBN, String title, String author, int publicationYear) {
+    	long start = metrics.start();
+    	long entry = 0;
+    	awaitEvents(1);
+    	synchronized (lockFor(ISBN)) {
+    		Book book = books.get(ISBN);
+    		if (book == null) {
+    			report("Book ISBN %s not found.\n", ISBN);
+    			return metrics.record(Operation.UPDATE_BOOK, start, Outcome.BOOK_NOT_FOUND);
+    		}
+    		// Re-index the book under its new title and author
+    		searchIndex.remove(book);
+    		book.updateInfo(title, author, publicationYear);
+    		books.update(book);
+    		bookChanged(book);
+    		searchIndex.add(book);
+    		if (journal != null) {
+    			entry = journal.logUpdateBook(book);
+    		}
+    		if (events != null) {
+    			events.publishBook(EventType.BOOK_UPDATED, clock.millis(), book);
+    		}
+    	}
+    	commit(entry);
+        report("Book ISBN %s updated successfully.", ISBN);
+        return metrics.record(Operation.UPDATE_BOOK, start, Outcome.SUCCESS);
+    }
+    
+    /**
+     * Changes the number of copies of a book in the library.
+     * New copies go to waiting readers first. Withdrawn copies are the highest-numbered ones,
+     * and must not be on loan.
+     * Shows an error message if the book is not found or a withdrawn copy is on loan.
+     *
+     * @param ISBN   the ISBN of the book
+     * @param copies the new number of copies, from 1 to Book.MAX_COPIES
+     * @return SUCCESS, BOOK_NOT_FOUND or COPIES_ON_LOAN
+     * @throws IllegalArgumentException if copies is less than 1 or more than Book.MAX_COPIES
+     */
+    public Outcome setCopies(String ISBN, int copies) {
+    	Book.checkCopies(copies);
+    	long start = metrics.start();
+    	long[] entry = new long[1];
+    	// New copies may each go to a waiting reader
+    	awaitEvents(1 + copies);
+    	synchronized (lockFor(ISBN)) {
+    		Book book = books.get(ISBN);
+    		if (book == null) {
+    			report("Book ISBN %s not found.\n", ISBN);
+    			return metrics.record(Operation.SET_COPIES, start, Outcome.BOOK_NOT_FOUND);
+    		}
+    		Holding holding = circulation.get(ISBN);
+    		if (holding != null && !holding.canSetCopies(copies)) {
+    			report("Book ISBN %s has a copy above %d on loan.\n", ISBN, copies);
+    			return metrics.record(Operation.SET_COPIES, start, Outcome.COPIES_ON_LOAN);
+    		}
+    		book.setCopies(copies);
+    		if (journal != null) {
+    			entry[0] = journal.logSetCopies(ISBN, copies);
+    		}
+    		if (events != null) {
+    			events.publishCopies(clock.millis(), ISBN, copies);
+    		}
+    		if (holding == null) {
+    			book.setAvailableCopies(copies);
+    			books.update(book);
+    			bookChanged(book);
+    		} else {
+    			holding.setCopies(copies);
+    			handOff(book, holding, entry);
+    			updateCirculation(book, holding);
+    		}
+    	}
+    	commit(entry[0]);
+    	report("Book ISBN %s now has %d copies.\n", ISBN, copies);
+    	return metrics.record(Operation.SET_COPIES, start, Outcome.SUCCESS);
+    }
+
+    /**
+     * Searches for books whose title or author contains every word of a query.
+     * A word ending with '*' matches any word starting with it.
+     *
+     * @param query the words to search for
+     * @param limit the maximum number of books to return
+     * @return the best matching books, best first
+     */
+    public List<Book> searchBooks(String query, int limit) {
+    	long start = metrics.start();
+    	List<Book> results = new ArrayList<Book>();
+    	CatalogSnapshot view = snapshot.get();
+    	for (String ISBN : searchIndex.search(query, limit)) {
+    		Book book = view != null ? view.getBook(ISBN) : books.get(ISBN);
+    		// Skip books removed since the search
+    		if (book != null) {
+    			results.add(book);
+    		}
+    	}
+    	metrics.record(Operation.SEARCH_BOOKS, start, results.isEmpty() ? Outcome.BOOK_NOT_FOUND : Outcome.SUCCESS);
+    	return results;
+    }
+    
+    /**
+     * Displays information for the books best matching a word search.
+     * Shows an error message if no book matches.
+     *
+     * @param query the words to search for
+     * @param limit the maximum number of books to display
+     */
+    public void displaySearchResults(String query, int limit) {
+    	if (!output.isEnabled()) {
+    		return;
+    	}
+    	List<Book> results = searchBooks(query, limit);
+    	output.print(CatalogListing.SEPARATOR);
+    	if (results.isEmpty()) {
+    		report("No books match \"%s\".\n", query);
+    		return;
+    	}
+    	CatalogListing.print(output, results, this::formatInfo);
+    }
+
+    /**
+     * Returns a lazy stream over the books of the library, in listing order.
+     * Books are read from the store as the stream is consumed.
+     *
+     * @return the stream of books
+     */
+    public Stream<Book> streamBooks() {
+    	CatalogSnapshot view = snapshot.get();
+    	return StreamSupport.stream(view != null ? view.books().spliterator() : books.spliterator(), false);
+    }
+    
+    /**
+     * Lists one page of the books matching a filter, in ISBN order.
+     *
+     * @param filter   the filter the books must match
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param pageSize the maximum number of books on the page
+     * @return the page of books and the cursor of the next page
+     */
+    public Page<Book> listBooks(BookFilter filter, String cursor, int pageSize) {
+    	CatalogSnapshot view = snapshot.get();
+    	if (view != null) {
+    		return view.listBooks(filter, cursor, pageSize);
+    	}
+    	return listing.listBooks(books, filter, cursor, pageSize);
+    }
+    
+    /**
+     * Displays information for one page of the books matching a filter, in ISBN order.
+     * Shows an error message if the first page is empty.
+     *
+     * @param filter   the filter the books must match
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param pageSize the maximum number of books on the page
+     * @return the cursor of the next page, or null if there are no more books
+     */
+    public String displayBooksPage(BookFilter filter, String cursor, int pageSize) {
+    	Page<Book> page = listBooks(filter, cursor, pageSize);
+    	if (cursor == null) {
+    		output.print(CatalogListing.SEPARATOR);
+    	}
+    	if (cursor == null && page.getItems().isEmpty()) {
+    		report("No books in the system.\n");
+    		return null;
+    	}
+    	CatalogListing.print(output, page.getItems(), this::formatInfo);
+    	return page.getNextCursor();
+    }
+
+    /**
+     * Displays information for all books in the library.
+     * Shows an error message if there are no books in the library.
+     */
+    public void displayAllBooksInfo() {
+    	if (!output.isEnabled()) {
+    		return;
+    	}
+    	output.print(CatalogListing.SEPARATOR);
+    	// List one snapshot, if enabled, so the listing is consistent while books are borrowed
+    	CatalogSnapshot view = snapshot.get();
+        if (view != null ? view.getBookCount() == 0 : books.size() == 0) {
+            report("No books in the system.\n");
+            return;
+        }
+        CatalogListing.print(output, view != null ? view.books() : books, this::formatInfo);
+    }
+
+    /**
+     * Displays information for a book in the library based on its ISBN.
+     * Shows an error message if the book is not found.
+     *
+     * @param ISBN the ISBN of the book to display information for
+     * @return SUCCESS or BOOK_NOT_FOUND
+     */
+    public Outcome displayBookInfo(String ISBN) {
+    	String info;
+    	CatalogSnapshot view = snapshot.get();
+    	if (view != null) {
+    		// Snapshot books never change, so no lock is needed
+    		Book book = view.getBook(ISBN);
+    		if (book == null) {
+    			report("Book ISBN %s not found.\n", ISBN);
+    			return Outcome.BOOK_NOT_FOUND;
+    		}
+    		show(output.isEnabled() ? formatInfo(book) : null);
+    		return Outcome.SUCCESS;
+    	}
+    	synchronized (lockFor(ISBN)) {
+    		if (!output.isEnabled()) {
+    			info = books.contains(ISBN) ? "" : null;
+    		} else if (bookInfoCache == null) {
+    			// The store formats its own fields, so a mapped store builds no Book
+    			info = books.formatInfo(ISBN);
+    		} else {
+    			Book book = books.get(ISBN);
+    			info = book == null ? null : formatInfo(book);
+    		}
+    	}
+    	if (info == null) {
+    		report("Book ISBN %s not found.\n", ISBN);
+    		return Outcome.BOOK_NOT_FOUND;
+    	}
+    	show(info);
+    	return Outcome.SUCCESS;
+    }
+    
+    // Reader-related methods
+    
+    /**
+     * Searches for a reader in the library based on their ID.
+     *
+     * @param readerId the ID of the reader to search for
+     * @return the reader with the specified ID, or null if not found
+     */
+    public Reader searchReaderById(String readerId) {
+    	long start = metrics.start();
+    	CatalogSnapshot view = snapshot.get();
+        Reader reader = view != null ? view.getReader(readerId) : readers.get(readerId);
+        metrics.record(Operation.SEARCH_READER, start, reader == null ? Outcome.READER_NOT_FOUND : Outcome.SUCCESS);
+        return reader;
+    }
+
+    /**
+     * Finds readers from the start of their name, of a word of their name, or of their contact,
+     * ignoring case and accents. Readers matching exactly come first; for three or more
+     * characters, readers within one typing mistake of the text follow.
+     *
+     * @param text  the typed start of a name or contact
+     * @param limit the maximum number of readers to return
+     * @return the matching readers, best first
+     */
+    public List<Reader> findReaders(String text, int limit) {
+    	long start = metrics.start();
+    	List<Reader> results = new ArrayList<Reader>();
+    	CatalogSnapshot view = snapshot.get();
+    	for (String readerId : readerIndex.complete(text, limit)) {
+    		Reader reader = view != null ? view.getReader(readerId) : readers.get(readerId);
+    		// Skip readers removed since the lookup
+    		if (reader != null) {
+    			results.add(reader);
+    		}
+    	}
+    	metrics.record(Operation.FIND_READERS, start, results.isEmpty() ? Outcome.READER_NOT_FOUND : Outcome.SUCCESS);
+    	return results;
+    }
+
+    /**
+     * Adds a reader to the library.
+     * Shows an error message if a reader with the same ID already exists.
+     *
+     * @param readerId  the ID of the reader
+     * @param name  	the name of the reader
+     * @param contact 	the contact of the reader
+     * @return SUCCESS or DUPLICATE_READER
+     */
+    public Outcome addReader(String readerId, String name, String contact) {
+    	long start = metrics.start();
+    	long entry = 0;
+    	awaitEvents(1);
+    	synchronized (lockFor(readerId)) {
+    		if (readers.containsKey(readerId)) {
+    			report("Reader ID %s failed to add. There is the same reader in the system.\n", readerId);
+    			return metrics.record(Operation.ADD_READER, start, Outcome.DUPLICATE_READER);
+    		}
+    		Reader reader = new Reader(readerId, name, contact);
+    		readers.put(readerId, reader);
+    		readerIndex.add(reader);
+    		readerChanged(reader);
+    		listing.addReader(readerId);
+    		if (journal != null) {
+    			entry = journal.logAddReader(reader);
+    		}
+    		if (events != null) {
+    			events.publishReader(clock.millis(), reader);
+    		}
+    	}
+    	commit(entry);
+        report("Reader ID %s added successfully.\n", readerId);
+        return metrics.record(Operation.ADD_READER, start, Outcome.SUCCESS);
+    }
+
+    /**
+     * Adds many readers to the library at once, without showing a message per reader.
+     * Readers whose ID is already in the library are not added.
+     * The whole batch is made durable together.
+     *
+     * @param newReaders the readers to add
+     * @return the readers that were not added because their ID already exists
+     */
+    public List<Reader> addReaders(List<Reader> newReaders) {
+    	List<Reader> rejected = new ArrayList<Reader>();
+    	long entry = 0;
+    	for (Reader reader : newReaders) {
+    		awaitEvents(1);
+    		synchronized (lockFor(reader.getId())) {
+    			if (readers.containsKey(reader.getId())) {
+    				rejected.add(reader);
+    				continue;
+    			}
+    			readers.put(reader.getId(), reader);
+    			readerIndex.add(reader);
+    			readerChanged(reader);
+    			listing.addReader(reader.getId());
+    			if (journal != null) {
+    				entry = journal.logAddReader(reader);
+    			}
+    			if (events != null) {
+    				events.publishReader(clock.millis(), reader);
+    			}
+    		}
+    	}
+    	commit(entry);
+    	return rejected;
+    }
+
+    /**
+     * Removes a reader from the library based on their ID.
+     * Shows an error message if the reader is not found, or if the reader still has borrowed books.
+     *
+     * @param readerId the ID of the reader to remove
+     * @return SUCCESS, READER_NOT_FOUND or READER_HAS_LOANS
+     */
+    public Outcome removeReader(String readerId) {
+    	return removeReader(readerId, false);
     }
     
-    // Book-related Methods
+    /**
+     * Removes a reader from the library based on their ID.
+     * A reader who still has borrowed books is either refused, or has every book returned first.
+     * Shows an error message if the reader is not found or is refused.
+     *
+     * @param readerId the ID of the reader to remove
+     * @param cascade  whether to return the reader's borrowed books instead of refusing
+     * @return SUCCESS, READER_NOT_FOUND or READER_HAS_LOANS
+     */
+    public Outcome removeReader(String readerId, boolean cascade) {
+    	long start = metrics.start();
+    	Reader reader = readers.get(readerId);
+    	if (reader != null && cascade) {
+    		// Return each borrowed book under its own lock
+    		long[] returned = new long[1];
+    		for (String ISBN : getLoans(readerId)) {
+    			awaitEvents(2);
+    			synchronized (lockFor(ISBN)) {
+    				returnLocked(reader, ISBN, returned);
+    			}
+    		}
+    		commit(returned[0]);
+    	}
+    	
+    	long entry = 0;
+    	awaitEvents(1);
+    	synchronized (lockFor(readerId)) {
+    		Reader removed = readers.get(readerId);
+    		if (removed == null) {
+    			report("Reader ID %s not found.\n", readerId);
+    			return metrics.record(Operation.REMOVE_READER, start, Outcome.READER_NOT_FOUND);
+    		}
+    		// Mark the reader in the same update of its loans entry that a borrow makes,
+    		// so no borrow under a book's lock can add a loan once the check has passed
+    		int borrowed = circulation.markRemoved(removed);
+    		if (borrowed > 0) {
+    			report("Reader ID %s still has %d borrowed book(s) and cannot be removed.\n", readerId, borrowed);
+    			return metrics.record(Operation.REMOVE_READER, start, Outcome.READER_HAS_LOANS);
+    		}
+    		readerIndex.remove(readers.remove(readerId));
+    		readerRemoved(readerId);
+    		listing.removeReader(readerId);
+    		if (journal != null) {
+    			entry = journal.logRemoveReader(readerId);
+    		}
+    		if (events != null) {
+    			events.publishRemoval(EventType.READER_REMOVED, clock.millis(), readerId);
+    		}
+    	}
+    	commit(entry);
+    	// Leave the hold queues once marked; a hold placed concurrently is either seen here or refused
+    	Set<String> waiting = circulation.getHoldsOfRemoved(readerId);
+    	if (!waiting.isEmpty()) {
+    		long[] cancelled = new long[1];
+    		for (String ISBN : waiting) {
+    			awaitEvents(2);
+    			synchronized (lockFor(ISBN)) {
+    				cancelLocked(readerId, ISBN, cancelled);
+    			}
+    		}
+    		commit(cancelled[0]);
+    	}
+        report("Reader ID %s removed successfully.\n", readerId);
+        return metrics.record(Operation.REMOVE_READER, start, Outcome.SUCCESS);
+    }
     
     /**
-     * Searches for a book in the library based on its ISBN.
+     * Returns the ISBNs of the books a reader has borrowed.
      *
-     * @param ISBN the ISBN of the book to search for
-     * @return the book with the specified ISBN, or null if not found
+     * @param readerId the ID of the reader
+     * @return a copy of the reader's borrowed ISBNs, empty if there are none
      */
-    public Book searchBookByISBN(String ISBN) {
-    	// Iterate books
-        for (Book book : books) {
-        	// Return the book if found
-            if (book.getISBN().equals(ISBN)) {
-            	return book;
-            }
-        }
-        // Return null if not found
-        return null;
+    public Set<String> getLoans(String readerId) {
+    	return circulation.getLoans(readerId);
     }
     
     /**
-     * Adds a book to the library.
-     * Shows an error message if a book with the same ISBN already exists.
+     * Displays information for the books a reader has borrowed.
+     * Shows an error message if the reader is not found or has no borrowed books.
      *
-     * @param ISBN            the ISBN of the book
-     * @param title           the title of the book
-     * @param author          the author of the book
-     * @param publicationYear the publication year of the book
+     * @param readerId the ID of the reader
+     * @return SUCCESS or READER_NOT_FOUND
      */
-    public void addBook(String ISBN, String title, String author, int publicationYear) {
-    	Book book = searchBookByISBN(ISBN);
-    	if (book != null) {
-        	System.out.printf("Book ISBN %s failed to add. There is the same book in the system.\n", ISBN);
-        	return;
+    public Outcome displayReaderLoans(String readerId) {
+    	if (readers.get(readerId) == null) {
+    		report("Reader ID %s not found.\n", readerId);
+    		return Outcome.READER_NOT_FOUND;
+    	}
+    	Set<String> borrowed = getLoans(readerId);
+    	if (borrowed.isEmpty()) {
+    		report("Reader ID %s has no borrowed books.\n", readerId);
+    		return Outcome.SUCCESS;
     	}
-        book = new Book(title, author, ISBN, publicationYear);
-        books.add(book);
-        System.out.printf("Book ISBN %s added successfully.\n", ISBN);
+    	if (output.isEnabled()) {
+    		List<Book> borrowedBooks = new ArrayList<Book>(borrowed.size());
+    		for (String ISBN : borrowed) {
+    			Book book = books.get(ISBN);
+    			if (book != null) {
+    				borrowedBooks.add(book);
+    			}
+    		}
+    		output.print(CatalogListing.SEPARATOR);
+    		CatalogListing.print(output, borrowedBooks, this::formatInfo);
+    	}
+    	return Outcome.SUCCESS;
     }
     
     /**
-     * Removes a book from the library based on its ISBN.
-     * Shows an error message if the book is not found.
+     * Returns the ISBNs of the books a reader is waiting for.
      *
-     * @param ISBN the ISBN of the book to remove
+     * @param readerId the ID of the reader
+     * @return a copy of the ISBNs, empty if there are none
      */
-    public void removeBook(String ISBN) {
-        Book book = searchBookByISBN(ISBN);
-        if (book == null) {
-        	System.out.printf("Book ISBN %s not found.\n", ISBN);
-        	return;
-        }
-        books.remove(book);
-        System.out.printf("Book ISBN %s removed successfully.\n", ISBN);
+    public Set<String> getHolds(String readerId) {
+    	return circulation.getHolds(readerId);
     }
-
+    
     /**
-     * Updates the information of a book in the library based on its ISBN.
-     * Shows an error message if the book is not found.
+     * Returns the loans of the copies of a book, with their checkout and due times.
      *
-     * @param ISBN              the ISBN of the book to update
-     * @param title             the updated title of the book
-     * @param author            the updated author of the book
-     * @param publicationYear   the updated publication year of the book
+     * @param ISBN the ISBN of the book
+     * @return a copy of the loans, empty if no copy is on loan
      */
-    public void updateBook(String ISBN, String title, String author, int publicationYear) {
-        Book book = searchBookByISBN(ISBN);
-        if (book == null) {
-        	System.out.printf("Book ISBN %s not found.\n", ISBN);
-        	return;
-        }
-        book.updateInfo(title, author, publicationYear);
-        System.out.printf("Book ISBN %s updated successfully.", ISBN);
+    public List<Loan> getCopyLoans(String ISBN) {
+    	synchronized (lockFor(ISBN)) {
+    		return circulation.getCopyLoans(ISBN);
+    	}
     }
-
+    
     /**
-     * Displays information for all books in the library.
-     * Shows an error message if there are no books in the library.
+     * Returns the readers waiting for a copy of a book.
+     *
+     * @param ISBN the ISBN of the book
+     * @return a copy of the reader IDs, longest-waiting first
      */
-    public void displayAllBooksInfo() {
-    	System.out.println("--------------------");
-        if (books.isEmpty()) {
-            System.out.println("No books in the system.");
-            return;
-        }
-        for (Book book : books) {
-            book.displayInfo();
-            System.out.println("--------------------");
-        }
+    public List<String> getHoldQueue(String ISBN) {
+    	synchronized (lockFor(ISBN)) {
+    		return circulation.getHoldQueue(ISBN);
+    	}
     }
-
+    
     /**
-     * Displays information for a book in the library based on its ISBN.
-     * Shows an error message if the book is not found.
+     * Returns the loans overdue as of now, most overdue first.
+     * Costs O(log n + k) for k loans returned, however many books are on loan.
      *
-     * @param ISBN the ISBN of the book to display information for
+     * @param limit the maximum number of loans to return
+     * @return the overdue loans
      */
-    public void displayBookInfo(String ISBN) {
-        Book book = searchBookByISBN(ISBN);
-        if (book == null) {
-        	System.out.printf("Book ISBN %s not found.\n", ISBN);
-        	return;
-        }
-        book.displayInfo();
+    public List<Loan> getOverdueLoans(int limit) {
+    	return circulation.getOverdueLoans(clock.millis(), limit);
     }
     
-    // Reader-related methods
+    /**
+     * Returns the loans next to become overdue, soonest due first.
+     * Costs O(log n + k) for k loans returned, however many books are on loan.
+     *
+     * @param count the maximum number of loans to return
+     * @return the loans not yet overdue
+     */
+    public List<Loan> getNextDueLoans(int count) {
+    	return circulation.getNextDueLoans(clock.millis(), count);
+    }
     
     /**
-     * Searches for a reader in the library based on their ID.
+     * Returns the loans ordered after a given loan by due time and due before a time.
      *
-     * @param readerId the ID of the reader to search for
-     * @return the reader with the specified ID, or null if not found
+     * @param after the loan to continue after, exclusive
+     * @param to    the latest due time, in epoch milliseconds (exclusive)
+     * @param limit the maximum number of loans to return
+     * @return the loans, earliest due first
      */
-    public Reader searchReaderById(String readerId) {
-        for (Reader reader : readers) {
-            if (reader.getId().equals(readerId)) {
-                return reader;
-            }
-        }
-        return null;
+    List<Loan> getLoansDueAfter(Loan after, long to, int limit) {
+    	return circulation.getLoansDueAfter(after, to, limit);
     }
-
+    
     /**
-     * Adds a reader to the library.
-     * Shows an error message if a reader with the same ID already exists.
+     * Returns whether a loan is still active.
      *
-     * @param readerId  the ID of the reader
-     * @param name  	the name of the reader
-     * @param contact 	the contact of the reader
+     * @param loan the loan
+     * @return whether the loan is in the due-time index
      */
-    public void addReader(String readerId, String name, String contact) {
-    	Reader reader = searchReaderById(readerId);
-    	if (reader != null) {
-        	System.out.printf("Reader ID %s failed to add. There is the same reader in the system.\n", readerId);
-        	return;
+    boolean isOnLoan(Loan loan) {
+    	return circulation.isOnLoan(loan);
+    }
+    
+    /**
+     * Registers a listener notified of each loan restored or transferred with its own due
+     * time, after the loan is in the due-time index. Such a loan may be due before loans
+     * already swept for overdue ones.
+     *
+     * @param listener the listener, called while the loan's book is locked
+     */
+    void addCarriedLoanListener(Consumer<Loan> listener) {
+    	circulation.addCarriedLoanListener(listener);
+    }
+    
+    /**
+     * Unregisters a listener registered by addCarriedLoanListener.
+     *
+     * @param listener the listener
+     */
+    void removeCarriedLoanListener(Consumer<Loan> listener) {
+    	circulation.removeCarriedLoanListener(listener);
+    }
+    
+    /**
+     * Displays the loans overdue as of now, most overdue first.
+     * Shows a message if no loan is overdue.
+     *
+     * @param limit the maximum number of loans to display
+     */
+    public void displayOverdueLoans(int limit) {
+    	if (!output.isEnabled()) {
+    		return;
+    	}
+    	List<Loan> overdue = getOverdueLoans(limit);
+    	if (overdue.isEmpty()) {
+    		report("No books are overdue.\n");
+    		return;
+    	}
+    	for (Loan loan : overdue) {
+    		output.print(loan.formatInfo());
     	}
-        reader = new Reader(readerId, name, contact);
-        readers.add(reader);
-        System.out.printf("Reader ID %s added successfully.\n", readerId);
+    	output.flush();
     }
-
+    
     /**
-     * Removes a reader from the library based on their ID.
-     * Shows an error message if the reader is not found.
+     * Creates a loan starting now and lasting the loan period.
      *
-     * @param readerId the ID of the reader to remove
+     * @param readerId the ID of the borrowing reader
+     * @param ISBN     the ISBN of the borrowed book
+     * @param copy     the number of the borrowed copy
+     * @return the loan
      */
-    public void removeReader(String readerId) {
-    	Reader reader = searchReaderById(readerId);
-        if (reader == null) {
-        	System.out.printf("Reader ID %s not found.\n", readerId);
-        	return;
-        }
-        readers.remove(reader);
-        System.out.printf("Reader ID %s removed successfully.\n", readerId);
+    private Loan newLoan(String readerId, String ISBN, int copy) {
+    	long now = clock.millis();
+    	return new Loan(ISBN, copy, readerId, now, now + loanPeriod.toMillis());
+    }
+    
+    /**
+     * Stores the number of available copies of a book, and takes the book out of
+     * circulation once its holding is idle. The caller must hold the book's lock.
+     *
+     * @param book    the book
+     * @param holding the holding of the book
+     */
+    private void updateCirculation(Book book, Holding holding) {
+    	book.setAvailableCopies(holding.getAvailable());
+    	books.update(book);
+    	bookChanged(book);
+    	circulation.release(holding);
+    }
+    
+    /**
+     * Lends free copies of a book to the readers waiting for it, longest-waiting first.
+     * Readers removed since they placed their hold are skipped.
+     * The caller must hold the book's lock.
+     *
+     * @param book    the book
+     * @param holding the holding of the book
+     * @param entry   receives the journal sequence number of the last loan recorded
+     */
+    private void handOff(Book book, Holding holding, long[] entry) {
+    	String readerId;
+    	while (holding.getAvailable() > 0 && (readerId = holding.pollHold()) != null) {
+    		circulation.trackHold(readerId, book.getISBN(), false);
+    		Reader reader = readers.get(readerId);
+    		if (reader == null || holding.getLoan(readerId) != null) {
+    			continue;
+    		}
+    		Loan loan = newLoan(reader.getId(), book.getISBN(), holding.take());
+    		if (!circulation.addLoan(holding, loan, reader)) {
+    			continue;
+    		}
+    		if (journal != null) {
+    			entry[0] = journal.logBorrow(loan);
+    		}
+    		if (events != null) {
+    			events.publishLoan(EventType.BOOK_BORROWED, loan.getCheckoutTime(), loan);
+    		}
+    		report("Book ISBN %s copy %d is now borrowed by Reader ID %s, who was waiting for it.\n",
+    				book.getISBN(), loan.getCopy(), readerId);
+    	}
+    }
+    
+    /**
+     * Returns a lazy stream over the readers of the library, in listing order.
+     *
+     * @return the stream of readers
+     */
+    public Stream<Reader> streamReaders() {
+    	CatalogSnapshot view = snapshot.get();
+    	return view != null ? StreamSupport.stream(view.readers().spliterator(), false) : readers.values().stream();
+    }
+    
+    /**
+     * Lists one page of the readers, in ID order.
+     *
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param pageSize the maximum number of readers on the page
+     * @return the page of readers and the cursor of the next page
+     */
+    public Page<Reader> listReaders(String cursor, int pageSize) {
+    	CatalogSnapshot view = snapshot.get();
+    	if (view != null) {
+    		return view.listReaders(cursor, pageSize);
+    	}
+    	return listing.listReaders(readers, cursor, pageSize);
+    }
+    
+    /**
+     * Displays information for one page of the readers, in ID order.
+     * Shows an error message if the first page is empty.
+     *
+     * @param cursor   the cursor returned with the previous page, or null for the first page
+     * @param pageSize the maximum number of readers on the page
+     * @return the cursor of the next page, or null if there are no more readers
+     */
+    public String displayReadersPage(String cursor, int pageSize) {
+    	Page<Reader> page = listReaders(cursor, pageSize);
+    	if (cursor == null && page.getItems().isEmpty()) {
+    		report("No readers in the system.\n");
+    		return null;
+    	}
+    	CatalogListing.print(output, page.getItems(), this::formatInfo);
+    	return page.getNextCursor();
     }
 
     /**
@@ -184,13 +1614,14 @@ public class Library {
      * Shows an error message if there are no readers in the library.
      */
     public void displayAllReadersInfo() {
-        if (readers.isEmpty()) {
-            System.out.println("No readers in the system.");
+    	if (!output.isEnabled()) {
+    		return;
+    	}
+    	CatalogSnapshot view = snapshot.get();
+        if (view != null ? view.getReaderCount() == 0 : readers.isEmpty()) {
+            report("No readers in the system.\n");
         } else {
-            for (Reader reader : readers) {
-                reader.displayInfo();
-                System.out.println("--------------------");
-            }
+            CatalogListing.print(output, view != null ? view.readers() : readers.values(), this::formatInfo);
         }
     }
 
@@ -199,14 +1630,39 @@ public class Library {
      * Shows an error message if the reader is not found.
      *
      * @param readerId the ID of the reader to display information for
+     * @return SUCCESS or READER_NOT_FOUND
      */
-    public void displayReaderInfo(String readerId) {
-    	Reader reader = searchReaderById(readerId);
+    public Outcome displayReaderInfo(String readerId) {
+    	CatalogSnapshot view = snapshot.get();
+    	Reader reader = view != null ? view.getReader(readerId) : readers.get(readerId);
         if (reader == null) {
-        	System.out.printf("Reader ID %s not found.\n", readerId);
-        	return;
+        	report("Reader ID %s not found.\n", readerId);
+        	return Outcome.READER_NOT_FOUND;
         }
-        reader.displayInfo();
+        if (output.isEnabled()) {
+        	show(formatInfo(reader));
+        }
+        return Outcome.SUCCESS;
+    }
+
+    /**
+     * Displays information for the readers best matching the start of a name or contact.
+     * Shows an error message if no reader matches.
+     *
+     * @param text  the typed start of a name or contact
+     * @param limit the maximum number of readers to display
+     */
+    public void displayMatchingReaders(String text, int limit) {
+    	if (!output.isEnabled()) {
+    		return;
+    	}
+    	List<Reader> results = findReaders(text, limit);
+    	output.print(CatalogListing.SEPARATOR);
+    	if (results.isEmpty()) {
+    		report("No readers match \"%s\".\n", text);
+    		return;
+    	}
+    	CatalogListing.print(output, results, this::formatInfo);
     }
 
     // Borrow and Return Methods
@@ -217,31 +1673,50 @@ public class Library {
      *
      * @param readerId the ID of the reader returning the book
      * @param ISBN the ISBN of the book to return
+     * @return SUCCESS, READER_NOT_FOUND, BOOK_NOT_FOUND, ALREADY_BORROWED if no copy is free,
+     *         or ALREADY_HAS_COPY if one is but the reader already has a copy
      */
-    public void borrowBook(String readerId, String ISBN) {
+    public Outcome borrowBook(String readerId, String ISBN) {
     	
-    	// Search the corresponding reader and book by input
-        Reader reader = searchReaderById(readerId);
-        Book book = searchBookByISBN(ISBN);
+    	// Search the corresponding reader by input
+        long start = metrics.start();
+        Reader reader = readers.get(readerId);
         
-        // Show error message if reader not found
+        // Check and update the book while holding its lock, so two readers cannot borrow it at once
+        Outcome outcome;
+        long[] entry = new long[1];
         if (reader == null) {
-            System.out.printf("Reader ID %s not found.\n", readerId);
-            
-        // Show error message if book not found
-        } else if (book == null) {
-            System.out.printf("Book ISBN %s not found.\n", ISBN);
-            
-        // Show error message if the book is being borrowed 
-        } else if (book.getAvailabilityStatus().equals("borrowed")) {
-            System.out.printf("Book ISBN %s is not available for borrowing.\n", ISBN);
-            
-        // Otherwise, update book status and association, and show successful message
+        	outcome = Outcome.READER_NOT_FOUND;
         } else {
-            book.setAvailabilityStatus("borrowed");
-            book.setAssociation(readerId);
-            System.out.printf("Book ISBN %s is now borrowed by Reader ID %s\n", ISBN, readerId);
+        	awaitEvents(1);
+        	synchronized (lockFor(ISBN)) {
+        		outcome = borrowLocked(reader, ISBN, entry);
+        	}
+        }
+        
+        switch (outcome) {
+        // Show error message if reader not found
+        case READER_NOT_FOUND:
+            report("Reader ID %s not found.\n", readerId);
+            break;
+        // Show error message if book not found
+        case BOOK_NOT_FOUND:
+        	report("Book ISBN %s not found.\n", ISBN);
+        	break;
+        // Show error message if every copy is being borrowed 
+        case ALREADY_BORROWED:
+        	report("Book ISBN %s is not available for borrowing.\n", ISBN);
+        	break;
+        // Show error message if the reader already has a copy
+        case ALREADY_HAS_COPY:
+        	report("Reader ID %s already has a copy of Book ISBN %s.\n", readerId, ISBN);
+        	break;
+        // Otherwise, make the loan durable, and show successful message
+        default:
+        	commit(entry[0]);
+        	report("Book ISBN %s is now borrowed by Reader ID %s\n", ISBN, readerId);
         }
+        return metrics.record(Operation.BORROW, start, outcome);
     }
     
     /**
@@ -250,35 +1725,453 @@ public class Library {
      *
      * @param readerId the ID of the reader returning the book
      * @param ISBN the ISBN of the book to return
+     * @return SUCCESS, READER_NOT_FOUND, BOOK_NOT_FOUND, ALREADY_RETURNED or NOT_BORROWED_BY_READER
      */
-    public void returnBook(String readerId, String ISBN) {
+    public Outcome returnBook(String readerId, String ISBN) {
     	
-    	// Search the corresponding reader and book by input
-    	Reader reader = searchReaderById(readerId);
-        Book book = searchBookByISBN(ISBN);
+    	// Search the corresponding reader by input
+    	long start = metrics.start();
+    	Reader reader = readers.get(readerId);
         
-        // Show error message if reader not found
+        // Check and update the book while holding its lock, so a return cannot race a borrow
+        Outcome outcome;
+        long[] entry = new long[1];
         if (reader == null) {
-        	System.out.printf("Reader ID %s not found.\n", readerId);
-        	
-        // Show error message if book not found
-        } else if (book == null) {
-            System.out.printf("Book ISBN %s not found.\n", ISBN);
-            
-        // Show error message if the book is not being borrowed 
-        } else if (book.getAvailabilityStatus().equals("available")) {
-            System.out.printf("Book ISBN %s is already returned.\n", ISBN);
-            
-        // Show error message if the book is not being borrowed by another person            	
-        } else if (book.getAvailabilityStatus().equals("borrowed") && !book.getAssociation().equals(readerId)) {
-        	System.out.printf("Book ISBN %s is not borrowed by %s.\n", ISBN, readerId);
-        	
-        // Otherwise, update book status and association, and show successful message
+        	outcome = Outcome.READER_NOT_FOUND;
         } else {
-            book.setAvailabilityStatus("available");
-            book.setAssociation("no association");
-            System.out.printf("Reader ID %s returned Book ISBN %s successfully.\n", readerId, ISBN);
+        	awaitEvents(2);
+        	synchronized (lockFor(ISBN)) {
+        		outcome = returnLocked(reader, ISBN, entry);
+        	}
         }
         
-    }    
+        switch (outcome) {
+        // Show error message if reader not found
+        case READER_NOT_FOUND:
+        	report("Reader ID %s not found.\n", readerId);
+        	break;
+        // Show error message if book not found
+        case BOOK_NOT_FOUND:
+        	report("Book ISBN %s not found.\n", ISBN);
+        	break;
+        // Show error message if the book is not being borrowed 
+        case ALREADY_RETURNED:
+        	report("Book ISBN %s is already returned.\n", ISBN);
+        	break;
+        // Show error message if the book is being borrowed by another person
+        case NOT_BORROWED_BY_READER:
+        	report("Book ISBN %s is not borrowed by %s.\n", ISBN, readerId);
+        	break;
+        // Otherwise, make the return durable, and show successful message
+        default:
+        	commit(entry[0]);
+        	report("Reader ID %s returned Book ISBN %s successfully.\n", readerId, ISBN);
+        }
+        return metrics.record(Operation.RETURN, start, outcome);
+    }
+    
+    /**
+     * Adds a reader to the hold queue of a book whose copies are all on loan.
+     * The next returned copy goes to the longest-waiting reader.
+     * Shows an error message if the book or reader is not found, if a copy is available,
+     * or if the reader already has a copy or is already waiting.
+     *
+     * @param readerId the ID of the waiting reader
+     * @param ISBN     the ISBN of the book
+     * @return SUCCESS, READER_NOT_FOUND, BOOK_NOT_FOUND, ALREADY_HAS_COPY, COPY_AVAILABLE or ALREADY_ON_HOLD
+     */
+    public Outcome placeHold(String readerId, String ISBN) {
+    	long start = metrics.start();
+    	Reader reader = readers.get(readerId);
+    	Outcome outcome;
+    	long[] entry = new long[1];
+    	if (reader == null) {
+    		outcome = Outcome.READER_NOT_FOUND;
+    	} else {
+    		awaitEvents(2);
+    		synchronized (lockFor(ISBN)) {
+    			outcome = holdLocked(reader, ISBN, entry);
+    		}
+    	}
+    	
+    	switch (outcome) {
+    	case READER_NOT_FOUND:
+    		report("Reader ID %s not found.\n", readerId);
+    		break;
+    	case BOOK_NOT_FOUND:
+    		report("Book ISBN %s not found.\n", ISBN);
+    		break;
+    	case ALREADY_HAS_COPY:
+    		report("Reader ID %s already has a copy of Book ISBN %s.\n", readerId, ISBN);
+    		break;
+    	case COPY_AVAILABLE:
+    		report("Book ISBN %s has a copy available for borrowing.\n", ISBN);
+    		break;
+    	case ALREADY_ON_HOLD:
+    		report("Reader ID %s is already waiting for Book ISBN %s.\n", readerId, ISBN);
+    		break;
+    	default:
+    		commit(entry[0]);
+    		report("Reader ID %s is now waiting for Book ISBN %s\n", readerId, ISBN);
+    	}
+    	return metrics.record(Operation.PLACE_HOLD, start, outcome);
+    }
+    
+    /**
+     * Removes a reader from the hold queue of a book.
+     * Shows an error message if the book or reader is not found, or if the reader is not waiting.
+     *
+     * @param readerId the ID of the waiting reader
+     * @param ISBN     the ISBN of the book
+     * @return SUCCESS, READER_NOT_FOUND, BOOK_NOT_FOUND or NOT_ON_HOLD
+     */
+    public Outcome cancelHold(String readerId, String ISBN) {
+    	long start = metrics.start();
+    	Outcome outcome;
+    	long[] entry = new long[1];
+    	if (readers.get(readerId) == null) {
+    		outcome = Outcome.READER_NOT_FOUND;
+    	} else {
+    		awaitEvents(2);
+    		synchronized (lockFor(ISBN)) {
+    			outcome = !books.contains(ISBN) ? Outcome.BOOK_NOT_FOUND : cancelLocked(readerId, ISBN, entry);
+    		}
+    	}
+    	
+    	switch (outcome) {
+    	case READER_NOT_FOUND:
+    		report("Reader ID %s not found.\n", readerId);
+    		break;
+    	case BOOK_NOT_FOUND:
+    		report("Book ISBN %s not found.\n", ISBN);
+    		break;
+    	case NOT_ON_HOLD:
+    		report("Reader ID %s is not waiting for Book ISBN %s.\n", readerId, ISBN);
+    		break;
+    	default:
+    		commit(entry[0]);
+    		report("Reader ID %s is no longer waiting for Book ISBN %s.\n", readerId, ISBN);
+    	}
+    	return metrics.record(Operation.CANCEL_HOLD, start, outcome);
+    }
+    
+    /**
+     * Lends a copy of a book with the checkout and due times of a loan made elsewhere,
+     * as when a book moves to another shard of a cluster. The loan keeps its copy if that
+     * copy is free here.
+     *
+     * @param loan the loan to carry over
+     * @return SUCCESS, READER_NOT_FOUND, BOOK_NOT_FOUND, ALREADY_HAS_COPY or ALREADY_BORROWED
+     */
+    public Outcome transferLoan(Loan loan) {
+    	long start = metrics.start();
+    	Reader reader = readers.get(loan.getReaderId());
+    	Outcome outcome;
+    	long[] entry = new long[1];
+    	if (reader == null) {
+    		outcome = Outcome.READER_NOT_FOUND;
+    	} else {
+    		awaitEvents(1);
+    		synchronized (lockFor(loan.getISBN())) {
+    			outcome = transferLocked(reader, loan, entry);
+    		}
+    	}
+    	if (outcome == Outcome.SUCCESS) {
+    		commit(entry[0]);
+    	}
+    	return metrics.record(Operation.TRANSFER_LOAN, start, outcome);
+    }
+    
+    /**
+     * Borrows many books at once, without showing a message per book.
+     * Each distinct reader is looked up once, each lock stripe is taken once, and the
+     * whole batch is made durable together. Pairs for the same book apply in order.
+     *
+     * @param readerIds the IDs of the borrowing readers
+     * @param ISBNs     the ISBNs of the books, paired with readerIds by position
+     * @return the outcome of each pair, by position
+     */
+    public Outcome[] borrowBatch(String[] readerIds, String[] ISBNs) {
+    	long start = metrics.start();
+    	return metrics.record(Operation.BORROW_BATCH, start, applyBatch(readerIds, ISBNs, true));
+    }
+    
+    /**
+     * Returns many books at once, without showing a message per book.
+     * Each distinct reader is looked up once, each lock stripe is taken once, and the
+     * whole batch is made durable together. Pairs for the same book apply in order.
+     *
+     * @param readerIds the IDs of the returning readers
+     * @param ISBNs     the ISBNs of the books, paired with readerIds by position
+     * @return the outcome of each pair, by position
+     */
+    public Outcome[] returnBatch(String[] readerIds, String[] ISBNs) {
+    	long start = metrics.start();
+    	return metrics.record(Operation.RETURN_BATCH, start, applyBatch(readerIds, ISBNs, false));
+    }
+    
+    /**
+     * Borrows or returns many books at once.
+     *
+     * @param readerIds the IDs of the readers
+     * @param ISBNs     the ISBNs of the books, paired with readerIds by position
+     * @param borrow    whether to borrow rather than return the books
+     * @return the outcome of each pair, by position
+     */
+    private Outcome[] applyBatch(String[] readerIds, String[] ISBNs, boolean borrow) {
+    	if (readerIds.length != ISBNs.length) {
+    		throw new IllegalArgumentException("Batch has " + readerIds.length + " readers but " + ISBNs.length + " books");
+    	}
+    	Outcome[] outcomes = new Outcome[ISBNs.length];
+    	
+    	// Look up each distinct reader once
+    	Map<String, Reader> batchReaders = new HashMap<String, Reader>();
+    	Reader[] pairReaders = new Reader[readerIds.length];
+    	for (int i = 0; i < readerIds.length; i++) {
+    		Reader reader = batchReaders.get(readerIds[i]);
+    		if (reader == null && !batchReaders.containsKey(readerIds[i])) {
+    			reader = readers.get(readerIds[i]);
+    			batchReaders.put(readerIds[i], reader);
+    		}
+    		pairReaders[i] = reader;
+    	}
+    	
+    	// Order the pairs by lock stripe, keeping input order within a stripe
+    	int[] stripeStarts = new int[LOCK_STRIPES + 1];
+    	int[] stripes = new int[ISBNs.length];
+    	for (int i = 0; i < ISBNs.length; i++) {
+    		stripes[i] = stripeOf(ISBNs[i]);
+    		stripeStarts[stripes[i] + 1]++;
+    	}
+    	for (int stripe = 0; stripe < LOCK_STRIPES; stripe++) {
+    		stripeStarts[stripe + 1] += stripeStarts[stripe];
+    	}
+    	int[] order = new int[ISBNs.length];
+    	int[] next = Arrays.copyOf(stripeStarts, LOCK_STRIPES);
+    	for (int i = 0; i < ISBNs.length; i++) {
+    		order[next[stripes[i]]++] = i;
+    	}
+    	
+    	// Apply the pairs of each stripe under a single lock acquisition
+    	boolean changed = false;
+    	long[] entry = new long[1];
+    	for (int stripe = 0; stripe < LOCK_STRIPES; stripe++) {
+    		if (stripeStarts[stripe] == stripeStarts[stripe + 1]) {
+    			continue;
+    		}
+    		awaitEvents(2 * (stripeStarts[stripe + 1] - stripeStarts[stripe]));
+    		synchronized (locks[stripe]) {
+    			for (int k = stripeStarts[stripe]; k < stripeStarts[stripe + 1]; k++) {
+    				int i = order[k];
+    				if (pairReaders[i] == null) {
+    					outcomes[i] = Outcome.READER_NOT_FOUND;
+    				} else if (borrow) {
+    					outcomes[i] = borrowLocked(pairReaders[i], ISBNs[i], entry);
+    				} else {
+    					outcomes[i] = returnLocked(pairReaders[i], ISBNs[i], entry);
+    				}
+    				changed |= outcomes[i] == Outcome.SUCCESS;
+    			}
+    		}
+    	}
+    	
+    	// Make the whole batch durable together
+    	if (changed) {
+    		commit(entry[0]);
+    	}
+    	return outcomes;
+    }
+    
+    /**
+     * Borrows a copy of a book for a reader. The caller must hold the book's lock.
+     * A book with no free copy is ALREADY_BORROWED even to a reader holding one of its copies,
+     * as a single-copy book always was; ALREADY_HAS_COPY is only reported while another copy is free.
+     *
+     * @param reader the borrowing reader
+     * @param ISBN   the ISBN of the book
+     * @param entry  receives the journal sequence number of the last record written
+     * @return SUCCESS, BOOK_NOT_FOUND, ALREADY_BORROWED or ALREADY_HAS_COPY
+     */
+    private Outcome borrowLocked(Reader reader, String ISBN, long[] entry) {
+    	Book book = books.get(ISBN);
+    	if (book == null) {
+    		return Outcome.BOOK_NOT_FOUND;
+    	}
+    	// Free copies only remain while nobody is waiting, as returns go to the hold queue first
+    	Holding holding = circulation.get(ISBN);
+    	if (holding != null && holding.getAvailable() == 0) {
+    		return Outcome.ALREADY_BORROWED;
+    	}
+    	if (holding != null && holding.getLoan(reader.getId()) != null) {
+    		return Outcome.ALREADY_HAS_COPY;
+    	}
+    	// The reader may have been removed since it was looked up
+    	if (readers.get(reader.getId()) != reader) {
+    		return Outcome.READER_NOT_FOUND;
+    	}
+    	
+    	// Lend the copy on top of the free stack, due back after the loan period
+    	if (holding == null) {
+    		holding = circulation.holdingOf(book);
+    	}
+    	Loan loan = newLoan(reader.getId(), ISBN, holding.take());
+    	if (!circulation.addLoan(holding, loan, reader)) {
+    		return Outcome.READER_NOT_FOUND;
+    	}
+    	updateCirculation(book, holding);
+    	if (journal != null) {
+    		entry[0] = journal.logBorrow(loan);
+    	}
+    	if (events != null) {
+    		events.publishLoan(EventType.BOOK_BORROWED, loan.getCheckoutTime(), loan);
+    	}
+    	return Outcome.SUCCESS;
+    }
+    
+    /**
+     * Lends a copy of a book with the times of a loan made elsewhere. The caller must hold the book's lock.
+     *
+     * @param reader the borrowing reader
+     * @param loan   the loan to carry over
+     * @param entry  receives the journal sequence number of the last record written
+     * @return SUCCESS, BOOK_NOT_FOUND, ALREADY_HAS_COPY, ALREADY_BORROWED or READER_NOT_FOUND
+     */
+    private Outcome transferLocked(Reader reader, Loan loan, long[] entry) {
+    	String ISBN = loan.getISBN();
+    	Book book = books.get(ISBN);
+    	if (book == null) {
+    		return Outcome.BOOK_NOT_FOUND;
+    	}
+    	// Checked in the same order as a borrow
+    	Holding holding = circulation.get(ISBN);
+    	if (holding != null && holding.getAvailable() == 0) {
+    		return Outcome.ALREADY_BORROWED;
+    	}
+    	if (holding != null && holding.getLoan(reader.getId()) != null) {
+    		return Outcome.ALREADY_HAS_COPY;
+    	}
+    	if (readers.get(reader.getId()) != reader) {
+    		return Outcome.READER_NOT_FOUND;
+    	}
+    	
+    	if (holding == null) {
+    		holding = circulation.holdingOf(book);
+    	}
+    	int copy = holding.take(loan.getCopy()) ? loan.getCopy() : holding.take();
+    	Loan transferred = new Loan(ISBN, copy, reader.getId(), loan.getCheckoutTime(), loan.getDueTime());
+    	if (!circulation.addLoan(holding, transferred, reader)) {
+    		return Outcome.READER_NOT_FOUND;
+    	}
+    	circulation.loanCarried(transferred);
+    	updateCirculation(book, holding);
+    	if (journal != null) {
+    		entry[0] = journal.logBorrow(transferred);
+    	}
+    	if (events != null) {
+    		events.publishLoan(EventType.BOOK_BORROWED, clock.millis(), transferred);
+    	}
+    	return Outcome.SUCCESS;
+    }
+    
+    /**
+     * Returns a reader's copy of a book, lending it to the next waiting reader if any.
+     * The caller must hold the book's lock.
+     *
+     * @param reader the returning reader
+     * @param ISBN   the ISBN of the book
+     * @param entry  receives the journal sequence number of the last record written
+     * @return SUCCESS, BOOK_NOT_FOUND, ALREADY_RETURNED or NOT_BORROWED_BY_READER
+     */
+    private Outcome returnLocked(Reader reader, String ISBN, long[] entry) {
+    	Book book = books.get(ISBN);
+    	if (book == null) {
+    		return Outcome.BOOK_NOT_FOUND;
+    	}
+    	Holding holding = circulation.get(ISBN);
+    	if (holding == null || holding.getLoans().isEmpty()) {
+    		return Outcome.ALREADY_RETURNED;
+    	}
+    	if (holding.getLoan(reader.getId()) == null) {
+    		return Outcome.NOT_BORROWED_BY_READER;
+    	}
+    	
+    	// Put the copy back, then hand it straight to the head of the hold queue
+    	Loan loan = circulation.removeLoan(holding, reader.getId());
+    	if (journal != null) {
+    		entry[0] = journal.logReturn(ISBN, reader.getId());
+    	}
+    	if (events != null) {
+    		events.publishLoan(EventType.BOOK_RETURNED, clock.millis(), loan);
+    	}
+    	LoanHistory completed = history;
+    	if (completed != null) {
+    		completed.append(ISBN, loan.getReaderId(), loan.getCheckoutTime(), clock.millis());
+    	}
+    	handOff(book, holding, entry);
+    	updateCirculation(book, holding);
+    	return Outcome.SUCCESS;
+    }
+    
+    /**
+     * Adds a reader to the hold queue of a book. The caller must hold the book's lock.
+     *
+     * @param reader the waiting reader
+     * @param ISBN   the ISBN of the book
+     * @param entry  receives the journal sequence number of the last record written
+     * @return SUCCESS, BOOK_NOT_FOUND, ALREADY_HAS_COPY, COPY_AVAILABLE, READER_NOT_FOUND or ALREADY_ON_HOLD
+     */
+    private Outcome holdLocked(Reader reader, String ISBN, long[] entry) {
+    	Book book = books.get(ISBN);
+    	if (book == null) {
+    		return Outcome.BOOK_NOT_FOUND;
+    	}
+    	Holding holding = circulation.get(ISBN);
+    	if (holding != null && holding.getLoan(reader.getId()) != null) {
+    		return Outcome.ALREADY_HAS_COPY;
+    	}
+    	if (holding == null || holding.getAvailable() > 0) {
+    		return Outcome.COPY_AVAILABLE;
+    	}
+    	if (readers.get(reader.getId()) != reader) {
+    		return Outcome.READER_NOT_FOUND;
+    	}
+    	if (!holding.addHold(reader.getId())) {
+    		return Outcome.ALREADY_ON_HOLD;
+    	}
+    	if (!circulation.addHold(reader, ISBN)) {
+    		holding.removeHold(reader.getId());
+    		return Outcome.READER_NOT_FOUND;
+    	}
+    	if (journal != null) {
+    		entry[0] = journal.logHold(ISBN, reader.getId());
+    	}
+    	if (events != null) {
+    		events.publishHold(EventType.HOLD_PLACED, clock.millis(), ISBN, reader.getId());
+    	}
+    	return Outcome.SUCCESS;
+    }
+    
+    /**
+     * Removes a reader from the hold queue of a book. The caller must hold the book's lock.
+     *
+     * @param readerId the ID of the reader
+     * @param ISBN     the ISBN of the book
+     * @param entry    receives the journal sequence number of the last record written
+     * @return SUCCESS or NOT_ON_HOLD
+     */
+    private Outcome cancelLocked(String readerId, String ISBN, long[] entry) {
+    	Holding holding = circulation.get(ISBN);
+    	if (holding == null || !holding.removeHold(readerId)) {
+    		return Outcome.NOT_ON_HOLD;
+    	}
+    	circulation.trackHold(readerId, ISBN, false);
+    	circulation.release(holding);
+    	if (journal != null) {
+    		entry[0] = journal.logCancelHold(ISBN, readerId);
+    	}
+    	if (events != null) {
+    		events.publishHold(EventType.HOLD_CANCELLED, clock.millis(), ISBN, readerId);
+    	}
+    	return Outcome.SUCCESS;
+    }
 }
@@ -0,0 +1,651 @@
+package library;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures the throughput of every Library operation.
+ * Each benchmark runs against a freshly populated concurrent library for every
+ * combination of catalog size and thread count, with a warm-up period before the
+ * measured period. Lookups miss the catalog with probability 1 - hit ratio.
+ * Results are printed as a table and written as JSON for comparing releases.
+ *
+ * Usage: java library.LibraryBenchmark [--sizes 10000,100000] [--threads 1,4]
+ *        [--hit-ratio 0.9] [--seconds 2] [--metrics on|off] [--events off|bus|log]
+ *        [--snapshots on|off] [--cache n] [--journal on|off] [--only name,...] [--output results.json]
+ * Comparing runs with metrics on and off shows the overhead of recording them. With events
+ * on the bus, every mutation is published to one subscriber; with the log, also to an event log.
+ * The readMostly benchmark makes one change per 99 lookups and listings; comparing it with
+ * snapshots on and off shows the cost and benefit of lock-free snapshot reads.
+ * The zipfDisplay benchmark displays books and readers picked from a Zipfian distribution,
+ * borrowing or returning a popular book now and then; running it with --cache 10000 and
+ * without shows the hit ratio of the info caches and the bytes allocated per operation.
+ * The hotTitle benchmark has every thread contend for the copies of one book, and checks
+ * afterwards that no copy was lost or lent twice.
+ * The borrowConsole benchmark is borrowReturn with the library's messages written to a
+ * console sink on standard error rather than discarded by the silent sink, so the results
+ * table stays readable; redirect standard error to a file or /dev/null to leave the terminal out.
+ * The borrowLoop and borrowBatch benchmarks each lend and return the same number of random
+ * books per operation, one call per book and one batch call respectively; running them with
+ * --journal on also counts the commits the batches save.
+ */
+public class LibraryBenchmark {
+    
+    /**
+     * The names of the benchmarks, in the order they run.
+     */
+    private static final String[] BENCHMARKS = {
+        "addBook", "searchBookByISBN", "updateBook", "removeBook", "addReader", "searchReaderById",
+        "borrowReturn", "borrowConsole", "displayBookInfo", "displayReaderInfo", "displayBooksPage", "circulationMix", "hotTitle",
+        "readMostly", "zipfDisplay", "borrowLoop", "borrowBatch"
+    };
+    /**
+     * The number of books per reader in a populated library.
+     */
+    private static final int BOOKS_PER_READER = 10;
+    /**
+     * The ISBN of the book every thread contends for in the hotTitle benchmark.
+     */
+    private static final String HOT_ISBN = "hot-title";
+    /**
+     * The number of copies of the contended book.
+     */
+    private static final int HOT_COPIES = 16;
+    /**
+     * The number of readers each thread borrows the contended book for.
+     */
+    private static final int HOT_READERS_PER_THREAD = 64;
+    /**
+     * The exponent of the Zipfian distribution of displayed records; rank k is picked with
+     * probability proportional to 1 / k^ZIPF_EXPONENT.
+     */
+    private static final double ZIPF_EXPONENT = 0.99;
+    /**
+     * The number of books lent and returned per operation of the borrowLoop and borrowBatch benchmarks.
+     */
+    private static final int BATCH_SIZE = 32;
+    
+    /**
+     * A sink that accepts and discards text, so display benchmarks include formatting.
+     */
+    private static final OutputSink DISCARD = new OutputSink() {
+        @Override
+        public void print(String text) {
+        }
+        
+        @Override
+        public void flush() {
+        }
+    };
+    
+    /**
+     * One benchmark operation, run repeatedly by each thread.
+     */
+    private interface Operation {
+        /**
+         * Runs the operation once.
+         *
+         * @param random the thread's random source
+         * @param thread the index of the running thread
+         * @param step   the number of operations the thread has run so far
+         */
+        void run(ThreadLocalRandom random, int thread, long step);
+    }
+    
+    // Benchmark parameters
+    private final int size;
+    private final int threads;
+    private final double hitRatio;
+    private final Library library;
+    // Precomputed keys, so key formatting stays out of the measured operations
+    private final String[] ISBNs;
+    private final String[] missingISBNs;
+    private final String[] readerIds;
+    // The cumulative probabilities of the Zipfian ranks, built by the zipfDisplay benchmark
+    private double[] zipf;
+    // Operations run, bytes allocated by the workers, and cache hits and misses during the last period
+    private long operations;
+    private long allocatedBytes;
+    private long cacheHits;
+    private long cacheMisses;
+    // The event subscriber and log, when mutations are published
+    private EventSubscription subscriber;
+    private EventLog eventLog;
+    private Path eventDirectory;
+    // The journal recording every change, when the library is persisted
+    private Journal journal;
+    private Path journalDirectory;
+    
+    /**
+     * Constructs a benchmark run with a populated concurrent library.
+     *
+     * @param size     the number of books in the library
+     * @param threads  the number of threads running operations
+     * @param hitRatio the fraction of lookups that find a record
+     * @param metrics  whether the library records metrics
+     * @param events    "off", "bus" to publish mutations to a subscriber, or "log" to also log them
+     * @param snapshots whether lookups and listings read catalog snapshots
+     * @param cache     the number of books and readers whose displayed information is cached, or 0
+     * @param journaled whether every change is journaled to a temporary data directory
+     * @throws IOException if the event log or the journal cannot be created
+     */
+    private LibraryBenchmark(int size, int threads, double hitRatio, boolean metrics, String events, boolean snapshots,
+            int cache, boolean journaled) throws IOException {
+        this.size = size;
+        this.threads = threads;
+        this.hitRatio = hitRatio;
+        this.library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        library.getMetrics().setEnabled(metrics);
+        if (journaled) {
+            journalDirectory = Files.createTempDirectory("benchmark-journal");
+            journal = Journal.open(journalDirectory, library);
+        }
+        this.readerIds = new String[Math.max(1, size / BOOKS_PER_READER)];
+        List<Reader> readers = new ArrayList<Reader>();
+        for (int i = 0; i < readerIds.length; i++) {
+            readerIds[i] = "R" + i;
+            readers.add(new Reader(readerIds[i], "Reader " + i, "reader" + i + "@example.com"));
+        }
+        library.addReaders(readers);
+        this.ISBNs = new String[size];
+        this.missingISBNs = new String[size];
+        List<Book> books = new ArrayList<Book>();
+        for (int i = 0; i < size; i++) {
+            ISBNs[i] = String.format("978%010d", i);
+            missingISBNs[i] = "979" + ISBNs[i].substring(3);
+            books.add(new Book("Title " + i, "Author " + (i % 1000), ISBNs[i], 1900 + i % 125));
+        }
+        library.addBooks(books);
+        library.setSnapshotReads(snapshots);
+        library.setInfoCacheCapacity(cache);
+        
+        // Publish only the measured mutations, to a subscriber that keeps up with the ring
+        if (!events.equals("off")) {
+            EventBus bus = new EventBus();
+            if (events.equals("log")) {
+                eventDirectory = Files.createTempDirectory("benchmark-events");
+                eventLog = EventLog.open(eventDirectory, bus);
+            }
+            LongAdder received = new LongAdder();
+            subscriber = bus.subscribe("benchmark", BackPressure.OVERWRITE, event -> received.increment());
+            library.setEventBus(bus);
+        }
+    }
+    
+    /**
+     * Stops the event subscriber and deletes the event log and the journal, if they were used.
+     *
+     * @throws IOException if the event log or the journal cannot be closed or deleted
+     */
+    private void close() throws IOException {
+        if (subscriber != null) {
+            subscriber.close();
+        }
+        if (eventLog != null) {
+            eventLog.close();
+            Files.delete(eventDirectory.resolve("events.log"));
+            Files.delete(eventDirectory);
+        }
+        if (journal != null) {
+            journal.close();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(journalDirectory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(journalDirectory);
+        }
+    }
+    
+    /**
+     * Runs the benchmarks.
+     *
+     * @param args the command line options
+     * @throws Exception if a benchmark thread fails or the results cannot be written
+     */
+    public static void main(String[] args) throws Exception {
+        int[] sizes = { 10000, 100000 };
+        int[] threadCounts = { 1, Runtime.getRuntime().availableProcessors() };
+        double hitRatio = 0.9;
+        double seconds = 2;
+        boolean metrics = true;
+        String events = "off";
+        boolean snapshots = false;
+        int cache = 0;
+        boolean journaled = false;
+        List<String> only = null;
+        String output = "benchmark-results.json";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--sizes":
+                sizes = parseInts(args[i + 1]);
+                break;
+            case "--threads":
+                threadCounts = parseInts(args[i + 1]);
+                break;
+            case "--hit-ratio":
+                hitRatio = Double.parseDouble(args[i + 1]);
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            case "--metrics":
+                metrics = !args[i + 1].equals("off");
+                break;
+            case "--events":
+                events = args[i + 1];
+                if (!List.of("off", "bus", "log").contains(events)) {
+                    throw new IllegalArgumentException("Unknown events mode " + events);
+                }
+                break;
+            case "--snapshots":
+                snapshots = args[i + 1].equals("on");
+                break;
+            case "--cache":
+                cache = Integer.parseInt(args[i + 1]);
+                break;
+            case "--journal":
+                journaled = args[i + 1].equals("on");
+                break;
+            case "--only":
+                only = List.of(args[i + 1].split(","));
+                break;
+            case "--output":
+                output = args[i + 1];
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        
+        List<String> results = new ArrayList<String>();
+        System.out.printf("%-18s %10s %8s %16s %12s %10s %8s%n", "benchmark", "size", "threads", "ops/s", "ns/op",
+                "B/op", "hits");
+        for (String name : BENCHMARKS) {
+            if (only != null && !only.contains(name)) {
+                continue;
+            }
+            for (int size : sizes) {
+                for (int threads : threadCounts) {
+                    LibraryBenchmark benchmark = new LibraryBenchmark(size, threads, hitRatio, metrics, events, snapshots,
+                            cache, journaled);
+                    benchmark.measure(name, seconds / 2);
+                    double opsPerSecond = benchmark.measure(name, seconds);
+                    benchmark.verify(name);
+                    benchmark.close();
+                    double nsPerOp = 1e9 * threads / opsPerSecond;
+                    double bytesPerOp = (double) benchmark.allocatedBytes / benchmark.operations;
+                    long lookups = benchmark.cacheHits + benchmark.cacheMisses;
+                    double cacheHitRatio = lookups == 0 ? 0 : (double) benchmark.cacheHits / lookups;
+                    System.out.printf("%-18s %10d %8d %16.0f %12.1f %10.0f %8s%n", name, size, threads, opsPerSecond, nsPerOp,
+                            bytesPerOp, lookups == 0 ? "-" : String.format("%.1f%%", 100 * cacheHitRatio));
+                    results.add(String.format(Locale.ROOT,
+                            "  {\"benchmark\": \"%s\", \"size\": %d, \"threads\": %d, \"hitRatio\": %.3f, \"metrics\": %b, "
+                            + "\"events\": \"%s\", \"snapshots\": %b, \"cache\": %d, \"journal\": %b, \"opsPerSecond\": %.1f, \"nsPerOp\": %.1f, "
+                            + "\"bytesPerOp\": %.1f, \"cacheHitRatio\": %.4f}",
+                            name, size, threads, hitRatio, metrics, events, snapshots, cache, journaled, opsPerSecond, nsPerOp,
+                            bytesPerOp, cacheHitRatio));
+                }
+            }
+        }
+        
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(Paths.get(output), StandardCharsets.UTF_8))) {
+            out.println("[");
+            out.println(String.join(",\n", results));
+            out.println("]");
+        } catch (IOException e) {
+            System.out.printf("Failed to write %s: %s%n", output, e.getMessage());
+        }
+    }
+    
+    /**
+     * Runs a benchmark on every thread for a period of time, counting the bytes the threads
+     * allocate and the lookups of the book and reader info caches.
+     *
+     * @param name    the name of the benchmark
+     * @param seconds the length of the period
+     * @return the total operations per second across threads
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private double measure(String name, double seconds) throws InterruptedException {
+        final Operation operation = operation(name);
+        final long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong allocated = new AtomicLong();
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long hitsBefore = cacheHits(), missesBefore = cacheMisses();
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int thread = t;
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+                long step = 0;
+                // Check the clock every 256 operations to keep timing overhead out of the loop
+                do {
+                    for (int i = 0; i < 256; i++) {
+                        operation.run(random, thread, step++);
+                    }
+                } while (System.nanoTime() < deadline);
+                allocated.addAndGet(threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore);
+                total.addAndGet(step);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        double opsPerSecond = total.get() / ((System.nanoTime() - start) / 1e9);
+        operations = total.get();
+        allocatedBytes = allocated.get();
+        cacheHits = cacheHits() - hitsBefore;
+        cacheMisses = cacheMisses() - missesBefore;
+        return opsPerSecond;
+    }
+    
+    /**
+     * Returns the number of hits of the library's info caches so far.
+     *
+     * @return the hits of the book and reader info caches, or 0 if caching is off
+     */
+    private long cacheHits() {
+        RecordCache<String> books = library.getBookInfoCache();
+        RecordCache<String> readers = library.getReaderInfoCache();
+        return (books == null ? 0 : books.getHits()) + (readers == null ? 0 : readers.getHits());
+    }
+    
+    /**
+     * Returns the number of misses of the library's info caches so far.
+     *
+     * @return the misses of the book and reader info caches, or 0 if caching is off
+     */
+    private long cacheMisses() {
+        RecordCache<String> books = library.getBookInfoCache();
+        RecordCache<String> readers = library.getReaderInfoCache();
+        return (books == null ? 0 : books.getMisses()) + (readers == null ? 0 : readers.getMisses());
+    }
+    
+    /**
+     * Returns the operation of a benchmark.
+     *
+     * @param name the name of the benchmark
+     * @return the operation
+     */
+    private Operation operation(String name) {
+        switch (name) {
+        case "addBook":
+            // Each thread adds books under its own fresh keys
+            return (random, thread, step) -> library.addBook("new-" + thread + "-" + step + "-" + System.identityHashCode(this),
+                    "New Title", "New Author", 2000);
+        case "searchBookByISBN":
+            return (random, thread, step) -> library.searchBookByISBN(lookupISBN(random));
+        case "updateBook":
+            return (random, thread, step) -> library.updateBook(randomISBN(random),
+                    "Title " + step, "Author " + (step % 1000), 2000);
+        case "removeBook":
+            // Remove a book and put it back, keeping the catalog size stable
+            return (random, thread, step) -> {
+                String ISBN = randomISBN(random);
+                if (library.removeBook(ISBN) == Outcome.SUCCESS) {
+                    library.addBook(ISBN, "Title", "Author", 2000);
+                }
+            };
+        case "addReader":
+            return (random, thread, step) -> library.addReader("new-" + thread + "-" + step + "-" + System.identityHashCode(this),
+                    "New Reader", "new@example.com");
+        case "searchReaderById":
+            return (random, thread, step) -> library.searchReaderById(
+                    random.nextDouble() < hitRatio ? randomReaderId(random) : missingISBNs[random.nextInt(size)]);
+        case "borrowReturn":
+            return (random, thread, step) -> circulate(random);
+        case "borrowConsole":
+            library.setOutput(new WriterSink(new OutputStreamWriter(System.err)));
+            return (random, thread, step) -> circulate(random);
+        case "displayBookInfo":
+            library.setOutput(DISCARD);
+            return (random, thread, step) -> library.displayBookInfo(lookupISBN(random));
+        case "displayReaderInfo":
+            library.setOutput(DISCARD);
+            return (random, thread, step) -> library.displayReaderInfo(randomReaderId(random));
+        case "displayBooksPage":
+            library.setOutput(DISCARD);
+            return (random, thread, step) -> library.displayBooksPage(new BookFilter(), randomISBN(random), 20);
+        case "hotTitle":
+            // Borrow a copy, return it, or wait in the hold queue when none is free
+            library.addBook(HOT_ISBN, "Hot Title", "Hot Author", 2000, HOT_COPIES);
+            return (random, thread, step) -> {
+                String readerId = readerIds[(thread * HOT_READERS_PER_THREAD
+                        + random.nextInt(HOT_READERS_PER_THREAD)) % readerIds.length];
+                Outcome outcome = library.borrowBook(readerId, HOT_ISBN);
+                // With no copy free, a reader holding one is told so by the hold it cannot place
+                if (outcome == Outcome.ALREADY_HAS_COPY || outcome == Outcome.ALREADY_BORROWED
+                        && library.placeHold(readerId, HOT_ISBN) == Outcome.ALREADY_HAS_COPY) {
+                    library.returnBook(readerId, HOT_ISBN);
+                }
+            };
+        case "readMostly":
+            // 99% lookups, displays and listings, 1% borrow or return
+            library.setOutput(DISCARD);
+            return (random, thread, step) -> {
+                int roll = random.nextInt(100);
+                if (roll < 60) {
+                    library.searchBookByISBN(lookupISBN(random));
+                } else if (roll < 90) {
+                    library.displayBookInfo(lookupISBN(random));
+                } else if (roll < 99) {
+                    library.listBooks(new BookFilter(), randomISBN(random), 20);
+                } else {
+                    circulate(random);
+                }
+            };
+        case "zipfDisplay":
+            // 90% book displays and 5% reader displays of popular records, 5% borrow or return of a popular book
+            library.setOutput(DISCARD);
+            zipf = zipfDistribution(size);
+            return (random, thread, step) -> {
+                int roll = random.nextInt(100);
+                if (roll < 90) {
+                    library.displayBookInfo(ISBNs[zipfRank(random)]);
+                } else if (roll < 95) {
+                    library.displayReaderInfo(readerIds[zipfRank(random) % readerIds.length]);
+                } else {
+                    circulate(random, ISBNs[zipfRank(random)]);
+                }
+            };
+        case "circulationMix":
+            // 80% lookups, 15% borrow or return, 5% catalog edits
+            return (random, thread, step) -> {
+                int roll = random.nextInt(100);
+                if (roll < 60) {
+                    library.searchBookByISBN(lookupISBN(random));
+                } else if (roll < 80) {
+                    library.searchReaderById(randomReaderId(random));
+                } else if (roll < 95) {
+                    circulate(random);
+                } else {
+                    library.updateBook(randomISBN(random), "Title " + step, "Author", 2000);
+                }
+            };
+        case "borrowLoop":
+            // Lend random books one call at a time, then return them the same way
+            return (random, thread, step) -> {
+                String[][] pairs = randomPairs(random);
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    library.borrowBook(pairs[0][i], pairs[1][i]);
+                }
+                for (int i = 0; i < BATCH_SIZE; i++) {
+                    library.returnBook(pairs[0][i], pairs[1][i]);
+                }
+            };
+        case "borrowBatch":
+            // Lend the same number of random books in one batch, then return them in another
+            return (random, thread, step) -> {
+                String[][] pairs = randomPairs(random);
+                library.borrowBatch(pairs[0], pairs[1]);
+                library.returnBatch(pairs[0], pairs[1]);
+            };
+        default:
+            throw new IllegalArgumentException("Unknown benchmark " + name);
+        }
+    }
+    
+    /**
+     * Checks the library after a benchmark, for benchmarks that can break an invariant.
+     *
+     * @param name the name of the benchmark
+     * @throws IllegalStateException if the hot title lost a copy, lent one twice,
+     *                               or kept a copy free while readers wait
+     */
+    private void verify(String name) {
+        if (!name.equals("hotTitle")) {
+            return;
+        }
+        Book book = library.searchBookByISBN(HOT_ISBN);
+        List<Loan> loans = library.getCopyLoans(HOT_ISBN);
+        List<String> waiting = library.getHoldQueue(HOT_ISBN);
+        boolean[] lent = new boolean[HOT_COPIES + 1];
+        for (Loan loan : loans) {
+            if (lent[loan.getCopy()] || waiting.contains(loan.getReaderId())) {
+                throw new IllegalStateException("Copy " + loan.getCopy() + " of the hot title is lent twice");
+            }
+            lent[loan.getCopy()] = true;
+        }
+        if (loans.size() + book.getAvailableCopies() != HOT_COPIES
+                || (book.getAvailableCopies() > 0 && !waiting.isEmpty())) {
+            throw new IllegalStateException("Hot title has " + loans.size() + " copies on loan, "
+                    + book.getAvailableCopies() + " available and " + waiting.size() + " readers waiting");
+        }
+    }
+    
+    /**
+     * Borrows a random book for a random reader, or returns it if it is already borrowed.
+     *
+     * @param random the thread's random source
+     */
+    private void circulate(ThreadLocalRandom random) {
+        circulate(random, randomISBN(random));
+    }
+    
+    /**
+     * Borrows a book for a random reader, or returns it if it is already borrowed.
+     *
+     * @param random the thread's random source
+     * @param ISBN   the ISBN of the book
+     */
+    private void circulate(ThreadLocalRandom random, String ISBN) {
+        Outcome outcome = library.borrowBook(randomReaderId(random), ISBN);
+        if (outcome == Outcome.ALREADY_BORROWED || outcome == Outcome.ALREADY_HAS_COPY) {
+            List<Loan> loans = library.getCopyLoans(ISBN);
+            if (!loans.isEmpty()) {
+                library.returnBook(loans.get(0).getReaderId(), ISBN);
+            }
+        }
+    }
+    
+    /**
+     * Picks a random reader and a random book for each loan of a batch.
+     *
+     * @param random the thread's random source
+     * @return the reader IDs and the ISBNs, paired by position
+     */
+    private String[][] randomPairs(ThreadLocalRandom random) {
+        String[][] pairs = new String[2][BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            pairs[0][i] = randomReaderId(random);
+            pairs[1][i] = randomISBN(random);
+        }
+        return pairs;
+    }
+    
+    /**
+     * Returns an ISBN to look up, missing the catalog with probability 1 - hit ratio.
+     *
+     * @param random the thread's random source
+     * @return the ISBN
+     */
+    private String lookupISBN(ThreadLocalRandom random) {
+        int i = random.nextInt(size);
+        return random.nextDouble() < hitRatio ? ISBNs[i] : missingISBNs[i];
+    }
+    
+    /**
+     * Returns the ISBN of a random populated book.
+     *
+     * @param random the thread's random source
+     * @return the ISBN
+     */
+    private String randomISBN(ThreadLocalRandom random) {
+        return ISBNs[random.nextInt(size)];
+    }
+    
+    /**
+     * Returns the cumulative probabilities of the ranks of a Zipfian distribution.
+     *
+     * @param ranks the number of ranks
+     * @return the probability of each rank or a lower one
+     */
+    private static double[] zipfDistribution(int ranks) {
+        double[] cumulative = new double[ranks];
+        double sum = 0;
+        for (int k = 0; k < ranks; k++) {
+            sum += 1 / Math.pow(k + 1, ZIPF_EXPONENT);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < ranks; k++) {
+            cumulative[k] /= sum;
+        }
+        return cumulative;
+    }
+    
+    /**
+     * Returns a rank picked from the Zipfian distribution, 0 being the most popular.
+     *
+     * @param random the thread's random source
+     * @return the rank
+     */
+    private int zipfRank(ThreadLocalRandom random) {
+        int rank = Arrays.binarySearch(zipf, random.nextDouble());
+        return Math.min(rank < 0 ? -rank - 1 : rank, zipf.length - 1);
+    }
+    
+    /**
+     * Returns the ID of a random populated reader.
+     *
+     * @param random the thread's random source
+     * @return the reader ID
+     */
+    private String randomReaderId(ThreadLocalRandom random) {
+        return readerIds[random.nextInt(readerIds.length)];
+    }
+    
+    /**
+     * Parses a comma-separated list of integers.
+     *
+     * @param list the list
+     * @return the integers
+     */
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,200 @@
+package library;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a library cluster as one LibraryServer process per shard on the local machine.
+ * Shard i keeps its data in the "shard-i" directory of the cluster's data directory and
+ * listens on a free loopback port, so a cluster restarted over the same directory keeps
+ * its shard names, and with them the placement of every book.
+ *
+ * Usage: java library.LibraryCluster [--data cluster-data] [--shards 4] [--heap 512m]
+ */
+public class LibraryCluster implements Closeable {
+
+    /**
+     * The line a shard prints once it accepts connections, giving its port.
+     */
+    private static final Pattern READY = Pattern.compile("Serving library from .* on port (\\d+)");
+    /**
+     * The longest a shard may take to restore its library and start serving.
+     */
+    private static final long START_TIMEOUT_SECONDS = 120;
+
+    /**
+     * The directory holding the data directory of each shard.
+     */
+    private final Path dataDirectory;
+    /**
+     * The maximum heap of each shard process, such as "512m".
+     */
+    private final String heap;
+    /**
+     * The addresses of the running shards by name, in the order they started.
+     */
+    private final Map<String, URI> shards = new LinkedHashMap<String, URI>();
+    /**
+     * The running shard processes.
+     */
+    private final List<Process> processes = new ArrayList<Process>();
+
+    /**
+     * Constructs a cluster with no shards running yet.
+     *
+     * @param dataDirectory the directory holding the data directory of each shard
+     * @param heap          the maximum heap of each shard process, such as "512m"
+     */
+    public LibraryCluster(Path dataDirectory, String heap) {
+        this.dataDirectory = dataDirectory;
+        this.heap = heap;
+    }
+
+    /**
+     * Starts a cluster of shards and waits until every shard serves.
+     *
+     * @param dataDirectory the directory holding the data directory of each shard
+     * @param shardCount    the number of shards
+     * @param heap          the maximum heap of each shard process
+     * @return the running cluster
+     * @throws IOException if a shard fails to start
+     */
+    public static LibraryCluster start(Path dataDirectory, int shardCount, String heap) throws IOException {
+        LibraryCluster cluster = new LibraryCluster(dataDirectory, heap);
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                cluster.startShard();
+            }
+        } catch (IOException | RuntimeException e) {
+            cluster.close();
+            throw e;
+        }
+        return cluster;
+    }
+
+    /**
+     * Starts one more shard process and waits until it serves.
+     * The shard is not part of any router until added to one.
+     *
+     * @return the name of the shard
+     * @throws IOException if the shard fails to start
+     */
+    public synchronized String startShard() throws IOException {
+        String name = "shard-" + shards.size();
+        Path directory = dataDirectory.resolve(name);
+        Files.createDirectories(directory);
+        ProcessBuilder builder = new ProcessBuilder(
+                Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                "-Xmx" + heap,
+                "-cp", System.getProperty("java.class.path"),
+                "library.LibraryServer", directory.toString(), "0");
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        processes.add(process);
+
+        // Wait for the port, then keep draining the output so the shard never blocks on it
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        int port = -1;
+        String line;
+        while (port < 0 && (line = output.readLine()) != null) {
+            Matcher ready = READY.matcher(line);
+            if (ready.find()) {
+                port = Integer.parseInt(ready.group(1));
+            }
+        }
+        if (port < 0) {
+            throw new IOException("Shard " + name + " exited before serving");
+        }
+        Thread drain = new Thread(() -> {
+            try {
+                while (output.readLine() != null) {
+                    // Discard overdue notices
+                }
+            } catch (IOException e) {
+                // The shard has exited
+            }
+        }, name + "-output");
+        drain.setDaemon(true);
+        drain.start();
+        shards.put(name, URI.create("http://127.0.0.1:" + port));
+        return name;
+    }
+
+    /**
+     * Returns the running shards.
+     *
+     * @return the addresses of the shards by name, in the order they started
+     */
+    public synchronized Map<String, URI> getShards() {
+        return new LinkedHashMap<String, URI>(shards);
+    }
+
+    /**
+     * Stops every shard process, letting each save its pending changes.
+     */
+    @Override
+    public synchronized void close() {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            try {
+                if (!process.waitFor(START_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+        processes.clear();
+        shards.clear();
+    }
+
+    /**
+     * Runs a cluster until the process is stopped, printing the address of each shard.
+     *
+     * @param args the command line options
+     * @throws Exception if a shard fails to start
+     */
+    public static void main(String[] args) throws Exception {
+        Path dataDirectory = Paths.get("cluster-data");
+        int shardCount = 4;
+        String heap = "512m";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--data":
+                dataDirectory = Paths.get(args[i + 1]);
+                break;
+            case "--shards":
+                shardCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "--heap":
+                heap = args[i + 1];
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        LibraryCluster cluster = start(dataDirectory, shardCount, heap);
+        Runtime.getRuntime().addShutdownHook(new Thread(cluster::close));
+        for (Map.Entry<String, URI> shard : cluster.getShards().entrySet()) {
+            System.out.printf("%s serving at %s\n", shard.getKey(), shard.getValue());
+        }
+        Thread.currentThread().join();
+    }
+}
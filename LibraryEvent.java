@@ -0,0 +1,237 @@
+package library;
+
+import java.time.Instant;
+
+/**
+ * One change to the library, numbered by the event bus in publication order.
+ * Events are slots reused by the bus and its subscribers: a listener must not keep the
+ * event it is given beyond the call, and should take a copy to keep it.
+ * Fields not carried by the event's type are null or 0.
+ */
+public class LibraryEvent {
+
+    // Event attributes
+    private EventType type;
+    private long sequence;
+    private long time;
+    // Book attributes, for book and copies events
+    private String ISBN;
+    private String title;
+    private String author;
+    private int publicationYear;
+    private int copies;
+    // Reader attributes, for reader, loan and hold events
+    private String readerId;
+    private String name;
+    private String contact;
+    // Loan attributes, for borrow and return events
+    private int copy;
+    private long dueTime;
+
+    /**
+     * Sets every field of the event.
+     *
+     * @param type            the type of the event
+     * @param sequence        the sequence number of the event
+     * @param time            the time of the change, in epoch milliseconds
+     * @param ISBN            the ISBN of the book, or null
+     * @param title           the title of the book, or null
+     * @param author          the author of the book, or null
+     * @param publicationYear the publication year of the book, or 0
+     * @param copies          the number of copies of the book, or 0
+     * @param readerId        the ID of the reader, or null
+     * @param name            the name of the reader, or null
+     * @param contact         the contact of the reader, or null
+     * @param copy            the number of the borrowed or returned copy, or 0
+     * @param dueTime         the due time of the loan in epoch milliseconds, or 0
+     */
+    void set(EventType type, long sequence, long time, String ISBN, String title, String author,
+            int publicationYear, int copies, String readerId, String name, String contact, int copy, long dueTime) {
+        this.type = type;
+        this.sequence = sequence;
+        this.time = time;
+        this.ISBN = ISBN;
+        this.title = title;
+        this.author = author;
+        this.publicationYear = publicationYear;
+        this.copies = copies;
+        this.readerId = readerId;
+        this.name = name;
+        this.contact = contact;
+        this.copy = copy;
+        this.dueTime = dueTime;
+    }
+
+    /**
+     * Sets every field of the event from another event.
+     *
+     * @param other the event to copy
+     */
+    void copyFrom(LibraryEvent other) {
+        set(other.type, other.sequence, other.time, other.ISBN, other.title, other.author,
+                other.publicationYear, other.copies, other.readerId, other.name, other.contact,
+                other.copy, other.dueTime);
+    }
+
+    /**
+     * Returns a copy of the event that is safe to keep.
+     *
+     * @return the copy
+     */
+    public LibraryEvent copy() {
+        LibraryEvent copy = new LibraryEvent();
+        copy.copyFrom(this);
+        return copy;
+    }
+
+    /**
+     * Formats the event as a one-line message.
+     *
+     * @return the event information, ending with a line break
+     */
+    public String formatInfo() {
+        StringBuilder info = new StringBuilder();
+        info.append('#').append(sequence).append(' ').append(Instant.ofEpochMilli(time)).append(' ').append(type);
+        if (ISBN != null) {
+            info.append(" ISBN ").append(ISBN);
+        }
+        if (title != null) {
+            info.append(" \"").append(title).append("\" by ").append(author).append(", ").append(publicationYear);
+        }
+        if (copies > 0) {
+            info.append(", ").append(copies).append(" copies");
+        }
+        if (copy > 0) {
+            info.append(" copy ").append(copy);
+        }
+        if (readerId != null) {
+            info.append(" Reader ID ").append(readerId);
+        }
+        if (name != null) {
+            info.append(" ").append(name).append(" <").append(contact).append('>');
+        }
+        if (dueTime > 0) {
+            info.append(" due ").append(Instant.ofEpochMilli(dueTime));
+        }
+        return info.append('\n').toString();
+    }
+
+    /**
+     * Returns the type of the event.
+     *
+     * @return the type of the event
+     */
+    public EventType getType() {
+        return type;
+    }
+
+    /**
+     * Returns the sequence number of the event. Numbers increase by one per event and carry
+     * on across restarts when the bus has an event log, so a subscriber can resume after the
+     * last event it handled.
+     *
+     * @return the sequence number
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns the time of the change.
+     *
+     * @return the time, in epoch milliseconds
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Returns the ISBN of the book.
+     *
+     * @return the ISBN, or null for reader events
+     */
+    public String getISBN() {
+        return ISBN;
+    }
+
+    /**
+     * Returns the title of the book.
+     *
+     * @return the title, or null unless the book was added or updated
+     */
+    public String getTitle() {
+        return title;
+    }
+
+    /**
+     * Returns the author of the book.
+     *
+     * @return the author, or null unless the book was added or updated
+     */
+    public String getAuthor() {
+        return author;
+    }
+
+    /**
+     * Returns the publication year of the book.
+     *
+     * @return the publication year, or 0 unless the book was added or updated
+     */
+    public int getPublicationYear() {
+        return publicationYear;
+    }
+
+    /**
+     * Returns the number of copies of the book.
+     *
+     * @return the number of copies, or 0 unless the book was added or updated or its copies changed
+     */
+    public int getCopies() {
+        return copies;
+    }
+
+    /**
+     * Returns the ID of the reader.
+     *
+     * @return the reader ID, or null for book and copies events
+     */
+    public String getReaderId() {
+        return readerId;
+    }
+
+    /**
+     * Returns the name of the reader.
+     *
+     * @return the name, or null unless the reader was added
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the contact of the reader.
+     *
+     * @return the contact, or null unless the reader was added
+     */
+    public String getContact() {
+        return contact;
+    }
+
+    /**
+     * Returns the number of the borrowed or returned copy.
+     *
+     * @return the copy number, or 0 for other events
+     */
+    public int getCopy() {
+        return copy;
+    }
+
+    /**
+     * Returns the due time of the loan.
+     *
+     * @return the due time in epoch milliseconds, or 0 unless a copy was borrowed
+     */
+    public long getDueTime() {
+        return dueTime;
+    }
+}
@@ -0,0 +1,1291 @@
+package library;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves a library over HTTP/1.1 with JSON bodies, so many clients can share it at once.
+ * One selector thread accepts connections and moves bytes, while library calls run on a
+ * worker pool so a slow commit never stalls other connections. Connections are kept
+ * alive, and pipelined requests on a connection are answered in order.
+ *
+ * Routes:
+ *   GET    /books?q=words&limit=n                  word search
+ *   GET    /books?cursor=c&limit=n&status=available&author=a&from=y&to=y
+ *   POST   /books                                  {"isbn", "title", "author", "publicationYear", "copies"?}
+ *   GET    /books/{isbn}
+ *   PUT    /books/{isbn}                           {"title", "author", "publicationYear"}
+ *   DELETE /books/{isbn}
+ *   PUT    /books/{isbn}/copies                    {"copies"}
+ *   GET    /books/{isbn}/loans                     loans of the copies on loan
+ *   GET    /books/{isbn}/holds                     waiting readers, longest-waiting first
+ *   GET    /readers?q=text&limit=n                 readers whose name, word of name or contact starts with the text
+ *   GET    /readers?cursor=c&limit=n
+ *   POST   /readers                                {"id", "name", "contact"}
+ *   GET    /readers/{id}
+ *   DELETE /readers/{id}?cascade=true
+ *   GET    /readers/{id}/loans
+ *   POST   /borrow                                 {"readerId", "isbn"}
+ *   POST   /return                                 {"readerId", "isbn"}
+ *   POST   /holds                                  {"readerId", "isbn"}
+ *   POST   /holds/cancel                           {"readerId", "isbn"}
+ *   POST   /loans                                  {"readerId", "isbn", "copy", "checkoutTime", "dueTime"} moved from another shard
+ *   GET    /loans/overdue?limit=n                  loans overdue now, most overdue first
+ *   GET    /loans/next?limit=n                     loans next to become due
+ *   GET    /stats/{titles|readers}?limit=n&from=t&to=t   most loans checked out between epoch millis
+ *   GET    /stats/{authors|years}?from=t&to=t      loans checked out between epoch millis, grouped
+ *   GET    /metrics                                text snapshot of the metrics
+ *   GET    /replication                            role, epoch, sequence number and staleness
+ *   POST   /replication/promote                    makes a replica the primary
+ *   POST   /replication/follow                     {"host", "port"} of the replication source to follow
+ *
+ * A server over a replica answers 503 to changes until promoted, and to reads while the
+ * replica is staler than its bound.
+ */
+public class LibraryServer implements Closeable {
+
+    /**
+     * The largest request line and headers accepted.
+     */
+    private static final int MAX_HEADER_BYTES = 8192;
+    /**
+     * The largest request body accepted.
+     */
+    private static final int MAX_BODY_BYTES = 65536;
+    /**
+     * The initial size of a connection's read buffer.
+     */
+    private static final int READ_BUFFER_BYTES = 4096;
+    /**
+     * The number of books or readers on a listing page when no limit is given.
+     */
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    /**
+     * The largest number of books or readers on a listing page.
+     */
+    private static final int MAX_PAGE_SIZE = 1000;
+    /**
+     * The number of pending connections the operating system may queue.
+     */
+    private static final int ACCEPT_BACKLOG = 4096;
+    /**
+     * The number of books, and of readers, whose JSON is kept encoded for reuse.
+     */
+    private static final int RECORD_CACHE_CAPACITY = 10000;
+    /**
+     * The start of every listing body.
+     */
+    private static final byte[] ITEMS_START = "{\"items\":[".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * The library being served. Must be a concurrent library.
+     */
+    private final Library library;
+    /**
+     * The UTF-8 JSON of popular books, by ISBN, invalidated by the library when a book changes.
+     */
+    private final RecordCache<byte[]> bookCache = new RecordCache<byte[]>(RECORD_CACHE_CAPACITY);
+    /**
+     * The UTF-8 JSON of popular readers, by reader ID.
+     */
+    private final RecordCache<byte[]> readerCache = new RecordCache<byte[]>(RECORD_CACHE_CAPACITY);
+    /**
+     * The socket accepting connections.
+     */
+    private final ServerSocketChannel serverChannel;
+    /**
+     * The selector watching every connection.
+     */
+    private final Selector selector;
+    /**
+     * The threads running library calls.
+     */
+    private final ExecutorService workers;
+    /**
+     * The connections whose response is ready to write, handed from workers to the selector thread.
+     */
+    private final Queue<Connection> completed = new ConcurrentLinkedQueue<Connection>();
+    /**
+     * The selector thread.
+     */
+    private final Thread loop;
+    /**
+     * Whether the server is running.
+     */
+    private volatile boolean running;
+    /**
+     * The replica the library is kept in step by, or null for a primary.
+     */
+    private volatile Replica replica;
+    /**
+     * The longest a replica may lag its primary and still answer reads.
+     */
+    private volatile long maxStalenessMillis;
+    /**
+     * The source shipping the library's changes to replicas, or null if none.
+     */
+    private volatile ReplicationSource replicationSource;
+
+    /**
+     * One client connection. Only the selector thread touches it, except that a worker
+     * sets the response of the request it was handed.
+     */
+    private static final class Connection {
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        // The bytes received and not yet parsed, in write mode
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_BYTES);
+        // The response being written, or null
+        private ByteBuffer out;
+        // Whether a request is being handled or answered; further requests wait in the buffer
+        private boolean busy;
+        // Whether to close the connection once the response is written
+        private boolean closing;
+
+        private Connection(SocketChannel channel, SelectionKey key) {
+            this.channel = channel;
+            this.key = key;
+        }
+    }
+
+    /**
+     * One parsed request.
+     */
+    private static final class Request {
+        private String method;
+        private String path;
+        private Map<String, String> query;
+        private String body;
+        private boolean keepAlive;
+    }
+
+    /**
+     * One response to encode.
+     */
+    private static final class Response {
+        private final int status;
+        private final String contentType;
+        private final byte[] body;
+
+        private Response(int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        private Response(int status, String contentType, String body) {
+            this(status, contentType, body.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * An error answered with an HTTP status.
+     */
+    private static final class HttpException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        private final int status;
+
+        private HttpException(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    /**
+     * Constructs a server for a library, bound but not yet serving.
+     * The library's output is silenced, since outcomes are sent to clients instead.
+     *
+     * @param library        the concurrent library to serve
+     * @param address        the address to listen on; port 0 picks a free port
+     * @param workerThreads  the number of threads running library calls
+     * @throws IOException if the address cannot be bound
+     */
+    public LibraryServer(Library library, InetSocketAddress address, int workerThreads) throws IOException {
+        this.library = library;
+        library.setOutput(OutputSink.SILENT);
+        library.addBookCache(bookCache);
+        library.addReaderCache(readerCache);
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(address, ACCEPT_BACKLOG);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        workers = Executors.newFixedThreadPool(workerThreads, task -> {
+            Thread worker = new Thread(task, "library-worker");
+            worker.setDaemon(true);
+            return worker;
+        });
+        loop = new Thread(this::run, "library-selector");
+    }
+
+    /**
+     * Starts serving requests.
+     */
+    public void start() {
+        running = true;
+        loop.start();
+    }
+
+    /**
+     * Returns the port the server listens on.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Stops serving, closing every connection once running library calls finish.
+     *
+     * @throws IOException if the sockets cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        selector.wakeup();
+        try {
+            loop.join();
+            workers.shutdown();
+            workers.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+    }
+
+    /**
+     * Serves the library as a replica: changes are refused until the replica is promoted,
+     * and reads are refused while it lags its primary by more than a bound.
+     *
+     * @param replica            the replica keeping the library in step
+     * @param maxStalenessMillis the longest lag reads are answered at
+     */
+    public void setReplica(Replica replica, long maxStalenessMillis) {
+        this.replica = replica;
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    /**
+     * Reports the source shipping the library's changes to replicas.
+     *
+     * @param source the replication source
+     */
+    public void setReplicationSource(ReplicationSource source) {
+        this.replicationSource = source;
+    }
+
+    /**
+     * Waits until the server stops.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void join() throws InterruptedException {
+        loop.join();
+    }
+
+    // Selector Loop Methods
+
+    /**
+     * Runs the selector loop until the server is closed.
+     */
+    private void run() {
+        while (running) {
+            try {
+                selector.select();
+            } catch (IOException e) {
+                System.out.printf("Server selector failed: %s\n", e.getMessage());
+                return;
+            }
+            // Write the responses workers finished since the last wake-up
+            Connection connection;
+            while ((connection = completed.poll()) != null) {
+                write(connection);
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                connection = (Connection) key.attachment();
+                if (key.isReadable()) {
+                    read(connection);
+                }
+                if (key.isValid() && key.isWritable()) {
+                    write(connection);
+                }
+            }
+        }
+    }
+
+    /**
+     * Accepts every pending connection.
+     */
+    private void accept() {
+        try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key));
+            }
+        } catch (IOException e) {
+            System.out.printf("Failed to accept connection: %s\n", e.getMessage());
+        }
+    }
+
+    /**
+     * Reads bytes from a connection, then handles the next complete request.
+     *
+     * @param connection the readable connection
+     */
+    private void read(Connection connection) {
+        try {
+            if (!connection.in.hasRemaining()) {
+                grow(connection, connection.in.capacity() * 2);
+            }
+            if (connection.channel.read(connection.in) < 0) {
+                disconnect(connection);
+                return;
+            }
+        } catch (HttpException e) {
+            reject(connection, e);
+            return;
+        } catch (IOException e) {
+            disconnect(connection);
+            return;
+        }
+        dispatch(connection);
+    }
+
+    /**
+     * Writes as much of a connection's response as the socket accepts.
+     * Once the response is written, the next pipelined request is handled.
+     *
+     * @param connection the connection with a response to write
+     */
+    private void write(Connection connection) {
+        if (!connection.key.isValid()) {
+            return;
+        }
+        try {
+            connection.channel.write(connection.out);
+        } catch (IOException e) {
+            disconnect(connection);
+            return;
+        }
+        if (connection.out.hasRemaining()) {
+            connection.key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        connection.out = null;
+        connection.busy = false;
+        if (connection.closing) {
+            disconnect(connection);
+            return;
+        }
+        dispatch(connection);
+    }
+
+    /**
+     * Hands the next complete buffered request of an idle connection to a worker.
+     * Reading pauses while the request is handled, so each connection has at most one
+     * request in flight and responses go out in request order.
+     *
+     * @param connection the connection
+     */
+    private void dispatch(Connection connection) {
+        if (connection.busy || !connection.key.isValid()) {
+            return;
+        }
+        Request request;
+        try {
+            request = parse(connection);
+        } catch (HttpException e) {
+            reject(connection, e);
+            return;
+        }
+        if (request == null) {
+            connection.key.interestOps(SelectionKey.OP_READ);
+            return;
+        }
+        connection.busy = true;
+        connection.closing = !request.keepAlive;
+        connection.key.interestOps(0);
+        workers.execute(() -> {
+            Response response;
+            try {
+                response = handle(request);
+            } catch (HttpException e) {
+                response = error(e.status, e.getMessage());
+            } catch (IllegalArgumentException e) {
+                response = error(400, e.getMessage());
+            } catch (RuntimeException e) {
+                response = error(500, e.toString());
+            }
+            connection.out = encode(response, request.keepAlive);
+            completed.add(connection);
+            selector.wakeup();
+        });
+    }
+
+    /**
+     * Answers a request that cannot be parsed, then closes the connection,
+     * since the rest of the stream can no longer be framed.
+     *
+     * @param connection the connection
+     * @param e          the error to answer
+     */
+    private void reject(Connection connection, HttpException e) {
+        connection.busy = true;
+        connection.closing = true;
+        connection.out = encode(error(e.status, e.getMessage()), false);
+        write(connection);
+    }
+
+    /**
+     * Closes a connection.
+     *
+     * @param connection the connection
+     */
+    private void disconnect(Connection connection) {
+        connection.key.cancel();
+        try {
+            connection.channel.close();
+        } catch (IOException e) {
+            // Nothing more can be done for a connection that fails to close
+        }
+    }
+
+    /**
+     * Replaces a connection's read buffer with a larger one holding the same bytes.
+     *
+     * @param connection the connection
+     * @param capacity   the new capacity
+     */
+    private static void grow(Connection connection, int capacity) {
+        if (capacity > MAX_HEADER_BYTES + MAX_BODY_BYTES + 4) {
+            throw new HttpException(413, "Request too large");
+        }
+        ByteBuffer larger = ByteBuffer.allocate(capacity);
+        connection.in.flip();
+        larger.put(connection.in);
+        connection.in = larger;
+    }
+
+    // HTTP Methods
+
+    /**
+     * Parses the next complete request in a connection's buffer and removes it from the buffer.
+     *
+     * @param connection the connection
+     * @return the request, or null if it has not fully arrived
+     * @throws HttpException if the request is malformed or too large
+     */
+    private static Request parse(Connection connection) {
+        ByteBuffer in = connection.in;
+        byte[] bytes = in.array();
+        int headerEnd = -1;
+        for (int i = 3; i < in.position(); i++) {
+            if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+                headerEnd = i + 1;
+                break;
+            }
+        }
+        if (headerEnd < 0) {
+            if (in.position() > MAX_HEADER_BYTES) {
+                throw new HttpException(431, "Request headers too large");
+            }
+            return null;
+        }
+
+        String[] lines = new String(bytes, 0, headerEnd - 4, StandardCharsets.ISO_8859_1).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new HttpException(400, "Malformed request line");
+        }
+        Map<String, String> headers = new HashMap<String, String>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                throw new HttpException(400, "Malformed header");
+            }
+            headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+        }
+        if (headers.containsKey("transfer-encoding")) {
+            throw new HttpException(501, "Chunked request bodies are not supported");
+        }
+        int length;
+        try {
+            length = Integer.parseInt(headers.getOrDefault("content-length", "0"));
+        } catch (NumberFormatException e) {
+            throw new HttpException(400, "Malformed Content-Length");
+        }
+        if (length < 0 || length > MAX_BODY_BYTES) {
+            throw new HttpException(413, "Request body too large");
+        }
+        int end = headerEnd + length;
+        if (in.position() < end) {
+            if (in.capacity() < end) {
+                grow(connection, end);
+            }
+            return null;
+        }
+
+        Request request = new Request();
+        request.method = requestLine[0];
+        request.body = new String(bytes, headerEnd, length, StandardCharsets.UTF_8);
+        String connectionHeader = headers.getOrDefault("connection", "");
+        request.keepAlive = requestLine[2].equals("HTTP/1.0")
+                ? connectionHeader.equalsIgnoreCase("keep-alive")
+                : !connectionHeader.equalsIgnoreCase("close");
+        String target = requestLine[1];
+        int question = target.indexOf('?');
+        request.path = question < 0 ? target : target.substring(0, question);
+        request.query = new HashMap<String, String>();
+        if (question >= 0) {
+            for (String pair : target.substring(question + 1).split("&")) {
+                int equals = pair.indexOf('=');
+                if (equals > 0) {
+                    request.query.put(decode(pair.substring(0, equals)), decode(pair.substring(equals + 1)));
+                }
+            }
+        }
+
+        // Keep any pipelined bytes after this request for the next parse
+        in.flip();
+        in.position(end);
+        in.compact();
+        return request;
+    }
+
+    /**
+     * Encodes a response.
+     *
+     * @param response  the response
+     * @param keepAlive whether the connection stays open afterwards
+     * @return the bytes to write, ready for reading
+     */
+    private static ByteBuffer encode(Response response, boolean keepAlive) {
+        byte[] body = response.body;
+        String head = "HTTP/1.1 " + response.status + " " + reason(response.status) + "\r\n"
+                + "Content-Type: " + response.contentType + "\r\n"
+                + "Content-Length: " + body.length + "\r\n"
+                + (keepAlive ? "" : "Connection: close\r\n")
+                + "\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        ByteBuffer out = ByteBuffer.allocate(headBytes.length + body.length);
+        out.put(headBytes).put(body).flip();
+        return out;
+    }
+
+    /**
+     * Returns the reason phrase of a status code.
+     *
+     * @param status the status code
+     * @return the reason phrase
+     */
+    private static String reason(int status) {
+        switch (status) {
+        case 200:
+            return "OK";
+        case 201:
+            return "Created";
+        case 400:
+            return "Bad Request";
+        case 404:
+            return "Not Found";
+        case 405:
+            return "Method Not Allowed";
+        case 409:
+            return "Conflict";
+        case 413:
+            return "Payload Too Large";
+        case 431:
+            return "Request Header Fields Too Large";
+        case 501:
+            return "Not Implemented";
+        case 503:
+            return "Service Unavailable";
+        default:
+            return "Internal Server Error";
+        }
+    }
+
+    /**
+     * Decodes a percent-encoded path segment or query component.
+     *
+     * @param text the encoded text
+     * @return the decoded text
+     */
+    private static String decode(String text) {
+        return URLDecoder.decode(text, StandardCharsets.UTF_8);
+    }
+
+    // Routing Methods
+
+    /**
+     * Runs the library call a request asks for.
+     *
+     * @param request the request
+     * @return the response
+     */
+    private Response handle(Request request) {
+        String[] segments = request.path.split("/");
+        if (segments.length < 2) {
+            throw new HttpException(404, "No route for " + request.path);
+        }
+        for (int i = 1; i < segments.length; i++) {
+            segments[i] = decode(segments[i]);
+        }
+        String method = request.method;
+        if (!segments[1].equals("replication")) {
+            checkReplica(method);
+        }
+        switch (segments[1]) {
+        case "books":
+            if (segments.length == 2 && method.equals("GET")) {
+                return listBooks(request.query);
+            }
+            if (segments.length == 2 && method.equals("POST")) {
+                Map<String, String> fields = Json.parseObject(request.body);
+                return outcome(library.addBook(required(fields, "isbn"), required(fields, "title"),
+                        required(fields, "author"), Integer.parseInt(required(fields, "publicationYear")),
+                        Integer.parseInt(fields.getOrDefault("copies", "1"))), 201);
+            }
+            if (segments.length == 3 && method.equals("GET")) {
+                Book book = library.searchBookByISBN(segments[2]);
+                if (book == null) {
+                    return outcome(Outcome.BOOK_NOT_FOUND, 200);
+                }
+                return json(200, encodedJson(book));
+            }
+            if (segments.length == 3 && method.equals("PUT")) {
+                Map<String, String> fields = Json.parseObject(request.body);
+                return outcome(library.updateBook(segments[2], required(fields, "title"), required(fields, "author"),
+                        Integer.parseInt(required(fields, "publicationYear"))), 200);
+            }
+            if (segments.length == 3 && method.equals("DELETE")) {
+                return outcome(library.removeBook(segments[2]), 200);
+            }
+            if (segments.length == 4 && segments[3].equals("copies") && method.equals("PUT")) {
+                Map<String, String> fields = Json.parseObject(request.body);
+                return outcome(library.setCopies(segments[2], Integer.parseInt(required(fields, "copies"))), 200);
+            }
+            if (segments.length == 4 && (segments[3].equals("loans") || segments[3].equals("holds"))
+                    && method.equals("GET")) {
+                if (library.searchBookByISBN(segments[2]) == null) {
+                    return outcome(Outcome.BOOK_NOT_FOUND, 200);
+                }
+                StringBuilder items = new StringBuilder();
+                if (segments[3].equals("loans")) {
+                    for (Loan loan : library.getCopyLoans(segments[2])) {
+                        items.append(items.length() == 0 ? "" : ",").append(loanJson(loan));
+                    }
+                } else {
+                    for (String readerId : library.getHoldQueue(segments[2])) {
+                        items.append(items.length() == 0 ? "" : ",").append(Json.quote(readerId));
+                    }
+                }
+                return json(200, "{\"items\":[" + items + "]}");
+            }
+            break;
+        case "readers":
+            if (segments.length == 2 && method.equals("GET") && request.query.containsKey("q")) {
+                List<byte[]> items = new ArrayList<byte[]>();
+                for (Reader reader : library.findReaders(request.query.get("q"), pageSize(request.query))) {
+                    items.add(encodedJson(reader));
+                }
+                return items(items, "");
+            }
+            if (segments.length == 2 && method.equals("GET")) {
+                Page<Reader> page = library.listReaders(request.query.get("cursor"), pageSize(request.query));
+                List<byte[]> items = new ArrayList<byte[]>();
+                for (Reader reader : page.getItems()) {
+                    items.add(encodedJson(reader));
+                }
+                return items(items, ",\"nextCursor\":" + Json.quote(page.getNextCursor()));
+            }
+            if (segments.length == 2 && method.equals("POST")) {
+                Map<String, String> fields = Json.parseObject(request.body);
+                return outcome(library.addReader(required(fields, "id"), required(fields, "name"),
+                        required(fields, "contact")), 201);
+            }
+            if (segments.length == 3 && method.equals("GET")) {
+                Reader reader = library.searchReaderById(segments[2]);
+                if (reader == null) {
+                    return outcome(Outcome.READER_NOT_FOUND, 200);
+                }
+                return json(200, encodedJson(reader));
+            }
+            if (segments.length == 3 && method.equals("DELETE")) {
+                boolean cascade = Boolean.parseBoolean(request.query.get("cascade"));
+                return outcome(library.removeReader(segments[2], cascade), 200);
+            }
+            if (segments.length == 4 && segments[3].equals("loans") && method.equals("GET")) {
+                if (library.searchReaderById(segments[2]) == null) {
+                    return outcome(Outcome.READER_NOT_FOUND, 200);
+                }
+                List<byte[]> items = new ArrayList<byte[]>();
+                for (String ISBN : library.getLoans(segments[2])) {
+                    Book book = library.searchBookByISBN(ISBN);
+                    if (book != null) {
+                        items.add(encodedJson(book));
+                    }
+                }
+                return items(items, "");
+            }
+            break;
+        case "borrow":
+        case "return":
+            if (segments.length == 2 && method.equals("POST")) {
+                Map<String, String> fields = Json.parseObject(request.body);
+                String readerId = required(fields, "readerId");
+                String ISBN = required(fields, "isbn");
+                Outcome result = segments[1].equals("borrow")
+                        ? library.borrowBook(readerId, ISBN)
+                        : library.returnBook(readerId, ISBN);
+                return outcome(result, 200);
+            }
+            break;
+        case "holds":
+            if ((segments.length == 2 || (segments.length == 3 && segments[2].equals("cancel")))
+                    && method.equals("POST")) {
+                Map<String, String> fields = Json.parseObject(request.body);
+                String readerId = required(fields, "readerId");
+                String ISBN = required(fields, "isbn");
+                return segments.length == 2
+                        ? outcome(library.placeHold(readerId, ISBN), 201)
+                        : outcome(library.cancelHold(readerId, ISBN), 200);
+            }
+            break;
+        case "loans":
+            if (segments.length == 2 && method.equals("POST")) {
+                Map<String, String> fields = Json.parseObject(request.body);
+                Loan loan = new Loan(required(fields, "isbn"), Integer.parseInt(fields.getOrDefault("copy", "0")),
+                        required(fields, "readerId"), Long.parseLong(required(fields, "checkoutTime")),
+                        Long.parseLong(required(fields, "dueTime")));
+                return outcome(library.transferLoan(loan), 201);
+            }
+            if (segments.length == 3 && method.equals("GET")
+                    && (segments[2].equals("overdue") || segments[2].equals("next"))) {
+                List<Loan> loans = segments[2].equals("overdue")
+                        ? library.getOverdueLoans(pageSize(request.query))
+                        : library.getNextDueLoans(pageSize(request.query));
+                StringBuilder items = new StringBuilder();
+                for (Loan loan : loans) {
+                    items.append(items.length() == 0 ? "" : ",").append(loanJson(loan));
+                }
+                return json(200, "{\"items\":[" + items + "]}");
+            }
+            break;
+        case "stats":
+            if (segments.length == 3 && method.equals("GET")) {
+                return statistics(segments[2], request.query);
+            }
+            break;
+        case "metrics":
+            if (segments.length == 2 && method.equals("GET")) {
+                return new Response(200, "text/plain; charset=utf-8", library.getMetrics().getSnapshot());
+            }
+            break;
+        case "replication":
+            if (segments.length == 2 && method.equals("GET")) {
+                return replicationStatus();
+            }
+            if (segments.length == 3 && method.equals("POST")
+                    && (segments[2].equals("promote") || segments[2].equals("follow"))) {
+                Replica following = replica;
+                if (following == null) {
+                    throw new HttpException(409, "The library is not a replica");
+                }
+                if (segments[2].equals("follow")) {
+                    Map<String, String> fields = Json.parseObject(request.body);
+                    following.follow(new InetSocketAddress(required(fields, "host"),
+                            Integer.parseInt(required(fields, "port"))));
+                    return replicationStatus();
+                }
+                try {
+                    replicationSource = following.promote();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                } catch (IllegalStateException e) {
+                    throw new HttpException(409, e.getMessage());
+                }
+                return replicationStatus();
+            }
+            break;
+        default:
+            throw new HttpException(404, "No route for " + request.path);
+        }
+        throw new HttpException(405, method + " is not allowed on " + request.path);
+    }
+
+    /**
+     * Refuses a request a replica cannot answer: any change before promotion,
+     * and any read while the replica lags its primary by more than the bound.
+     *
+     * @param method the method of the request
+     * @throws HttpException if the request is refused
+     */
+    private void checkReplica(String method) {
+        Replica following = replica;
+        if (following == null || following.isPromoted()) {
+            return;
+        }
+        if (!method.equals("GET")) {
+            throw new HttpException(503, "Read-only replica; send changes to the primary");
+        }
+        long staleness = following.getStalenessMillis();
+        if (staleness == Long.MAX_VALUE) {
+            throw new HttpException(503, "Replica has not loaded its primary yet");
+        }
+        if (staleness > maxStalenessMillis) {
+            throw new HttpException(503, "Replica is " + staleness + " ms behind its primary");
+        }
+    }
+
+    /**
+     * Reports the replication role and position of the library.
+     *
+     * @return the response describing replication
+     */
+    private Response replicationStatus() {
+        Replica following = replica;
+        ReplicationSource source = replicationSource;
+        StringBuilder body = new StringBuilder("{\"role\":");
+        if (following != null && !following.isPromoted()) {
+            InetSocketAddress primary = following.getPrimary();
+            long staleness = following.getStalenessMillis();
+            body.append("\"replica\",\"primary\":").append(Json.quote(primary.getHostString() + ":" + primary.getPort()))
+                    .append(",\"epoch\":").append(following.getLog().getEpoch())
+                    .append(",\"sequence\":").append(following.getAppliedSequence())
+                    .append(",\"stalenessMillis\":").append(staleness == Long.MAX_VALUE ? "null" : String.valueOf(staleness))
+                    .append(",\"lagRecords\":").append(following.getLagRecords());
+        } else if (source != null) {
+            body.append("\"primary\",\"epoch\":").append(source.getLog().getEpoch())
+                    .append(",\"sequence\":").append(source.getLog().getDurableSequence())
+                    .append(",\"replicationPort\":").append(source.getPort())
+                    .append(",\"replicas\":").append(source.getReplicaCount());
+        } else {
+            body.append("\"standalone\"");
+        }
+        return json(200, body.append('}').toString());
+    }
+
+    /**
+     * Lists a page of books, or searches them when the query has a "q" parameter.
+     *
+     * @param query the query parameters
+     * @return the response listing the books
+     */
+    private Response listBooks(Map<String, String> query) {
+        List<Book> books;
+        String nextCursor = null;
+        if (query.containsKey("q")) {
+            books = library.searchBooks(query.get("q"), pageSize(query));
+        } else {
+            BookFilter filter = new BookFilter();
+            if (query.containsKey("status")) {
+                filter.status(BookStatus.valueOf(query.get("status").toUpperCase()));
+            }
+            if (query.containsKey("author")) {
+                filter.author(query.get("author"));
+            }
+            if (query.containsKey("from") || query.containsKey("to")) {
+                filter.publishedBetween(Integer.parseInt(query.getOrDefault("from", String.valueOf(Integer.MIN_VALUE))),
+                        Integer.parseInt(query.getOrDefault("to", String.valueOf(Integer.MAX_VALUE))));
+            }
+            Page<Book> page = library.listBooks(filter, query.get("cursor"), pageSize(query));
+            books = page.getItems();
+            nextCursor = page.getNextCursor();
+        }
+        List<byte[]> items = new ArrayList<byte[]>(books.size());
+        for (Book book : books) {
+            items.add(encodedJson(book));
+        }
+        return items(items, ",\"nextCursor\":" + Json.quote(nextCursor));
+    }
+
+    /**
+     * Aggregates the loan history of the library.
+     *
+     * @param kind  the grouping: "titles", "readers", "authors" or "years"
+     * @param query the query parameters, with the period in "from" and "to" and the number of titles or readers in "limit"
+     * @return the response listing the loan counts
+     */
+    private Response statistics(String kind, Map<String, String> query) {
+        if (library.getLoanHistory() == null) {
+            throw new HttpException(404, "No loan history is kept");
+        }
+        CirculationAnalytics analytics = new CirculationAnalytics(library);
+        long from = Long.parseLong(query.getOrDefault("from", String.valueOf(Long.MIN_VALUE)));
+        long to = Long.parseLong(query.getOrDefault("to", String.valueOf(Long.MAX_VALUE)));
+        StringBuilder items = new StringBuilder();
+        switch (kind) {
+        case "titles":
+        case "readers":
+            String key = kind.equals("titles") ? "isbn" : "readerId";
+            List<Map.Entry<String, Long>> top = kind.equals("titles")
+                    ? analytics.topTitles(pageSize(query), from, to)
+                    : analytics.topReaders(pageSize(query), from, to);
+            for (Map.Entry<String, Long> entry : top) {
+                items.append(items.length() == 0 ? "" : ",").append("{\"").append(key).append("\":")
+                        .append(Json.quote(entry.getKey())).append(",\"loans\":").append(entry.getValue()).append('}');
+            }
+            break;
+        case "authors":
+            for (Map.Entry<String, Long> entry : analytics.loansByAuthor(from, to).entrySet()) {
+                items.append(items.length() == 0 ? "" : ",").append("{\"author\":").append(Json.quote(entry.getKey()))
+                        .append(",\"loans\":").append(entry.getValue()).append('}');
+            }
+            break;
+        case "years":
+            for (Map.Entry<Integer, Long> entry : analytics.loansByPublicationYear(from, to).entrySet()) {
+                items.append(items.length() == 0 ? "" : ",").append("{\"year\":").append(entry.getKey())
+                        .append(",\"loans\":").append(entry.getValue()).append('}');
+            }
+            break;
+        default:
+            throw new HttpException(404, "No statistics named " + kind);
+        }
+        return json(200, "{\"items\":[" + items + "]}");
+    }
+
+    /**
+     * Returns the page size asked for by the "limit" query parameter.
+     *
+     * @param query the query parameters
+     * @return the page size, between 1 and MAX_PAGE_SIZE
+     */
+    private static int pageSize(Map<String, String> query) {
+        String limit = query.get("limit");
+        int size = limit == null ? DEFAULT_PAGE_SIZE : Integer.parseInt(limit);
+        return Math.max(1, Math.min(MAX_PAGE_SIZE, size));
+    }
+
+    /**
+     * Returns a required field of a request body.
+     *
+     * @param fields the fields of the body
+     * @param name   the name of the field
+     * @return the value of the field
+     * @throws HttpException if the field is missing
+     */
+    private static String required(Map<String, String> fields, String name) {
+        String value = fields.get(name);
+        if (value == null || value.isEmpty()) {
+            throw new HttpException(400, "Missing field " + name);
+        }
+        return value;
+    }
+
+    /**
+     * Returns the response reporting an outcome.
+     * Missing records answer 404, and refused operations answer 409.
+     *
+     * @param outcome the outcome
+     * @param success the status to answer on success
+     * @return the response
+     */
+    private static Response outcome(Outcome outcome, int success) {
+        int status;
+        switch (outcome) {
+        case SUCCESS:
+            status = success;
+            break;
+        case BOOK_NOT_FOUND:
+        case READER_NOT_FOUND:
+            status = 404;
+            break;
+        default:
+            status = 409;
+        }
+        return json(status, "{\"outcome\":\"" + outcome + "\"}");
+    }
+
+    /**
+     * Returns the response reporting an error.
+     *
+     * @param status  the status code
+     * @param message the error message
+     * @return the response
+     */
+    private static Response error(int status, String message) {
+        return json(status, "{\"error\":" + Json.quote(message) + "}");
+    }
+
+    /**
+     * Returns a JSON response.
+     *
+     * @param status the status code
+     * @param body   the JSON body
+     * @return the response
+     */
+    private static Response json(int status, String body) {
+        return new Response(status, "application/json", body);
+    }
+
+    /**
+     * Returns a JSON response with an encoded body.
+     *
+     * @param status the status code
+     * @param body   the JSON body, encoded as UTF-8
+     * @return the response
+     */
+    private static Response json(int status, byte[] body) {
+        return new Response(status, "application/json", body);
+    }
+
+    /**
+     * Returns a JSON response listing encoded items.
+     *
+     * @param items  the JSON of each item, encoded as UTF-8
+     * @param fields more fields of the listing object, each preceded by a comma
+     * @return the response
+     */
+    private static Response items(List<byte[]> items, String fields) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.writeBytes(ITEMS_START);
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                body.write(',');
+            }
+            body.writeBytes(items.get(i));
+        }
+        body.writeBytes(("]" + fields + "}").getBytes(StandardCharsets.UTF_8));
+        return json(200, body.toByteArray());
+    }
+
+    /**
+     * Returns the UTF-8 JSON of a book, from the cache when it holds the same book.
+     *
+     * @param book the book, as just read from the library
+     * @return the encoded JSON object
+     */
+    private byte[] encodedJson(Book book) {
+        return bookCache.get(book.getISBN(), book, b -> bookJson(b).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the UTF-8 JSON of a reader, from the cache when it holds the same reader.
+     *
+     * @param reader the reader, as just read from the library
+     * @return the encoded JSON object
+     */
+    private byte[] encodedJson(Reader reader) {
+        return readerCache.get(reader.getId(), reader, r -> readerJson(r).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Renders a book as JSON.
+     *
+     * @param book the book
+     * @return the JSON object
+     */
+    private static String bookJson(Book book) {
+        return "{\"isbn\":" + Json.quote(book.getISBN())
+                + ",\"title\":" + Json.quote(book.getTitle())
+                + ",\"author\":" + Json.quote(book.getAuthor())
+                + ",\"publicationYear\":" + book.getPublicationYear()
+                + ",\"status\":\"" + book.getAvailabilityStatus() + "\""
+                + ",\"copies\":" + book.getCopies()
+                + ",\"availableCopies\":" + book.getAvailableCopies() + "}";
+    }
+
+    /**
+     * Renders a loan as JSON, with times in epoch milliseconds.
+     *
+     * @param loan the loan
+     * @return the JSON object
+     */
+    private static String loanJson(Loan loan) {
+        return "{\"isbn\":" + Json.quote(loan.getISBN())
+                + ",\"copy\":" + loan.getCopy()
+                + ",\"readerId\":" + Json.quote(loan.getReaderId())
+                + ",\"checkoutTime\":" + loan.getCheckoutTime()
+                + ",\"dueTime\":" + loan.getDueTime() + "}";
+    }
+    
+    /**
+     * Renders a reader as JSON.
+     *
+     * @param reader the reader
+     * @return the JSON object
+     */
+    private static String readerJson(Reader reader) {
+        return "{\"id\":" + Json.quote(reader.getId())
+                + ",\"name\":" + Json.quote(reader.getName())
+                + ",\"contact\":" + Json.quote(reader.getContact()) + "}";
+    }
+
+    /**
+     * Serves a persisted library over HTTP until the process is stopped.
+     * With --replication-port, changes are also shipped to replicas on that loopback port.
+     * With --replica-of host:port, the library follows that primary's replication port
+     * instead of loading the data directory, which it takes over when promoted.
+     * With --store mapped, the books are kept off the heap in the books directory of the data
+     * directory, and lookups read the mapped store instead of catalog snapshots.
+     * The server listens on the loopback address unless --bind gives another, such as 0.0.0.0
+     * to serve every interface.
+     *
+     * @param args the optional data directory (default "library-data") and port (default 8080),
+     *             then the options --bind address (default loopback), --replication-port p,
+     *             --replica-of host:port, --max-staleness ms (default 1000),
+     *             --store heap|mapped and --store-capacity n (default 20000000)
+     * @throws Exception if the library cannot be loaded or the port cannot be bound
+     */
+    public static void main(String[] args) throws Exception {
+        List<String> positional = new ArrayList<String>();
+        int replicationPort = -1;
+        String replicaOf = null;
+        long maxStaleness = 1000;
+        String store = "heap";
+        int storeCapacity = 20000000;
+        InetAddress bindAddress = InetAddress.getLoopbackAddress();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "--bind":
+                bindAddress = InetAddress.getByName(args[++i]);
+                break;
+            case "--replication-port":
+                replicationPort = Integer.parseInt(args[++i]);
+                break;
+            case "--replica-of":
+                replicaOf = args[++i];
+                break;
+            case "--max-staleness":
+                maxStaleness = Long.parseLong(args[++i]);
+                break;
+            case "--store":
+                store = args[++i];
+                break;
+            case "--store-capacity":
+                storeCapacity = Integer.parseInt(args[++i]);
+                break;
+            default:
+                positional.add(args[i]);
+            }
+        }
+        String dataDirectory = positional.size() > 0 ? positional.get(0) : "library-data";
+        int port = positional.size() > 1 ? Integer.parseInt(positional.get(1)) : 8080;
+        InetSocketAddress replicationAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                Math.max(0, replicationPort));
+        MappedBookStore mappedStore;
+        if (store.equals("mapped")) {
+            // A replica's books come from its primary, so its store starts empty; a primary keeps a
+            // store closed cleanly, and otherwise refills it from the journal
+            mappedStore = replicaOf != null ? MappedBookStore.create(Paths.get(dataDirectory, "books"), storeCapacity)
+                    : Journal.openStore(Paths.get(dataDirectory), storeCapacity);
+        } else if (store.equals("heap")) {
+            mappedStore = null;
+        } else {
+            throw new IllegalArgumentException("Unknown book store " + store + "; use heap or mapped");
+        }
+        Library library = mappedStore != null ? new Library(mappedStore, true) : new Library(true);
+        LibraryServer server;
+        if (replicaOf != null) {
+            // Follow the primary; the data directory is only written once promoted
+            int colon = replicaOf.lastIndexOf(':');
+            InetSocketAddress primary = new InetSocketAddress(replicaOf.substring(0, colon),
+                    Integer.parseInt(replicaOf.substring(colon + 1)));
+            // Snapshots would copy every book onto the heap, so a mapped store is read directly
+            library.setSnapshotReads(mappedStore == null);
+            library.getMetrics().register();
+            Replica replica = new Replica(library, primary, Paths.get(dataDirectory), replicationAddress);
+            server = new LibraryServer(library, new InetSocketAddress(bindAddress, port),
+                    Math.max(8, Runtime.getRuntime().availableProcessors() * 4));
+            server.setReplica(replica, maxStaleness);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                    replica.close();
+                    if (mappedStore != null) {
+                        mappedStore.close();
+                    }
+                } catch (IOException e) {
+                    System.out.printf("Failed to save library data: %s\n", e.getMessage());
+                }
+            }));
+            replica.start();
+            System.out.printf("Replicating %s\n", replicaOf);
+        } else {
+            Journal journal = Journal.open(Paths.get(dataDirectory), library,
+                    mappedStore == null ? 0 : mappedStore.getCheckpoint());
+            // Publish changes to the event log, numbering them on from the last run
+            EventBus events = new EventBus();
+            EventLog eventLog = EventLog.open(Paths.get(dataDirectory), events);
+            library.setEventBus(events);
+            // Record loans as they are returned, after the journal has replayed the ones already recorded
+            LoanHistory history = LoanHistory.open(Paths.get(dataDirectory));
+            library.setLoanHistory(history);
+            // Snapshots would copy every book onto the heap, so a mapped store is read directly
+            library.setSnapshotReads(mappedStore == null);
+            library.getMetrics().register();
+            ReplicationSource source = replicationPort < 0 ? null : ReplicationSource.start(journal, replicationAddress);
+            server = new LibraryServer(library, new InetSocketAddress(bindAddress, port),
+                    Math.max(8, Runtime.getRuntime().availableProcessors() * 4));
+            server.setReplicationSource(source);
+            // Stop serving and save pending changes when the process is stopped
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    server.close();
+                    if (source != null) {
+                        source.close();
+                    }
+                    history.close();
+                    eventLog.close();
+                    journal.close();
+                    if (mappedStore != null) {
+                        journal.checkpoint(mappedStore);
+                        mappedStore.close();
+                    }
+                } catch (IOException e) {
+                    System.out.printf("Failed to save library data: %s\n", e.getMessage());
+                }
+            }));
+            if (source != null) {
+                System.out.printf("Replicating on port %d\n", source.getPort());
+            }
+        }
+        server.start();
+        // Log each loan as it becomes overdue
+        OverdueSweeper sweeper = new OverdueSweeper(library, loan -> System.out.printf("Overdue: %s", loan.formatInfo()));
+        sweeper.start(Duration.ofMinutes(1));
+        System.out.printf("Serving library from %s on port %d\n", dataDirectory, server.getPort());
+        server.join();
+    }
+}
@@ -0,0 +1,233 @@
+package library;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how long listing the whole catalog takes to show its first book and to finish,
+ * for the full dump as it was, printing each line to a PrintStream that flushes per line,
+ * for the full dump through a buffered sink, for paged listing, and for the lazy stream.
+ * Output goes to a temporary file, and the time to first row is when the first book and the
+ * separators around it have reached the file.
+ * A million books need a heap of about 2 GB: java -Xmx2g library.ListingBenchmark
+ *
+ * Usage: java library.ListingBenchmark [--books 1000000] [--page 20] [--runs 3]
+ */
+public class ListingBenchmark {
+
+    /**
+     * The number of books added per call of addBooks while populating.
+     */
+    private static final int BATCH = 10000;
+
+    /**
+     * The separator printed before and after each book.
+     */
+    private static final String SEPARATOR = "--------------------";
+
+    /**
+     * An output stream recording when it has received the first row of a listing and how many
+     * bytes it received.
+     */
+    private static class TimedStream extends OutputStream {
+
+        /**
+         * The stream receiving the bytes.
+         */
+        private final OutputStream out;
+        /**
+         * The number of bytes up to the end of the first row.
+         */
+        private final long rowBytes;
+        /**
+         * The time the first row was written, or 0 before it.
+         */
+        private long firstRow;
+        /**
+         * The number of bytes written.
+         */
+        private long bytes;
+
+        /**
+         * Constructs a TimedStream writing to a stream.
+         *
+         * @param out      the stream receiving the bytes
+         * @param rowBytes the number of bytes up to the end of the first row
+         */
+        TimedStream(OutputStream out, long rowBytes) {
+            this.out = out;
+            this.rowBytes = rowBytes;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            written(1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            written(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+
+        /**
+         * Counts written bytes, recording the time once the first row is complete.
+         *
+         * @param length the number of bytes written
+         */
+        private void written(int length) {
+            bytes += length;
+            if (firstRow == 0 && bytes >= rowBytes) {
+                firstRow = System.nanoTime();
+            }
+        }
+    }
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     * @throws IOException if the output file cannot be written
+     */
+    public static void main(String[] args) throws IOException {
+        int bookCount = 1000000;
+        int pageSize = 20;
+        int runs = 3;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--books":
+                bookCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "--page":
+                pageSize = Integer.parseInt(args[i + 1]);
+                break;
+            case "--runs":
+                runs = Integer.parseInt(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        Library library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        library.getMetrics().setEnabled(false);
+        List<Book> books = new ArrayList<Book>(BATCH);
+        for (int b = 0; b < bookCount; b++) {
+            books.add(new Book("Title " + b, "Author " + (b % 100000), isbn(b), 1900 + b % 125, 1));
+            if (books.size() == BATCH || b == bookCount - 1) {
+                library.addBooks(books);
+                books.clear();
+            }
+        }
+
+        // The first row is the separator, the first book and the separator after it
+        String lineSeparator = System.lineSeparator();
+        long rowBytes = 2 * (SEPARATOR + lineSeparator).length()
+                + library.streamBooks().findFirst().get().formatInfo().length();
+        Path file = Files.createTempFile("listing-benchmark", ".txt");
+        try {
+            System.out.printf(Locale.ROOT, "%-28s %14s %12s %12s\n", "listing", "first row ms", "total ms", "MB written");
+            for (String listing : new String[] { "full dump, line per print", "full dump, buffered sink",
+                    "first page", "all pages", "stream, first book" }) {
+                double best = Double.MAX_VALUE;
+                double bestTotal = Double.MAX_VALUE;
+                long bytes = 0;
+                for (int run = 0; run < runs; run++) {
+                    try (TimedStream out = new TimedStream(new FileOutputStream(file.toFile()), rowBytes)) {
+                        long start = System.nanoTime();
+                        long firstRow = list(library, listing, pageSize, out);
+                        long end = System.nanoTime();
+                        if (firstRow == 0) {
+                            firstRow = out.firstRow;
+                        }
+                        best = Math.min(best, (firstRow - start) / 1e6);
+                        bestTotal = Math.min(bestTotal, (end - start) / 1e6);
+                        bytes = out.bytes;
+                    }
+                }
+                System.out.printf(Locale.ROOT, "%-28s %14.3f %12.1f %12.1f\n", listing, best, bestTotal, bytes / 1e6);
+            }
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    /**
+     * Lists the catalog one way to a stream.
+     *
+     * @param library  the library
+     * @param listing  the way to list the catalog
+     * @param pageSize the number of books per page
+     * @param out      the stream receiving the listing
+     * @return the time the first book was read, for listings that write nothing, or 0
+     */
+    private static long list(Library library, String listing, int pageSize, OutputStream out) {
+        switch (listing) {
+        case "full dump, line per print":
+            // Print each line of each book and flush it, as displayAllBooksInfo did on System.out
+            PrintStream printer = new PrintStream(out, true);
+            printer.println(SEPARATOR);
+            for (Book book : (Iterable<Book>) library.streamBooks()::iterator) {
+                for (String line : book.formatInfo().split(System.lineSeparator())) {
+                    printer.println(line);
+                }
+                printer.println(SEPARATOR);
+            }
+            printer.flush();
+            return 0;
+        case "full dump, buffered sink":
+            library.setOutput(new WriterSink(new OutputStreamWriter(out)));
+            library.displayAllBooksInfo();
+            library.setOutput(OutputSink.SILENT);
+            return 0;
+        case "first page":
+            library.setOutput(new WriterSink(new OutputStreamWriter(out)));
+            library.displayBooksPage(new BookFilter(), null, pageSize);
+            library.setOutput(OutputSink.SILENT);
+            return 0;
+        case "all pages":
+            library.setOutput(new WriterSink(new OutputStreamWriter(out)));
+            String cursor = null;
+            do {
+                cursor = library.displayBooksPage(new BookFilter(), cursor, pageSize);
+            } while (cursor != null);
+            library.setOutput(OutputSink.SILENT);
+            return 0;
+        case "stream, first book":
+            library.streamBooks().findFirst();
+            return System.nanoTime();
+        default:
+            throw new IllegalArgumentException("Unknown listing " + listing);
+        }
+    }
+
+    /**
+     * Returns the ISBN of the i-th book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+}
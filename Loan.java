@@ -0,0 +1,95 @@
+package library;
+
+import java.time.Instant;
+
+public class Loan {
+    
+    // Loan attributes
+    private final String ISBN;
+    private final int copy;
+    private final String readerId;
+    private final long checkoutTime;
+    private final long dueTime;
+    
+    /**
+     * Constructs a Loan object with the specified copy, reader and times.
+     *
+     * @param ISBN         the ISBN of the borrowed book
+     * @param copy         the number of the borrowed copy, from 1
+     * @param readerId     the ID of the borrowing reader
+     * @param checkoutTime the time the book was borrowed, in epoch milliseconds
+     * @param dueTime      the time the book is due back, in epoch milliseconds
+     */
+    public Loan(String ISBN, int copy, String readerId, long checkoutTime, long dueTime) {
+        this.ISBN = ISBN;
+        this.copy = copy;
+        this.readerId = readerId;
+        this.checkoutTime = checkoutTime;
+        this.dueTime = dueTime;
+    }
+    
+    /**
+     * Returns whether the book is overdue at a given time.
+     *
+     * @param now the time, in epoch milliseconds
+     * @return true if the due time has passed
+     */
+    public boolean isOverdue(long now) {
+        return dueTime < now;
+    }
+    
+    /**
+     * Formats the loan as a one-line message.
+     *
+     * @return the loan information, ending with a line break
+     */
+    public String formatInfo() {
+        return String.format("Book ISBN %s copy %d borrowed by Reader ID %s on %s, due %s\n",
+                ISBN, copy, readerId, Instant.ofEpochMilli(checkoutTime), Instant.ofEpochMilli(dueTime));
+    }
+    
+    /**
+     * Returns the ISBN of the borrowed book.
+     *
+     * @return the ISBN of the book
+     */
+    public String getISBN() {
+        return ISBN;
+    }
+    
+    /**
+     * Returns the number of the borrowed copy.
+     *
+     * @return the copy number, from 1
+     */
+    public int getCopy() {
+        return copy;
+    }
+    
+    /**
+     * Returns the ID of the borrowing reader.
+     *
+     * @return the reader ID
+     */
+    public String getReaderId() {
+        return readerId;
+    }
+    
+    /**
+     * Returns the time the book was borrowed.
+     *
+     * @return the checkout time, in epoch milliseconds
+     */
+    public long getCheckoutTime() {
+        return checkoutTime;
+    }
+    
+    /**
+     * Returns the time the book is due back.
+     *
+     * @return the due time, in epoch milliseconds
+     */
+    public long getDueTime() {
+        return dueTime;
+    }
+}
@@ -0,0 +1,132 @@
+package library;
+
+import java.util.Comparator;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntSupplier;
+
+/**
+ * Measures the loan due-time index with many active loans.
+ * Compares overdue and next-due queries against a full scan of every loan, and measures
+ * the cost of borrowing and returning against the populated index.
+ * Ten million loans need a heap of about 4 GB: java -Xmx4g library.LoanBenchmark
+ *
+ * Usage: java library.LoanBenchmark [--loans 10000000] [--results 100] [--seconds 2]
+ */
+public class LoanBenchmark {
+    
+    /**
+     * The span over which due times are spread, 30 days in milliseconds.
+     */
+    private static final long DUE_SPAN = 30L * 24 * 60 * 60 * 1000;
+    /**
+     * The loan period, 14 days in milliseconds.
+     */
+    private static final long LOAN_PERIOD = 14L * 24 * 60 * 60 * 1000;
+    /**
+     * The number of readers the loans are spread over.
+     */
+    private static final int READERS = 1000000;
+    
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     */
+    public static void main(String[] args) {
+        int loans = 10000000;
+        int results = 100;
+        double seconds = 2;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--loans":
+                loans = Integer.parseInt(args[i + 1]);
+                break;
+            case "--results":
+                results = Integer.parseInt(args[i + 1]);
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        
+        // Populate the index with loans due over the span; "now" is its midpoint
+        long start = System.nanoTime();
+        LoanIndex index = new LoanIndex();
+        String[] readerIds = new String[READERS];
+        for (int i = 0; i < READERS; i++) {
+            readerIds[i] = "R" + i;
+        }
+        Loan[] active = new Loan[loans];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = 0; i < loans; i++) {
+            long due = random.nextLong(DUE_SPAN);
+            active[i] = new Loan(String.format("978%010d", i), 1, readerIds[i % READERS], due - LOAN_PERIOD, due);
+            index.add(active[i]);
+        }
+        System.out.printf("Populated %d loans in %.1f s\n", index.size(), (System.nanoTime() - start) / 1e9);
+        long now = DUE_SPAN / 2;
+        final int k = results;
+        
+        measure("overdue (first " + k + ")", seconds, () -> index.overdue(now, k).size());
+        measure("nextDue (" + k + ")", seconds, () -> index.nextDue(now, k).size());
+        measure("full scan for " + k + " overdue", seconds, () -> scan(active, now, k));
+        measure("return + borrow", seconds, () -> {
+            // Replace a random loan with one due at another time, as a return and borrow would
+            int i = ThreadLocalRandom.current().nextInt(active.length);
+            Loan old = active[i];
+            index.remove(old);
+            long due = ThreadLocalRandom.current().nextLong(DUE_SPAN);
+            active[i] = new Loan(old.getISBN(), old.getCopy(), old.getReaderId(), due - LOAN_PERIOD, due);
+            index.add(active[i]);
+            return 1;
+        });
+    }
+    
+    /**
+     * Finds overdue loans the way a library without a due-time index must: by visiting every loan.
+     * Every overdue loan must be visited to return the earliest due ones first.
+     *
+     * @param active the active loans
+     * @param now    the time, in epoch milliseconds
+     * @param k      the number of overdue loans to find
+     * @return the number of overdue loans found, at most k
+     */
+    private static int scan(Loan[] active, long now, int k) {
+        PriorityQueue<Loan> earliest = new PriorityQueue<Loan>(k + 1,
+                Comparator.comparingLong(Loan::getDueTime).reversed());
+        for (Loan loan : active) {
+            if (loan.isOverdue(now)) {
+                earliest.add(loan);
+                if (earliest.size() > k) {
+                    earliest.poll();
+                }
+            }
+        }
+        return earliest.size();
+    }
+    
+    /**
+     * Runs an operation repeatedly for a period and prints its average latency.
+     *
+     * @param name      the name of the operation
+     * @param seconds   the length of the period
+     * @param operation the operation, returning a value so it is not optimized away
+     */
+    private static void measure(String name, double seconds, IntSupplier operation) {
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long runs = 0;
+        long sink = 0;
+        do {
+            sink += operation.getAsInt();
+            runs++;
+        } while (System.nanoTime() < deadline);
+        double microseconds = (System.nanoTime() - start) / 1e3 / runs;
+        System.out.printf(Locale.ROOT, "%-32s %14.2f us/op  (%d runs, checksum %d)\n", name, microseconds, runs, sink);
+    }
+}
@@ -0,0 +1,407 @@
+package library;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only history of completed loans, kept in columns for fast aggregation.
+ * Each returned loan adds one row of four columns: the book, the reader, the checkout time
+ * and the return time. ISBNs and reader IDs are stored once in dictionaries and rows hold
+ * their numbers, so a row takes 24 bytes. Rows live in fixed-size chunks that aggregations
+ * scan in parallel on the fork-join pool of the caller, or the common pool.
+ * <p>
+ * The history is appended to a file in checksummed blocks of rows and dictionary entries, and
+ * read back when opened; a torn block at the end of the file is dropped. Blocks are written
+ * as they fill and forced to disk when the history is closed, so after a crash the history
+ * may miss the last few returns.
+ */
+public class LoanHistory implements Closeable {
+
+    /**
+     * The number of bits of a row number that select the row within its chunk.
+     */
+    private static final int CHUNK_BITS = 16;
+    /**
+     * The number of rows in a chunk.
+     */
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    /**
+     * The size at which a block of pending records is written to the file.
+     */
+    private static final int BLOCK_BYTES = 1 << 16;
+    /**
+     * The longest block the file can hold; a longer length read from the file marks a torn block.
+     */
+    private static final int MAX_BLOCK_BYTES = 1 << 24;
+    /**
+     * Record tags within a block.
+     */
+    private static final byte BOOK = 'B', READER = 'R', LOAN = 'L';
+
+    /**
+     * The channel appending to the history file, or null if the history is only kept in memory.
+     */
+    private final FileChannel channel;
+    /**
+     * The numbers of the ISBNs, in order of first loan. Guarded by this.
+     */
+    private final Map<String, Integer> bookNumbers = new HashMap<String, Integer>();
+    /**
+     * The ISBNs, by number. Guarded by this.
+     */
+    private final List<String> ISBNs = new ArrayList<String>();
+    /**
+     * The numbers of the reader IDs, in order of first loan. Guarded by this.
+     */
+    private final Map<String, Integer> readerNumbers = new HashMap<String, Integer>();
+    /**
+     * The reader IDs, by number. Guarded by this.
+     */
+    private final List<String> readerIds = new ArrayList<String>();
+    /**
+     * The chunks of rows; a chunk is added once the last one is full.
+     */
+    private volatile Chunk[] chunks = new Chunk[0];
+    /**
+     * The number of rows. Rows below it are fully written.
+     */
+    private volatile long size;
+    /**
+     * Records encoded but not yet written to the file. Guarded by this.
+     */
+    private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+    /**
+     * Encoder writing into the pending records.
+     */
+    private final DataOutputStream pendingOut = new DataOutputStream(pending);
+
+    /**
+     * The columns of a run of rows.
+     */
+    private static final class Chunk {
+        final int[] books = new int[CHUNK_SIZE];
+        final int[] readers = new int[CHUNK_SIZE];
+        final long[] checkoutTimes = new long[CHUNK_SIZE];
+        final long[] returnTimes = new long[CHUNK_SIZE];
+    }
+
+    /**
+     * Constructs a history, reading the blocks of its file.
+     *
+     * @param file the history file, or null to keep the history only in memory
+     * @throws IOException if the file cannot be read or opened
+     */
+    private LoanHistory(Path file) throws IOException {
+        if (file == null) {
+            channel = null;
+            return;
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long valid = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            byte[] block;
+            while ((block = readBlock(in)) != null) {
+                replay(block);
+                valid += 8 + block.length;
+            }
+        }
+        channel.truncate(valid);
+        channel.position(valid);
+    }
+
+    /**
+     * Opens the loan history in a directory, creating it if needed.
+     *
+     * @param directory the directory holding the history
+     * @return the opened history
+     * @throws IOException if the history cannot be read or created
+     */
+    public static LoanHistory open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        return new LoanHistory(directory.resolve("loans.history"));
+    }
+
+    /**
+     * Returns an empty history kept only in memory.
+     *
+     * @return the history
+     */
+    public static LoanHistory inMemory() {
+        try {
+            return new LoanHistory(null);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Appends a completed loan.
+     *
+     * @param ISBN         the ISBN of the borrowed book
+     * @param readerId     the ID of the borrowing reader
+     * @param checkoutTime the time the book was borrowed, in epoch milliseconds
+     * @param returnTime   the time the book was returned, in epoch milliseconds
+     * @throws UncheckedIOException if a full block cannot be written
+     */
+    public synchronized void append(String ISBN, String readerId, long checkoutTime, long returnTime) {
+        try {
+            int book = number(ISBN, bookNumbers, ISBNs, BOOK);
+            int reader = number(readerId, readerNumbers, readerIds, READER);
+            add(book, reader, checkoutTime, returnTime);
+            if (channel != null) {
+                pendingOut.writeByte(LOAN);
+                pendingOut.writeInt(book);
+                pendingOut.writeInt(reader);
+                pendingOut.writeLong(checkoutTime);
+                pendingOut.writeLong(returnTime);
+                if (pending.size() >= BLOCK_BYTES) {
+                    flush();
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the number of a key, numbering it and recording it for the file if it is new.
+     *
+     * @param key     the ISBN or reader ID
+     * @param numbers the numbers of the keys
+     * @param keys    the keys, by number
+     * @param tag     the tag recording a new key in the file
+     * @return the number of the key
+     * @throws IOException if the key cannot be encoded
+     */
+    private int number(String key, Map<String, Integer> numbers, List<String> keys, byte tag) throws IOException {
+        Integer number = numbers.get(key);
+        if (number != null) {
+            return number;
+        }
+        numbers.put(key, keys.size());
+        keys.add(key);
+        if (channel != null) {
+            pendingOut.writeByte(tag);
+            pendingOut.writeUTF(key);
+        }
+        return keys.size() - 1;
+    }
+
+    /**
+     * Adds a row to the columns, adding a chunk if the last one is full. Called with this held.
+     *
+     * @param book         the number of the ISBN
+     * @param reader       the number of the reader ID
+     * @param checkoutTime the checkout time
+     * @param returnTime   the return time
+     */
+    private void add(int book, int reader, long checkoutTime, long returnTime) {
+        long row = size;
+        int index = (int) (row & (CHUNK_SIZE - 1));
+        Chunk[] current = chunks;
+        if (index == 0 && (row >>> CHUNK_BITS) == current.length) {
+            current = Arrays.copyOf(current, current.length + 1);
+            current[current.length - 1] = new Chunk();
+            chunks = current;
+        }
+        Chunk chunk = current[(int) (row >>> CHUNK_BITS)];
+        chunk.books[index] = book;
+        chunk.readers[index] = reader;
+        chunk.checkoutTimes[index] = checkoutTime;
+        chunk.returnTimes[index] = returnTime;
+        // Publish the row only once its columns are written
+        size = row + 1;
+    }
+
+    /**
+     * Adds the records of a block read from the file.
+     *
+     * @param block the records of the block
+     * @throws IOException if a record is malformed
+     */
+    private void replay(byte[] block) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(block));
+        while (in.available() > 0) {
+            byte tag = in.readByte();
+            if (tag == BOOK) {
+                String ISBN = in.readUTF();
+                bookNumbers.put(ISBN, ISBNs.size());
+                ISBNs.add(ISBN);
+            } else if (tag == READER) {
+                String readerId = in.readUTF();
+                readerNumbers.put(readerId, readerIds.size());
+                readerIds.add(readerId);
+            } else if (tag == LOAN) {
+                add(in.readInt(), in.readInt(), in.readLong(), in.readLong());
+            } else {
+                throw new IOException("Unknown loan history record " + tag);
+            }
+        }
+    }
+
+    /**
+     * Reads one framed block.
+     *
+     * @param in the decoder over the file
+     * @return the records of the block, or null if no whole block with a valid checksum was left
+     * @throws IOException if the file cannot be read
+     */
+    private static byte[] readBlock(DataInputStream in) throws IOException {
+        byte[] block;
+        int checksum;
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > MAX_BLOCK_BYTES) {
+                return null;
+            }
+            checksum = in.readInt();
+            block = new byte[length];
+            in.readFully(block);
+        } catch (EOFException e) {
+            return null;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(block, 0, block.length);
+        return (int) crc.getValue() == checksum ? block : null;
+    }
+
+    /**
+     * Writes the pending records to the file as one block.
+     *
+     * @throws IOException if the block cannot be written
+     */
+    public synchronized void flush() throws IOException {
+        if (channel == null || pending.size() == 0) {
+            return;
+        }
+        byte[] records = pending.toByteArray();
+        pending.reset();
+        CRC32 crc = new CRC32();
+        crc.update(records, 0, records.length);
+        ByteBuffer buffer = ByteBuffer.allocate(8 + records.length);
+        buffer.putInt(records.length).putInt((int) crc.getValue()).put(records).flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Writes the pending records, forces them to disk and closes the file.
+     *
+     * @throws IOException if the file cannot be written or closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        flush();
+        channel.force(false);
+        channel.close();
+    }
+
+    /**
+     * Returns the number of completed loans.
+     *
+     * @return the number of rows
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Counts the loans of each book checked out in a period, scanning chunks in parallel.
+     *
+     * @param from the start of the period, in epoch milliseconds, inclusive
+     * @param to   the end of the period, in epoch milliseconds, exclusive
+     * @return the counts, indexed like the ISBNs returned by {@link #books()} afterwards
+     */
+    public long[] countByBook(long from, long to) {
+        return count(true, from, to);
+    }
+
+    /**
+     * Counts the loans of each reader checked out in a period, scanning chunks in parallel.
+     *
+     * @param from the start of the period, in epoch milliseconds, inclusive
+     * @param to   the end of the period, in epoch milliseconds, exclusive
+     * @return the counts, indexed like the reader IDs returned by {@link #readers()} afterwards
+     */
+    public long[] countByReader(long from, long to) {
+        return count(false, from, to);
+    }
+
+    /**
+     * Counts the loans checked out in a period by book or by reader.
+     * Each fork-join task counts into its own array over a range of chunks, and the arrays
+     * are added together as tasks complete.
+     *
+     * @param byBook whether to count by book rather than by reader
+     * @param from   the start of the period, inclusive
+     * @param to     the end of the period, exclusive
+     * @return the counts, by number
+     */
+    private long[] count(boolean byBook, long from, long to) {
+        // Read the row count first; the chunks and dictionary entries of those rows are visible after it
+        long rows = size;
+        Chunk[] scanned = chunks;
+        int keys;
+        synchronized (this) {
+            keys = byBook ? ISBNs.size() : readerIds.size();
+        }
+        int chunkCount = (int) ((rows + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+        return IntStream.range(0, chunkCount).parallel().collect(() -> new long[keys], (counts, c) -> {
+            Chunk chunk = scanned[c];
+            int[] column = byBook ? chunk.books : chunk.readers;
+            long[] checkoutTimes = chunk.checkoutTimes;
+            int end = (int) Math.min(CHUNK_SIZE, rows - ((long) c << CHUNK_BITS));
+            for (int i = 0; i < end; i++) {
+                long checkoutTime = checkoutTimes[i];
+                if (checkoutTime >= from && checkoutTime < to) {
+                    counts[column[i]]++;
+                }
+            }
+        }, (counts, more) -> {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += more[i];
+            }
+        });
+    }
+
+    /**
+     * Returns the ISBNs of the books in the history, by number.
+     *
+     * @return the ISBNs
+     */
+    public synchronized String[] books() {
+        return ISBNs.toArray(new String[0]);
+    }
+
+    /**
+     * Returns the IDs of the readers in the history, by number.
+     *
+     * @return the reader IDs
+     */
+    public synchronized String[] readers() {
+        return readerIds.toArray(new String[0]);
+    }
+}
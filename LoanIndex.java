@@ -0,0 +1,133 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The active loans, ordered by due time.
+ * The due-time order is a skip list acting as a priority queue that also supports removal,
+ * so finding the k loans due first or overdue costs O(log n + k) rather than a catalog scan.
+ * Loans are found by book through the library's holdings and removed here by identity.
+ */
+public class LoanIndex {
+    
+    /**
+     * Orders loans by due time, then by ISBN and copy so loans due at the same time stay distinct.
+     */
+    static final Comparator<Loan> BY_DUE_TIME = Comparator.comparingLong(Loan::getDueTime)
+            .thenComparing(Loan::getISBN).thenComparingInt(Loan::getCopy);
+    
+    /**
+     * The number of active loans, kept apart because a skip list counts its elements one by one.
+     */
+    private final AtomicInteger count = new AtomicInteger();
+    /**
+     * The active loans, ordered by due time.
+     */
+    private final NavigableSet<Loan> byDueTime = new ConcurrentSkipListSet<Loan>(BY_DUE_TIME);
+    
+    /**
+     * Adds a loan.
+     *
+     * @param loan the loan
+     */
+    public void add(Loan loan) {
+        if (byDueTime.add(loan)) {
+            count.incrementAndGet();
+        }
+    }
+    
+    /**
+     * Removes a loan.
+     *
+     * @param loan the loan
+     * @return true if the loan was in the index
+     */
+    public boolean remove(Loan loan) {
+        if (byDueTime.remove(loan)) {
+            count.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+    
+    /**
+     * Returns whether a loan is in the index.
+     *
+     * @param loan the loan
+     * @return true if the loan is in the index
+     */
+    public boolean contains(Loan loan) {
+        return byDueTime.contains(loan);
+    }
+    
+    /**
+     * Returns the number of active loans.
+     *
+     * @return the number of loans
+     */
+    public int size() {
+        return count.get();
+    }
+    
+    /**
+     * Returns the loans ordered after a given loan and due before a time, earliest due first.
+     * Passing the last loan returned continues a previous call.
+     *
+     * @param after the loan to continue after, exclusive; see probe to start at a due time
+     * @param to    the latest due time, in epoch milliseconds (exclusive)
+     * @param limit the maximum number of loans to return
+     * @return the loans
+     */
+    public List<Loan> dueAfter(Loan after, long to, int limit) {
+        List<Loan> due = new ArrayList<Loan>();
+        Loan end = probe(to);
+        if (BY_DUE_TIME.compare(after, end) >= 0) {
+            return due;
+        }
+        for (Loan loan : byDueTime.subSet(after, false, end, false)) {
+            if (due.size() == limit) {
+                break;
+            }
+            due.add(loan);
+        }
+        return due;
+    }
+    
+    /**
+     * Returns the loans overdue at a given time, earliest due first.
+     *
+     * @param now   the time, in epoch milliseconds
+     * @param limit the maximum number of loans to return
+     * @return the overdue loans
+     */
+    public List<Loan> overdue(long now, int limit) {
+        return dueAfter(probe(Long.MIN_VALUE), now, limit);
+    }
+    
+    /**
+     * Returns the loans next to become overdue after a given time, earliest due first.
+     *
+     * @param now   the time, in epoch milliseconds
+     * @param count the maximum number of loans to return
+     * @return the loans not yet overdue
+     */
+    public List<Loan> nextDue(long now, int count) {
+        return dueAfter(probe(now), Long.MAX_VALUE, count);
+    }
+    
+    /**
+     * Returns a placeholder loan ordered before every real loan due at a given time,
+     * to start a range at that time.
+     *
+     * @param dueTime the due time
+     * @return the probe loan
+     */
+    static Loan probe(long dueTime) {
+        return new Loan("", 0, "", 0, dueTime);
+    }
+}
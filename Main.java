@@ -1,9 +1,24 @@
 package library;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.Scanner;
 
+import javax.management.JMException;
+
 public class Main {
 	
+    /**
+     * The number of books or readers shown per page of a listing.
+     */
+	private static final int PAGE_SIZE = 20;
+	
     /**
      * Prompts the user for an integer input within a specified range.
      * Repeats the prompt until a valid input is provided.
@@ -87,11 +102,12 @@ public class Main {
 			System.out.println("1. Book Management");
 			System.out.println("2. Reader Management");
 			System.out.println("3. Borrowing and Returning");
+			System.out.println("4. Display Metrics");
 			System.out.println("0. Exit");
 			System.out.println("-------------------------------------------------------");
 			
-			// Get user input between 0 and 3
-			choice = getUserInput(scanner, "choice", 0, 3);
+			// Get user input between 0 and 4
+			choice = getUserInput(scanner, "choice", 0, 4);
 			
 			// Get into sub-menu per choice
 			switch (choice) {
@@ -104,6 +120,9 @@ public class Main {
 			case 3:
 				displayBorrowReturnMenu(library, scanner);
 				break;
+			case 4:
+				System.out.print(library.getMetrics().getSnapshot());
+				break;
 			}
 			
 			System.out.println();
@@ -137,11 +156,14 @@ public class Main {
 			System.out.println("3. Update book details by ISBN");
 			System.out.println("4. Display all books information");
 			System.out.println("5. Search book information by ISBN");
+			System.out.println("6. Import books from file");
+			System.out.println("7. Search books by title or author");
+			System.out.println("8. Set number of copies by ISBN");
 			System.out.println("0. Back to Main Menu");
 			System.out.println("-------------------------------------------------------");
 			
-			// Get user input between 0 and 4
-			choice = getUserInput(scanner, "choice", 0, 5);
+			// Get user input between 0 and 8
+			choice = getUserInput(scanner, "choice", 0, 8);
 			
 			// Call library methods per choice
 			switch (choice) {
@@ -164,12 +186,24 @@ public class Main {
 				library.updateBook(ISBN, title, author, publicationYear);
 				break;
 			case 4:
-				library.displayAllBooksInfo();
+				displayPaged(library, scanner, true);
 				break;
 			case 5:
 				ISBN = getUserInput(scanner, "ISBN");
 				library.displayBookInfo(ISBN);
 				break;
+			case 6:
+				importFile(library, scanner, true);
+				break;
+			case 7:
+				String query = getUserInput(scanner, "words (end a word with * to match its prefix)");
+				library.displaySearchResults(query, 20);
+				break;
+			case 8:
+				ISBN = getUserInput(scanner, "ISBN");
+				int copies = getUserInput(scanner, "number of copies", 1, 10000);
+				library.setCopies(ISBN, copies);
+				break;
 			}
 			
 			System.out.println();
@@ -200,11 +234,14 @@ public class Main {
 			System.out.println("2. Remove reader by ID");
 			System.out.println("3. Display all readers information");
 			System.out.println("4. Search reader information by ISBN");
+			System.out.println("5. Import readers from file");
+			System.out.println("6. Display books borrowed by reader");
+			System.out.println("7. Find readers by name or contact");
 			System.out.println("0. Back to Main Menu");
 			System.out.println("-------------------------------------------------------");
 			
-			// Get user input between 0 and 4
-			choice = getUserInput(scanner, "choice", 0, 4);
+			// Get user input between 0 and 7
+			choice = getUserInput(scanner, "choice", 0, 7);
 			
 			// Call library methods per choice
 			switch (choice) {
@@ -219,18 +256,66 @@ public class Main {
 				library.removeReader(readerId);
 				break;
 			case 3:
-				library.displayAllReadersInfo();
+				displayPaged(library, scanner, false);
 				break;
 			case 4:
 				readerId = getUserInput(scanner, "reader ID");
 				library.displayReaderInfo(readerId);
 				break;
+			case 5:
+				importFile(library, scanner, false);
+				break;
+			case 6:
+				readerId = getUserInput(scanner, "reader ID");
+				library.displayReaderLoans(readerId);
+				break;
+			case 7:
+				String text = getUserInput(scanner, "start of a name or contact");
+				library.displayMatchingReaders(text, 20);
+				break;
 			}
 			
 			System.out.println();
 		}
 	}
 	
+    // Listing method
+    /**
+     * Displays all books or readers a page at a time.
+     * Asks before showing each further page.
+     *
+     * @param library  the Library object
+     * @param scanner  the Scanner object for user input
+     * @param books    whether to list books rather than readers
+     */
+	public static void displayPaged(Library library, Scanner scanner, boolean books) {
+		String cursor = null;
+		do {
+			cursor = books ? library.displayBooksPage(new BookFilter(), cursor, PAGE_SIZE)
+					: library.displayReadersPage(cursor, PAGE_SIZE);
+		} while (cursor != null && getUserInput(scanner, "1 for the next page or 0 to stop", 0, 1) == 1);
+	}
+	
+    // Import method
+    /**
+     * Prompts for a file of books or readers and loads it into the library.
+     * Shows a summary of added, duplicate and malformed records.
+     *
+     * @param library  the Library object
+     * @param scanner  the Scanner object for user input
+     * @param books    whether the file holds books rather than readers
+     */
+	public static void importFile(Library library, Scanner scanner, boolean books) {
+		String file = getUserInput(scanner, "file path");
+		BulkLoader loader = new BulkLoader(library);
+		try {
+			ImportReport report = books ? loader.importBooks(Paths.get(file)) : loader.importReaders(Paths.get(file));
+			report.displayInfo(library.getOutput());
+		} catch (IOException | InvalidPathException e) {
+			System.out.printf("Failed to import %s: %s\n", file, e.getMessage());
+		}
+	}
+	
     // Borrow and Return menu method
     /**
      * Displays the borrowing and returning menu and handles user input for borrowing and returning operations.
@@ -253,11 +338,14 @@ public class Main {
 			System.out.println("-------------------------------------------------------");
 			System.out.println("1. Borrowing");
 			System.out.println("2. Returning");
+			System.out.println("3. Display overdue books");
+			System.out.println("4. Place hold");
+			System.out.println("5. Cancel hold");
 			System.out.println("0. Back to Main Menu");
 			System.out.println("-------------------------------------------------------");
 			
-			// Get user input between 0 and 2
-			choice = getUserInput(scanner, "choice", 0, 2);
+			// Get user input between 0 and 5
+			choice = getUserInput(scanner, "choice", 0, 5);
 			
 			// Call library methods per choice
 			switch (choice) {
@@ -271,25 +359,221 @@ public class Main {
 				ISBN = getUserInput(scanner, "ISBN");
 				library.returnBook(readerId, ISBN);
 				break;
+			case 3:
+				library.displayOverdueLoans(PAGE_SIZE);
+				break;
+			case 4:
+				readerId = getUserInput(scanner, "reader ID");
+				ISBN = getUserInput(scanner, "ISBN");
+				library.placeHold(readerId, ISBN);
+				break;
+			case 5:
+				readerId = getUserInput(scanner, "reader ID");
+				ISBN = getUserInput(scanner, "ISBN");
+				library.cancelHold(readerId, ISBN);
+				break;
 			}
 			
 			System.out.println();
 		}
 	}
 
+    // Batch mode method
+    /**
+     * Runs one-line commands without the menu, printing compact results.
+     * Exits with status 1 if any command failed, so scheduled jobs can detect it.
+     *
+     * @param library      the Library object
+     * @param journal      the journal to close once the commands have run
+     * @param eventLog     the event log to close once the commands have run
+     * @param history      the loan history to close once the commands have run
+     * @param mappedStore  the mapped book store to checkpoint and close once the commands have run, or null
+     * @param commandFile  the file of commands, or null or "-" to read standard input
+     * @param errorsOnly   whether to print only the commands that failed
+     */
+	public static void runBatch(Library library, Journal journal, EventLog eventLog, LoanHistory history,
+			MappedBookStore mappedStore, String commandFile, boolean errorsOnly) {
+		// Silence the library's own messages; the runner prints one line per command
+		library.setOutput(OutputSink.SILENT);
+		CommandRunner runner = new CommandRunner(library, WriterSink.console(), errorsOnly);
+		long failures = 0;
+		boolean saved;
+		try (BufferedReader in = commandFile == null || commandFile.equals("-")
+				? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16)
+				: Files.newBufferedReader(Paths.get(commandFile), StandardCharsets.UTF_8)) {
+			failures = runner.run(in);
+		} catch (IOException | InvalidPathException e) {
+			System.out.printf("Failed to read commands from %s: %s\n", commandFile, e.getMessage());
+			failures = 1;
+		} finally {
+			// Save pending changes before exiting, even if a command threw
+			saved = save(journal, eventLog, history, mappedStore);
+		}
+		if (failures > 0 || !saved) {
+			System.exit(1);
+		}
+	}
+
+    /**
+     * Closes the loan history, event log and journal, then closes the mapped book store, if any,
+     * even when saving the others failed. The store is checkpointed only once the journal is
+     * closed, since the next start skips replaying the books up to its checkpoint.
+     *
+     * @param journal     the journal to close
+     * @param eventLog    the event log to close
+     * @param history     the loan history to close
+     * @param mappedStore the mapped book store to checkpoint and close, or null
+     * @return whether everything was saved
+     */
+	private static boolean save(Journal journal, EventLog eventLog, LoanHistory history, MappedBookStore mappedStore) {
+		boolean journaled = false;
+		try {
+			history.close();
+			eventLog.close();
+			journal.close();
+			journaled = true;
+		} catch (IOException e) {
+			System.out.printf("Failed to save library data: %s\n", e.getMessage());
+		} finally {
+			if (mappedStore != null) {
+				try {
+					if (journaled) {
+						journal.checkpoint(mappedStore);
+					}
+					mappedStore.close();
+				} catch (IOException | UncheckedIOException e) {
+					System.out.printf("Failed to save the book store: %s\n", e.getMessage());
+					journaled = false;
+				}
+			}
+		}
+		return journaled;
+	}
+
+    /**
+     * Prints a problem with the command line and the options it takes, and exits with status 2.
+     *
+     * @param problem the problem with the command line
+     */
+	private static void exitWithUsage(String problem) {
+		System.out.println(problem);
+		System.out.println("Usage: java library.Main [data directory] [--batch [file]] [--errors-only]"
+				+ " [--store heap|mapped] [--store-capacity n]");
+		System.exit(2);
+	}
+	
     // Main method
     /**
      * The entry point of the program.
-     * Creates an instance of the Library class and a Scanner object.
-     * Calls the displayMainMenu method to start the library management system.
+     * Creates an instance of the Library class, restores its data from the data directory,
+     * and creates a Scanner object.
+     * Calls the displayMainMenu method to start the library management system, or runs
+     * commands without the menu in batch mode.
      *
-     * @param args  the command line arguments
+     * @param args  the command line arguments: [data directory] [--batch [file]] [--errors-only]
+     *              [--store heap|mapped] [--store-capacity n]; batch mode reads commands from the file,
+     *              or standard input if none is given, and a mapped store keeps the books off the heap
+     *              in the books directory of the data directory, rebuilt from the journal on start
      */
 	public static void main(String[] args) {
-		// Initialize library and scanner
-		Library library = new Library();
+		// Parse the command line
+		String dataDirectory = "library-data";
+		boolean batch = false;
+		String commandFile = null;
+		boolean errorsOnly = false;
+		String store = "heap";
+		int storeCapacity = 20000000;
+		for (int i = 0; i < args.length; i++) {
+			switch (args[i]) {
+			case "--batch":
+				batch = true;
+				if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+					commandFile = args[++i];
+				}
+				break;
+			case "--errors-only":
+				errorsOnly = true;
+				break;
+			case "--store":
+				if (i + 1 == args.length) {
+					exitWithUsage("Missing value for --store");
+				}
+				store = args[++i];
+				break;
+			case "--store-capacity":
+				if (i + 1 == args.length) {
+					exitWithUsage("Missing value for --store-capacity");
+				}
+				try {
+					storeCapacity = Integer.parseInt(args[++i]);
+				} catch (NumberFormatException e) {
+					exitWithUsage("Invalid store capacity " + args[i]);
+				}
+				break;
+			default:
+				// Anything else that looks like an option is a mistake, not a data directory
+				if (args[i].startsWith("-")) {
+					exitWithUsage("Unknown option " + args[i]);
+				}
+				dataDirectory = args[i];
+			}
+		}
+		
+		// Initialize library and restore saved data
+		Library library;
+		MappedBookStore mappedStore = null;
+		Journal journal;
+		EventLog eventLog;
+		LoanHistory history;
+		try {
+			if (store.equals("mapped")) {
+				// A store closed cleanly is kept; otherwise it starts empty and is refilled by replay
+				mappedStore = Journal.openStore(Paths.get(dataDirectory), storeCapacity);
+				library = new Library(mappedStore, false);
+			} else if (store.equals("heap")) {
+				library = new Library();
+			} else {
+				System.out.printf("Unknown book store %s; use heap or mapped\n", store);
+				return;
+			}
+			journal = Journal.open(Paths.get(dataDirectory), library, mappedStore == null ? 0 : mappedStore.getCheckpoint());
+			// Publish changes to the event log, numbering them on from the last run
+			EventBus events = new EventBus();
+			eventLog = EventLog.open(Paths.get(dataDirectory), events);
+			library.setEventBus(events);
+			// Record loans as they are returned, after the journal has replayed the ones already recorded
+			history = LoanHistory.open(Paths.get(dataDirectory));
+			library.setLoanHistory(history);
+		} catch (IOException e) {
+			System.out.printf("Failed to load library data from %s: %s\n", dataDirectory, e.getMessage());
+			if (mappedStore != null) {
+				try {
+					mappedStore.close();
+				} catch (IOException closeFailure) {
+					System.out.printf("Failed to close the book store: %s\n", closeFailure.getMessage());
+				}
+			}
+			return;
+		}
+		
+		if (batch) {
+			runBatch(library, journal, eventLog, history, mappedStore, commandFile, errorsOnly);
+			return;
+		}
+		
+		// Publish the metrics over JMX; the menu still shows them if this fails
+		try {
+			library.getMetrics().register();
+		} catch (JMException e) {
+			System.out.printf("Failed to publish metrics over JMX: %s\n", e.getMessage());
+		}
+		
+		// Initialize scanner
 		Scanner scanner = new Scanner(System.in);
 		// Pass the library and scanner to menu methods
 		displayMainMenu(library, scanner);
+		
+		// Save pending changes before exiting
+		save(journal, eventLog, history, mappedStore);
 	}
 }
@@ -0,0 +1,854 @@
+package library;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.VarHandle;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * A book store keeping its records off the Java heap in memory-mapped column files.
+ * Each column (ISBN, title, author, publication year, state, copies) is a file of
+ * fixed-width slots indexed by row, with titles and authors held as offsets into a
+ * shared text file. An open-addressing hash index from ISBN to row lives in its own
+ * mapped file, so reopening a store maps the files instead of parsing them.
+ * Rows of removed books are reused by the books added after them, the index is rebuilt
+ * once removed entries take up a quarter of it, and a store reopened with a larger
+ * capacity grows to it. Replaced titles and authors stay in the text file until the
+ * store is rebuilt.
+ * <p>
+ * The header holds a checkpoint, such as the journal generation the store is current to,
+ * which is cleared when the store is opened and set again when it is checkpointed, so a
+ * store that was not closed cleanly reads as having none.
+ * <p>
+ * Reads take no lock. Lookups probe the index and compare ISBNs in place, and each row is
+ * guarded by a striped sequence lock: a writer makes the version of the row's stripe odd
+ * while it changes the row, and a reader whose read overlapped a change reads the row
+ * again, as does one that finds the row now holds another book. Writers are serialized on
+ * the store, and fill a new row before publishing it in the index.
+ */
+public class MappedBookStore implements BookStore, Closeable {
+
+    // Column slot widths in bytes; text slots hold a length byte then UTF-8 bytes
+    private static final int ISBN_WIDTH = 24;
+    // Copies slots hold the number of copies then the number available
+    private static final int COPIES_WIDTH = 8;
+
+    // Row states
+    private static final byte REMOVED = 0;
+    private static final byte AVAILABLE = 1;
+    private static final byte BORROWED = 2;
+
+    // Header layout
+    private static final int MAGIC = 0x4C4D4354;
+    // Marks stores written before books had copies, whose rows held a borrower instead
+    private static final int BORROWER_MAGIC = 0x4C4D4353;
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 4;
+    private static final int ROWS_OFFSET = 8;
+    private static final int LIVE_OFFSET = 12;
+    private static final int TEXT_END_OFFSET = 16;
+    private static final int TOMBSTONES_OFFSET = 24;
+    private static final int CHECKPOINT_OFFSET = 32;
+    private static final int HEADER_SIZE = 64;
+
+    /**
+     * The files of a store, removed when it is created afresh.
+     */
+    private static final String[] FILES = { "header.col", "isbn.col", "title.col", "author.col", "year.col",
+            "state.col", "copies.col", "index.col", "index.col.new", "text.dat" };
+    /**
+     * The size of each mapped region of the text file. Text entries never span two regions.
+     */
+    private static final long TEXT_CHUNK = 1L << 28;
+    /**
+     * Index slot value marking a removed entry; empty slots hold 0, others hold row + 1.
+     */
+    private static final int TOMBSTONE = -1;
+    /**
+     * The number of sequence lock stripes guarding the rows. Must be a power of two.
+     */
+    private static final int ROW_STRIPES = 4096;
+
+    /**
+     * The directory holding the column files.
+     */
+    private final Path directory;
+    /**
+     * The maximum number of rows the store can hold.
+     */
+    private final int capacity;
+    /**
+     * The checkpoint the store held when it was opened, or 0 if it held none.
+     */
+    private final long checkpoint;
+    /**
+     * The number of index slots minus one; the slot count is a power of two.
+     */
+    private final int indexMask;
+    /**
+     * The header holding the row count, live book count and text file end.
+     */
+    private final MappedByteBuffer header;
+    /**
+     * The ISBN column.
+     */
+    private final MappedByteBuffer isbns;
+    /**
+     * The title column, holding text file offsets.
+     */
+    private final MappedByteBuffer titles;
+    /**
+     * The author column, holding text file offsets.
+     */
+    private final MappedByteBuffer authors;
+    /**
+     * The publication year column.
+     */
+    private final MappedByteBuffer years;
+    /**
+     * The state column.
+     */
+    private final MappedByteBuffer states;
+    /**
+     * The copies column.
+     */
+    private final MappedByteBuffer copies;
+    /**
+     * The hash index from ISBN to row. Replaced rather than changed when it is rebuilt,
+     * so readers probing the old index finish on it.
+     */
+    private volatile MappedByteBuffer index;
+    /**
+     * The versions of the row stripes, odd while a writer is changing a row of the stripe.
+     */
+    private final AtomicIntegerArray versions = new AtomicIntegerArray(ROW_STRIPES);
+    /**
+     * The channel of the text file, kept open to map further regions as it grows.
+     */
+    private final FileChannel textChannel;
+    /**
+     * The mapped regions of the text file, in order. Replaced rather than changed as the
+     * file grows, so readers never see a region being added.
+     */
+    private volatile MappedByteBuffer[] textChunks;
+    /**
+     * The rows of removed books, reused before new rows are taken.
+     */
+    private int[] freeRows;
+    /**
+     * The number of rows in freeRows.
+     */
+    private int freeCount;
+
+    /**
+     * The fixed-width fields of a row, read together under its stripe's sequence lock.
+     */
+    private static final class Row {
+        private byte state;
+        private long title;
+        private long author;
+        private int year;
+        private int copies;
+        private int available;
+        private byte[] isbn;
+    }
+
+    /**
+     * Maps the column files of a store.
+     *
+     * @param directory  the directory holding the column files
+     * @param capacity   the maximum number of rows
+     * @param header     the mapped header
+     * @param checkpoint the checkpoint the store held when it was opened
+     * @throws IOException if a column file cannot be mapped
+     */
+    private MappedBookStore(Path directory, int capacity, MappedByteBuffer header, long checkpoint)
+            throws IOException {
+        this.directory = directory;
+        this.capacity = capacity;
+        this.checkpoint = checkpoint;
+        this.header = header;
+        // At least twice as many slots as rows, so live and removed entries never fill the index
+        int indexSlots = Integer.highestOneBit(capacity) << 2;
+        this.indexMask = indexSlots - 1;
+        this.isbns = map(directory.resolve("isbn.col"), (long) capacity * ISBN_WIDTH);
+        this.titles = map(directory.resolve("title.col"), (long) capacity * 8);
+        this.authors = map(directory.resolve("author.col"), (long) capacity * 8);
+        this.years = map(directory.resolve("year.col"), (long) capacity * 4);
+        this.states = map(directory.resolve("state.col"), capacity);
+        this.copies = map(directory.resolve("copies.col"), (long) capacity * COPIES_WIDTH);
+        // An index of another size belongs to a smaller capacity, so it is rebuilt for this one
+        Path indexFile = directory.resolve("index.col");
+        if (Files.exists(indexFile) && Files.size(indexFile) == (long) indexSlots * 4) {
+            this.index = map(indexFile, (long) indexSlots * 4);
+        } else {
+            rebuildIndex();
+        }
+        int rows = header.getInt(ROWS_OFFSET);
+        this.freeRows = new int[16];
+        for (int row = rows - 1; row >= 0; row--) {
+            if (states.get(row) == REMOVED) {
+                freeRow(row);
+            }
+        }
+        this.textChannel = FileChannel.open(directory.resolve("text.dat"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        // Map the text already written, so readers never need to map a region
+        long textEnd = header.getLong(TEXT_END_OFFSET);
+        this.textChunks = new MappedByteBuffer[0];
+        if (textEnd > 0) {
+            writableChunk((int) ((textEnd - 1) / TEXT_CHUNK));
+        }
+    }
+
+    /**
+     * Opens the store in a directory, creating it if it does not exist.
+     * An existing store keeps the capacity it was created with unless a larger one is given,
+     * to which it grows. Clears the checkpoint the store held, which getCheckpoint still returns.
+     *
+     * @param directory the directory holding the column files
+     * @param capacity  the maximum number of rows
+     * @return the opened store
+     * @throws IOException if the store cannot be created or mapped
+     */
+    public static MappedBookStore open(Path directory, int capacity) throws IOException {
+        if (capacity < 1 || capacity > Integer.MAX_VALUE / ISBN_WIDTH) {
+            throw new IllegalArgumentException("Unsupported capacity " + capacity);
+        }
+        Files.createDirectories(directory);
+        MappedByteBuffer header = map(directory.resolve("header.col"), HEADER_SIZE);
+        if (header.getInt(MAGIC_OFFSET) == BORROWER_MAGIC) {
+            throw new IOException("Book store in " + directory + " predates copies; rebuild it from the journal");
+        }
+        if (header.getInt(MAGIC_OFFSET) == MAGIC) {
+            capacity = Math.max(capacity, header.getInt(CAPACITY_OFFSET));
+            header.putInt(CAPACITY_OFFSET, capacity);
+        } else {
+            header.putInt(CAPACITY_OFFSET, capacity);
+            header.putInt(ROWS_OFFSET, 0);
+            header.putInt(LIVE_OFFSET, 0);
+            header.putLong(TEXT_END_OFFSET, 0);
+            header.putInt(TOMBSTONES_OFFSET, 0);
+            header.putLong(CHECKPOINT_OFFSET, 0);
+            header.putInt(MAGIC_OFFSET, MAGIC);
+        }
+        // Changes made from now on are not covered by the checkpoint until it is set again
+        long checkpoint = header.getLong(CHECKPOINT_OFFSET);
+        header.putLong(CHECKPOINT_OFFSET, 0);
+        header.force();
+        return new MappedBookStore(directory, capacity, header, checkpoint);
+    }
+
+    /**
+     * Creates an empty store in a directory, replacing any store already there.
+     * Used when the books are restored from elsewhere, such as a journal.
+     *
+     * @param directory the directory holding the column files
+     * @param capacity  the maximum number of rows
+     * @return the created store
+     * @throws IOException if the old store cannot be removed or the new one mapped
+     */
+    public static MappedBookStore create(Path directory, int capacity) throws IOException {
+        for (String file : FILES) {
+            Files.deleteIfExists(directory.resolve(file));
+        }
+        return open(directory, capacity);
+    }
+
+    @Override
+    public Book get(String ISBN) {
+        int row = findRow(ISBN);
+        if (row < 0) {
+            return null;
+        }
+        Row values = readRow(row, ISBN);
+        if (values.state == REMOVED) {
+            return null;
+        }
+        // The ISBN matched in place, so the caller's string is reused rather than decoded
+        Book book = new Book(readText(values.title), readText(values.author), ISBN, values.year, values.copies);
+        book.setAvailableCopies(values.available);
+        return book;
+    }
+
+    @Override
+    public boolean contains(String ISBN) {
+        int row = findRow(ISBN);
+        return row >= 0 && readRow(row, ISBN).state != REMOVED;
+    }
+
+    @Override
+    public String formatInfo(String ISBN) {
+        int row = findRow(ISBN);
+        if (row < 0) {
+            return null;
+        }
+        Row values = readRow(row, ISBN);
+        if (values.state == REMOVED) {
+            return null;
+        }
+        return Book.formatInfo(readText(values.title), readText(values.author), ISBN, values.year, values.copies,
+                values.available);
+    }
+
+    @Override
+    public synchronized void put(Book book) {
+        byte[] key = encodeKey(book.getISBN());
+        int slot = findSlot(index, book.getISBN(), key);
+        if (slot >= 0) {
+            writeRow(index.getInt(slot * 4) - 1, book);
+            return;
+        }
+
+        // Fill a free or new row, then publish it in the index, so readers never see it half written
+        int rows = header.getInt(ROWS_OFFSET);
+        if (freeCount == 0 && rows == capacity) {
+            throw new IllegalStateException(String.format(
+                    "Mapped book store in %s is full (%d books); reopen it with a larger capacity", directory,
+                    capacity));
+        }
+        int row = freeCount > 0 ? freeRows[--freeCount] : rows;
+        long title = appendText(book.getTitle());
+        long author = appendText(book.getAuthor());
+        beginWrite(row);
+        writeSlot(isbns, row, ISBN_WIDTH, key);
+        titles.putLong(row * 8, title);
+        authors.putLong(row * 8, author);
+        writeState(row, book);
+        endWrite(row);
+        VarHandle.storeStoreFence();
+        slot = freeSlot(key);
+        if (index.getInt(slot * 4) == TOMBSTONE) {
+            header.putInt(TOMBSTONES_OFFSET, header.getInt(TOMBSTONES_OFFSET) - 1);
+        }
+        index.putInt(slot * 4, row + 1);
+        header.putInt(ROWS_OFFSET, Math.max(rows, row + 1));
+        header.putInt(LIVE_OFFSET, header.getInt(LIVE_OFFSET) + 1);
+    }
+
+    @Override
+    public synchronized void update(Book book) {
+        int slot = findSlot(index, book.getISBN(), encodeKey(book.getISBN()));
+        if (slot >= 0) {
+            writeRow(index.getInt(slot * 4) - 1, book);
+        }
+    }
+
+    @Override
+    public synchronized Book remove(String ISBN) {
+        int slot = findSlot(index, ISBN, encodeKey(ISBN));
+        if (slot < 0) {
+            return null;
+        }
+        int row = index.getInt(slot * 4) - 1;
+        Book book = get(ISBN);
+        beginWrite(row);
+        states.put(row, REMOVED);
+        endWrite(row);
+        index.putInt(slot * 4, TOMBSTONE);
+        header.putInt(LIVE_OFFSET, header.getInt(LIVE_OFFSET) - 1);
+        header.putInt(TOMBSTONES_OFFSET, header.getInt(TOMBSTONES_OFFSET) + 1);
+        freeRow(row);
+        if (header.getInt(TOMBSTONES_OFFSET) > (indexMask + 1) / 4) {
+            try {
+                rebuildIndex();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return book;
+    }
+
+    @Override
+    public int size() {
+        return header.getInt(LIVE_OFFSET);
+    }
+
+    /**
+     * Returns an iterator over the books in the order of their rows, which is the order they
+     * were added apart from books filling the rows of removed ones.
+     * Books added after the iterator is created may or may not be included.
+     *
+     * @return an iterator over the books
+     */
+    @Override
+    public Iterator<Book> iterator() {
+        final int rows = header.getInt(ROWS_OFFSET);
+        VarHandle.loadLoadFence();
+        return new Iterator<Book>() {
+            private int row = -1;
+            private Book next = advance();
+
+            private Book advance() {
+                while (++row < rows) {
+                    Row values = readRow(row, null);
+                    if (values.state != REMOVED) {
+                        Book book = new Book(readText(values.title), readText(values.author),
+                                new String(values.isbn, StandardCharsets.UTF_8), values.year, values.copies);
+                        book.setAvailableCopies(values.available);
+                        return book;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public Book next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Book book = next;
+                next = advance();
+                return book;
+            }
+        };
+    }
+
+    /**
+     * Forces every column to disk.
+     */
+    public synchronized void force() {
+        for (MappedByteBuffer column : new MappedByteBuffer[] { isbns, titles, authors, years, states, copies, index }) {
+            column.force();
+        }
+        for (MappedByteBuffer chunk : textChunks) {
+            chunk.force();
+        }
+        header.force();
+    }
+
+    /**
+     * Returns the checkpoint the store held when it was opened.
+     *
+     * @return the checkpoint, or 0 if the store is new or was not checkpointed after it was
+     *         last changed
+     */
+    public long getCheckpoint() {
+        return checkpoint;
+    }
+
+    /**
+     * Forces every column to disk, then records a checkpoint in the header.
+     * Called once the store will not change again before it is closed.
+     *
+     * @param checkpoint the checkpoint, greater than 0
+     */
+    public synchronized void checkpoint(long checkpoint) {
+        force();
+        header.putLong(CHECKPOINT_OFFSET, checkpoint);
+        header.force();
+    }
+
+    /**
+     * Forces every column to disk and closes the text file.
+     *
+     * @throws IOException if the text file cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+        textChannel.close();
+    }
+
+    // Row access
+
+    /**
+     * Reads the fixed-width fields of a row, again if a writer changed the row meanwhile.
+     * A row found through the index is checked to still hold the ISBN looked up, since a
+     * removed book's row may have been reused since; one that does not reads as removed.
+     *
+     * @param row  the row
+     * @param ISBN the ISBN the row was found by, or null to read the row's ISBN into the fields
+     * @return the fields of the row as one writer left them
+     */
+    private Row readRow(int row, String ISBN) {
+        byte[] key = ISBN == null || isAscii(ISBN) ? null : ISBN.getBytes(StandardCharsets.UTF_8);
+        int stripe = row & (ROW_STRIPES - 1);
+        Row values = new Row();
+        while (true) {
+            int version = versions.getAcquire(stripe);
+            if ((version & 1) == 0) {
+                if (ISBN == null) {
+                    values.isbn = readSlot(isbns, row, ISBN_WIDTH);
+                    values.state = states.get(row);
+                } else {
+                    values.state = isbnEquals(row, ISBN, key) ? states.get(row) : REMOVED;
+                }
+                values.title = titles.getLong(row * 8);
+                values.author = authors.getLong(row * 8);
+                values.year = years.getInt(row * 4);
+                values.copies = copies.getInt(row * COPIES_WIDTH);
+                values.available = copies.getInt(row * COPIES_WIDTH + 4);
+                VarHandle.loadLoadFence();
+                if (versions.get(stripe) == version) {
+                    return values;
+                }
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Writes the information and copies of a book to its existing row, appending only the
+     * text that changed, so borrowing and returning do not grow the text file.
+     * The caller must hold the store's lock.
+     *
+     * @param row  the row
+     * @param book the book
+     */
+    private void writeRow(int row, Book book) {
+        long title = titles.getLong(row * 8);
+        if (!readText(title).equals(book.getTitle())) {
+            title = appendText(book.getTitle());
+        }
+        long author = authors.getLong(row * 8);
+        if (!readText(author).equals(book.getAuthor())) {
+            author = appendText(book.getAuthor());
+        }
+        beginWrite(row);
+        titles.putLong(row * 8, title);
+        authors.putLong(row * 8, author);
+        writeState(row, book);
+        endWrite(row);
+    }
+
+    /**
+     * Writes the publication year, state and copies of a book to its row.
+     *
+     * @param row  the row
+     * @param book the book
+     */
+    private void writeState(int row, Book book) {
+        years.putInt(row * 4, book.getPublicationYear());
+        copies.putInt(row * COPIES_WIDTH, book.getCopies());
+        copies.putInt(row * COPIES_WIDTH + 4, book.getAvailableCopies());
+        states.put(row, book.getAvailableCopies() > 0 ? AVAILABLE : BORROWED);
+    }
+
+    /**
+     * Marks the stripe of a row as being changed, before a writer changes the row.
+     * The caller must hold the store's lock.
+     *
+     * @param row the row
+     */
+    private void beginWrite(int row) {
+        versions.incrementAndGet(row & (ROW_STRIPES - 1));
+        VarHandle.storeStoreFence();
+    }
+
+    /**
+     * Marks the stripe of a row as stable again, after a writer changed the row.
+     *
+     * @param row the row
+     */
+    private void endWrite(int row) {
+        int stripe = row & (ROW_STRIPES - 1);
+        versions.setRelease(stripe, versions.get(stripe) + 1);
+    }
+
+    // Hash index
+
+    /**
+     * Finds the row holding an ISBN, without taking a lock or copying stored ISBNs.
+     *
+     * @param ISBN the ISBN
+     * @return the row, or -1 if the ISBN is not indexed
+     */
+    private int findRow(String ISBN) {
+        byte[] key = isAscii(ISBN) ? null : ISBN.getBytes(StandardCharsets.UTF_8);
+        if ((key == null ? ISBN.length() : key.length) >= ISBN_WIDTH) {
+            return -1;
+        }
+        MappedByteBuffer index = this.index;
+        int slot = findSlot(index, ISBN, key);
+        return slot < 0 ? -1 : index.getInt(slot * 4) - 1;
+    }
+
+    /**
+     * Finds the index slot holding an ISBN.
+     *
+     * @param index the index to probe
+     * @param ISBN  the ISBN
+     * @param key   the UTF-8 bytes of the ISBN, or null if it is ASCII
+     * @return the slot, or -1 if the ISBN is not indexed
+     */
+    private int findSlot(MappedByteBuffer index, String ISBN, byte[] key) {
+        for (int slot = hash(ISBN, key) & indexMask; ; slot = (slot + 1) & indexMask) {
+            int entry = index.getInt(slot * 4);
+            if (entry == 0) {
+                return -1;
+            }
+            // The row was filled before its entry was published
+            VarHandle.loadLoadFence();
+            if (entry != TOMBSTONE && isbnEquals(entry - 1, ISBN, key)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Finds an empty or removed index slot for an ISBN that is not indexed.
+     *
+     * @param key the encoded ISBN
+     * @return the slot
+     */
+    private int freeSlot(byte[] key) {
+        for (int slot = hash(null, key) & indexMask; ; slot = (slot + 1) & indexMask) {
+            int entry = index.getInt(slot * 4);
+            if (entry == 0 || entry == TOMBSTONE) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the index from the rows without its removed entries, in a new file that
+     * replaces the old one. The caller must hold the store's lock, or be opening the store.
+     *
+     * @throws IOException if the new index cannot be written
+     */
+    private void rebuildIndex() throws IOException {
+        Path rebuilt = directory.resolve("index.col.new");
+        Files.deleteIfExists(rebuilt);
+        MappedByteBuffer fresh = map(rebuilt, (long) (indexMask + 1) * 4);
+        int rows = header.getInt(ROWS_OFFSET);
+        for (int row = 0; row < rows; row++) {
+            if (states.get(row) != REMOVED) {
+                int slot = hash(null, readSlot(isbns, row, ISBN_WIDTH)) & indexMask;
+                while (fresh.getInt(slot * 4) != 0) {
+                    slot = (slot + 1) & indexMask;
+                }
+                fresh.putInt(slot * 4, row + 1);
+            }
+        }
+        fresh.force();
+        Files.move(rebuilt, directory.resolve("index.col"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        header.putInt(TOMBSTONES_OFFSET, 0);
+        index = fresh;
+    }
+
+    /**
+     * Adds the row of a removed book to the rows to reuse.
+     *
+     * @param row the row
+     */
+    private void freeRow(int row) {
+        if (freeCount == freeRows.length) {
+            freeRows = Arrays.copyOf(freeRows, freeCount * 2);
+        }
+        freeRows[freeCount++] = row;
+    }
+
+    /**
+     * Returns whether a row of the ISBN column holds an ISBN, comparing in place.
+     *
+     * @param row  the row
+     * @param ISBN the ISBN
+     * @param key  the UTF-8 bytes of the ISBN, or null if it is ASCII
+     * @return whether the row holds the ISBN
+     */
+    private boolean isbnEquals(int row, String ISBN, byte[] key) {
+        int position = row * ISBN_WIDTH;
+        int length = isbns.get(position);
+        if (length != (key == null ? ISBN.length() : key.length)) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (isbns.get(position + 1 + i) != (key == null ? (byte) ISBN.charAt(i) : key[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the hash of the UTF-8 bytes of an ISBN, with high bits spread into the low bits.
+     * ASCII ISBNs are hashed from their characters, which equal their bytes.
+     *
+     * @param ISBN the ISBN, used if key is null
+     * @param key  the UTF-8 bytes of the ISBN, or null if it is ASCII
+     * @return the hash
+     */
+    private static int hash(String ISBN, byte[] key) {
+        int hash;
+        if (key != null) {
+            hash = Arrays.hashCode(key);
+        } else {
+            // The same as Arrays.hashCode of the bytes
+            hash = 1;
+            for (int i = 0; i < ISBN.length(); i++) {
+                hash = 31 * hash + ISBN.charAt(i);
+            }
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns whether a string holds only ASCII characters, each encoded as one equal byte.
+     *
+     * @param value the string
+     * @return whether the string is ASCII
+     */
+    private static boolean isAscii(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) >= 0x80) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Fixed-width slots
+
+    /**
+     * Encodes an ISBN for the ISBN column.
+     *
+     * @param ISBN the ISBN
+     * @return the UTF-8 bytes of the ISBN
+     */
+    private static byte[] encodeKey(String ISBN) {
+        return encode(ISBN, ISBN_WIDTH, "ISBN");
+    }
+
+    /**
+     * Encodes a string for a fixed-width slot.
+     *
+     * @param value the string
+     * @param width the slot width
+     * @param name  the name of the value, for the error message
+     * @return the UTF-8 bytes of the string
+     * @throws IllegalArgumentException if the string does not fit in the slot
+     */
+    private static byte[] encode(String value, int width, String name) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length >= width) {
+            throw new IllegalArgumentException(name + " " + value + " is too long for the mapped book store");
+        }
+        return bytes;
+    }
+
+    /**
+     * Reads the bytes stored in a fixed-width slot.
+     *
+     * @param column the column
+     * @param row    the row
+     * @param width  the slot width
+     * @return the stored bytes
+     */
+    private static byte[] readSlot(MappedByteBuffer column, int row, int width) {
+        int position = row * width;
+        byte[] bytes = new byte[column.get(position)];
+        column.get(position + 1, bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes bytes to a fixed-width slot.
+     *
+     * @param column the column
+     * @param row    the row
+     * @param width  the slot width
+     * @param bytes  the bytes, shorter than the slot width
+     */
+    private static void writeSlot(MappedByteBuffer column, int row, int width, byte[] bytes) {
+        int position = row * width;
+        column.put(position, (byte) bytes.length);
+        column.put(position + 1, bytes);
+    }
+
+    // Text file
+
+    /**
+     * Appends a string to the text file. The caller must hold the store's lock.
+     *
+     * @param value the string
+     * @return the offset of the stored string
+     * @throws IllegalArgumentException if the string is larger than a text region
+     */
+    private long appendText(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length + 4 > TEXT_CHUNK) {
+            throw new IllegalArgumentException("Text is too long for the mapped book store");
+        }
+        long offset = header.getLong(TEXT_END_OFFSET);
+        // Start a new region if the entry does not fit in the current one
+        if (offset % TEXT_CHUNK + 4 + bytes.length > TEXT_CHUNK) {
+            offset = (offset / TEXT_CHUNK + 1) * TEXT_CHUNK;
+        }
+        MappedByteBuffer chunk = writableChunk((int) (offset / TEXT_CHUNK));
+        int position = (int) (offset % TEXT_CHUNK);
+        chunk.putInt(position, bytes.length);
+        chunk.put(position + 4, bytes);
+        header.putLong(TEXT_END_OFFSET, offset + 4 + bytes.length);
+        return offset;
+    }
+
+    /**
+     * Reads a string from the text file. Stored strings never change, so no lock is needed.
+     *
+     * @param offset the offset of the string
+     * @return the string
+     */
+    private String readText(long offset) {
+        MappedByteBuffer chunk = textChunks[(int) (offset / TEXT_CHUNK)];
+        int position = (int) (offset % TEXT_CHUNK);
+        byte[] bytes = new byte[chunk.getInt(position)];
+        chunk.get(position + 4, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns a mapped region of the text file, mapping regions up to it as needed.
+     * The caller must hold the store's lock, or be opening the store.
+     *
+     * @param chunk the number of the region
+     * @return the region
+     */
+    private MappedByteBuffer writableChunk(int chunk) {
+        MappedByteBuffer[] chunks = textChunks;
+        if (chunks.length <= chunk) {
+            chunks = Arrays.copyOf(chunks, chunk + 1);
+            try {
+                for (int i = textChunks.length; i <= chunk; i++) {
+                    chunks[i] = textChannel.map(FileChannel.MapMode.READ_WRITE, i * TEXT_CHUNK, TEXT_CHUNK);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            textChunks = chunks;
+        }
+        return chunks[chunk];
+    }
+
+    /**
+     * Maps a column file for reading and writing, growing it to the given size.
+     *
+     * @param file the column file
+     * @param size the size of the column in bytes
+     * @return the mapped column
+     * @throws IOException if the file cannot be mapped
+     */
+    private static MappedByteBuffer map(Path file, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+}
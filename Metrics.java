@@ -0,0 +1,364 @@
+package library;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongSupplier;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Records the latency and outcome of every Library operation, and reports catalog gauges.
+ * Every outcome is counted, while latency is timed for a random sample of calls, since
+ * reading the clock costs more than a lookup. Outcomes are counted in per-thread arrays
+ * summed on read, so counting needs no atomic instruction; the counts of threads that have
+ * ended are folded into a retired total and their arrays dropped. Recording allocates and
+ * locks only on a thread's first operation, so it can stay on in production.
+ * The metrics can be read as a text snapshot or through JMX.
+ */
+public class Metrics implements MetricsMBean {
+    
+    /**
+     * The JMX name the metrics are registered under.
+     */
+    public static final String OBJECT_NAME = "library:type=Metrics";
+    
+    /**
+     * The number of possible outcomes of an operation.
+     */
+    private static final int OUTCOMES = Outcome.values().length;
+    /**
+     * The start value of an operation that is not recorded, because metrics are off.
+     */
+    private static final long DISABLED = Long.MIN_VALUE;
+    /**
+     * The start value of an operation whose outcome is counted but whose latency is not timed.
+     */
+    private static final long UNTIMED = Long.MIN_VALUE + 1;
+    /**
+     * Accesses outcome counters with opaque writes, so readers on other threads see them.
+     */
+    private static final VarHandle COUNTER = MethodHandles.arrayElementVarHandle(long[].class);
+    
+    /**
+     * The latencies of each operation, indexed by operation ordinal.
+     */
+    private final LatencyHistogram[] latencies;
+    /**
+     * The outcome counters of the current thread, indexed by operation ordinal times
+     * OUTCOMES plus outcome ordinal. Only the owning thread writes its counters.
+     */
+    private final ThreadLocal<long[]> localOutcomes = ThreadLocal.withInitial(this::newOutcomes);
+    /**
+     * The outcome counters of every live thread that has recorded an operation.
+     */
+    private final Queue<ThreadOutcomes> allOutcomes = new ConcurrentLinkedQueue<ThreadOutcomes>();
+    /**
+     * The outcome counts of threads that have ended. Guarded by allOutcomes.
+     */
+    private final long[] retired;
+    /**
+     * The outcome counts at the last reset, subtracted from the current counts.
+     */
+    private volatile long[] baseline;
+    /**
+     * Supplies the number of books in the library.
+     */
+    private final LongSupplier catalogSize;
+    /**
+     * Supplies the number of readers in the library.
+     */
+    private final LongSupplier readerCount;
+    /**
+     * Supplies the number of books currently borrowed.
+     */
+    private final LongSupplier booksOnLoan;
+    /**
+     * Whether operations are being recorded.
+     */
+    private volatile boolean enabled = true;
+    /**
+     * The mask selecting which calls are timed: a call is timed when a random int masked by it is zero.
+     */
+    private volatile int sampleMask = 63;
+    
+    /**
+     * Constructs empty metrics reporting the given gauges.
+     *
+     * @param catalogSize supplies the number of books in the library
+     * @param readerCount supplies the number of readers in the library
+     * @param booksOnLoan supplies the number of books currently borrowed
+     */
+    public Metrics(LongSupplier catalogSize, LongSupplier readerCount, LongSupplier booksOnLoan) {
+        this.catalogSize = catalogSize;
+        this.readerCount = readerCount;
+        this.booksOnLoan = booksOnLoan;
+        Operation[] operations = Operation.values();
+        latencies = new LatencyHistogram[operations.length];
+        for (int i = 0; i < latencies.length; i++) {
+            latencies[i] = new LatencyHistogram();
+        }
+        baseline = new long[operations.length * OUTCOMES];
+        retired = new long[operations.length * OUTCOMES];
+    }
+    
+    /**
+     * The outcome counters of one thread, with the thread that writes them.
+     */
+    private static class ThreadOutcomes {
+        /**
+         * The thread writing the counters, cleared once it is collected.
+         */
+        final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+        /**
+         * The counters, indexed by operation ordinal times OUTCOMES plus outcome ordinal.
+         */
+        final long[] counts = new long[Operation.values().length * OUTCOMES];
+    }
+    
+    /**
+     * Creates and registers the outcome counters of a thread, first retiring those of
+     * threads that have ended, so threads coming and going do not grow the registry.
+     *
+     * @return the thread's counters
+     */
+    private long[] newOutcomes() {
+        ThreadOutcomes outcomes = new ThreadOutcomes();
+        synchronized (allOutcomes) {
+            retireEnded();
+            allOutcomes.add(outcomes);
+        }
+        return outcomes.counts;
+    }
+    
+    /**
+     * Folds the counts of threads that have ended into the retired counts and drops them.
+     * The caller must hold the allOutcomes lock.
+     */
+    private void retireEnded() {
+        for (Iterator<ThreadOutcomes> it = allOutcomes.iterator(); it.hasNext();) {
+            ThreadOutcomes outcomes = it.next();
+            Thread owner = outcomes.owner.get();
+            if (owner == null || !owner.isAlive()) {
+                for (int i = 0; i < retired.length; i++) {
+                    retired[i] += (long) COUNTER.getOpaque(outcomes.counts, i);
+                }
+                it.remove();
+            }
+        }
+    }
+    
+    /**
+     * Counts an outcome on the current thread.
+     *
+     * @param counts  the current thread's counters
+     * @param index   the index of the counter
+     */
+    private static void increment(long[] counts, int index) {
+        COUNTER.setOpaque(counts, index, (long) COUNTER.getOpaque(counts, index) + 1);
+    }
+    
+    /**
+     * Returns the start time of an operation, to pass to record.
+     *
+     * @return the current time in nanoseconds if the call is timed, or a marker otherwise
+     */
+    public long start() {
+        if (!enabled) {
+            return DISABLED;
+        }
+        if ((ThreadLocalRandom.current().nextInt() & sampleMask) != 0) {
+            return UNTIMED;
+        }
+        return System.nanoTime();
+    }
+    
+    /**
+     * Records the latency and outcome of an operation.
+     *
+     * @param operation the operation
+     * @param start     the value returned by start when the operation began
+     * @param outcome   the outcome of the operation
+     * @return the outcome, so callers can record and return in one statement
+     */
+    public Outcome record(Operation operation, long start, Outcome outcome) {
+        if (start != DISABLED) {
+            if (start != UNTIMED) {
+                latencies[operation.ordinal()].record(System.nanoTime() - start);
+            }
+            increment(localOutcomes.get(), operation.ordinal() * OUTCOMES + outcome.ordinal());
+        }
+        return outcome;
+    }
+    
+    /**
+     * Records the latency of a batch operation and the outcome of each of its items.
+     *
+     * @param operation the batch operation
+     * @param start     the value returned by start when the operation began
+     * @param results   the outcome of each item
+     * @return the outcomes, so callers can record and return in one statement
+     */
+    public Outcome[] record(Operation operation, long start, Outcome[] results) {
+        if (start != DISABLED) {
+            if (start != UNTIMED) {
+                latencies[operation.ordinal()].record(System.nanoTime() - start);
+            }
+            long[] counts = localOutcomes.get();
+            for (Outcome outcome : results) {
+                increment(counts, operation.ordinal() * OUTCOMES + outcome.ordinal());
+            }
+        }
+        return results;
+    }
+    
+    /**
+     * Returns how often calls are timed.
+     *
+     * @return one in how many calls is timed
+     */
+    @Override
+    public int getLatencySampleRate() {
+        return sampleMask + 1;
+    }
+    
+    /**
+     * Sets how often calls are timed. Outcomes are counted for every call regardless.
+     *
+     * @param oneIn one in how many calls to time, rounded down to a power of two; 1 times every call
+     */
+    @Override
+    public void setLatencySampleRate(int oneIn) {
+        sampleMask = Integer.highestOneBit(Math.max(1, oneIn)) - 1;
+    }
+    
+    /**
+     * Returns the latencies of the timed calls of an operation.
+     *
+     * @param operation the operation
+     * @return the latency histogram
+     */
+    public LatencyHistogram getLatency(Operation operation) {
+        return latencies[operation.ordinal()];
+    }
+    
+    /**
+     * Returns how many times an operation had an outcome.
+     *
+     * @param operation the operation
+     * @param outcome   the outcome
+     * @return the count
+     */
+    public long getCount(Operation operation, Outcome outcome) {
+        return sum(operation.ordinal() * OUTCOMES + outcome.ordinal());
+    }
+    
+    /**
+     * Sums a counter over every thread, less its value at the last reset.
+     *
+     * @param index the index of the counter
+     * @return the count since the last reset
+     */
+    private long sum(int index) {
+        synchronized (allOutcomes) {
+            long total = retired[index] - baseline[index];
+            for (ThreadOutcomes outcomes : allOutcomes) {
+                total += (long) COUNTER.getOpaque(outcomes.counts, index);
+            }
+            return total;
+        }
+    }
+    
+    @Override
+    public long getCatalogSize() {
+        return catalogSize.getAsLong();
+    }
+    
+    @Override
+    public long getReaderCount() {
+        return readerCount.getAsLong();
+    }
+    
+    @Override
+    public long getBooksOnLoan() {
+        return booksOnLoan.getAsLong();
+    }
+    
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+    
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+    
+    @Override
+    public String getSnapshot() {
+        StringBuilder text = new StringBuilder();
+        text.append(String.format("Books: %d\nReaders: %d\nBooks on loan: %d\n",
+                getCatalogSize(), getReaderCount(), getBooksOnLoan()));
+        text.append(String.format("%-17s %10s %10s %10s %10s %10s %10s  %s\n",
+                "operation", "calls", "mean(us)", "p50(us)", "p99(us)", "p99.9(us)", "max(us)", "outcomes"));
+        for (Operation operation : Operation.values()) {
+            LatencyHistogram latency = getLatency(operation);
+            long calls = 0;
+            StringBuilder counts = new StringBuilder();
+            for (Outcome outcome : Outcome.values()) {
+                long count = getCount(operation, outcome);
+                if (count > 0) {
+                    calls += count;
+                    counts.append(counts.length() == 0 ? "" : ", ").append(outcome).append('=').append(count);
+                }
+            }
+            if (calls == 0) {
+                continue;
+            }
+            if (latency.getCount() == 0) {
+                // No call has been timed yet
+                text.append(String.format("%-17s %10d %10s %10s %10s %10s %10s  %s\n",
+                        operation, calls, "-", "-", "-", "-", "-", counts));
+                continue;
+            }
+            text.append(String.format("%-17s %10d %10.1f %10.1f %10.1f %10.1f %10.1f  %s\n",
+                    operation, calls, latency.getMean() / 1000,
+                    latency.getPercentile(0.5) / 1000.0, latency.getPercentile(0.99) / 1000.0,
+                    latency.getPercentile(0.999) / 1000.0, latency.getMax() / 1000.0, counts));
+        }
+        return text.toString();
+    }
+    
+    @Override
+    public void reset() {
+        for (LatencyHistogram latency : latencies) {
+            latency.reset();
+        }
+        long[] counts = new long[baseline.length];
+        synchronized (allOutcomes) {
+            retireEnded();
+            System.arraycopy(retired, 0, counts, 0, counts.length);
+            for (ThreadOutcomes outcomes : allOutcomes) {
+                for (int i = 0; i < counts.length; i++) {
+                    counts[i] += (long) COUNTER.getOpaque(outcomes.counts, i);
+                }
+            }
+            baseline = counts;
+        }
+    }
+    
+    /**
+     * Publishes the metrics as a JMX MBean named OBJECT_NAME.
+     *
+     * @throws JMException if the MBean cannot be registered
+     */
+    public void register() throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+}
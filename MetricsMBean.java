@@ -0,0 +1,65 @@
+package library;
+
+public interface MetricsMBean {
+    
+    /**
+     * Returns the number of books in the library.
+     *
+     * @return the catalog size
+     */
+    long getCatalogSize();
+    
+    /**
+     * Returns the number of readers in the library.
+     *
+     * @return the reader count
+     */
+    long getReaderCount();
+    
+    /**
+     * Returns the number of books currently borrowed.
+     *
+     * @return the number of books on loan
+     */
+    long getBooksOnLoan();
+    
+    /**
+     * Returns whether operations are being recorded.
+     *
+     * @return true if metrics are recorded
+     */
+    boolean isEnabled();
+    
+    /**
+     * Starts or stops recording operations.
+     *
+     * @param enabled whether to record operations
+     */
+    void setEnabled(boolean enabled);
+    
+    /**
+     * Returns how often calls are timed.
+     *
+     * @return one in how many calls is timed
+     */
+    int getLatencySampleRate();
+    
+    /**
+     * Sets how often calls are timed.
+     *
+     * @param oneIn one in how many calls to time, rounded down to a power of two
+     */
+    void setLatencySampleRate(int oneIn);
+    
+    /**
+     * Returns the counters, latencies and gauges as text.
+     *
+     * @return the snapshot text
+     */
+    String getSnapshot();
+    
+    /**
+     * Clears every counter and latency.
+     */
+    void reset();
+}
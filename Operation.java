@@ -0,0 +1,96 @@
+package library;
+
+public enum Operation {
+    /**
+     * Looking up a book by ISBN.
+     */
+    SEARCH_BOOK("searchBookByISBN"),
+    /**
+     * Adding a book.
+     */
+    ADD_BOOK("addBook"),
+    /**
+     * Removing a book.
+     */
+    REMOVE_BOOK("removeBook"),
+    /**
+     * Updating the information of a book.
+     */
+    UPDATE_BOOK("updateBook"),
+    /**
+     * Searching books by words in the title or author.
+     */
+    SEARCH_BOOKS("searchBooks"),
+    /**
+     * Looking up a reader by ID.
+     */
+    SEARCH_READER("searchReaderById"),
+    /**
+     * Finding readers from the start of a name or contact.
+     */
+    FIND_READERS("findReaders"),
+    /**
+     * Adding a reader.
+     */
+    ADD_READER("addReader"),
+    /**
+     * Removing a reader.
+     */
+    REMOVE_READER("removeReader"),
+    /**
+     * Borrowing a book.
+     */
+    BORROW("borrowBook"),
+    /**
+     * Returning a book.
+     */
+    RETURN("returnBook"),
+    /**
+     * Carrying a loan over from elsewhere with its checkout and due times.
+     */
+    TRANSFER_LOAN("transferLoan"),
+    /**
+     * Borrowing a batch of books; outcomes are counted per book.
+     */
+    BORROW_BATCH("borrowBatch"),
+    /**
+     * Returning a batch of books; outcomes are counted per book.
+     */
+    RETURN_BATCH("returnBatch"),
+    /**
+     * Joining the hold queue of a book.
+     */
+    PLACE_HOLD("placeHold"),
+    /**
+     * Leaving the hold queue of a book.
+     */
+    CANCEL_HOLD("cancelHold"),
+    /**
+     * Changing the number of copies of a book.
+     */
+    SET_COPIES("setCopies");
+    
+    /**
+     * The name of the Library method performing the operation.
+     */
+    private final String label;
+    
+    /**
+     * Constructs an operation.
+     *
+     * @param label the name of the Library method performing the operation
+     */
+    Operation(String label) {
+        this.label = label;
+    }
+    
+    /**
+     * Returns the name of the Library method performing the operation.
+     *
+     * @return the method name
+     */
+    @Override
+    public String toString() {
+        return label;
+    }
+}
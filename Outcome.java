@@ -0,0 +1,61 @@
+package library;
+
+public enum Outcome {
+    /**
+     * The operation succeeded.
+     */
+    SUCCESS,
+    /**
+     * A book with the same ISBN is already in the library.
+     */
+    DUPLICATE_BOOK,
+    /**
+     * A reader with the same ID is already in the library.
+     */
+    DUPLICATE_READER,
+    /**
+     * No reader has the given ID.
+     */
+    READER_NOT_FOUND,
+    /**
+     * The reader cannot be removed because they still have borrowed books.
+     */
+    READER_HAS_LOANS,
+    /**
+     * No book has the given ISBN.
+     */
+    BOOK_NOT_FOUND,
+    /**
+     * The book cannot be borrowed because every copy is on loan.
+     */
+    ALREADY_BORROWED,
+    /**
+     * The book cannot be returned because it is not on loan.
+     */
+    ALREADY_RETURNED,
+    /**
+     * The book cannot be returned because another reader borrowed it.
+     */
+    NOT_BORROWED_BY_READER,
+    /**
+     * The reader already has a copy of the book, and may only borrow one.
+     * Reported only while another copy is free; otherwise the book is ALREADY_BORROWED.
+     */
+    ALREADY_HAS_COPY,
+    /**
+     * No hold is needed because a copy of the book is available to borrow.
+     */
+    COPY_AVAILABLE,
+    /**
+     * The reader is already waiting for the book.
+     */
+    ALREADY_ON_HOLD,
+    /**
+     * The reader is not waiting for the book.
+     */
+    NOT_ON_HOLD,
+    /**
+     * The number of copies cannot be reduced because a withdrawn copy is on loan.
+     */
+    COPIES_ON_LOAN
+}
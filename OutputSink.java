@@ -0,0 +1,44 @@
+package library;
+
+public interface OutputSink {
+    
+    /**
+     * A sink discarding everything, for embedded and server use.
+     * Library skips formatting messages entirely when writing to it.
+     */
+    OutputSink SILENT = new OutputSink() {
+        @Override
+        public void print(String text) {
+        }
+        
+        @Override
+        public void flush() {
+        }
+        
+        @Override
+        public boolean isEnabled() {
+            return false;
+        }
+    };
+    
+    /**
+     * Appends text to the sink. The text may be buffered until the next flush.
+     *
+     * @param text the text to append
+     */
+    void print(String text);
+    
+    /**
+     * Writes out any buffered text.
+     */
+    void flush();
+    
+    /**
+     * Returns whether text printed to the sink is shown anywhere.
+     *
+     * @return false if printed text is discarded
+     */
+    default boolean isEnabled() {
+        return true;
+    }
+}
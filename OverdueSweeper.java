@@ -0,0 +1,146 @@
+package library;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Periodically reports loans that have become overdue since the last sweep.
+ * Each sweep reads only the loans whose due time passed since the previous sweep from the
+ * due-time index, so its cost grows with the number of newly overdue loans rather than
+ * with the number of loans. Each loan is reported once; the first sweep reports every loan
+ * already overdue, such as loans restored from disk.
+ * Loans restored or transferred later keep their own due times, which may be behind the
+ * last sweep. The library hands these to the sweeper, which reports them on its next sweep.
+ * A loan carried over while a sweep reads its due time may be reported twice, but is never
+ * missed.
+ */
+public class OverdueSweeper implements Closeable {
+    
+    /**
+     * The largest number of loans read from the index at once.
+     */
+    private static final int SWEEP_CHUNK = 4096;
+    
+    /**
+     * The library whose loans are swept.
+     */
+    private final Library library;
+    /**
+     * Receives each newly overdue loan.
+     */
+    private final Consumer<Loan> listener;
+    /**
+     * The thread running the sweeps.
+     */
+    private final ScheduledExecutorService scheduler;
+    /**
+     * The last loan reported, or a probe at the time of the last sweep; later loans are not yet reported.
+     * Guarded by cursorLock.
+     */
+    private Loan sweptUntil = LoanIndex.probe(Long.MIN_VALUE);
+    /**
+     * Guards reading loans from the index together with moving the cursor past them, so a
+     * carried loan is either found by the read or seen to be behind the cursor.
+     */
+    private final Object cursorLock = new Object();
+    /**
+     * Loans carried over behind the cursor, reported on the next sweep.
+     */
+    private final Queue<Loan> carried = new ConcurrentLinkedQueue<Loan>();
+    /**
+     * Receives the loans the library carries over.
+     */
+    private final Consumer<Loan> carriedListener = this::loanCarried;
+    
+    /**
+     * Constructs a sweeper reporting overdue loans to a listener. Call start to begin sweeping.
+     *
+     * @param library  the library whose loans are swept
+     * @param listener receives each newly overdue loan, on the sweeper thread
+     */
+    public OverdueSweeper(Library library, Consumer<Loan> listener) {
+        this.library = library;
+        this.listener = listener;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread sweeper = new Thread(task, "overdue-sweeper");
+            sweeper.setDaemon(true);
+            return sweeper;
+        });
+        library.addCarriedLoanListener(carriedListener);
+    }
+    
+    /**
+     * Starts sweeping at a fixed interval, beginning immediately.
+     *
+     * @param interval the time between sweeps
+     */
+    public void start(Duration interval) {
+        scheduler.scheduleWithFixedDelay(this::sweep, 0, interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Reports every loan that became overdue since the last sweep.
+     * Loans returned before the sweep are not reported.
+     *
+     * @return the number of loans reported
+     */
+    public synchronized int sweep() {
+        long now = library.currentTime();
+        int reported = 0;
+        // Loans carried over behind the cursor are already overdue
+        for (Loan loan = carried.poll(); loan != null; loan = carried.poll()) {
+            if (library.isOnLoan(loan)) {
+                listener.accept(loan);
+                reported++;
+            }
+        }
+        while (true) {
+            List<Loan> overdue;
+            synchronized (cursorLock) {
+                overdue = library.getLoansDueAfter(sweptUntil, now, SWEEP_CHUNK);
+                if (overdue.size() == SWEEP_CHUNK) {
+                    sweptUntil = overdue.get(overdue.size() - 1);
+                } else if (now > sweptUntil.getDueTime()) {
+                    // Loans due at or after now are ordered after this probe
+                    sweptUntil = LoanIndex.probe(now);
+                }
+            }
+            for (Loan loan : overdue) {
+                listener.accept(loan);
+            }
+            reported += overdue.size();
+            if (overdue.size() < SWEEP_CHUNK) {
+                return reported;
+            }
+        }
+    }
+    
+    /**
+     * Queues a loan carried over with its own due time if the sweeps have already passed it.
+     *
+     * @param loan the loan, already in the due-time index
+     */
+    private void loanCarried(Loan loan) {
+        synchronized (cursorLock) {
+            if (LoanIndex.BY_DUE_TIME.compare(loan, sweptUntil) <= 0) {
+                carried.add(loan);
+            }
+        }
+    }
+    
+    /**
+     * Stops sweeping.
+     */
+    @Override
+    public void close() {
+        library.removeCarriedLoanListener(carriedListener);
+        scheduler.shutdownNow();
+    }
+}
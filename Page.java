@@ -0,0 +1,44 @@
+package library;
+
+import java.util.List;
+
+public class Page<T> {
+    
+    /**
+     * The items of the page, in listing order.
+     */
+    private final List<T> items;
+    /**
+     * The cursor to pass for the next page, or null if the listing is exhausted.
+     */
+    private final String nextCursor;
+    
+    /**
+     * Constructs a Page with the specified items and next cursor.
+     *
+     * @param items      the items of the page
+     * @param nextCursor the cursor of the next page, or null if there is none
+     */
+    public Page(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+    
+    /**
+     * Returns the items of the page.
+     *
+     * @return the items, in listing order
+     */
+    public List<T> getItems() {
+        return items;
+    }
+    
+    /**
+     * Returns the cursor to pass for the next page.
+     *
+     * @return the next cursor, or null if the listing is exhausted
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
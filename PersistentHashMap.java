@@ -0,0 +1,372 @@
+package library;
+
+import java.util.Arrays;
+
+/**
+ * An immutable map from strings to values, for fast lookups in snapshots.
+ * The map is a hash array mapped trie: each level branches 32 ways on five bits of the key's
+ * hash, so a lookup reads a handful of nodes where a sorted tree would compare keys along a
+ * path of length log n. Changing the map copies only the nodes on the path to the key.
+ *
+ * @param <V> the type of the values
+ */
+public class PersistentHashMap<V> {
+
+    /**
+     * The map with no entries.
+     */
+    private static final PersistentHashMap<Object> EMPTY = new PersistentHashMap<Object>(new BitmapNode(0, new Object[0]), 0);
+
+    /**
+     * The root of the trie.
+     */
+    private final BitmapNode root;
+    /**
+     * The number of entries.
+     */
+    private final int size;
+
+    /**
+     * Constructs a map over a trie.
+     *
+     * @param root the root of the trie
+     * @param size the number of entries
+     */
+    private PersistentHashMap(BitmapNode root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     * Returns the map with no entries.
+     *
+     * @param <V> the type of the values
+     * @return the empty map
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentHashMap<V> empty() {
+        return (PersistentHashMap<V>) EMPTY;
+    }
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param key the key
+     * @return the value, or null if the key is absent
+     */
+    @SuppressWarnings("unchecked")
+    public V get(String key) {
+        int hash = hash(key);
+        Object node = root;
+        for (int shift = 0; ; shift += 5) {
+            if (node instanceof BitmapNode) {
+                BitmapNode branch = (BitmapNode) node;
+                int bit = 1 << ((hash >>> shift) & 31);
+                if ((branch.bitmap & bit) == 0) {
+                    return null;
+                }
+                node = branch.children[Integer.bitCount(branch.bitmap & (bit - 1))];
+            } else if (node instanceof Entry) {
+                Entry entry = (Entry) node;
+                return entry.hash == hash && entry.key.equals(key) ? (V) entry.value : null;
+            } else {
+                Entry entry = ((CollisionNode) node).find(key);
+                return entry == null ? null : (V) entry.value;
+            }
+        }
+    }
+
+    /**
+     * Returns a map with a key set to a value.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the new map
+     */
+    public PersistentHashMap<V> put(String key, V value) {
+        boolean[] added = new boolean[1];
+        BitmapNode changed = put(root, 0, new Entry(key, hash(key), value), added);
+        return new PersistentHashMap<V>(changed, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Returns a map without a key.
+     *
+     * @param key the key
+     * @return the new map, or this map if the key is absent
+     */
+    public PersistentHashMap<V> remove(String key) {
+        BitmapNode changed = remove(root, 0, key, hash(key));
+        return changed == root ? this : new PersistentHashMap<V>(changed, size - 1);
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the hash of a key, spreading its high bits into the low bits the trie branches on first.
+     *
+     * @param key the key
+     * @return the hash
+     */
+    private static int hash(String key) {
+        int hash = key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Returns a branch with an entry added or replaced.
+     *
+     * @param node  the branch
+     * @param shift the number of hash bits consumed above the branch
+     * @param entry the entry
+     * @param added set to true if the key was absent
+     * @return the new branch
+     */
+    private static BitmapNode put(BitmapNode node, int shift, Entry entry, boolean[] added) {
+        int bit = 1 << ((entry.hash >>> shift) & 31);
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        if ((node.bitmap & bit) == 0) {
+            added[0] = true;
+            return node.insert(index, bit, entry);
+        }
+        Object child = node.children[index];
+        Object replacement;
+        if (child instanceof Entry) {
+            Entry existing = (Entry) child;
+            if (existing.hash == entry.hash && existing.key.equals(entry.key)) {
+                replacement = entry;
+            } else {
+                added[0] = true;
+                replacement = merge(existing, entry, shift + 5);
+            }
+        } else if (child instanceof BitmapNode) {
+            replacement = put((BitmapNode) child, shift + 5, entry, added);
+        } else {
+            replacement = ((CollisionNode) child).put(entry, added);
+        }
+        return node.replace(index, replacement);
+    }
+
+    /**
+     * Returns a subtrie holding two entries whose hashes agree above the given shift.
+     *
+     * @param first  the first entry
+     * @param second the second entry, with a different key
+     * @param shift  the number of hash bits consumed above the subtrie
+     * @return the subtrie
+     */
+    private static Object merge(Entry first, Entry second, int shift) {
+        if (first.hash == second.hash || shift >= 32) {
+            return new CollisionNode(new Entry[] { first, second });
+        }
+        int firstBits = (first.hash >>> shift) & 31;
+        int secondBits = (second.hash >>> shift) & 31;
+        if (firstBits == secondBits) {
+            return new BitmapNode(1 << firstBits, new Object[] { merge(first, second, shift + 5) });
+        }
+        return new BitmapNode((1 << firstBits) | (1 << secondBits),
+                firstBits < secondBits ? new Object[] { first, second } : new Object[] { second, first });
+    }
+
+    /**
+     * Returns a branch without a key.
+     *
+     * @param node  the branch
+     * @param shift the number of hash bits consumed above the branch
+     * @param key   the key
+     * @param hash  the hash of the key
+     * @return the new branch, or the same branch if the key is absent
+     */
+    private static BitmapNode remove(BitmapNode node, int shift, String key, int hash) {
+        int bit = 1 << ((hash >>> shift) & 31);
+        if ((node.bitmap & bit) == 0) {
+            return node;
+        }
+        int index = Integer.bitCount(node.bitmap & (bit - 1));
+        Object child = node.children[index];
+        Object replacement;
+        if (child instanceof Entry) {
+            Entry existing = (Entry) child;
+            if (existing.hash != hash || !existing.key.equals(key)) {
+                return node;
+            }
+            replacement = null;
+        } else if (child instanceof BitmapNode) {
+            BitmapNode branch = remove((BitmapNode) child, shift + 5, key, hash);
+            if (branch == child) {
+                return node;
+            }
+            // A branch left with a single entry collapses into it
+            replacement = branch.bitmap == 0 ? null
+                    : branch.children.length == 1 && branch.children[0] instanceof Entry ? branch.children[0] : branch;
+        } else {
+            CollisionNode collisions = ((CollisionNode) child).remove(key);
+            if (collisions == child) {
+                return node;
+            }
+            replacement = collisions.entries.length == 1 ? collisions.entries[0] : collisions;
+        }
+        return replacement == null ? node.delete(index, bit) : node.replace(index, replacement);
+    }
+
+    /**
+     * A key with its hash and value.
+     */
+    private static class Entry {
+        final String key;
+        final int hash;
+        final Object value;
+
+        /**
+         * Constructs an entry.
+         *
+         * @param key   the key
+         * @param hash  the hash of the key
+         * @param value the value
+         */
+        Entry(String key, int hash, Object value) {
+            this.key = key;
+            this.hash = hash;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A branch holding entries and subtries, one per set bit of its bitmap, in bit order.
+     */
+    private static class BitmapNode {
+        final int bitmap;
+        final Object[] children;
+
+        /**
+         * Constructs a branch.
+         *
+         * @param bitmap   the bits of the hash fragments present
+         * @param children the entries and subtries, in bit order
+         */
+        BitmapNode(int bitmap, Object[] children) {
+            this.bitmap = bitmap;
+            this.children = children;
+        }
+
+        /**
+         * Returns a copy with a child added.
+         *
+         * @param index the position of the child
+         * @param bit   the bit of its hash fragment
+         * @param child the child
+         * @return the new branch
+         */
+        BitmapNode insert(int index, int bit, Object child) {
+            Object[] copy = new Object[children.length + 1];
+            System.arraycopy(children, 0, copy, 0, index);
+            copy[index] = child;
+            System.arraycopy(children, index, copy, index + 1, children.length - index);
+            return new BitmapNode(bitmap | bit, copy);
+        }
+
+        /**
+         * Returns a copy with a child replaced.
+         *
+         * @param index the position of the child
+         * @param child the new child
+         * @return the new branch
+         */
+        BitmapNode replace(int index, Object child) {
+            Object[] copy = children.clone();
+            copy[index] = child;
+            return new BitmapNode(bitmap, copy);
+        }
+
+        /**
+         * Returns a copy with a child removed.
+         *
+         * @param index the position of the child
+         * @param bit   the bit of its hash fragment
+         * @return the new branch
+         */
+        BitmapNode delete(int index, int bit) {
+            Object[] copy = new Object[children.length - 1];
+            System.arraycopy(children, 0, copy, 0, index);
+            System.arraycopy(children, index + 1, copy, index, copy.length - index);
+            return new BitmapNode(bitmap & ~bit, copy);
+        }
+    }
+
+    /**
+     * The entries whose keys have the same hash.
+     */
+    private static class CollisionNode {
+        final Entry[] entries;
+
+        /**
+         * Constructs a collision node.
+         *
+         * @param entries the entries, with distinct keys and equal hashes
+         */
+        CollisionNode(Entry[] entries) {
+            this.entries = entries;
+        }
+
+        /**
+         * Returns the entry of a key.
+         *
+         * @param key the key
+         * @return the entry, or null if absent
+         */
+        Entry find(String key) {
+            for (Entry entry : entries) {
+                if (entry.key.equals(key)) {
+                    return entry;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Returns a copy with an entry added or replaced.
+         *
+         * @param entry the entry
+         * @param added set to true if the key was absent
+         * @return the new node
+         */
+        CollisionNode put(Entry entry, boolean[] added) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key.equals(entry.key)) {
+                    Entry[] copy = entries.clone();
+                    copy[i] = entry;
+                    return new CollisionNode(copy);
+                }
+            }
+            added[0] = true;
+            Entry[] copy = Arrays.copyOf(entries, entries.length + 1);
+            copy[entries.length] = entry;
+            return new CollisionNode(copy);
+        }
+
+        /**
+         * Returns a copy without a key.
+         *
+         * @param key the key
+         * @return the new node, or this node if the key is absent
+         */
+        CollisionNode remove(String key) {
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].key.equals(key)) {
+                    Entry[] copy = new Entry[entries.length - 1];
+                    System.arraycopy(entries, 0, copy, 0, i);
+                    System.arraycopy(entries, i + 1, copy, i, copy.length - i);
+                    return new CollisionNode(copy);
+                }
+            }
+            return this;
+        }
+    }
+}
@@ -0,0 +1,316 @@
+package library;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable map from strings to values, sorted by key.
+ * Changing the map returns a new map that shares every untouched node with the old one, so a
+ * change copies only the O(log n) nodes on the path to the changed key, and any number of
+ * threads can read an old map while a new one is built. The tree is an AVL tree.
+ *
+ * @param <V> the type of the values
+ */
+public class PersistentSortedMap<V> implements Iterable<V> {
+
+    /**
+     * The map with no entries.
+     */
+    private static final PersistentSortedMap<Object> EMPTY = new PersistentSortedMap<Object>(null);
+
+    /**
+     * The root of the tree, or null if the map is empty.
+     */
+    private final Node<V> root;
+
+    /**
+     * Constructs a map over a tree.
+     *
+     * @param root the root of the tree, or null for an empty map
+     */
+    private PersistentSortedMap(Node<V> root) {
+        this.root = root;
+    }
+
+    /**
+     * Returns the map with no entries.
+     *
+     * @param <V> the type of the values
+     * @return the empty map
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> PersistentSortedMap<V> empty() {
+        return (PersistentSortedMap<V>) EMPTY;
+    }
+
+    /**
+     * Builds a balanced map from entries in key order, in O(n).
+     *
+     * @param <V>    the type of the values
+     * @param keys   the keys, sorted and distinct
+     * @param values the values, paired with keys by position
+     * @return the map
+     */
+    public static <V> PersistentSortedMap<V> fromSorted(List<String> keys, List<V> values) {
+        return new PersistentSortedMap<V>(build(keys, values, 0, keys.size()));
+    }
+
+    /**
+     * Builds a balanced subtree from a range of sorted entries.
+     *
+     * @param <V>    the type of the values
+     * @param keys   the keys, sorted and distinct
+     * @param values the values, paired with keys by position
+     * @param from   the first entry of the range
+     * @param to     the entry after the last of the range
+     * @return the root of the subtree, or null if the range is empty
+     */
+    private static <V> Node<V> build(List<String> keys, List<V> values, int from, int to) {
+        if (from >= to) {
+            return null;
+        }
+        int middle = (from + to) >>> 1;
+        return new Node<V>(keys.get(middle), values.get(middle),
+                build(keys, values, from, middle), build(keys, values, middle + 1, to));
+    }
+
+    /**
+     * Returns the value of a key.
+     *
+     * @param key the key
+     * @return the value, or null if the key is absent
+     */
+    public V get(String key) {
+        Node<V> node = root;
+        while (node != null) {
+            int order = key.compareTo(node.key);
+            if (order == 0) {
+                return node.value;
+            }
+            node = order < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a map with a key set to a value.
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the new map
+     */
+    public PersistentSortedMap<V> put(String key, V value) {
+        return new PersistentSortedMap<V>(put(root, key, value));
+    }
+
+    /**
+     * Returns a map without a key.
+     *
+     * @param key the key
+     * @return the new map, or this map if the key is absent
+     */
+    public PersistentSortedMap<V> remove(String key) {
+        Node<V> removed = remove(root, key);
+        return removed == root ? this : new PersistentSortedMap<V>(removed);
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size(root);
+    }
+
+    /**
+     * Returns an iterator over the values in key order.
+     *
+     * @return the iterator
+     */
+    @Override
+    public Iterator<V> iterator() {
+        return valuesAfter(null);
+    }
+
+    /**
+     * Returns an iterator over the values of the keys after a key, in key order.
+     *
+     * @param after the key to start after, or null to start at the first key
+     * @return the iterator
+     */
+    public Iterator<V> valuesAfter(String after) {
+        // Stack the path to the first key after the given one; each node's right subtree follows it
+        Deque<Node<V>> path = new ArrayDeque<Node<V>>();
+        Node<V> node = root;
+        while (node != null) {
+            if (after == null || node.key.compareTo(after) > 0) {
+                path.push(node);
+                node = node.left;
+            } else {
+                node = node.right;
+            }
+        }
+        return new Iterator<V>() {
+            @Override
+            public boolean hasNext() {
+                return !path.isEmpty();
+            }
+
+            @Override
+            public V next() {
+                if (path.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                Node<V> next = path.pop();
+                for (Node<V> child = next.right; child != null; child = child.left) {
+                    path.push(child);
+                }
+                return next.value;
+            }
+        };
+    }
+
+    /**
+     * Returns a subtree with a key set to a value.
+     *
+     * @param <V>   the type of the values
+     * @param node  the root of the subtree, or null
+     * @param key   the key
+     * @param value the value
+     * @return the root of the new subtree
+     */
+    private static <V> Node<V> put(Node<V> node, String key, V value) {
+        if (node == null) {
+            return new Node<V>(key, value, null, null);
+        }
+        int order = key.compareTo(node.key);
+        if (order == 0) {
+            return new Node<V>(key, value, node.left, node.right);
+        }
+        if (order < 0) {
+            return balance(node.key, node.value, put(node.left, key, value), node.right);
+        }
+        return balance(node.key, node.value, node.left, put(node.right, key, value));
+    }
+
+    /**
+     * Returns a subtree without a key.
+     *
+     * @param <V>  the type of the values
+     * @param node the root of the subtree, or null
+     * @param key  the key
+     * @return the root of the new subtree, or the same root if the key is absent
+     */
+    private static <V> Node<V> remove(Node<V> node, String key) {
+        if (node == null) {
+            return null;
+        }
+        int order = key.compareTo(node.key);
+        if (order < 0) {
+            Node<V> left = remove(node.left, key);
+            return left == node.left ? node : balance(node.key, node.value, left, node.right);
+        }
+        if (order > 0) {
+            Node<V> right = remove(node.right, key);
+            return right == node.right ? node : balance(node.key, node.value, node.left, right);
+        }
+        if (node.left == null) {
+            return node.right;
+        }
+        if (node.right == null) {
+            return node.left;
+        }
+        // Replace the node with the first entry of its right subtree
+        Node<V> first = node.right;
+        while (first.left != null) {
+            first = first.left;
+        }
+        return balance(first.key, first.value, node.left, remove(node.right, first.key));
+    }
+
+    /**
+     * Returns a node over two subtrees whose heights differ by at most two, rotating it
+     * so their heights differ by at most one.
+     *
+     * @param <V>   the type of the values
+     * @param key   the key of the node
+     * @param value the value of the node
+     * @param left  the left subtree, or null
+     * @param right the right subtree, or null
+     * @return the root of the balanced subtree
+     */
+    private static <V> Node<V> balance(String key, V value, Node<V> left, Node<V> right) {
+        if (height(left) > height(right) + 1) {
+            if (height(left.left) >= height(left.right)) {
+                return new Node<V>(left.key, left.value, left.left, new Node<V>(key, value, left.right, right));
+            }
+            Node<V> middle = left.right;
+            return new Node<V>(middle.key, middle.value, new Node<V>(left.key, left.value, left.left, middle.left),
+                    new Node<V>(key, value, middle.right, right));
+        }
+        if (height(right) > height(left) + 1) {
+            if (height(right.right) >= height(right.left)) {
+                return new Node<V>(right.key, right.value, new Node<V>(key, value, left, right.left), right.right);
+            }
+            Node<V> middle = right.left;
+            return new Node<V>(middle.key, middle.value, new Node<V>(key, value, left, middle.left),
+                    new Node<V>(right.key, right.value, middle.right, right.right));
+        }
+        return new Node<V>(key, value, left, right);
+    }
+
+    /**
+     * Returns the height of a subtree.
+     *
+     * @param node the root of the subtree, or null
+     * @return the height, 0 for an empty subtree
+     */
+    private static int height(Node<?> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    /**
+     * Returns the number of entries of a subtree.
+     *
+     * @param node the root of the subtree, or null
+     * @return the number of entries
+     */
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * An immutable tree node.
+     *
+     * @param <V> the type of the values
+     */
+    private static class Node<V> {
+        final String key;
+        final V value;
+        final Node<V> left;
+        final Node<V> right;
+        final int height;
+        final int size;
+
+        /**
+         * Constructs a node over two subtrees.
+         *
+         * @param key   the key
+         * @param value the value
+         * @param left  the left subtree, or null
+         * @param right the right subtree, or null
+         */
+        Node(String key, V value, Node<V> left, Node<V> right) {
+            this.key = key;
+            this.value = value;
+            this.left = left;
+            this.right = right;
+            this.height = Math.max(height(left), height(right)) + 1;
+            this.size = size(left) + size(right) + 1;
+        }
+    }
+}
@@ -15,6 +15,10 @@ public class Reader {
      * The email contact of the reader.
      */
     private String contact;
+    /**
+     * Whether the reader has been removed from the library. Once set, never cleared.
+     */
+    private volatile boolean removed;
 
     /**
      * Constructs a Reader object with the specified information.
@@ -30,12 +34,27 @@ public class Reader {
     }
 
     /**
-     * Displays the information of the reader.
+     * Displays the information of the reader on an output sink.
+     *
+     * @param output the sink receiving the information
+     */
+    public void displayInfo(OutputSink output) {
+        if (output.isEnabled()) {
+            output.print(formatInfo());
+            output.flush();
+        }
+    }
+
+    /**
+     * Formats the information of the reader as shown by displayInfo.
+     *
+     * @return the information of the reader, one line per attribute
      */
-    public void displayInfo() {
-        System.out.println("ID: " + id);
-        System.out.println("Name: " + name);
-        System.out.println("Contact: " + contact);
+    public String formatInfo() {
+        String lineSeparator = System.lineSeparator();
+        return "ID: " + id + lineSeparator
+                + "Name: " + name + lineSeparator
+                + "Contact: " + contact + lineSeparator;
     }
 
     /**
@@ -46,4 +65,38 @@ public class Reader {
     public String getId() {
         return id;
     }
+
+    /**
+     * Returns the name of the reader.
+     *
+     * @return the name of the reader
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the email contact of the reader.
+     *
+     * @return the email contact of the reader
+     */
+    public String getContact() {
+        return contact;
+    }
+
+    /**
+     * Marks the reader as removed from the library, so no loan or hold can be added for it.
+     */
+    void markRemoved() {
+        removed = true;
+    }
+
+    /**
+     * Returns whether the reader has been removed from the library.
+     *
+     * @return whether the reader is removed
+     */
+    boolean isRemoved() {
+        return removed;
+    }
 }
@@ -0,0 +1,567 @@
+package library;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * An autocomplete index of reader names and contacts, for finding readers from what staff
+ * type at the desk. Each reader is indexed under their whole name, each word of it, and
+ * their contact, normalized to lower case without accents or repeated spaces, so "smi",
+ * "john sm" and "john.smith@" all find John Smith.
+ * <p>
+ * The keys are kept in a radix trie: each edge is labelled with the run of characters its
+ * keys share, so a million readers take a few nodes per reader rather than one per character.
+ * Completing a prefix walks its edges, then collects readers in key order until the limit.
+ * Matches within one edit of the typed prefix (a wrong, missing or extra character) are found
+ * by carrying a row of edit distances down the trie and pruning branches already two edits away.
+ * Readers are added and removed in place, under a lock that lets lookups run together.
+ */
+public class ReaderIndex {
+
+    /**
+     * The shortest prefix completed with matches one edit away; shorter prefixes match almost everything.
+     */
+    static final int FUZZY_MIN_LENGTH = 3;
+    /**
+     * One node of the trie, ending the keys spelled by the labels on the path to it.
+     */
+    private static final class Node {
+        // The characters of the edge into this node; empty for the root
+        private char[] label;
+        // The child nodes, sorted by the first character of their labels, or null if none
+        private Node[] children;
+        // The ID of the only reader indexed under the key ending here, or a sorted array of the IDs
+        // when there are several, or null if none; most keys, such as contacts, have one reader
+        private Object ids;
+        private int idCount;
+
+        private Node(char[] label) {
+            this.label = label;
+        }
+    }
+
+    /**
+     * The root of the trie.
+     */
+    private final Node root = new Node(new char[0]);
+    /**
+     * Guards the trie: lookups share the read lock, changes take the write lock.
+     */
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    /**
+     * The number of nodes in the trie, including the root. Guarded by the lock.
+     */
+    private int nodeCount = 1;
+    /**
+     * The number of reader entries under all keys. Guarded by the lock.
+     */
+    private long entryCount;
+
+    /**
+     * Indexes the name and contact of a reader.
+     *
+     * @param reader the reader to index
+     */
+    public void add(Reader reader) {
+        lock.writeLock().lock();
+        try {
+            for (String key : keys(reader)) {
+                insert(key, reader.getId());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Removes the name and contact of a reader from the index.
+     * Must be given the reader as they were when indexed.
+     *
+     * @param reader the reader to remove
+     */
+    public void remove(Reader reader) {
+        lock.writeLock().lock();
+        try {
+            for (String key : keys(reader)) {
+                delete(key, reader.getId());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Completes what was typed into the IDs of matching readers. Readers with a name, a word
+     * of their name or a contact starting with the typed text come first, in key order; then,
+     * for text of at least FUZZY_MIN_LENGTH characters, readers whose key starts within one
+     * edit of it.
+     *
+     * @param text  the typed start of a name, word of a name or contact
+     * @param limit the maximum number of readers to return
+     * @return the IDs of the matching readers, best first
+     */
+    public List<String> complete(String text, int limit) {
+        String prefix = normalize(text);
+        Set<String> found = new LinkedHashSet<String>();
+        if (prefix.isEmpty() || limit <= 0) {
+            return new ArrayList<String>(found);
+        }
+        lock.readLock().lock();
+        try {
+            completePrefix(prefix, found, limit);
+            if (found.size() < limit && prefix.length() >= FUZZY_MIN_LENGTH) {
+                int[] row = new int[prefix.length() + 1];
+                for (int i = 0; i < row.length; i++) {
+                    row[i] = i;
+                }
+                completeFuzzy(root, prefix, row, found, limit);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new ArrayList<String>(found);
+    }
+
+    /**
+     * Returns the number of nodes in the trie.
+     *
+     * @return the number of nodes, including the root
+     */
+    public int getNodeCount() {
+        lock.readLock().lock();
+        try {
+            return nodeCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the number of reader entries under all keys, several per reader.
+     *
+     * @return the number of entries
+     */
+    public long getEntryCount() {
+        lock.readLock().lock();
+        try {
+            return entryCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Normalizes text for indexing and lookup: accents are dropped, letters are lower-cased,
+     * and runs of white space become single spaces.
+     *
+     * @param text the text to normalize
+     * @return the normalized text, trimmed
+     */
+    static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder normalized = new StringBuilder(decomposed.length());
+        boolean space = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                space = normalized.length() > 0;
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            normalized.append(c);
+        }
+        return normalized.toString().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Returns the keys a reader is indexed under: their whole name, each word of it, and their contact.
+     *
+     * @param reader the reader
+     * @return the distinct normalized keys
+     */
+    private static Set<String> keys(Reader reader) {
+        Set<String> keys = new LinkedHashSet<String>();
+        String name = normalize(reader.getName());
+        keys.add(name);
+        keys.addAll(SearchIndex.tokenize(name));
+        keys.add(normalize(reader.getContact()));
+        keys.remove("");
+        return keys;
+    }
+
+    // Trie Methods
+
+    /**
+     * Adds a reader ID under a key, splitting an edge where the key leaves it.
+     *
+     * @param key      the normalized key
+     * @param readerId the ID of the reader
+     */
+    private void insert(String key, String readerId) {
+        Node node = root;
+        int depth = 0;
+        while (depth < key.length()) {
+            int index = childIndex(node, key.charAt(depth));
+            if (index < 0) {
+                Node leaf = new Node(key.substring(depth).toCharArray());
+                insertChild(node, -index - 1, leaf);
+                node = leaf;
+                break;
+            }
+            Node child = node.children[index];
+            int common = commonLength(child.label, key, depth);
+            if (common < child.label.length) {
+                // Split the edge at the first character the key does not share
+                Node middle = new Node(Arrays.copyOf(child.label, common));
+                child.label = Arrays.copyOfRange(child.label, common, child.label.length);
+                middle.children = new Node[] { child };
+                node.children[index] = middle;
+                nodeCount++;
+                child = middle;
+            }
+            node = child;
+            depth += common;
+        }
+        if (addId(node, readerId)) {
+            entryCount++;
+        }
+    }
+
+    /**
+     * Removes a reader ID from under a key, pruning nodes left empty and merging
+     * nodes left with a single child into it.
+     *
+     * @param key      the normalized key
+     * @param readerId the ID of the reader
+     */
+    private void delete(String key, String readerId) {
+        Node parent = null;
+        Node node = root;
+        int depth = 0;
+        while (depth < key.length()) {
+            int index = childIndex(node, key.charAt(depth));
+            if (index < 0) {
+                return;
+            }
+            Node child = node.children[index];
+            if (commonLength(child.label, key, depth) < child.label.length) {
+                return;
+            }
+            parent = node;
+            node = child;
+            depth += child.label.length;
+        }
+        if (!removeId(node, readerId)) {
+            return;
+        }
+        entryCount--;
+        if (node == root || node.idCount > 0) {
+            return;
+        }
+        if (node.children == null) {
+            removeChild(parent, node);
+            // The parent may now be a pass-through node with one child
+            if (parent != root && parent.idCount == 0 && parent.children != null && parent.children.length == 1) {
+                merge(parent);
+            }
+        } else if (node.children.length == 1) {
+            merge(node);
+        }
+    }
+
+    /**
+     * Merges a node with no readers into its only child, joining their labels.
+     *
+     * @param node the node to merge
+     */
+    private void merge(Node node) {
+        Node child = node.children[0];
+        char[] label = Arrays.copyOf(node.label, node.label.length + child.label.length);
+        System.arraycopy(child.label, 0, label, node.label.length, child.label.length);
+        node.label = label;
+        node.children = child.children;
+        node.ids = child.ids;
+        node.idCount = child.idCount;
+        nodeCount--;
+    }
+
+    /**
+     * Finds the child of a node whose label starts with a character.
+     *
+     * @param node  the node
+     * @param first the first character of the label
+     * @return the index of the child, or -(insertion point) - 1 if there is none
+     */
+    private static int childIndex(Node node, char first) {
+        Node[] children = node.children;
+        if (children == null) {
+            return -1;
+        }
+        int low = 0;
+        int high = children.length - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            char c = children[middle].label[0];
+            if (c < first) {
+                low = middle + 1;
+            } else if (c > first) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+        return -low - 1;
+    }
+
+    /**
+     * Inserts a child into a node at an index, keeping the children sorted.
+     *
+     * @param node  the node
+     * @param index the index of the new child
+     * @param child the new child
+     */
+    private void insertChild(Node node, int index, Node child) {
+        Node[] old = node.children == null ? new Node[0] : node.children;
+        Node[] children = new Node[old.length + 1];
+        System.arraycopy(old, 0, children, 0, index);
+        children[index] = child;
+        System.arraycopy(old, index, children, index + 1, old.length - index);
+        node.children = children;
+        nodeCount++;
+    }
+
+    /**
+     * Removes a child from a node.
+     *
+     * @param node  the node
+     * @param child the child to remove
+     */
+    private void removeChild(Node node, Node child) {
+        int index = childIndex(node, child.label[0]);
+        if (node.children.length == 1) {
+            node.children = null;
+        } else {
+            Node[] children = new Node[node.children.length - 1];
+            System.arraycopy(node.children, 0, children, 0, index);
+            System.arraycopy(node.children, index + 1, children, index, children.length - index);
+            node.children = children;
+        }
+        nodeCount--;
+    }
+
+    /**
+     * Adds a reader ID to a node, keeping the IDs sorted.
+     *
+     * @param node     the node
+     * @param readerId the ID of the reader
+     * @return true if added, false if already there
+     */
+    private static boolean addId(Node node, String readerId) {
+        if (node.idCount == 0) {
+            node.ids = readerId;
+            node.idCount = 1;
+            return true;
+        }
+        if (node.idCount == 1) {
+            String only = (String) node.ids;
+            int order = only.compareTo(readerId);
+            if (order == 0) {
+                return false;
+            }
+            node.ids = order < 0 ? new String[] { only, readerId } : new String[] { readerId, only };
+            node.idCount = 2;
+            return true;
+        }
+        String[] ids = (String[]) node.ids;
+        int index = Arrays.binarySearch(ids, 0, node.idCount, readerId);
+        if (index >= 0) {
+            return false;
+        }
+        index = -index - 1;
+        if (node.idCount == ids.length) {
+            ids = Arrays.copyOf(ids, ids.length * 2);
+            node.ids = ids;
+        }
+        System.arraycopy(ids, index, ids, index + 1, node.idCount - index);
+        ids[index] = readerId;
+        node.idCount++;
+        return true;
+    }
+
+    /**
+     * Removes a reader ID from a node, keeping a last remaining ID inline.
+     *
+     * @param node     the node
+     * @param readerId the ID of the reader
+     * @return true if removed, false if not there
+     */
+    private static boolean removeId(Node node, String readerId) {
+        if (node.idCount <= 1) {
+            if (node.idCount == 0 || !node.ids.equals(readerId)) {
+                return false;
+            }
+            node.ids = null;
+            node.idCount = 0;
+            return true;
+        }
+        String[] ids = (String[]) node.ids;
+        int index = Arrays.binarySearch(ids, 0, node.idCount, readerId);
+        if (index < 0) {
+            return false;
+        }
+        System.arraycopy(ids, index + 1, ids, index, node.idCount - index - 1);
+        ids[--node.idCount] = null;
+        if (node.idCount == 1) {
+            node.ids = ids[0];
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of leading characters a label shares with a key from an offset.
+     *
+     * @param label  the label
+     * @param key    the key
+     * @param offset the offset into the key
+     * @return the number of shared characters
+     */
+    private static int commonLength(char[] label, String key, int offset) {
+        int length = 0;
+        while (length < label.length && offset + length < key.length() && label[length] == key.charAt(offset + length)) {
+            length++;
+        }
+        return length;
+    }
+
+    // Lookup Methods
+
+    /**
+     * Collects the readers under every key starting with a prefix.
+     *
+     * @param prefix the normalized prefix
+     * @param found  the IDs found so far, added to in key order
+     * @param limit  the number of IDs to stop at
+     */
+    private void completePrefix(String prefix, Set<String> found, int limit) {
+        Node node = root;
+        int depth = 0;
+        while (depth < prefix.length()) {
+            int index = childIndex(node, prefix.charAt(depth));
+            if (index < 0) {
+                return;
+            }
+            Node child = node.children[index];
+            int common = commonLength(child.label, prefix, depth);
+            if (common < child.label.length && depth + common < prefix.length()) {
+                return;
+            }
+            node = child;
+            depth += common;
+        }
+        collect(node, found, limit);
+    }
+
+    /**
+     * Collects the readers under every key starting within one edit of a prefix.
+     * Each row holds the edit distances from each leading part of the prefix to the path so far.
+     *
+     * @param node   the node whose children to visit
+     * @param prefix the normalized prefix
+     * @param row    the edit distances at the end of the path to the node
+     * @param found  the IDs found so far
+     * @param limit  the number of IDs to stop at
+     */
+    private void completeFuzzy(Node node, String prefix, int[] row, Set<String> found, int limit) {
+        if (node.children == null) {
+            return;
+        }
+        for (Node child : node.children) {
+            if (found.size() >= limit) {
+                return;
+            }
+            int[] current = row;
+            boolean matched = false;
+            boolean reachable = true;
+            for (int i = 0; i < child.label.length && !matched && reachable; i++) {
+                current = nextRow(current, prefix, child.label[i]);
+                matched = current[prefix.length()] <= 1;
+                reachable = min(current) <= 1;
+            }
+            if (matched) {
+                collect(child, found, limit);
+            } else if (reachable) {
+                completeFuzzy(child, prefix, current, found, limit);
+            }
+        }
+    }
+
+    /**
+     * Extends a row of edit distances by one character of the path.
+     *
+     * @param row    the distances from each leading part of the prefix to the path
+     * @param prefix the prefix
+     * @param c      the next character of the path
+     * @return the distances to the path extended by the character
+     */
+    private static int[] nextRow(int[] row, String prefix, char c) {
+        int[] next = new int[row.length];
+        next[0] = row[0] + 1;
+        for (int i = 1; i < row.length; i++) {
+            int substitute = row[i - 1] + (prefix.charAt(i - 1) == c ? 0 : 1);
+            next[i] = Math.min(substitute, Math.min(row[i], next[i - 1]) + 1);
+        }
+        return next;
+    }
+
+    /**
+     * Returns the smallest value of a row.
+     *
+     * @param row the row
+     * @return the smallest value
+     */
+    private static int min(int[] row) {
+        int min = row[0];
+        for (int value : row) {
+            min = Math.min(min, value);
+        }
+        return min;
+    }
+
+    /**
+     * Collects the readers under a node and its descendants, in key order.
+     *
+     * @param node  the node
+     * @param found the IDs found so far
+     * @param limit the number of IDs to stop at
+     */
+    private static void collect(Node node, Set<String> found, int limit) {
+        if (node.idCount == 1) {
+            found.add((String) node.ids);
+        } else {
+            for (int i = 0; i < node.idCount && found.size() < limit; i++) {
+                found.add(((String[]) node.ids)[i]);
+            }
+        }
+        if (node.children != null) {
+            for (Node child : node.children) {
+                if (found.size() >= limit) {
+                    return;
+                }
+                collect(child, found, limit);
+            }
+        }
+    }
+}
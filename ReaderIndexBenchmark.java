@@ -0,0 +1,175 @@
+package library;
+
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntSupplier;
+
+/**
+ * Measures the reader autocomplete index with many readers: the heap it takes per million
+ * readers, the latency of completing typed prefixes and prefixes with a typing mistake, and
+ * the cost of adding and removing a reader against the populated index.
+ * Names are drawn from a few thousand first and last names, so words are shared as real
+ * names are, while every contact is distinct.
+ * A million readers need a heap of about 2 GB: java -Xmx2g library.ReaderIndexBenchmark
+ *
+ * Usage: java library.ReaderIndexBenchmark [--readers 1000000] [--results 10] [--seconds 2]
+ */
+public class ReaderIndexBenchmark {
+
+    /**
+     * The number of distinct first names and of last names.
+     */
+    private static final int NAMES = 3000;
+    /**
+     * The syllables names are built from.
+     */
+    private static final String[] SYLLABLES = { "an", "be", "cor", "da", "el", "fi", "gra", "ha", "is", "jo",
+            "ka", "li", "mar", "ne", "ol", "pe", "ra", "sa", "th", "ul", "vi", "wen", "xa", "yo", "zu" };
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     */
+    public static void main(String[] args) {
+        int count = 1000000;
+        int results = 10;
+        double seconds = 2;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--readers":
+                count = Integer.parseInt(args[i + 1]);
+                break;
+            case "--results":
+                results = Integer.parseInt(args[i + 1]);
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        // Create the readers first, so the heap measured afterwards is the index alone
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String[] firstNames = names(NAMES);
+        String[] lastNames = names(NAMES);
+        Reader[] readers = new Reader[count];
+        for (int i = 0; i < count; i++) {
+            String first = firstNames[random.nextInt(NAMES)];
+            String last = lastNames[random.nextInt(NAMES)];
+            readers[i] = new Reader("R" + i, capitalize(first) + " " + capitalize(last),
+                    first + "." + last + i + "@example.com");
+        }
+        long before = usedHeap();
+        long start = System.nanoTime();
+        ReaderIndex index = new ReaderIndex();
+        for (Reader reader : readers) {
+            index.add(reader);
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        long bytes = usedHeap() - before;
+        System.out.printf(Locale.ROOT, "Indexed %d readers in %.1f s: %d keys, %d nodes, %.1f MB (%.1f MB per million readers)\n",
+                count, elapsed, index.getEntryCount(), index.getNodeCount(), bytes / 1e6, bytes / 1e6 * 1e6 / count);
+
+        final int k = results;
+        final Reader[] all = readers;
+        measure("name word prefix (3 chars)", seconds, () -> index.complete(prefix(all, random, false, 3), k).size());
+        measure("full name prefix", seconds, () -> {
+            String name = all[random.nextInt(all.length)].getName();
+            return index.complete(name.substring(0, name.indexOf(' ') + 2), k).size();
+        });
+        measure("contact prefix (6 chars)", seconds, () -> index.complete(prefix(all, random, true, 6), k).size());
+        measure("prefix with a typo (5 chars)", seconds, () -> {
+            char[] typed = prefix(all, random, false, 5).toCharArray();
+            typed[1 + random.nextInt(typed.length - 1)] = 'q';
+            return index.complete(new String(typed), k).size();
+        });
+        measure("remove + add", seconds, () -> {
+            Reader reader = all[random.nextInt(all.length)];
+            index.remove(reader);
+            index.add(reader);
+            return 1;
+        });
+    }
+
+    /**
+     * Returns the start of the last name or contact of a random reader.
+     *
+     * @param readers the readers
+     * @param random  the source of randomness
+     * @param contact whether to take the contact rather than the last name
+     * @param length  the length of the start
+     * @return the start, or the whole text if shorter
+     */
+    private static String prefix(Reader[] readers, ThreadLocalRandom random, boolean contact, int length) {
+        Reader reader = readers[random.nextInt(readers.length)];
+        String text = contact ? reader.getContact() : reader.getName().substring(reader.getName().indexOf(' ') + 1);
+        return text.substring(0, Math.min(length, text.length()));
+    }
+
+    /**
+     * Builds distinct names of two to four syllables.
+     *
+     * @param count the number of names
+     * @return the names, in lower case
+     */
+    private static String[] names(int count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Set<String> names = new LinkedHashSet<String>();
+        while (names.size() < count) {
+            StringBuilder name = new StringBuilder();
+            for (int s = 2 + random.nextInt(3); s > 0; s--) {
+                name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+            }
+            names.add(name.toString());
+        }
+        return names.toArray(new String[0]);
+    }
+
+    /**
+     * Capitalizes the first letter of a name.
+     *
+     * @param name the name
+     * @return the capitalized name
+     */
+    private static String capitalize(String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Returns the heap in use after collecting garbage.
+     *
+     * @return the bytes in use
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Runs an operation repeatedly for a period and prints its average latency.
+     *
+     * @param name      the name of the operation
+     * @param seconds   the length of the period
+     * @param operation the operation, returning a value so it is not optimized away
+     */
+    private static void measure(String name, double seconds, IntSupplier operation) {
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long runs = 0;
+        long sink = 0;
+        do {
+            sink += operation.getAsInt();
+            runs++;
+        } while (System.nanoTime() < deadline);
+        double microseconds = (System.nanoTime() - start) / 1e3 / runs;
+        System.out.printf(Locale.ROOT, "%-32s %14.2f us/op  (%d runs, checksum %d)\n", name, microseconds, runs, sink);
+    }
+}
@@ -0,0 +1,163 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntSupplier;
+
+/**
+ * Measures the reader-to-loans index with many readers and active loans: looking up what a
+ * reader has borrowed, compared with scanning the loans of every book as a library without
+ * the index must, refusing to remove a reader who has books, and removing a reader by
+ * returning each of their books first.
+ * Each book has several copies and each reader borrows the same number of books.
+ * A million readers with ten million loans need a heap of about 8 GB:
+ * java -Xmx8g library.ReaderLoansBenchmark
+ *
+ * Usage: java library.ReaderLoansBenchmark [--readers 1000000] [--loans 10000000] [--copies 10]
+ *        [--seconds 2]
+ */
+public class ReaderLoansBenchmark {
+
+    /**
+     * The number of loans made per call of borrowBatch while populating.
+     */
+    private static final int BATCH = 10000;
+    /**
+     * The number of readers removed to time cascading removal.
+     */
+    private static final int REMOVALS = 1000;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     */
+    public static void main(String[] args) {
+        int readerCount = 1000000;
+        int loanCount = 10000000;
+        int copies = 10;
+        double seconds = 2;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--readers":
+                readerCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "--loans":
+                loanCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "--copies":
+                copies = Integer.parseInt(args[i + 1]);
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if (copies > readerCount) {
+            throw new IllegalArgumentException("A book cannot have more copies than there are readers");
+        }
+
+        // Lend copy k of book b to reader (b * copies + k) modulo the readers, so no reader borrows a title twice
+        long start = System.nanoTime();
+        Library library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        int bookCount = (loanCount + copies - 1) / copies;
+        List<Book> books = new ArrayList<Book>(BATCH);
+        for (int b = 0; b < bookCount; b++) {
+            books.add(new Book("Title " + b, "Author " + (b % 1000), isbn(b), 1900 + b % 125, copies));
+            if (books.size() == BATCH || b == bookCount - 1) {
+                library.addBooks(books);
+                books.clear();
+            }
+        }
+        List<Reader> readers = new ArrayList<Reader>(BATCH);
+        for (int r = 0; r < readerCount; r++) {
+            readers.add(new Reader("R" + r, "Reader " + r, "r" + r + "@example.com"));
+            if (readers.size() == BATCH || r == readerCount - 1) {
+                library.addReaders(readers);
+                readers.clear();
+            }
+        }
+        String[] readerIds = new String[BATCH];
+        String[] ISBNs = new String[BATCH];
+        int batched = 0;
+        for (int loan = 0; loan < loanCount; loan++) {
+            readerIds[batched] = "R" + (loan % readerCount);
+            ISBNs[batched] = isbn(loan / copies);
+            if (++batched == BATCH || loan == loanCount - 1) {
+                library.borrowBatch(Arrays.copyOf(readerIds, batched), Arrays.copyOf(ISBNs, batched));
+                batched = 0;
+            }
+        }
+        System.out.printf(Locale.ROOT, "Populated %d readers, %d books and %d loans in %.1f s\n", readerCount, bookCount,
+                library.getMetrics().getBooksOnLoan(), (System.nanoTime() - start) / 1e9);
+
+        final int readerTotal = readerCount;
+        final int bookTotal = bookCount;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        measure("getLoans (indexed)", seconds, () -> library.getLoans("R" + random.nextInt(readerTotal)).size());
+        measure("scan every book's loans", seconds, () -> {
+            String readerId = "R" + random.nextInt(readerTotal);
+            int found = 0;
+            for (int b = 0; b < bookTotal; b++) {
+                for (Loan loan : library.getCopyLoans(isbn(b))) {
+                    if (loan.getReaderId().equals(readerId)) {
+                        found++;
+                    }
+                }
+            }
+            return found;
+        });
+        measure("removeReader refused (has loans)", seconds,
+                () -> library.removeReader("R" + random.nextInt(readerTotal)).ordinal());
+
+        // Remove distinct readers, returning every book they hold
+        long returned = 0;
+        long elapsed = 0;
+        for (int r = 0; r < Math.min(REMOVALS, readerCount); r++) {
+            String readerId = "R" + r;
+            int held = library.getLoans(readerId).size();
+            long started = System.nanoTime();
+            library.removeReader(readerId, true);
+            elapsed += System.nanoTime() - started;
+            returned += held;
+        }
+        System.out.printf(Locale.ROOT, "%-32s %14.2f us/loan  (%d readers, %d loans returned)\n",
+                "removeReader cascade", elapsed / 1e3 / Math.max(1, returned), Math.min(REMOVALS, readerCount), returned);
+    }
+
+    /**
+     * Returns the ISBN of the i-th book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+
+    /**
+     * Runs an operation repeatedly for a period and prints its average latency.
+     *
+     * @param name      the name of the operation
+     * @param seconds   the length of the period
+     * @param operation the operation, returning a value so it is not optimized away
+     */
+    private static void measure(String name, double seconds, IntSupplier operation) {
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long runs = 0;
+        long sink = 0;
+        do {
+            sink += operation.getAsInt();
+            runs++;
+        } while (System.nanoTime() < deadline);
+        double microseconds = (System.nanoTime() - start) / 1e3 / runs;
+        System.out.printf(Locale.ROOT, "%-32s %14.2f us/op  (%d runs, checksum %d)\n", name, microseconds, runs, sink);
+    }
+}
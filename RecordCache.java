@@ -0,0 +1,488 @@
+package library;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * A bounded cache of rendered records, such as the text or JSON of a book, keyed by ISBN or
+ * reader ID.
+ * Eviction follows W-TinyLFU: new entries enter a small LRU window, and an entry leaving the
+ * window only displaces the least recently used entry of the main space if its key has been
+ * asked for more often, as estimated by a count-min sketch that halves every counter
+ * periodically so old popularity fades. The main space is a segmented LRU, protecting entries
+ * hit twice from one-off scans.
+ * <p>
+ * Hits take no lock: they are recorded in a lossy buffer that is applied to the eviction
+ * policy when a thread finds its lock free. Each entry remembers the record object it was
+ * rendered from and only serves that object, so a snapshot's immutable copies never see a
+ * rendering of another version. The library invalidates a key whenever its record changes,
+ * and a rendering that raced with an invalidation of its key is not cached.
+ *
+ * @param <V> the type of the rendered records
+ */
+public class RecordCache<V> {
+
+    /**
+     * The number of invalidation counters keys are spread over. Must be a power of two.
+     */
+    private static final int STAMP_STRIPES = 1024;
+    /**
+     * The number of slots of the buffer of recorded hits. Must be a power of two.
+     */
+    private static final int READ_BUFFER_SIZE = 128;
+    /**
+     * Queue marks of an entry.
+     */
+    private static final int UNLINKED = 0, WINDOW = 1, PROBATION = 2, PROTECTED = 3;
+
+    /**
+     * The largest number of entries.
+     */
+    private final int capacity;
+    /**
+     * The largest number of entries in the window.
+     */
+    private final int windowCapacity;
+    /**
+     * The largest number of entries in the protected segment of the main space.
+     */
+    private final int protectedCapacity;
+    /**
+     * The entries, by key.
+     */
+    private final ConcurrentHashMap<String, Node<V>> entries;
+    /**
+     * Counters bumped by each invalidation of a key in the stripe, so a rendering started
+     * before an invalidation is recognised.
+     */
+    private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+    /**
+     * Entries hit but not yet moved in the eviction policy. Hits may overwrite each other.
+     */
+    private final AtomicReferenceArray<Node<V>> readBuffer = new AtomicReferenceArray<Node<V>>(READ_BUFFER_SIZE);
+    /**
+     * Guards the queues and the frequency sketch.
+     */
+    private final ReentrantLock policyLock = new ReentrantLock();
+    /**
+     * The estimated access frequency of keys. Guarded by policyLock.
+     */
+    private final FrequencySketch sketch;
+    // Sentinels of the circular queues, least recently used first. Guarded by policyLock
+    private final Node<V> window = new Node<V>(null, null, null);
+    private final Node<V> probation = new Node<V>(null, null, null);
+    private final Node<V> protectedSegment = new Node<V>(null, null, null);
+    // Queue lengths. Guarded by policyLock
+    private int windowSize;
+    private int probationSize;
+    private int protectedSize;
+    // Statistics
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * Constructs an empty cache.
+     *
+     * @param capacity the largest number of entries
+     * @throws IllegalArgumentException if the capacity is not positive
+     */
+    public RecordCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+        this.entries = new ConcurrentHashMap<String, Node<V>>(capacity * 4 / 3 + 1);
+        this.sketch = new FrequencySketch(capacity);
+        window.prev = window.next = window;
+        probation.prev = probation.next = probation;
+        protectedSegment.prev = protectedSegment.next = protectedSegment;
+    }
+
+    /**
+     * Returns the rendering of a record, rendering and caching it on a miss.
+     *
+     * @param <S>    the type of the record
+     * @param key    the ISBN or reader ID of the record
+     * @param record the record, as just read
+     * @param render renders the record
+     * @return the rendering
+     */
+    public <S> V get(String key, S record, Function<? super S, ? extends V> render) {
+        Node<V> node = entries.get(key);
+        if (node != null && node.record == record) {
+            hits.increment();
+            recordHit(node);
+            return node.value;
+        }
+        misses.increment();
+        long stamp = stamps.get(stripe(key));
+        V value = render.apply(record);
+        put(new Node<V>(key, record, value), stamp);
+        return value;
+    }
+
+    /**
+     * Drops the rendering of a record that changed or was removed.
+     * Called by the library after the change is visible to readers.
+     *
+     * @param key the ISBN or reader ID of the record
+     */
+    public void invalidate(String key) {
+        stamps.incrementAndGet(stripe(key));
+        Node<V> node = entries.remove(key);
+        if (node != null) {
+            policyLock.lock();
+            try {
+                unlink(node);
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Records a hit, applying the buffered hits now and then if no other thread is.
+     *
+     * @param node the entry hit
+     */
+    private void recordHit(Node<V> node) {
+        int slot = ThreadLocalRandom.current().nextInt(READ_BUFFER_SIZE);
+        readBuffer.lazySet(slot, node);
+        if ((slot & 31) == 0 && policyLock.tryLock()) {
+            try {
+                drainHits();
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Caches a new entry unless its key was invalidated since it was rendered, then evicts
+     * entries until the cache fits its capacity.
+     *
+     * @param node  the entry
+     * @param stamp the invalidation counter of its key before it was rendered
+     */
+    private void put(Node<V> node, long stamp) {
+        int stripe = stripe(node.key);
+        policyLock.lock();
+        try {
+            sketch.increment(node.key.hashCode());
+            if (stamps.get(stripe) != stamp) {
+                return;
+            }
+            Node<V> old = entries.put(node.key, node);
+            if (old != null) {
+                unlink(old);
+            }
+            link(window, node, WINDOW);
+            evict();
+            // An invalidation between the check above and the insertion may have missed the entry
+            if (stamps.get(stripe) != stamp && entries.remove(node.key, node)) {
+                unlink(node);
+            }
+        } finally {
+            policyLock.unlock();
+        }
+    }
+
+    /**
+     * Moves entries leaving the window into the main space, evicting the entry that is less
+     * often asked for whenever the cache is over capacity. Called with policyLock held.
+     */
+    private void evict() {
+        while (windowSize > windowCapacity) {
+            Node<V> candidate = window.next;
+            unlink(candidate);
+            link(probation, candidate, PROBATION);
+            if (windowSize + probationSize + protectedSize <= capacity) {
+                continue;
+            }
+            // The candidate only displaces the least recent main entry if asked for more often
+            Node<V> victim = probation.next != candidate ? probation.next : protectedSegment.next;
+            if (victim == protectedSegment
+                    || sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                victim = candidate;
+            }
+            unlink(victim);
+            entries.remove(victim.key, victim);
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Applies the buffered hits to the eviction policy. Called with policyLock held.
+     */
+    private void drainHits() {
+        for (int i = 0; i < READ_BUFFER_SIZE; i++) {
+            Node<V> node = readBuffer.getAndSet(i, null);
+            if (node == null || node.queue == UNLINKED) {
+                continue;
+            }
+            sketch.increment(node.key.hashCode());
+            if (node.queue == WINDOW) {
+                unlink(node);
+                link(window, node, WINDOW);
+            } else if (node.queue == PROBATION) {
+                // A second hit promotes the entry, demoting the least recent protected entry if full
+                unlink(node);
+                link(protectedSegment, node, PROTECTED);
+                if (protectedSize > protectedCapacity) {
+                    Node<V> demoted = protectedSegment.next;
+                    unlink(demoted);
+                    link(probation, demoted, PROBATION);
+                }
+            } else {
+                unlink(node);
+                link(protectedSegment, node, PROTECTED);
+            }
+        }
+    }
+
+    /**
+     * Appends an entry to a queue as its most recently used. Called with policyLock held.
+     *
+     * @param queue the sentinel of the queue
+     * @param node  the unlinked entry
+     * @param mark  the mark of the queue
+     */
+    private void link(Node<V> queue, Node<V> node, int mark) {
+        node.prev = queue.prev;
+        node.next = queue;
+        queue.prev.next = node;
+        queue.prev = node;
+        node.queue = mark;
+        resize(mark, 1);
+    }
+
+    /**
+     * Removes an entry from its queue, if it is in one. Called with policyLock held.
+     *
+     * @param node the entry
+     */
+    private void unlink(Node<V> node) {
+        if (node.queue == UNLINKED) {
+            return;
+        }
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = node.next = null;
+        resize(node.queue, -1);
+        node.queue = UNLINKED;
+    }
+
+    /**
+     * Adjusts the length of a queue.
+     *
+     * @param mark  the mark of the queue
+     * @param delta the change in length
+     */
+    private void resize(int mark, int delta) {
+        if (mark == WINDOW) {
+            windowSize += delta;
+        } else if (mark == PROBATION) {
+            probationSize += delta;
+        } else {
+            protectedSize += delta;
+        }
+    }
+
+    /**
+     * Returns the invalidation counter of a key.
+     *
+     * @param key the key
+     * @return the index of the counter
+     */
+    private static int stripe(String key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) & (STAMP_STRIPES - 1);
+    }
+
+    /**
+     * Returns the largest number of entries.
+     *
+     * @return the capacity
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups served from the cache.
+     *
+     * @return the number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns the number of lookups that rendered the record.
+     *
+     * @return the number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of entries evicted to stay within capacity.
+     *
+     * @return the number of evictions
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Returns the fraction of lookups served from the cache.
+     *
+     * @return the hit ratio, or 0 before the first lookup
+     */
+    public double getHitRatio() {
+        long hit = hits.sum();
+        long total = hit + misses.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    /**
+     * A cached rendering, linked into one of the policy's queues.
+     *
+     * @param <V> the type of the rendered records
+     */
+    private static final class Node<V> {
+        final String key;
+        final Object record;
+        final V value;
+        // Queue links and mark, guarded by policyLock
+        Node<V> prev;
+        Node<V> next;
+        int queue;
+
+        /**
+         * Constructs an unlinked entry.
+         *
+         * @param key    the key
+         * @param record the record the value was rendered from
+         * @param value  the rendering
+         */
+        Node(String key, Object record, V value) {
+            this.key = key;
+            this.record = record;
+            this.value = value;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters estimating how often keys were asked for.
+     * Each key maps to four counters and its estimate is the smallest of them; every
+     * counter is halved once ten increments per entry of capacity have been made.
+     */
+    private static final class FrequencySketch {
+        /**
+         * Seeds of the four hash functions.
+         */
+        private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L };
+        /**
+         * The largest value of a counter.
+         */
+        private static final int MAX_COUNT = 15;
+
+        /**
+         * The counters, sixteen to a long.
+         */
+        private final long[] table;
+        /**
+         * The number of increments after which counters are halved.
+         */
+        private final int sampleSize;
+        /**
+         * The number of increments since counters were last halved.
+         */
+        private int additions;
+
+        /**
+         * Constructs a sketch sized for a cache.
+         *
+         * @param capacity the capacity of the cache
+         */
+        FrequencySketch(int capacity) {
+            int length = Integer.highestOneBit(Math.max(16, Math.min(capacity, 1 << 26)) - 1) << 1;
+            table = new long[length];
+            sampleSize = 10 * Math.max(16, capacity);
+        }
+
+        /**
+         * Returns the estimated number of times a key was asked for recently.
+         *
+         * @param hash the hash code of the key
+         * @return the estimate, at most MAX_COUNT
+         */
+        int frequency(int hash) {
+            int frequency = MAX_COUNT;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long index = index(hash, i);
+                frequency = Math.min(frequency, (int) ((table[(int) index] >>> (index >>> 32)) & 0xf));
+            }
+            return frequency;
+        }
+
+        /**
+         * Counts a request for a key, halving every counter when the sample is full.
+         *
+         * @param hash the hash code of the key
+         */
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < SEEDS.length; i++) {
+                long index = index(hash, i);
+                int slot = (int) index;
+                int shift = (int) (index >>> 32);
+                if (((table[slot] >>> shift) & 0xf) < MAX_COUNT) {
+                    table[slot] += 1L << shift;
+                    added = true;
+                }
+            }
+            if (added && ++additions == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & 0x7777777777777777L;
+                }
+                additions /= 2;
+            }
+        }
+
+        /**
+         * Returns where one of a key's counters lies.
+         *
+         * @param hash the hash code of the key
+         * @param i    which of the key's counters
+         * @return the index of its long in the low half, and its bit offset in the high half
+         */
+        private long index(int hash, int i) {
+            long mixed = (hash + SEEDS[i]) * SEEDS[i];
+            mixed += mixed >>> 32;
+            long slot = mixed & (table.length - 1);
+            long shift = ((mixed >>> 40) & 15) << 2;
+            return shift << 32 | slot;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package library;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Measures how long a library takes to recover from its data directory as the journal grows.
+ * For each length it journals that many records of borrowing and returning, with automatic
+ * snapshots off, and times replaying the whole journal. It then takes a snapshot and times
+ * recovering from the snapshot alone.
+ *
+ * Usage: java library.RecoveryBenchmark [--records 100000,1000000,4000000] [--books 100000]
+ *        [--directory recovery-benchmark]
+ */
+public class RecoveryBenchmark {
+
+    /**
+     * The number of loans made or returned per batch while journaling.
+     */
+    private static final int BATCH = 1000;
+    /**
+     * The number of readers borrowing books.
+     */
+    private static final int READERS = 1000;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     * @throws IOException if the data directory cannot be written or read
+     */
+    public static void main(String[] args) throws IOException {
+        String[] lengths = { "100000", "1000000", "4000000" };
+        int bookCount = 100000;
+        Path directory = Paths.get("recovery-benchmark");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--records":
+                lengths = args[i + 1].split(",");
+                break;
+            case "--books":
+                bookCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "--directory":
+                directory = Paths.get(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf(Locale.ROOT, "%10s %12s %12s %12s %12s\n", "records", "journal MB", "replay s",
+                "snapshot MB", "snapshot s");
+        for (String length : lengths) {
+            int records = Integer.parseInt(length);
+            clear(directory);
+            Library library = newLibrary();
+            Journal journal = Journal.open(directory, library);
+            journal.setSnapshotInterval(Integer.MAX_VALUE);
+            populate(library, bookCount, records);
+            journal.close();
+            long journalBytes = size(directory);
+
+            // Replay every record
+            library = newLibrary();
+            long start = System.nanoTime();
+            journal = Journal.open(directory, library);
+            double replaySeconds = (System.nanoTime() - start) / 1e9;
+            long loans = library.getMetrics().getBooksOnLoan();
+
+            // Compact the journal, then recover from the snapshot alone
+            journal.snapshot();
+            journal.close();
+            long snapshotBytes = size(directory);
+            library = newLibrary();
+            start = System.nanoTime();
+            journal = Journal.open(directory, library);
+            double snapshotSeconds = (System.nanoTime() - start) / 1e9;
+            journal.close();
+            if (library.getMetrics().getBooksOnLoan() != loans) {
+                throw new IllegalStateException("The snapshot restored a different number of loans");
+            }
+            System.out.printf(Locale.ROOT, "%10d %12.1f %12.3f %12.1f %12.3f\n", records, journalBytes / 1e6,
+                    replaySeconds, snapshotBytes / 1e6, snapshotSeconds);
+        }
+        clear(directory);
+        Files.deleteIfExists(directory);
+    }
+
+    /**
+     * Creates a library that reports nothing and records no metrics.
+     *
+     * @return the library
+     */
+    private static Library newLibrary() {
+        Library library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        library.getMetrics().setEnabled(false);
+        return library;
+    }
+
+    /**
+     * Journals books and readers, then loans and returns in batches until the journal holds
+     * about the given number of records.
+     *
+     * @param library   the library
+     * @param bookCount the number of books
+     * @param records   the number of records to journal
+     */
+    private static void populate(Library library, int bookCount, int records) {
+        List<Book> books = new ArrayList<Book>(BATCH);
+        for (int b = 0; b < bookCount; b++) {
+            books.add(new Book("Title " + b, "Author " + (b % 1000), isbn(b), 1900 + b % 125, 1));
+            if (books.size() == BATCH || b == bookCount - 1) {
+                library.addBooks(books);
+                books.clear();
+            }
+        }
+        List<Reader> readers = new ArrayList<Reader>(READERS);
+        for (int r = 0; r < READERS; r++) {
+            readers.add(new Reader("R" + r, "Reader " + r, "r" + r + "@example.com"));
+        }
+        library.addReaders(readers);
+
+        // Borrow a batch of books, returning them on every other round, so half the records remain loans
+        String[] readerIds = new String[BATCH];
+        String[] ISBNs = new String[BATCH];
+        int written = bookCount + READERS;
+        for (int round = 0; written < records; round++) {
+            for (int i = 0; i < BATCH; i++) {
+                int loan = (round / 2) * BATCH + i;
+                readerIds[i] = "R" + loan % READERS;
+                ISBNs[i] = isbn(loan % bookCount);
+            }
+            if (round % 2 == 0) {
+                library.borrowBatch(readerIds, ISBNs);
+            } else {
+                library.returnBatch(readerIds, ISBNs);
+            }
+            written += BATCH;
+        }
+    }
+
+    /**
+     * Returns the total size of the files in a directory.
+     *
+     * @param directory the directory
+     * @return the size in bytes
+     * @throws IOException if the directory cannot be listed
+     */
+    private static long size(Path directory) throws IOException {
+        long total = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                total += Files.size(file);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Deletes the files in a directory, if it exists.
+     *
+     * @param directory the directory
+     * @throws IOException if a file cannot be deleted
+     */
+    private static void clear(Path directory) throws IOException {
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ISBN of the i-th book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+}
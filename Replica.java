@@ -0,0 +1,338 @@
+package library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+
+/**
+ * Keeps a library as a hot standby of a primary, applying the journal records the
+ * primary's ReplicationSource ships in order. The replica reloads from a snapshot when it
+ * first connects or falls too far behind, and reconnects on its own when the connection
+ * drops, so a server can serve reads from it while reporting how stale they may be.
+ * <p>
+ * Promoting the replica stops following, opens a journal over the library in its data
+ * directory, and starts shipping to other replicas in the same epoch, so replicas that were
+ * following the old primary can follow the promoted one from where they are.
+ */
+public class Replica implements Closeable {
+
+    /**
+     * The time between attempts to reach the primary.
+     */
+    private static final long RETRY_MILLIS = 100;
+    /**
+     * The longest time to wait for the primary to accept a connection.
+     */
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * The library kept in step with the primary.
+     */
+    private final Library library;
+    /**
+     * The records applied, shipped on to other replicas once promoted.
+     */
+    private final ReplicationLog log = new ReplicationLog(ReplicationLog.DEFAULT_CAPACITY);
+    /**
+     * The directory the journal is kept in once promoted.
+     */
+    private final Path dataDirectory;
+    /**
+     * The address replicas connect to once promoted.
+     */
+    private final InetSocketAddress replicationAddress;
+    /**
+     * The thread following the primary.
+     */
+    private final Thread follower;
+    /**
+     * The address of the primary's ReplicationSource.
+     */
+    private volatile InetSocketAddress primary;
+    /**
+     * The connection to the primary, or null between connections.
+     */
+    private volatile Socket connection;
+    /**
+     * Whether the library holds a complete snapshot of the primary.
+     */
+    private volatile boolean loaded;
+    /**
+     * The primary's time of the last heartbeat that found every durable record applied.
+     */
+    private volatile long caughtUpAt;
+    /**
+     * The primary's durable sequence number as of the last heartbeat.
+     */
+    private volatile long primarySequence;
+    /**
+     * Whether the replica still follows a primary.
+     */
+    private volatile boolean following = true;
+    /**
+     * The journal opened on promotion, or null before.
+     */
+    private volatile Journal journal;
+    /**
+     * The source shipping to other replicas once promoted, or null before.
+     */
+    private volatile ReplicationSource source;
+
+    /**
+     * Constructs a replica of a primary. It starts following once started.
+     *
+     * @param library            the library to keep in step, empty or a stale copy
+     * @param primary            the address of the primary's ReplicationSource
+     * @param dataDirectory      the directory to keep the journal in once promoted
+     * @param replicationAddress the address to accept replicas on once promoted
+     */
+    public Replica(Library library, InetSocketAddress primary, Path dataDirectory, InetSocketAddress replicationAddress) {
+        this.library = library;
+        this.primary = primary;
+        this.dataDirectory = dataDirectory;
+        this.replicationAddress = replicationAddress;
+        follower = new Thread(this::follow, "replica-follower");
+        follower.setDaemon(true);
+    }
+
+    /**
+     * Starts following the primary.
+     */
+    public void start() {
+        follower.start();
+    }
+
+    /**
+     * Follows another primary, such as a promoted fellow replica. The replica continues from
+     * the records it has applied if the new primary shares its epoch, and reloads otherwise.
+     *
+     * @param primary the address of the new primary's ReplicationSource
+     */
+    public void follow(InetSocketAddress primary) {
+        this.primary = primary;
+        disconnect();
+    }
+
+    /**
+     * Stops following and makes the library a primary of its own: the journal is reopened
+     * in the data directory from the applied state, and changes are shipped to replicas.
+     *
+     * @return the source shipping to replicas
+     * @throws IOException if the journal or the replication socket cannot be opened
+     * @throws IllegalStateException if the replica has not loaded its primary
+     */
+    public synchronized ReplicationSource promote() throws IOException {
+        if (source != null) {
+            return source;
+        }
+        if (!loaded) {
+            throw new IllegalStateException("Replica has not loaded its primary");
+        }
+        following = false;
+        disconnect();
+        try {
+            follower.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stopping the follower", e);
+        }
+        journal = Journal.attach(dataDirectory, library, log.getLastSequence());
+        source = new ReplicationSource(journal, log, replicationAddress);
+        return source;
+    }
+
+    /**
+     * Returns whether the replica has been promoted to a primary.
+     *
+     * @return true if promoted
+     */
+    public boolean isPromoted() {
+        return source != null;
+    }
+
+    /**
+     * Returns the journal opened on promotion.
+     *
+     * @return the journal, or null if not promoted
+     */
+    public Journal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Returns the source shipping to replicas once promoted.
+     *
+     * @return the source, or null if not promoted
+     */
+    public ReplicationSource getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the replication log of the applied records.
+     *
+     * @return the log
+     */
+    public ReplicationLog getLog() {
+        return log;
+    }
+
+    /**
+     * Returns the address of the primary followed.
+     *
+     * @return the address
+     */
+    public InetSocketAddress getPrimary() {
+        return primary;
+    }
+
+    /**
+     * Returns the sequence number of the last record applied.
+     *
+     * @return the sequence number
+     */
+    public long getAppliedSequence() {
+        return log.getLastSequence();
+    }
+
+    /**
+     * Returns the number of records the primary had on disk at the last heartbeat
+     * that are not applied yet.
+     *
+     * @return the number of records behind
+     */
+    public long getLagRecords() {
+        return Math.max(0, primarySequence - log.getLastSequence());
+    }
+
+    /**
+     * Returns how stale the library may be: the time since the primary last reported
+     * nothing on disk that the replica had not applied, by the primary's clock as far as
+     * it agrees with the local one. Zero once promoted.
+     *
+     * @return the staleness in milliseconds, or Long.MAX_VALUE while nothing is loaded
+     */
+    public long getStalenessMillis() {
+        if (source != null) {
+            return 0;
+        }
+        if (!loaded) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, System.currentTimeMillis() - caughtUpAt);
+    }
+
+    /**
+     * Connects to the primary and applies what it ships until promoted or closed,
+     * reconnecting after failures.
+     */
+    private void follow() {
+        while (following) {
+            try (Socket socket = new Socket()) {
+                connection = socket;
+                if (!following) {
+                    break;
+                }
+                socket.connect(primary, CONNECT_TIMEOUT_MILLIS);
+                socket.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                out.writeInt(ReplicationSource.MAGIC);
+                out.writeLong(loaded ? log.getEpoch() : 0);
+                out.writeLong(log.getLastSequence());
+                out.flush();
+                apply(new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16)));
+            } catch (IOException e) {
+                // Retried below until promoted or closed
+            } finally {
+                connection = null;
+            }
+            if (following) {
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the frames the primary ships until the connection drops.
+     *
+     * @param in the decoder from the primary
+     * @throws IOException if the connection drops or a frame is invalid
+     */
+    private void apply(DataInputStream in) throws IOException {
+        while (true) {
+            byte type = in.readByte();
+            switch (type) {
+            case ReplicationSource.SNAPSHOT:
+                long epoch = in.readLong();
+                long sequence = in.readLong();
+                // Reads are refused until the whole snapshot is in
+                loaded = false;
+                library.dropAll();
+                Journal.readState(in, library);
+                log.reset(epoch, sequence);
+                loaded = true;
+                break;
+            case ReplicationSource.RECORD:
+                long next = in.readLong();
+                byte[] record = new byte[in.readInt()];
+                in.readFully(record);
+                if (next != log.getLastSequence() + 1) {
+                    throw new IOException("Replication record " + next + " does not follow " + log.getLastSequence());
+                }
+                Journal.applyRecord(record, library);
+                log.append(next, record);
+                log.advance(next);
+                break;
+            case ReplicationSource.HEARTBEAT:
+                long durable = in.readLong();
+                long time = in.readLong();
+                primarySequence = durable;
+                if (log.getLastSequence() >= durable) {
+                    caughtUpAt = time;
+                }
+                break;
+            default:
+                throw new IOException("Unknown replication frame type " + type);
+            }
+        }
+    }
+
+    /**
+     * Drops the connection to the primary, so the follower reconnects or stops.
+     */
+    private void disconnect() {
+        Socket socket = connection;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * Stops following, or once promoted stops shipping and closes the journal.
+     *
+     * @throws IOException if the journal cannot be closed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        following = false;
+        disconnect();
+        if (source != null) {
+            source.close();
+            journal.close();
+        }
+    }
+}
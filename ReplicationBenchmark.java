@@ -0,0 +1,308 @@
+package library;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Measures read replicas on loopback: the aggregate read throughput of 1, 2 and 4 replicas,
+ * and the replication lag from a change on the primary to it being visible on every replica.
+ * A journaled primary and its replicas run in this process, each behind its own LibraryServer.
+ * Client threads send book lookups round-robin across the replicas, while a writer retitles
+ * a probe book on the primary and times how long each replica takes to show the new title.
+ * Finally the primary is stopped, the first replica promoted and the others pointed at it,
+ * and the time until they follow its changes is reported.
+ *
+ * Usage: java library.ReplicationBenchmark [--replicas 1,2,4] [--books 20000] [--threads 16]
+ *        [--seconds 10] [--writes-per-second 100]
+ */
+public class ReplicationBenchmark {
+
+    /**
+     * The longest lag at which the replicas serve reads.
+     */
+    private static final long MAX_STALENESS_MILLIS = 1000;
+    /**
+     * The ISBN of the book retitled to measure lag.
+     */
+    private static final String PROBE = "9799999999999";
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     * @throws Exception if a server fails
+     */
+    public static void main(String[] args) throws Exception {
+        List<Integer> counts = new ArrayList<Integer>(List.of(1, 2, 4));
+        int books = 20000;
+        int threads = 16;
+        double seconds = 10;
+        int writesPerSecond = 100;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--replicas":
+                counts.clear();
+                for (String count : args[i + 1].split(",")) {
+                    counts.add(Integer.parseInt(count.trim()));
+                }
+                break;
+            case "--books":
+                books = Integer.parseInt(args[i + 1]);
+                break;
+            case "--threads":
+                threads = Integer.parseInt(args[i + 1]);
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            case "--writes-per-second":
+                writesPerSecond = Integer.parseInt(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        Path directory = Files.createTempDirectory("library-replication");
+        try {
+            Library primary = new Library(true);
+            Journal journal = Journal.open(directory.resolve("primary"), primary);
+            primary.setOutput(OutputSink.SILENT);
+            primary.setSnapshotReads(true);
+            for (int i = 0; i < books; i++) {
+                primary.addBook(isbn(i), "Title " + i, "Author " + (i % 1000), 1900 + i % 125, 2);
+            }
+            primary.addBook(PROBE, "Probe 0", "Probe", 2000, 1);
+            ReplicationSource source = ReplicationSource.start(journal, loopback());
+            LibraryServer primaryServer = new LibraryServer(primary, loopback(), 8);
+            primaryServer.setReplicationSource(source);
+            primaryServer.start();
+
+            System.out.printf("%-9s %12s %10s %10s %10s %12s\n", "replicas", "reads/s", "lag p50 ms", "lag p99 ms",
+                    "lag max ms", "max stale ms");
+            List<Node> replicas = new ArrayList<Node>();
+            for (int count : counts) {
+                for (Node replica : replicas) {
+                    replica.close();
+                }
+                replicas.clear();
+                for (int r = 0; r < count; r++) {
+                    replicas.add(new Node(directory.resolve("replica-" + count + "-" + r), source.getPort()));
+                }
+                for (Node replica : replicas) {
+                    awaitCaughtUp(replica, source.getLog().getDurableSequence());
+                }
+                measure(primary, replicas, books, threads, seconds, writesPerSecond);
+            }
+            failover(primaryServer, source, journal, replicas);
+            for (Node replica : replicas) {
+                replica.close();
+            }
+        } finally {
+            delete(directory);
+        }
+    }
+
+    /**
+     * A replica served over HTTP, with the library it keeps in step.
+     */
+    private static final class Node {
+        private final Library library = new Library(true);
+        private final Replica replica;
+        private final LibraryServer server;
+        private final URI address;
+
+        private Node(Path dataDirectory, int primaryPort) throws IOException {
+            library.setSnapshotReads(true);
+            replica = new Replica(library, new InetSocketAddress(InetAddress.getLoopbackAddress(), primaryPort),
+                    dataDirectory, loopback());
+            server = new LibraryServer(library, loopback(), 8);
+            server.setReplica(replica, MAX_STALENESS_MILLIS);
+            replica.start();
+            server.start();
+            address = URI.create("http://127.0.0.1:" + server.getPort());
+        }
+
+        private void close() throws IOException {
+            server.close();
+            replica.close();
+        }
+    }
+
+    /**
+     * Reads from the replicas while retitling the probe book on the primary, and prints the
+     * read throughput and the time each change took to reach each replica.
+     *
+     * @param primary         the primary library
+     * @param replicas        the replicas
+     * @param books           the number of books
+     * @param threads         the number of client threads
+     * @param seconds         the length of the run
+     * @param writesPerSecond the rate of probe changes
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static void measure(Library primary, List<Node> replicas, int books, int threads, double seconds,
+            int writesPerSecond) throws InterruptedException {
+        HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+        AtomicLong reads = new AtomicLong();
+        AtomicLong refused = new AtomicLong();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        List<Thread> clients = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            int first = t;
+            Thread thread = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long ok = 0;
+                for (int i = first; System.nanoTime() < deadline; i++) {
+                    URI replica = replicas.get(i % replicas.size()).address;
+                    HttpRequest request = HttpRequest.newBuilder(replica.resolve("/books/" + isbn(random.nextInt(books))))
+                            .GET().build();
+                    try {
+                        if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() == 200) {
+                            ok++;
+                        } else {
+                            refused.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        refused.incrementAndGet();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                reads.addAndGet(ok);
+            });
+            thread.start();
+            clients.add(thread);
+        }
+
+        // Retitle the probe and time its arrival on each replica
+        LatencyHistogram lag = new LatencyHistogram();
+        long maxStaleness = 0;
+        long interval = 1000000000L / Math.max(1, writesPerSecond);
+        for (int change = 1; System.nanoTime() < deadline; change++) {
+            long started = System.nanoTime();
+            String title = "Probe " + change;
+            primary.updateBook(PROBE, title, "Probe", 2000);
+            for (Node replica : replicas) {
+                while (!title.equals(replica.library.searchBookByISBN(PROBE).getTitle())
+                        && System.nanoTime() < deadline + 1000000000L) {
+                    Thread.yield();
+                }
+                lag.record(System.nanoTime() - started);
+                maxStaleness = Math.max(maxStaleness, replica.replica.getStalenessMillis());
+            }
+            long pause = started + interval - System.nanoTime();
+            if (pause > 0) {
+                Thread.sleep(pause / 1000000, (int) (pause % 1000000));
+            }
+        }
+        for (Thread thread : clients) {
+            thread.join();
+        }
+        System.out.printf(Locale.ROOT, "%-9d %12.0f %10.2f %10.2f %10.2f %12d%s\n", replicas.size(), reads.get() / seconds,
+                lag.getPercentile(0.5) / 1e6, lag.getPercentile(0.99) / 1e6, lag.getMax() / 1e6, maxStaleness,
+                refused.get() == 0 ? "" : "  (" + refused.get() + " reads refused)");
+    }
+
+    /**
+     * Stops the primary, promotes the first replica and points the others at it, then
+     * checks that they follow a change made on the promoted replica.
+     *
+     * @param primaryServer the primary's server
+     * @param source        the primary's replication source
+     * @param journal       the primary's journal
+     * @param replicas      the replicas, at least one
+     * @throws Exception if promotion fails or a replica does not follow
+     */
+    private static void failover(LibraryServer primaryServer, ReplicationSource source,
+            Journal journal, List<Node> replicas) throws Exception {
+        long sequence = source.getLog().getDurableSequence();
+        primaryServer.close();
+        source.close();
+        journal.close();
+
+        long started = System.nanoTime();
+        Node promoted = replicas.get(0);
+        ReplicationSource promotedSource = promoted.replica.promote();
+        promoted.server.setReplicationSource(promotedSource);
+        double promotion = (System.nanoTime() - started) / 1e6;
+        for (Node replica : replicas.subList(1, replicas.size())) {
+            replica.replica.follow(new InetSocketAddress(InetAddress.getLoopbackAddress(), promotedSource.getPort()));
+        }
+        promoted.library.updateBook(PROBE, "Promoted", "Probe", 2000);
+        for (Node replica : replicas) {
+            awaitCaughtUp(replica, promotedSource.getLog().getDurableSequence());
+            if (!replica.library.searchBookByISBN(PROBE).getTitle().equals("Promoted")) {
+                throw new IllegalStateException("A replica missed a change of the promoted replica");
+            }
+        }
+        System.out.printf(Locale.ROOT,
+                "Failover at record %d: promoted in %.1f ms, %d other replicas following after %.1f ms\n",
+                sequence, promotion, replicas.size() - 1, (System.nanoTime() - started) / 1e6);
+    }
+
+    /**
+     * Waits until a replica has applied the records up to a sequence number.
+     *
+     * @param replica  the replica
+     * @param sequence the sequence number
+     * @throws InterruptedException if interrupted while waiting
+     * @throws IllegalStateException if the replica does not catch up within a minute
+     */
+    private static void awaitCaughtUp(Node replica, long sequence) throws InterruptedException {
+        long deadline = System.nanoTime() + 60000000000L;
+        while (replica.replica.getAppliedSequence() < sequence || replica.replica.getStalenessMillis() == Long.MAX_VALUE) {
+            if (System.nanoTime() > deadline) {
+                throw new IllegalStateException("A replica did not catch up with its primary");
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    /**
+     * Returns a loopback address with any free port.
+     *
+     * @return the address
+     */
+    private static InetSocketAddress loopback() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    /**
+     * Returns the ISBN of the i-th book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param directory the directory
+     * @throws IOException if a file cannot be deleted
+     */
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package library;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * The latest records of a library's journal, kept in memory for shipping to replicas.
+ * Records are numbered by journal sequence number, and only records forced to disk are
+ * shipped, so a replica never applies a change its primary could still lose. A replica
+ * that falls further behind than the log reaches is sent a snapshot instead.
+ * <p>
+ * The epoch names the history of changes the sequence numbers count in. A primary starts a
+ * new epoch, and a promoted replica continues its primary's, so the other replicas can
+ * follow it from where they are without a snapshot.
+ */
+public class ReplicationLog {
+
+    /**
+     * The number of records kept when no capacity is given.
+     */
+    public static final int DEFAULT_CAPACITY = 1 << 16;
+
+    /**
+     * The records, at their sequence number modulo the capacity.
+     */
+    private final byte[][] records;
+    /**
+     * The epoch the sequence numbers count in. Guarded by this.
+     */
+    private long epoch;
+    /**
+     * The sequence number of the oldest record kept. Guarded by this.
+     */
+    private long firstSequence = 1;
+    /**
+     * The sequence number of the last record appended. Guarded by this.
+     */
+    private long lastSequence;
+    /**
+     * The sequence number of the last record on disk. Guarded by this.
+     */
+    private long durableSequence;
+
+    /**
+     * Constructs an empty log starting a new epoch.
+     *
+     * @param capacity the number of records kept; rounded up to a power of two
+     */
+    public ReplicationLog(int capacity) {
+        records = new byte[Integer.highestOneBit(Math.max(2, capacity) * 2 - 1)][];
+        epoch = UUID.randomUUID().getMostSignificantBits();
+    }
+
+    /**
+     * Appends the next record.
+     *
+     * @param sequence the sequence number of the record, one after the last
+     * @param record   the encoded record
+     * @throws IllegalArgumentException if the sequence number does not follow the last
+     */
+    synchronized void append(long sequence, byte[] record) {
+        if (sequence != lastSequence + 1) {
+            throw new IllegalArgumentException("Record " + sequence + " does not follow record " + lastSequence);
+        }
+        records[(int) (sequence & (records.length - 1))] = record;
+        lastSequence = sequence;
+        if (sequence - firstSequence >= records.length) {
+            firstSequence = sequence - records.length + 1;
+        }
+    }
+
+    /**
+     * Marks the records up to a sequence number as on disk, waking the senders.
+     *
+     * @param sequence the sequence number of the last record on disk
+     */
+    synchronized void advance(long sequence) {
+        if (sequence > durableSequence) {
+            durableSequence = Math.min(sequence, lastSequence);
+            notifyAll();
+        }
+    }
+
+    /**
+     * Empties the log and continues after a given record, as after loading a snapshot.
+     *
+     * @param epoch    the epoch of the records that follow
+     * @param sequence the sequence number of the last record reflected before them
+     */
+    synchronized void reset(long epoch, long sequence) {
+        Arrays.fill(records, null);
+        this.epoch = epoch;
+        firstSequence = sequence + 1;
+        lastSequence = sequence;
+        durableSequence = sequence;
+        notifyAll();
+    }
+
+    /**
+     * Waits for records on disk after a sequence number.
+     *
+     * @param after         the sequence number of the last record already shipped
+     * @param timeoutMillis the longest time to wait
+     * @param limit         the largest number of records to return
+     * @return the records after the given one, in order, empty if none arrived in time,
+     *         or null if some of them are no longer kept
+     * @throws InterruptedException if interrupted while waiting
+     */
+    synchronized byte[][] await(long after, long timeoutMillis, int limit) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long remaining = timeoutMillis;
+        while (durableSequence <= after && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        if (after + 1 < firstSequence || after > lastSequence) {
+            return null;
+        }
+        int count = (int) Math.min(limit, Math.max(0, durableSequence - after));
+        byte[][] batch = new byte[count][];
+        for (int i = 0; i < count; i++) {
+            batch[i] = records[(int) ((after + 1 + i) & (records.length - 1))];
+        }
+        return batch;
+    }
+
+    /**
+     * Returns the epoch the sequence numbers count in.
+     *
+     * @return the epoch
+     */
+    public synchronized long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * Returns the sequence number of the oldest record kept.
+     *
+     * @return the sequence number
+     */
+    public synchronized long getFirstSequence() {
+        return firstSequence;
+    }
+
+    /**
+     * Returns the sequence number of the last record appended.
+     *
+     * @return the sequence number
+     */
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Returns the sequence number of the last record on disk, the last one shipped to replicas.
+     *
+     * @return the sequence number
+     */
+    public synchronized long getDurableSequence() {
+        return durableSequence;
+    }
+}
@@ -0,0 +1,222 @@
+package library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Streams a primary library's journal records to replicas over local sockets.
+ * Each replica connects with the epoch and sequence number it has applied up to, and is
+ * sent the records after it from the replication log, or a snapshot of the library first
+ * if it is new, too far behind, or following another history. Heartbeats after every batch
+ * carry the primary's latest durable sequence number and clock, so a replica can tell how
+ * stale it is even when nothing changes.
+ *
+ * Protocol, in DataOutputStream encoding:
+ *   replica:  int MAGIC, long epoch, long sequence applied
+ *   primary:  'S' long epoch, long sequence, snapshot entries up to SNAPSHOT_END
+ *             'R' long sequence, int length, record bytes
+ *             'H' long durable sequence, long primary time in epoch milliseconds
+ */
+public class ReplicationSource implements Closeable {
+
+    /**
+     * Starts the handshake of a replica.
+     */
+    static final int MAGIC = 0x4C4D5231;
+    /**
+     * Frame types sent to replicas.
+     */
+    static final byte SNAPSHOT = 'S', RECORD = 'R', HEARTBEAT = 'H';
+    /**
+     * The longest time between heartbeats while nothing changes.
+     */
+    static final long HEARTBEAT_MILLIS = 50;
+    /**
+     * The largest number of records sent before a heartbeat.
+     */
+    private static final int BATCH_RECORDS = 1024;
+
+    /**
+     * The journal whose library is snapshotted for new replicas.
+     */
+    private final Journal journal;
+    /**
+     * The log of the latest journal records.
+     */
+    private final ReplicationLog log;
+    /**
+     * The socket accepting replicas.
+     */
+    private final ServerSocket listener;
+    /**
+     * The connections of the replicas being served.
+     */
+    private final Set<Socket> replicas = ConcurrentHashMap.newKeySet();
+    /**
+     * Whether the source has been closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Starts serving a journal's records to replicas through a log.
+     *
+     * @param journal the journal of the primary library
+     * @param log     the log the journal ships its records through; a promoted replica passes the log it followed with
+     * @param address the address to accept replicas on, with port 0 for any free port
+     * @throws IOException if the address cannot be bound
+     */
+    public ReplicationSource(Journal journal, ReplicationLog log, InetSocketAddress address) throws IOException {
+        this.journal = journal;
+        this.log = log;
+        journal.setReplicationLog(log);
+        listener = new ServerSocket();
+        listener.bind(address);
+        Thread acceptor = new Thread(this::accept, "replication-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Starts serving a journal's records to replicas in a new epoch.
+     *
+     * @param journal the journal of the primary library
+     * @param address the address to accept replicas on, with port 0 for any free port
+     * @return the running source
+     * @throws IOException if the address cannot be bound
+     */
+    public static ReplicationSource start(Journal journal, InetSocketAddress address) throws IOException {
+        return new ReplicationSource(journal, new ReplicationLog(ReplicationLog.DEFAULT_CAPACITY), address);
+    }
+
+    /**
+     * Returns the port replicas connect to.
+     *
+     * @return the port
+     */
+    public int getPort() {
+        return listener.getLocalPort();
+    }
+
+    /**
+     * Returns the number of replicas connected.
+     *
+     * @return the number of replicas
+     */
+    public int getReplicaCount() {
+        return replicas.size();
+    }
+
+    /**
+     * Returns the log of the latest records.
+     *
+     * @return the replication log
+     */
+    public ReplicationLog getLog() {
+        return log;
+    }
+
+    /**
+     * Accepts replicas until closed, serving each on its own thread.
+     */
+    private void accept() {
+        while (!closed) {
+            try {
+                Socket socket = listener.accept();
+                replicas.add(socket);
+                Thread sender = new Thread(() -> serve(socket), "replication-" + socket.getPort());
+                sender.setDaemon(true);
+                sender.start();
+            } catch (IOException e) {
+                // Closed, or a failed connection the replica will retry
+            }
+        }
+    }
+
+    /**
+     * Streams records to one replica until it disconnects or the source closes.
+     *
+     * @param socket the replica's connection
+     */
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+            long epoch = in.readLong();
+            long position = in.readLong();
+            // A replica of another history starts over from a snapshot
+            byte[][] batch = epoch == log.getEpoch() ? log.await(position, 0, BATCH_RECORDS) : null;
+            while (!closed) {
+                if (batch == null) {
+                    position = sendSnapshot(out);
+                } else {
+                    for (byte[] record : batch) {
+                        out.writeByte(RECORD);
+                        out.writeLong(++position);
+                        out.writeInt(record.length);
+                        out.write(record);
+                    }
+                }
+                out.writeByte(HEARTBEAT);
+                out.writeLong(log.getDurableSequence());
+                out.writeLong(System.currentTimeMillis());
+                out.flush();
+                batch = log.await(position, HEARTBEAT_MILLIS, BATCH_RECORDS);
+            }
+        } catch (IOException e) {
+            // The replica disconnected; it reconnects from where it got to
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            replicas.remove(socket);
+        }
+    }
+
+    /**
+     * Sends a snapshot of the library. Records on disk when it starts are all reflected in it,
+     * and records appended while it is written are sent after it and applied again.
+     *
+     * @param out the encoder to the replica
+     * @return the sequence number the snapshot stands for
+     * @throws IOException if the replica disconnects
+     */
+    private long sendSnapshot(DataOutputStream out) throws IOException {
+        long epoch;
+        long position;
+        synchronized (log) {
+            epoch = log.getEpoch();
+            position = log.getDurableSequence();
+        }
+        out.writeByte(SNAPSHOT);
+        out.writeLong(epoch);
+        out.writeLong(position);
+        journal.writeState(out);
+        return position;
+    }
+
+    /**
+     * Stops accepting replicas and disconnects the connected ones.
+     *
+     * @throws IOException if the listening socket cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        listener.close();
+        for (Socket socket : replicas) {
+            socket.close();
+        }
+    }
+}
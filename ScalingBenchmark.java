@@ -0,0 +1,183 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measures how borrowing and returning books scales with the number of threads.
+ * Each thread borrows a uniformly random book for a random reader and returns it right away,
+ * on a concurrent library whose books are locked by stripe, and again with every call made
+ * under one lock shared by all threads, the way an unstriped library serializes them.
+ * The speedup over one thread should stay close to the thread count with striping, up to
+ * the number of processors.
+ *
+ * Usage: java library.ScalingBenchmark [--threads 1,2,4,...,2 x processors] [--books 1000000]
+ *        [--seconds 3]
+ */
+public class ScalingBenchmark {
+
+    /**
+     * The number of books added per call of addBooks while populating.
+     */
+    private static final int BATCH = 10000;
+    /**
+     * The number of books per reader.
+     */
+    private static final int BOOKS_PER_READER = 10;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    public static void main(String[] args) throws InterruptedException {
+        List<Integer> threadCounts = new ArrayList<Integer>();
+        for (int threads = 1; threads <= 2 * Runtime.getRuntime().availableProcessors(); threads *= 2) {
+            threadCounts.add(threads);
+        }
+        int bookCount = 1000000;
+        double seconds = 3;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--threads":
+                threadCounts.clear();
+                for (String count : args[i + 1].split(",")) {
+                    threadCounts.add(Integer.parseInt(count.trim()));
+                }
+                break;
+            case "--books":
+                bookCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        Library library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        library.getMetrics().setEnabled(false);
+        List<Book> books = new ArrayList<Book>(BATCH);
+        List<Reader> readers = new ArrayList<Reader>(BATCH / BOOKS_PER_READER);
+        for (int b = 0; b < bookCount; b++) {
+            books.add(new Book("Title " + b, "Author " + (b % 100000), isbn(b), 1900 + b % 125, 1));
+            if (b % BOOKS_PER_READER == 0) {
+                int r = b / BOOKS_PER_READER;
+                readers.add(new Reader("R" + r, "Reader " + r, "r" + r + "@example.com"));
+            }
+            if (books.size() == BATCH || b == bookCount - 1) {
+                library.addBooks(books);
+                library.addReaders(readers);
+                books.clear();
+                readers.clear();
+            }
+        }
+        String[] ISBNs = new String[bookCount];
+        for (int b = 0; b < bookCount; b++) {
+            ISBNs[b] = isbn(b);
+        }
+        String[] readerIds = new String[Math.max(1, bookCount / BOOKS_PER_READER)];
+        for (int r = 0; r < readerIds.length; r++) {
+            readerIds[r] = "R" + r;
+        }
+
+        System.out.printf(Locale.ROOT, "%-12s %8s %14s %10s %12s\n", "locking", "threads", "ops/s", "speedup",
+                "efficiency");
+        // Warm up both ways of locking on one thread and on the most threads before measuring either
+        for (boolean striped : new boolean[] { true, false }) {
+            run(library, ISBNs, readerIds, 1, seconds, striped);
+            run(library, ISBNs, readerIds, threadCounts.get(threadCounts.size() - 1), seconds, striped);
+        }
+        for (boolean striped : new boolean[] { true, false }) {
+            double single = 0;
+            for (int threads : threadCounts) {
+                double opsPerSecond = run(library, ISBNs, readerIds, threads, seconds, striped);
+                if (single == 0) {
+                    single = opsPerSecond / threads;
+                }
+                double speedup = opsPerSecond / single;
+                System.out.printf(Locale.ROOT, "%-12s %8d %14.0f %9.2fx %11.0f%%\n", striped ? "striped" : "global lock",
+                        threads, opsPerSecond, speedup, 100 * speedup / threads);
+            }
+        }
+    }
+
+    /**
+     * Borrows and returns random books on several threads for a period of time.
+     *
+     * @param library   the library
+     * @param ISBNs     the ISBNs of the books
+     * @param readerIds the IDs of the readers
+     * @param threads   the number of threads
+     * @param seconds   the length of the period
+     * @param striped   whether calls rely on the library's striped locks rather than one shared lock
+     * @return the borrows and returns per second across threads
+     * @throws InterruptedException if interrupted while waiting for the threads
+     */
+    private static double run(Library library, String[] ISBNs, String[] readerIds, int threads, double seconds,
+            boolean striped) throws InterruptedException {
+        Object globalLock = new Object();
+        LongAdder operations = new LongAdder();
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long count = 0;
+                // Check the clock every 256 operations to keep timing overhead out of the loop
+                do {
+                    for (int i = 0; i < 256; i++) {
+                        String ISBN = ISBNs[random.nextInt(ISBNs.length)];
+                        String readerId = readerIds[random.nextInt(readerIds.length)];
+                        if (striped) {
+                            count += circulate(library, readerId, ISBN);
+                        } else {
+                            synchronized (globalLock) {
+                                count += circulate(library, readerId, ISBN);
+                            }
+                        }
+                    }
+                } while (System.nanoTime() < deadline);
+                operations.add(count);
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        return operations.sum() / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Borrows a book for a reader and returns it right away if the borrow succeeded.
+     *
+     * @param library  the library
+     * @param readerId the ID of the reader
+     * @param ISBN     the ISBN of the book
+     * @return the number of calls made, 1 or 2
+     */
+    private static int circulate(Library library, String readerId, String ISBN) {
+        if (library.borrowBook(readerId, ISBN) != Outcome.SUCCESS) {
+            return 1;
+        }
+        library.returnBook(readerId, ISBN);
+        return 2;
+    }
+
+    /**
+     * Returns the ISBN of the i-th book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+}
@@ -0,0 +1,235 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntSupplier;
+
+/**
+ * Measures searching books by words of their title and author with the search index,
+ * compared with scanning every book as a library without the index must.
+ * Titles are drawn from a vocabulary with a few common words and many rare ones, so
+ * queries range from selective to matching a large share of the catalog.
+ * It then changes the postings of a few shared words from several threads at once and
+ * checks that no book is lost from the index.
+ * Two million books need a heap of about 3 GB: java -Xmx3g library.SearchBenchmark
+ *
+ * Usage: java library.SearchBenchmark [--books 2000000] [--limit 20] [--seconds 2] [--threads 4]
+ */
+public class SearchBenchmark {
+
+    /**
+     * The number of distinct title words.
+     */
+    private static final int VOCABULARY = 50000;
+    /**
+     * The number of distinct authors.
+     */
+    private static final int AUTHORS = 100000;
+    /**
+     * The queries measured, from selective to broad.
+     */
+    private static final String[] QUERIES = { "wbcd", "wab wac", "wab*", "wa* author1*", "wab author1234*" };
+    /**
+     * The number of books each thread adds and removes while checking concurrent changes.
+     */
+    private static final int CHURN = 20000;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     * @throws InterruptedException if interrupted while checking concurrent changes
+     */
+    public static void main(String[] args) throws InterruptedException {
+        int bookCount = 2000000;
+        int limit = 20;
+        double seconds = 2;
+        int threads = 4;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--books":
+                bookCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "--limit":
+                limit = Integer.parseInt(args[i + 1]);
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            case "--threads":
+                threads = Integer.parseInt(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        // Draw the words of each title with a skew, so low-numbered words are common
+        long start = System.nanoTime();
+        Random random = new Random(42);
+        SearchIndex index = new SearchIndex();
+        List<Book> books = new ArrayList<Book>(bookCount);
+        for (int b = 0; b < bookCount; b++) {
+            StringBuilder title = new StringBuilder();
+            for (int w = 0; w < 3; w++) {
+                double skew = random.nextDouble();
+                title.append(w == 0 ? "" : " ").append(word((int) (skew * skew * skew * VOCABULARY)));
+            }
+            Book book = new Book(title.toString(), "Author" + random.nextInt(AUTHORS), isbn(b), 2000, 1);
+            books.add(book);
+            index.add(book);
+        }
+        System.out.printf(Locale.ROOT, "Indexed %d books in %.1f s\n", bookCount, (System.nanoTime() - start) / 1e9);
+
+        final int resultLimit = limit;
+        for (String query : QUERIES) {
+            if (!index.search(query, limit).equals(scan(books, query, limit))) {
+                throw new IllegalStateException("The index and the scan disagree on \"" + query + "\"");
+            }
+            measure("index  \"" + query + "\"", seconds, () -> index.search(query, resultLimit).size());
+            measure("scan   \"" + query + "\"", seconds, () -> scan(books, query, resultLimit).size());
+        }
+
+        // Add and remove books under the same few words from every thread at once
+        SearchIndex shared = new SearchIndex();
+        AtomicInteger next = new AtomicInteger();
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            Thread worker = new Thread(() -> {
+                ThreadLocalRandom local = ThreadLocalRandom.current();
+                for (int i = 0; i < CHURN; i++) {
+                    Book kept = new Book("shared " + word(local.nextInt(4)), "Churn", isbn(next.getAndIncrement()), 2000, 1);
+                    Book dropped = new Book("shared " + word(local.nextInt(4)), "Churn", isbn(next.getAndIncrement()), 2000, 1);
+                    shared.add(kept);
+                    shared.add(dropped);
+                    shared.remove(dropped);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        int found = shared.search("shared", Integer.MAX_VALUE).size();
+        System.out.printf(Locale.ROOT, "%-32s %14d lost  (%d threads, %d books kept)\n", "concurrent add and remove",
+                threads * CHURN - found, threads, threads * CHURN);
+    }
+
+    /**
+     * Searches books by scanning each one, ranking them as the search index does.
+     *
+     * @param books the books
+     * @param query the words to search for
+     * @param limit the maximum number of results
+     * @return the ISBNs of the best matching books, best first
+     */
+    private static List<String> scan(List<Book> books, String query, int limit) {
+        List<String> terms = new ArrayList<String>();
+        List<Boolean> prefixes = new ArrayList<Boolean>();
+        for (String word : query.trim().split("\\s+")) {
+            List<String> tokens = SearchIndex.tokenize(word);
+            for (int i = 0; i < tokens.size(); i++) {
+                terms.add(tokens.get(i));
+                prefixes.add(word.endsWith("*") && i == tokens.size() - 1);
+            }
+        }
+        List<Book> matches = new ArrayList<Book>();
+        List<Integer> scores = new ArrayList<Integer>();
+        for (Book book : books) {
+            List<String> title = SearchIndex.tokenize(book.getTitle());
+            List<String> author = SearchIndex.tokenize(book.getAuthor());
+            int score = 0;
+            for (int i = 0; i < terms.size() && score >= 0; i++) {
+                if (matches(title, terms.get(i), prefixes.get(i))) {
+                    score += 2;
+                } else if (matches(author, terms.get(i), prefixes.get(i))) {
+                    score += 1;
+                } else {
+                    score = -1;
+                }
+            }
+            if (score >= 0) {
+                matches.add(book);
+                scores.add(score);
+            }
+        }
+        List<Integer> order = new ArrayList<Integer>(matches.size());
+        for (int i = 0; i < matches.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.<Integer>comparingInt(i -> -scores.get(i)).thenComparing(i -> matches.get(i).getISBN()));
+        List<String> results = new ArrayList<String>();
+        for (int i = 0; i < Math.min(limit, order.size()); i++) {
+            results.add(matches.get(order.get(i)).getISBN());
+        }
+        return results;
+    }
+
+    /**
+     * Returns whether any of the words of a field equals a term, or starts with it if it is a prefix.
+     *
+     * @param words  the words of the field
+     * @param term   the term
+     * @param prefix whether the term is a prefix
+     * @return whether the field matches
+     */
+    private static boolean matches(List<String> words, String term, boolean prefix) {
+        for (String word : words) {
+            if (prefix ? word.startsWith(term) : word.equals(term)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the i-th word of the vocabulary, "w" followed by letters.
+     *
+     * @param i the index of the word
+     * @return the word
+     */
+    private static String word(int i) {
+        StringBuilder word = new StringBuilder("w");
+        do {
+            word.append((char) ('a' + i % 26));
+            i /= 26;
+        } while (i > 0);
+        return word.toString();
+    }
+
+    /**
+     * Returns the ISBN of the i-th book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+
+    /**
+     * Runs an operation repeatedly for a period and prints its average latency.
+     *
+     * @param name      the name of the operation
+     * @param seconds   the length of the period
+     * @param operation the operation, returning a value so it is not optimized away
+     */
+    private static void measure(String name, double seconds, IntSupplier operation) {
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long runs = 0;
+        long sink = 0;
+        do {
+            sink += operation.getAsInt();
+            runs++;
+        } while (System.nanoTime() < deadline);
+        double microseconds = (System.nanoTime() - start) / 1e3 / runs;
+        System.out.printf(Locale.ROOT, "%-32s %14.2f us/op  (%d runs, checksum %d)\n", name, microseconds, runs, sink);
+    }
+}
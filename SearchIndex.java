@@ -0,0 +1,338 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+public class SearchIndex {
+    
+    // Score added for each query term matching the title or the author
+    private static final int TITLE_SCORE = 2;
+    private static final int AUTHOR_SCORE = 1;
+    /**
+     * The most postings a term is checked against directly; terms matching more tokens are
+     * checked against the tokens of the candidate book instead.
+     */
+    private static final int MAX_PROBES = 4;
+    
+    /**
+     * The title tokens and the ISBNs of the books under each.
+     */
+    private final Field titles = new Field();
+    /**
+     * The author tokens and the ISBNs of the books under each.
+     */
+    private final Field authors = new Field();
+    /**
+     * The title and author tokens of each book by ISBN, to check candidates against every
+     * query term without intersecting postings.
+     */
+    private final ConcurrentHashMap<String, Tokens> books = new ConcurrentHashMap<String, Tokens>();
+    
+    /**
+     * Indexes the title and author of a book.
+     *
+     * @param book the book to index
+     */
+    public void add(Book book) {
+        Tokens tokens = new Tokens(tokenize(book.getTitle()), tokenize(book.getAuthor()));
+        // Record the tokens first, so every book found in the postings has them
+        books.put(book.getISBN(), tokens);
+        for (String token : tokens.title) {
+            titles.add(token, book.getISBN());
+        }
+        for (String token : tokens.author) {
+            authors.add(token, book.getISBN());
+        }
+    }
+    
+    /**
+     * Removes the title and author of a book from the index.
+     * Must be given the book as it was when it was indexed.
+     *
+     * @param book the book to remove
+     */
+    public void remove(Book book) {
+        for (String token : tokenize(book.getTitle())) {
+            titles.remove(token, book.getISBN());
+        }
+        for (String token : tokenize(book.getAuthor())) {
+            authors.remove(token, book.getISBN());
+        }
+        books.remove(book.getISBN());
+    }
+    
+    /**
+     * Searches for books whose title or author contains every term of a query.
+     * A term ending with '*' matches any word starting with it. Books are ranked by
+     * the number of terms matching the title, then the author, then by ISBN.
+     *
+     * @param query the words to search for
+     * @param limit the maximum number of results
+     * @return the ISBNs of the best matching books, best first
+     */
+    public List<String> search(String query, int limit) {
+        // Find the postings of each term in the title and in the author, without merging them
+        List<Term> terms = new ArrayList<Term>();
+        for (String word : query.trim().split("\\s+")) {
+            boolean prefix = word.endsWith("*");
+            List<String> tokens = tokenize(word);
+            for (int i = 0; i < tokens.size(); i++) {
+                boolean last = i == tokens.size() - 1;
+                terms.add(new Term(tokens.get(i), prefix && last));
+            }
+        }
+        if (terms.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        
+        // Walk the candidates of the most selective term, checking the other terms rarest first
+        terms.sort(Comparator.comparingLong(term -> term.size));
+        Term rarest = terms.get(0);
+        PriorityQueue<Result> best = new PriorityQueue<Result>(Math.min(limit, 1024) + 1);
+        // The ISBNs in the queue; a book under several postings of the rarest term is seen again
+        Set<String> kept = new HashSet<String>();
+        for (int p = 0; p < rarest.all.size(); p++) {
+            boolean fromTitle = p < rarest.title.size();
+            for (String ISBN : rarest.all.get(p)) {
+                int score = 0;
+                Tokens tokens = null;
+                for (int i = 0; i < terms.size() && score >= 0; i++) {
+                    Term term = terms.get(i);
+                    if (i == 0 && fromTitle) {
+                        // Found under a title token of the rarest term
+                        score += TITLE_SCORE;
+                        continue;
+                    }
+                    if (!term.direct && tokens == null) {
+                        tokens = books.get(ISBN);
+                        if (tokens == null) {
+                            // Removed since its postings were read
+                            score = -1;
+                            break;
+                        }
+                    }
+                    if (term.direct ? contains(term.title, ISBN) : term.matches(tokens.title)) {
+                        score += TITLE_SCORE;
+                    } else if (term.direct ? contains(term.author, ISBN) : term.matches(tokens.author)) {
+                        score += AUTHOR_SCORE;
+                    } else {
+                        score = -1;
+                    }
+                }
+                if (score < 0) {
+                    continue;
+                }
+                Result result = new Result(ISBN, score);
+                // Only the best results are kept, so a result ranking below all of a full queue is dropped
+                if (best.size() == limit && result.compareTo(best.peek()) <= 0 || !kept.add(ISBN)) {
+                    continue;
+                }
+                best.add(result);
+                if (best.size() > limit) {
+                    kept.remove(best.poll().ISBN);
+                }
+            }
+        }
+        
+        // The queue holds the worst result first
+        List<String> results = new ArrayList<String>(best.size());
+        while (!best.isEmpty()) {
+            results.add(best.poll().ISBN);
+        }
+        Collections.reverse(results);
+        return results;
+    }
+    
+    /**
+     * Splits text into lower-case words of letters and digits.
+     *
+     * @param text the text to split
+     * @return the words of the text
+     */
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<String>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                tokens.add(text.substring(start, i).toLowerCase(Locale.ROOT));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+    
+    /**
+     * The tokens of one field of the books, with the ISBNs of the books under each token.
+     * Postings are changed only inside ConcurrentHashMap.compute on their token, which runs
+     * atomically for that token, so concurrent changes to one token never lose a book.
+     * The sorted token set serves prefix lookups and is changed inside the same compute.
+     */
+    private static class Field {
+        final ConcurrentHashMap<String, Set<String>> postings = new ConcurrentHashMap<String, Set<String>>();
+        final NavigableSet<String> tokens = new ConcurrentSkipListSet<String>();
+        
+        /**
+         * Adds a book to the postings of a token.
+         *
+         * @param token the token
+         * @param ISBN  the ISBN of the book
+         */
+        void add(String token, String ISBN) {
+            postings.compute(token, (key, books) -> {
+                if (books == null) {
+                    books = ConcurrentHashMap.newKeySet();
+                    tokens.add(key);
+                }
+                books.add(ISBN);
+                return books;
+            });
+        }
+        
+        /**
+         * Removes a book from the postings of a token, dropping the token when no book is left.
+         *
+         * @param token the token
+         * @param ISBN  the ISBN of the book
+         */
+        void remove(String token, String ISBN) {
+            postings.computeIfPresent(token, (key, books) -> {
+                books.remove(ISBN);
+                if (!books.isEmpty()) {
+                    return books;
+                }
+                tokens.remove(key);
+                return null;
+            });
+        }
+        
+        /**
+         * Returns the postings of a token, or of every token starting with a prefix.
+         * The postings are the live sets of the index, not copies.
+         *
+         * @param term   the token or prefix
+         * @param prefix whether the term is a prefix
+         * @return the postings of the matching tokens
+         */
+        List<Set<String>> postings(String term, boolean prefix) {
+            if (!prefix) {
+                Set<String> books = postings.get(term);
+                return books == null ? Collections.<Set<String>>emptyList() : Collections.singletonList(books);
+            }
+            List<Set<String>> matching = new ArrayList<Set<String>>();
+            for (String token : tokens.subSet(term, true, term + Character.MAX_VALUE, true)) {
+                Set<String> books = postings.get(token);
+                if (books != null) {
+                    matching.add(books);
+                }
+            }
+            return matching;
+        }
+    }
+    
+    /**
+     * The title and author tokens of a book.
+     */
+    private static class Tokens {
+        final String[] title;
+        final String[] author;
+        
+        Tokens(List<String> title, List<String> author) {
+            this.title = title.toArray(new String[0]);
+            this.author = author.toArray(new String[0]);
+        }
+    }
+    
+    /**
+     * A query term with the postings of the title and author tokens it matches.
+     */
+    private class Term {
+        final String token;
+        final boolean prefix;
+        final List<Set<String>> title;
+        final List<Set<String>> author;
+        final List<Set<String>> all = new ArrayList<Set<String>>();
+        final long size;
+        final boolean direct;
+        
+        Term(String token, boolean prefix) {
+            this.token = token;
+            this.prefix = prefix;
+            title = titles.postings(token, prefix);
+            author = authors.postings(token, prefix);
+            all.addAll(title);
+            all.addAll(author);
+            // Counts a book once per matching token and field, as an upper bound of the candidates
+            long total = 0;
+            for (Set<String> books : all) {
+                total += books.size();
+            }
+            size = total;
+            direct = all.size() <= MAX_PROBES;
+        }
+        
+        /**
+         * Returns whether the term matches any of the tokens of a field of a book.
+         *
+         * @param tokens the tokens of the field
+         * @return whether the term matches
+         */
+        boolean matches(String[] tokens) {
+            for (String candidate : tokens) {
+                if (prefix ? candidate.startsWith(token) : candidate.equals(token)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+    
+    /**
+     * Returns whether any of the postings holds a book.
+     *
+     * @param postings the postings
+     * @param ISBN     the ISBN of the book
+     * @return whether the book is in the postings
+     */
+    private static boolean contains(List<Set<String>> postings, String ISBN) {
+        for (Set<String> books : postings) {
+            if (books.contains(ISBN)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * A scored search result, ordered worst first.
+     */
+    private static class Result implements Comparable<Result> {
+        final String ISBN;
+        final int score;
+        
+        Result(String ISBN, int score) {
+            this.ISBN = ISBN;
+            this.score = score;
+        }
+        
+        @Override
+        public int compareTo(Result other) {
+            if (score != other.score) {
+                return Integer.compare(score, other.score);
+            }
+            // Among equal scores, a later ISBN ranks worse
+            return other.ISBN.compareTo(ISBN);
+        }
+    }
+}
@@ -0,0 +1,346 @@
+package library;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Drives many concurrent keep-alive connections against a LibraryServer and reports the
+ * sustained request rate and latency percentiles.
+ * Requests follow a circulation mix of 80% book lookups, 10% borrows, 5% returns and
+ * 5% reader lookups, with a number of pipelined requests in flight per connection.
+ * Without --port, a server with a populated in-memory library is started on localhost.
+ *
+ * Usage: java library.ServerLoadTest [--host 127.0.0.1] [--port 8080] [--connections 1000]
+ *        [--pipeline 1] [--seconds 10] [--warmup 2] [--books 10000]
+ */
+public class ServerLoadTest {
+
+    /**
+     * The number of books per reader in a populated library.
+     */
+    private static final int BOOKS_PER_READER = 10;
+
+    /**
+     * One client connection with its requests in flight.
+     */
+    private static final class Client {
+        private final SocketChannel channel;
+        // The bytes received and not yet parsed, in write mode
+        private final ByteBuffer in = ByteBuffer.allocate(16384);
+        // The bytes queued and not yet sent, in write mode
+        private final ByteBuffer out = ByteBuffer.allocate(16384);
+        // The send times of the requests in flight, oldest first
+        private final long[] sentAt;
+        private int oldest;
+        private int inFlight;
+
+        private Client(SocketChannel channel, int pipeline) {
+            this.channel = channel;
+            this.sentAt = new long[pipeline];
+        }
+    }
+
+    // Test parameters
+    private final int books;
+    private final int pipeline;
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final Map<Integer, Long> statuses = new TreeMap<Integer, Long>();
+    // Whether responses are being measured, after the warm-up
+    private boolean measuring;
+    // Whether new requests are still being sent
+    private boolean sending = true;
+    private long responses;
+    private long errors;
+
+    /**
+     * Constructs a load test.
+     *
+     * @param books    the number of books in the library
+     * @param pipeline the number of requests in flight per connection
+     */
+    private ServerLoadTest(int books, int pipeline) {
+        this.books = books;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Runs the load test.
+     *
+     * @param args the command line options
+     * @throws Exception if the server cannot be started or reached
+     */
+    public static void main(String[] args) throws Exception {
+        String host = "127.0.0.1";
+        int port = -1;
+        int connections = 1000;
+        int pipeline = 1;
+        double seconds = 10;
+        double warmup = 2;
+        int books = 10000;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--host":
+                host = args[i + 1];
+                break;
+            case "--port":
+                port = Integer.parseInt(args[i + 1]);
+                break;
+            case "--connections":
+                connections = Integer.parseInt(args[i + 1]);
+                break;
+            case "--pipeline":
+                pipeline = Integer.parseInt(args[i + 1]);
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            case "--warmup":
+                warmup = Double.parseDouble(args[i + 1]);
+                break;
+            case "--books":
+                books = Integer.parseInt(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        LibraryServer server = null;
+        if (port < 0) {
+            server = new LibraryServer(populate(books), new InetSocketAddress(host, 0),
+                    Math.max(8, Runtime.getRuntime().availableProcessors() * 4));
+            server.start();
+            port = server.getPort();
+        }
+        try {
+            ServerLoadTest test = new ServerLoadTest(books, pipeline);
+            test.run(new InetSocketAddress(host, port), connections, warmup, seconds);
+        } finally {
+            if (server != null) {
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * Creates an in-memory library with books and readers matching the request mix.
+     *
+     * @param books the number of books
+     * @return the populated concurrent library
+     */
+    private static Library populate(int books) {
+        Library library = new Library(true);
+        List<Reader> readers = new ArrayList<Reader>();
+        for (int i = 0; i < Math.max(1, books / BOOKS_PER_READER); i++) {
+            readers.add(new Reader("R" + i, "Reader " + i, "reader" + i + "@example.com"));
+        }
+        library.addReaders(readers);
+        List<Book> catalog = new ArrayList<Book>();
+        for (int i = 0; i < books; i++) {
+            catalog.add(new Book("Title " + i, "Author " + (i % 1000), ISBN(i), 1900 + i % 125));
+        }
+        library.addBooks(catalog);
+        return library;
+    }
+
+    /**
+     * Opens the connections, warms up, then measures for a period and prints the results.
+     *
+     * @param address     the server address
+     * @param connections the number of connections
+     * @param warmup      the warm-up period in seconds
+     * @param seconds     the measured period in seconds
+     * @throws IOException if the connections fail
+     */
+    private void run(InetSocketAddress address, int connections, double warmup, double seconds) throws IOException {
+        Selector selector = Selector.open();
+        for (int i = 0; i < connections; i++) {
+            SocketChannel channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            channel.connect(address);
+            channel.register(selector, SelectionKey.OP_CONNECT, new Client(channel, pipeline));
+        }
+
+        long start = System.nanoTime();
+        long measureFrom = start + (long) (warmup * 1e9);
+        long measureTo = measureFrom + (long) (seconds * 1e9);
+        long drainTo = measureTo + 5_000_000_000L;
+        long measuredStart = 0;
+        while (true) {
+            long now = System.nanoTime();
+            if (!measuring && sending && now >= measureFrom) {
+                measuring = true;
+                measuredStart = now;
+            }
+            if (sending && now >= measureTo) {
+                // Stop sending, but wait for the requests in flight so none count as lost
+                sending = false;
+                measuring = false;
+                System.out.printf("Sustained %.0f requests/s over %d connections, pipeline %d\n",
+                        responses / ((now - measuredStart) / 1e9), connections, pipeline);
+            }
+            if (!sending && (now >= drainTo || inFlight(selector) == 0)) {
+                break;
+            }
+            selector.select(100);
+            for (SelectionKey key : selector.selectedKeys()) {
+                Client client = (Client) key.attachment();
+                try {
+                    if (key.isConnectable() && client.channel.finishConnect()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                        while (sending && client.inFlight < pipeline) {
+                            send(client);
+                        }
+                        flush(client, key);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        receive(client, key);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        flush(client, key);
+                    }
+                } catch (IOException e) {
+                    errors++;
+                    key.cancel();
+                    client.channel.close();
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+
+        System.out.printf("Latency (ms): p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f\n",
+                latency.getPercentile(0.5) / 1e6, latency.getPercentile(0.9) / 1e6,
+                latency.getPercentile(0.99) / 1e6, latency.getPercentile(0.999) / 1e6, latency.getMax() / 1e6);
+        System.out.printf("Responses measured: %d, by status: %s, connection errors: %d\n", responses, statuses, errors);
+    }
+
+    /**
+     * Returns the number of requests in flight over every open connection.
+     *
+     * @param selector the selector holding the connections
+     * @return the number of requests in flight
+     */
+    private static int inFlight(Selector selector) {
+        int total = 0;
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                total += ((Client) key.attachment()).inFlight;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Queues the next request of the mix on a connection.
+     *
+     * @param client the connection
+     */
+    private void send(Client client) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String ISBN = ISBN(random.nextInt(books));
+        String readerId = "R" + random.nextInt(Math.max(1, books / BOOKS_PER_READER));
+        int roll = random.nextInt(100);
+        String request;
+        if (roll < 80) {
+            request = "GET /books/" + ISBN + " HTTP/1.1\r\nHost: library\r\n\r\n";
+        } else if (roll < 95) {
+            String body = "{\"readerId\":\"" + readerId + "\",\"isbn\":\"" + ISBN + "\"}";
+            request = "POST " + (roll < 90 ? "/borrow" : "/return") + " HTTP/1.1\r\nHost: library\r\n"
+                    + "Content-Type: application/json\r\nContent-Length: " + body.length() + "\r\n\r\n" + body;
+        } else {
+            request = "GET /readers/" + readerId + " HTTP/1.1\r\nHost: library\r\n\r\n";
+        }
+        client.out.put(request.getBytes(StandardCharsets.ISO_8859_1));
+        client.sentAt[(client.oldest + client.inFlight) % pipeline] = System.nanoTime();
+        client.inFlight++;
+    }
+
+    /**
+     * Sends as much of a connection's queued requests as the socket accepts.
+     *
+     * @param client the connection
+     * @param key    the selection key of the connection
+     * @throws IOException if the connection fails
+     */
+    private static void flush(Client client, SelectionKey key) throws IOException {
+        client.out.flip();
+        client.channel.write(client.out);
+        client.out.compact();
+        key.interestOps(client.out.position() > 0
+                ? SelectionKey.OP_READ | SelectionKey.OP_WRITE
+                : SelectionKey.OP_READ);
+    }
+
+    /**
+     * Reads responses from a connection, records them, and sends a new request for each.
+     *
+     * @param client the connection
+     * @param key    the selection key of the connection
+     * @throws IOException if the connection fails or the server closes it
+     */
+    private void receive(Client client, SelectionKey key) throws IOException {
+        if (client.channel.read(client.in) < 0) {
+            throw new IOException("Connection closed by server");
+        }
+        byte[] bytes = client.in.array();
+        while (true) {
+            int headerEnd = -1;
+            for (int i = 3; i < client.in.position(); i++) {
+                if (bytes[i] == '\n' && bytes[i - 1] == '\r' && bytes[i - 2] == '\n' && bytes[i - 3] == '\r') {
+                    headerEnd = i + 1;
+                    break;
+                }
+            }
+            if (headerEnd < 0) {
+                break;
+            }
+            String head = new String(bytes, 0, headerEnd, StandardCharsets.ISO_8859_1);
+            int lengthAt = head.indexOf("Content-Length: ");
+            int length = Integer.parseInt(head.substring(lengthAt + 16, head.indexOf('\r', lengthAt)));
+            if (client.in.position() < headerEnd + length) {
+                break;
+            }
+            int status = Integer.parseInt(head.substring(9, 12));
+            long elapsed = System.nanoTime() - client.sentAt[client.oldest];
+            client.oldest = (client.oldest + 1) % pipeline;
+            client.inFlight--;
+            if (measuring) {
+                latency.record(elapsed);
+                responses++;
+                statuses.merge(status, 1L, Long::sum);
+            }
+            client.in.flip();
+            client.in.position(headerEnd + length);
+            client.in.compact();
+            if (sending) {
+                send(client);
+            }
+        }
+        flush(client, key);
+    }
+
+    /**
+     * Returns the ISBN of the i-th populated book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String ISBN(int i) {
+        return String.format("978%010d", i);
+    }
+}
@@ -0,0 +1,511 @@
+package library;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Routes library calls to a cluster of LibraryServer shards over HTTP.
+ * Books are spread over the shards by consistent hashing of their ISBN, so each book with
+ * its copies, loans and holds lives on exactly one shard. Readers are replicated to every
+ * shard, so a shard checks that a borrowing reader exists without asking another shard.
+ * The first shard is the reader directory: it decides whether a reader is added or removed,
+ * and the other shards follow it.
+ * <p>
+ * Adding a shard moves the books that now hash to it, with their loans and holds, while
+ * calls through this router wait. Calls made to the shards directly, or through another
+ * router, are not held back and must be paused during the move.
+ */
+public class ShardRouter {
+
+    /**
+     * The number of books or readers fetched per listing page while moving books.
+     */
+    private static final int PAGE_SIZE = 1000;
+
+    /**
+     * The client sending requests to the shards over kept-alive connections.
+     */
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(Duration.ofSeconds(10))
+            .build();
+    /**
+     * The addresses of the shards by name, in the order they joined.
+     */
+    private final Map<String, URI> addresses;
+    /**
+     * The ring assigning ISBNs to shard names.
+     */
+    private volatile HashRing ring;
+    /**
+     * Shared by routed calls and held exclusively while books move to a new shard.
+     */
+    private final ReadWriteLock rebalancing = new ReentrantReadWriteLock();
+
+    /**
+     * Constructs a router over running shards.
+     *
+     * @param shards the addresses of the shards by name, in the order they joined; the first is the reader directory
+     */
+    public ShardRouter(Map<String, URI> shards) {
+        this.addresses = new LinkedHashMap<String, URI>(shards);
+        this.ring = new HashRing(new ArrayList<String>(shards.keySet()));
+    }
+
+    /**
+     * Returns the shards.
+     *
+     * @return the addresses of the shards by name, in the order they joined
+     */
+    public Map<String, URI> getShards() {
+        return Collections.unmodifiableMap(new LinkedHashMap<String, URI>(addresses));
+    }
+
+    /**
+     * Returns the name of the shard holding a book.
+     *
+     * @param ISBN the ISBN of the book
+     * @return the name of the shard
+     */
+    public String shardOf(String ISBN) {
+        return ring.owner(ISBN);
+    }
+
+    // Book-related Methods
+
+    /**
+     * Adds a book to its shard.
+     *
+     * @param ISBN            the ISBN of the book
+     * @param title           the title of the book
+     * @param author          the author of the book
+     * @param publicationYear the publication year of the book
+     * @param copies          the number of copies
+     * @return SUCCESS or DUPLICATE_BOOK
+     */
+    public Outcome addBook(String ISBN, String title, String author, int publicationYear, int copies) {
+        String body = "{\"isbn\":" + Json.quote(ISBN) + ",\"title\":" + Json.quote(title)
+                + ",\"author\":" + Json.quote(author) + ",\"publicationYear\":" + publicationYear
+                + ",\"copies\":" + copies + "}";
+        return routed(ISBN, shard -> outcome(send(shard, "POST", "/books", body)));
+    }
+
+    /**
+     * Looks up a book on its shard.
+     *
+     * @param ISBN the ISBN of the book
+     * @return the book, or null if not found
+     */
+    public Book searchBookByISBN(String ISBN) {
+        return routed(ISBN, shard -> {
+            Map<String, String> fields = Json.parseObject(send(shard, "GET", "/books/" + encode(ISBN), null));
+            return fields.containsKey("outcome") ? null : toBook(fields);
+        });
+    }
+
+    /**
+     * Updates the information of a book on its shard.
+     *
+     * @param ISBN            the ISBN of the book
+     * @param title           the updated title
+     * @param author          the updated author
+     * @param publicationYear the updated publication year
+     * @return SUCCESS or BOOK_NOT_FOUND
+     */
+    public Outcome updateBook(String ISBN, String title, String author, int publicationYear) {
+        String body = "{\"title\":" + Json.quote(title) + ",\"author\":" + Json.quote(author)
+                + ",\"publicationYear\":" + publicationYear + "}";
+        return routed(ISBN, shard -> outcome(send(shard, "PUT", "/books/" + encode(ISBN), body)));
+    }
+
+    /**
+     * Removes a book from its shard.
+     *
+     * @param ISBN the ISBN of the book
+     * @return SUCCESS or BOOK_NOT_FOUND
+     */
+    public Outcome removeBook(String ISBN) {
+        return routed(ISBN, shard -> outcome(send(shard, "DELETE", "/books/" + encode(ISBN), null)));
+    }
+
+    /**
+     * Changes the number of copies of a book on its shard.
+     *
+     * @param ISBN   the ISBN of the book
+     * @param copies the new number of copies
+     * @return the outcome of Library.setCopies on the shard
+     */
+    public Outcome setCopies(String ISBN, int copies) {
+        String body = "{\"copies\":" + copies + "}";
+        return routed(ISBN, shard -> outcome(send(shard, "PUT", "/books/" + encode(ISBN) + "/copies", body)));
+    }
+
+    // Reader-related Methods
+
+    /**
+     * Adds a reader to every shard. The reader directory decides; the other shards
+     * then add the reader, or already have it from an earlier attempt.
+     *
+     * @param readerId the ID of the reader
+     * @param name     the name of the reader
+     * @param contact  the contact of the reader
+     * @return SUCCESS or DUPLICATE_READER
+     */
+    public Outcome addReader(String readerId, String name, String contact) {
+        String body = "{\"id\":" + Json.quote(readerId) + ",\"name\":" + Json.quote(name)
+                + ",\"contact\":" + Json.quote(contact) + "}";
+        return everywhere(shard -> outcome(send(shard, "POST", "/readers", body)), Outcome.DUPLICATE_READER);
+    }
+
+    /**
+     * Looks up a reader on the shard its ID hashes to, spreading lookups over the replicas.
+     *
+     * @param readerId the ID of the reader
+     * @return the reader, or null if not found
+     */
+    public Reader searchReaderById(String readerId) {
+        return routed(readerId, shard -> {
+            Map<String, String> fields = Json.parseObject(send(shard, "GET", "/readers/" + encode(readerId), null));
+            return fields.containsKey("outcome") ? null
+                    : new Reader(fields.get("id"), fields.get("name"), fields.get("contact"));
+        });
+    }
+
+    /**
+     * Removes a reader from every shard.
+     * Without cascade, the reader is refused while any shard has a book on loan to them.
+     *
+     * @param readerId the ID of the reader
+     * @param cascade  whether to return the reader's borrowed books instead of refusing
+     * @return SUCCESS, READER_NOT_FOUND or READER_HAS_LOANS
+     */
+    public Outcome removeReader(String readerId, boolean cascade) {
+        if (!cascade && !getLoans(readerId).isEmpty()) {
+            return Outcome.READER_HAS_LOANS;
+        }
+        String path = "/readers/" + encode(readerId) + "?cascade=" + cascade;
+        return everywhere(shard -> outcome(send(shard, "DELETE", path, null)), Outcome.READER_NOT_FOUND);
+    }
+
+    /**
+     * Returns the ISBNs of the books a reader has borrowed, gathered from every shard.
+     *
+     * @param readerId the ID of the reader
+     * @return the borrowed ISBNs, in order
+     */
+    public Set<String> getLoans(String readerId) {
+        rebalancing.readLock().lock();
+        try {
+            Set<String> ISBNs = new TreeSet<String>();
+            for (URI shard : addresses.values()) {
+                String response = send(shard, "GET", "/readers/" + encode(readerId) + "/loans", null);
+                if (response.startsWith("{\"items\"")) {
+                    for (Map<String, String> book : Json.parseItems(response, null)) {
+                        ISBNs.add(book.get("isbn"));
+                    }
+                }
+            }
+            return ISBNs;
+        } finally {
+            rebalancing.readLock().unlock();
+        }
+    }
+
+    // Borrowing-related Methods
+
+    /**
+     * Borrows a copy of a book on its shard, which checks the reader from its replica.
+     *
+     * @param readerId the ID of the borrowing reader
+     * @param ISBN     the ISBN of the book
+     * @return the outcome of Library.borrowBook on the shard
+     */
+    public Outcome borrowBook(String readerId, String ISBN) {
+        return circulate("/borrow", readerId, ISBN);
+    }
+
+    /**
+     * Returns a borrowed copy of a book on its shard.
+     *
+     * @param readerId the ID of the returning reader
+     * @param ISBN     the ISBN of the book
+     * @return the outcome of Library.returnBook on the shard
+     */
+    public Outcome returnBook(String readerId, String ISBN) {
+        return circulate("/return", readerId, ISBN);
+    }
+
+    /**
+     * Places a hold on a book on its shard.
+     *
+     * @param readerId the ID of the waiting reader
+     * @param ISBN     the ISBN of the book
+     * @return the outcome of Library.placeHold on the shard
+     */
+    public Outcome placeHold(String readerId, String ISBN) {
+        return circulate("/holds", readerId, ISBN);
+    }
+
+    /**
+     * Cancels a hold on a book on its shard.
+     *
+     * @param readerId the ID of the waiting reader
+     * @param ISBN     the ISBN of the book
+     * @return the outcome of Library.cancelHold on the shard
+     */
+    public Outcome cancelHold(String readerId, String ISBN) {
+        return circulate("/holds/cancel", readerId, ISBN);
+    }
+
+    /**
+     * Posts a reader and book pair to the shard of the book.
+     *
+     * @param path     the route
+     * @param readerId the ID of the reader
+     * @param ISBN     the ISBN of the book
+     * @return the outcome on the shard
+     */
+    private Outcome circulate(String path, String readerId, String ISBN) {
+        String body = "{\"readerId\":" + Json.quote(readerId) + ",\"isbn\":" + Json.quote(ISBN) + "}";
+        return routed(ISBN, shard -> outcome(send(shard, "POST", path, body)));
+    }
+
+    // Rebalancing Methods
+
+    /**
+     * Adds a running shard and moves to it the books that now hash to it.
+     * The new shard first receives every reader from the directory. Each moving book is then
+     * added to the new shard with its copies, its loans with their original times, and its
+     * hold queue in order, and only then removed from its old shard.
+     *
+     * @param name    the name of the new shard, stable across restarts
+     * @param address the address of the new shard
+     * @return the number of books moved
+     * @throws IllegalArgumentException if a shard of that name already exists
+     */
+    public int addShard(String name, URI address) {
+        rebalancing.writeLock().lock();
+        try {
+            if (addresses.containsKey(name)) {
+                throw new IllegalArgumentException("Shard " + name + " already exists");
+            }
+            // Replicate the readers first, so the moved loans and holds find their readers
+            URI directory = addresses.values().iterator().next();
+            String cursor = null;
+            do {
+                Map<String, String> fields = new HashMap<String, String>();
+                List<Map<String, String>> readers = Json.parseItems(send(directory, "GET",
+                        "/readers?limit=" + PAGE_SIZE + (cursor == null ? "" : "&cursor=" + encode(cursor)), null), fields);
+                for (Map<String, String> reader : readers) {
+                    String body = "{\"id\":" + Json.quote(reader.get("id")) + ",\"name\":" + Json.quote(reader.get("name"))
+                            + ",\"contact\":" + Json.quote(reader.get("contact")) + "}";
+                    expect(outcome(send(address, "POST", "/readers", body)), Outcome.SUCCESS, Outcome.DUPLICATE_READER);
+                }
+                cursor = fields.get("nextCursor");
+            } while (cursor != null);
+
+            HashRing grown = ring.withShard(name);
+            int moved = 0;
+            for (URI shard : addresses.values()) {
+                // Collect the moving books before changing the shard, so the listing is not disturbed
+                List<Map<String, String>> moving = new ArrayList<Map<String, String>>();
+                cursor = null;
+                do {
+                    Map<String, String> fields = new HashMap<String, String>();
+                    for (Map<String, String> book : Json.parseItems(send(shard, "GET",
+                            "/books?limit=" + PAGE_SIZE + (cursor == null ? "" : "&cursor=" + encode(cursor)), null), fields)) {
+                        if (grown.owner(book.get("isbn")).equals(name)) {
+                            moving.add(book);
+                        }
+                    }
+                    cursor = fields.get("nextCursor");
+                } while (cursor != null);
+                for (Map<String, String> book : moving) {
+                    moveBook(book, shard, address);
+                    moved++;
+                }
+            }
+            addresses.put(name, address);
+            ring = grown;
+            return moved;
+        } finally {
+            rebalancing.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Moves a book with its loans and holds from one shard to another.
+     *
+     * @param book the book as listed by its old shard
+     * @param from the old shard
+     * @param to   the new shard
+     */
+    private void moveBook(Map<String, String> book, URI from, URI to) {
+        String path = "/books/" + encode(book.get("isbn"));
+        List<Map<String, String>> loans = Json.parseItems(send(from, "GET", path + "/loans", null), null);
+        List<String> holds = Json.parseStringItems(send(from, "GET", path + "/holds", null));
+        String body = "{\"isbn\":" + Json.quote(book.get("isbn")) + ",\"title\":" + Json.quote(book.get("title"))
+                + ",\"author\":" + Json.quote(book.get("author")) + ",\"publicationYear\":" + book.get("publicationYear")
+                + ",\"copies\":" + book.get("copies") + "}";
+        expect(outcome(send(to, "POST", "/books", body)), Outcome.SUCCESS);
+        for (Map<String, String> loan : loans) {
+            String loanBody = "{\"readerId\":" + Json.quote(loan.get("readerId")) + ",\"isbn\":" + Json.quote(loan.get("isbn"))
+                    + ",\"copy\":" + loan.get("copy") + ",\"checkoutTime\":" + loan.get("checkoutTime")
+                    + ",\"dueTime\":" + loan.get("dueTime") + "}";
+            expect(outcome(send(to, "POST", "/loans", loanBody)), Outcome.SUCCESS);
+        }
+        for (String readerId : holds) {
+            String holdBody = "{\"readerId\":" + Json.quote(readerId) + ",\"isbn\":" + Json.quote(book.get("isbn")) + "}";
+            expect(outcome(send(to, "POST", "/holds", holdBody)), Outcome.SUCCESS);
+        }
+        expect(outcome(send(from, "DELETE", path, null)), Outcome.SUCCESS);
+    }
+
+    // Transport Methods
+
+    /**
+     * Runs a call on the shard a key hashes to, unless books are being moved.
+     *
+     * @param key  the ISBN or reader ID
+     * @param call the call
+     * @param <T>  the type of the result
+     * @return the result
+     */
+    private <T> T routed(String key, Function<URI, T> call) {
+        rebalancing.readLock().lock();
+        try {
+            return call.apply(addresses.get(ring.owner(key)));
+        } finally {
+            rebalancing.readLock().unlock();
+        }
+    }
+
+    /**
+     * Runs a call on the reader directory and, if it succeeds there, on every other shard.
+     *
+     * @param call      the call
+     * @param tolerated an outcome on the other shards meaning they already agree with the directory
+     * @return the outcome on the directory
+     */
+    private Outcome everywhere(Function<URI, Outcome> call, Outcome tolerated) {
+        rebalancing.readLock().lock();
+        try {
+            Outcome decided = null;
+            for (URI shard : addresses.values()) {
+                Outcome outcome = call.apply(shard);
+                if (decided == null) {
+                    decided = outcome;
+                    if (decided != Outcome.SUCCESS) {
+                        return decided;
+                    }
+                } else {
+                    expect(outcome, Outcome.SUCCESS, tolerated);
+                }
+            }
+            return decided;
+        } finally {
+            rebalancing.readLock().unlock();
+        }
+    }
+
+    /**
+     * Sends a request to a shard.
+     *
+     * @param shard  the address of the shard
+     * @param method the HTTP method
+     * @param path   the path and query
+     * @param body   the JSON body, or null for none
+     * @return the response body
+     * @throws UncheckedIOException  if the shard cannot be reached
+     * @throws IllegalStateException if the shard answers with an error
+     */
+    private String send(URI shard, String method, String path, String body) {
+        HttpRequest request = HttpRequest.newBuilder(shard.resolve(path))
+                .method(method, body == null ? HttpRequest.BodyPublishers.noBody()
+                        : HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .header("Content-Type", "application/json")
+                .build();
+        HttpResponse<String> response;
+        try {
+            response = client.send(request, HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Shard " + shard + " failed: " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while calling shard " + shard, e);
+        }
+        // Refused library operations still answer with their outcome
+        if (response.statusCode() >= 400 && !response.body().startsWith("{\"outcome\"")) {
+            throw new IllegalStateException(String.format("Shard %s answered %s %s with %d: %s",
+                    shard, method, path, response.statusCode(), response.body()));
+        }
+        return response.body();
+    }
+
+    /**
+     * Reads the outcome of a library operation from a response.
+     *
+     * @param response the response body
+     * @return the outcome
+     */
+    private static Outcome outcome(String response) {
+        return Outcome.valueOf(Json.parseObject(response).get("outcome"));
+    }
+
+    /**
+     * Checks that a step of a replicated or moving change succeeded.
+     *
+     * @param outcome  the outcome of the step
+     * @param expected the outcomes that let the change go on
+     * @throws IllegalStateException if the outcome is not expected, leaving the shards to be reconciled
+     */
+    private static void expect(Outcome outcome, Outcome... expected) {
+        for (Outcome allowed : expected) {
+            if (outcome == allowed) {
+                return;
+            }
+        }
+        throw new IllegalStateException("Shards disagree: a step failed with " + outcome);
+    }
+
+    /**
+     * Builds a book from its JSON fields.
+     *
+     * @param fields the fields of the book
+     * @return the book
+     */
+    private static Book toBook(Map<String, String> fields) {
+        Book book = new Book(fields.get("title"), fields.get("author"), fields.get("isbn"),
+                Integer.parseInt(fields.get("publicationYear")), Integer.parseInt(fields.get("copies")));
+        book.setAvailableCopies(Integer.parseInt(fields.get("availableCopies")));
+        return book;
+    }
+
+    /**
+     * Percent-encodes a path segment or query component.
+     *
+     * @param text the text
+     * @return the encoded text
+     */
+    private static String encode(String text) {
+        return URLEncoder.encode(text, StandardCharsets.UTF_8);
+    }
+}
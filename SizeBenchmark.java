@@ -0,0 +1,156 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measures the latency of looking up books and readers and of borrowing and returning books
+ * as the catalog grows. One library is grown to each size in turn, with a reader for every
+ * ten books, and each operation is timed on random records that exist.
+ * With the hash indexes the percentiles should stay about flat from the smallest size to the
+ * largest, apart from the cost of cache misses in a larger heap.
+ * The first size is measured twice, the first time to warm up.
+ * Ten million books and their readers need a heap of about 12 GB: java -Xmx12g library.SizeBenchmark
+ *
+ * Usage: java library.SizeBenchmark [--sizes 10000,100000,1000000,10000000] [--seconds 3]
+ */
+public class SizeBenchmark {
+
+    /**
+     * The number of books added per call of addBooks while growing the catalog.
+     */
+    private static final int BATCH = 10000;
+    /**
+     * The number of books per reader.
+     */
+    private static final int BOOKS_PER_READER = 10;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     */
+    public static void main(String[] args) {
+        String[] sizes = { "10000", "100000", "1000000", "10000000" };
+        double seconds = 3;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--sizes":
+                sizes = args[i + 1].split(",");
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        Library library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        library.getMetrics().setEnabled(false);
+        System.out.printf(Locale.ROOT, "%10s %18s %18s %18s %18s\n", "books", "book p50/p99 us", "reader p50/p99 us",
+                "borrow p50/p99 us", "return p50/p99 us");
+        int bookCount = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            int target = Integer.parseInt(sizes[i]);
+            grow(library, bookCount, target);
+            bookCount = Math.max(bookCount, target);
+            if (i == 0) {
+                measure(library, bookCount, seconds, false);
+            }
+            measure(library, bookCount, seconds, true);
+        }
+    }
+
+    /**
+     * Times each operation on its own, on random books and readers across the whole catalog,
+     * and prints the percentiles of their latencies.
+     *
+     * @param library   the library
+     * @param bookCount the number of books in the library
+     * @param seconds   the length of the measurement
+     * @param print     whether to print the percentiles rather than only warm up
+     */
+    private static void measure(Library library, int bookCount, double seconds, boolean print) {
+        int readerCount = Math.max(1, bookCount / BOOKS_PER_READER);
+        LatencyHistogram bookLookups = new LatencyHistogram();
+        LatencyHistogram readerLookups = new LatencyHistogram();
+        LatencyHistogram borrows = new LatencyHistogram();
+        LatencyHistogram returns = new LatencyHistogram();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long sink = 0;
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        while (System.nanoTime() < deadline) {
+            String ISBN = isbn(random.nextInt(bookCount));
+            String readerId = "R" + random.nextInt(readerCount);
+            long start = System.nanoTime();
+            Book book = library.searchBookByISBN(ISBN);
+            bookLookups.record(System.nanoTime() - start);
+            start = System.nanoTime();
+            Reader reader = library.searchReaderById(readerId);
+            readerLookups.record(System.nanoTime() - start);
+            sink += book.getAvailableCopies() + reader.getId().length();
+            start = System.nanoTime();
+            Outcome outcome = library.borrowBook(readerId, ISBN);
+            borrows.record(System.nanoTime() - start);
+            if (outcome == Outcome.SUCCESS) {
+                start = System.nanoTime();
+                library.returnBook(readerId, ISBN);
+                returns.record(System.nanoTime() - start);
+            }
+        }
+        if (print) {
+            System.out.printf(Locale.ROOT, "%10d %18s %18s %18s %18s  (checksum %d)\n", bookCount,
+                    percentiles(bookLookups), percentiles(readerLookups), percentiles(borrows), percentiles(returns), sink);
+        }
+    }
+
+    /**
+     * Adds books, and a reader for every ten books, until the library holds the target number of books.
+     *
+     * @param library the library
+     * @param from    the number of books already added
+     * @param to      the target number of books
+     */
+    private static void grow(Library library, int from, int to) {
+        List<Book> books = new ArrayList<Book>(BATCH);
+        List<Reader> readers = new ArrayList<Reader>(BATCH / BOOKS_PER_READER);
+        for (int b = from; b < to; b++) {
+            books.add(new Book("Title " + b, "Author " + (b % 100000), isbn(b), 1900 + b % 125, 1));
+            if (b % BOOKS_PER_READER == 0) {
+                int r = b / BOOKS_PER_READER;
+                readers.add(new Reader("R" + r, "Reader " + r, "r" + r + "@example.com"));
+            }
+            if (books.size() == BATCH || b == to - 1) {
+                library.addBooks(books);
+                library.addReaders(readers);
+                books.clear();
+                readers.clear();
+            }
+        }
+    }
+
+    /**
+     * Formats the median and 99th percentile of a histogram in microseconds.
+     *
+     * @param histogram the histogram of latencies, in nanoseconds
+     * @return the percentiles, separated by a slash
+     */
+    private static String percentiles(LatencyHistogram histogram) {
+        return String.format(Locale.ROOT, "%.2f / %.2f", histogram.getPercentile(0.5) / 1e3,
+                histogram.getPercentile(0.99) / 1e3);
+    }
+
+    /**
+     * Returns the ISBN of the i-th book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+}
@@ -0,0 +1,199 @@
+package library;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+/**
+ * Compares keeping the books on the heap with keeping them in a memory-mapped store.
+ * For each store it fills a library with books, then reports the heap the library holds per
+ * book after a full collection, and runs lookups with a little borrowing and returning while
+ * recording lookup latency and every garbage collection pause. The mapped store is then
+ * closed and reopened from its files.
+ * Twenty million titles on the heap need about 10 GB:
+ * java -Xmx10g library.StoreBenchmark --books 20000000
+ *
+ * Usage: java library.StoreBenchmark [--stores heap,mapped] [--books 20000000] [--seconds 10]
+ *        [--directory store-benchmark]
+ */
+public class StoreBenchmark {
+
+    /**
+     * The number of books added per call of addBooks while populating.
+     */
+    private static final int BATCH = 10000;
+    /**
+     * The number of readers borrowing books.
+     */
+    private static final int READERS = 1000;
+    /**
+     * The share of operations that borrow or return a book rather than look one up.
+     */
+    private static final double CIRCULATION = 0.01;
+
+    /**
+     * Runs the benchmark.
+     *
+     * @param args the command line options
+     * @throws IOException if the mapped store cannot be created or reopened
+     */
+    public static void main(String[] args) throws IOException {
+        String[] stores = { "heap", "mapped" };
+        int bookCount = 20000000;
+        double seconds = 10;
+        Path directory = Paths.get("store-benchmark");
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "--stores":
+                stores = args[i + 1].split(",");
+                break;
+            case "--books":
+                bookCount = Integer.parseInt(args[i + 1]);
+                break;
+            case "--seconds":
+                seconds = Double.parseDouble(args[i + 1]);
+                break;
+            case "--directory":
+                directory = Paths.get(args[i + 1]);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        // Record every collection pause, in nanoseconds
+        LatencyHistogram pauses = new LatencyHistogram();
+        NotificationListener listener = (Notification notification, Object handback) -> {
+            if (notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION)) {
+                GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                        .from((CompositeData) notification.getUserData());
+                pauses.record(info.getGcInfo().getDuration() * 1000000);
+            }
+        };
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            ((NotificationEmitter) collector).addNotificationListener(listener, null, null);
+        }
+
+        System.out.printf(Locale.ROOT, "%-8s %12s %12s %12s %10s %12s %12s %8s\n", "store", "populate s", "heap B/book",
+                "lookup p99", "gc pauses", "pause p99", "pause max", "reopen s");
+        for (String store : stores) {
+            long baseline = usedHeap();
+            long start = System.nanoTime();
+            MappedBookStore mapped = null;
+            Library library;
+            if (store.equals("mapped")) {
+                mapped = MappedBookStore.create(directory, bookCount);
+                library = new Library(mapped, true);
+            } else if (store.equals("heap")) {
+                library = new Library(true);
+            } else {
+                throw new IllegalArgumentException("Unknown store " + store);
+            }
+            library.setOutput(OutputSink.SILENT);
+            library.getMetrics().setEnabled(false);
+            populate(library, bookCount);
+            double populateSeconds = (System.nanoTime() - start) / 1e9;
+            long heapPerBook = (usedHeap() - baseline) / bookCount;
+
+            // Look books up, borrowing and returning now and then, while recording pauses
+            pauses.reset();
+            LatencyHistogram lookups = new LatencyHistogram();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long deadline = System.nanoTime() + (long) (seconds * 1e9);
+            long sink = 0;
+            while (System.nanoTime() < deadline) {
+                String ISBN = isbn(random.nextInt(bookCount));
+                if (random.nextDouble() < CIRCULATION) {
+                    String readerId = "R" + random.nextInt(READERS);
+                    if (library.borrowBook(readerId, ISBN) != Outcome.SUCCESS) {
+                        library.returnBook(readerId, ISBN);
+                    }
+                } else {
+                    long started = System.nanoTime();
+                    Book book = library.searchBookByISBN(ISBN);
+                    lookups.record(System.nanoTime() - started);
+                    sink += book.getAvailableCopies();
+                }
+            }
+
+            double reopenSeconds = Double.NaN;
+            if (mapped != null) {
+                mapped.close();
+                long reopened = System.nanoTime();
+                try (MappedBookStore reopenedStore = MappedBookStore.open(directory, bookCount)) {
+                    sink += reopenedStore.size();
+                    reopenSeconds = (System.nanoTime() - reopened) / 1e9;
+                }
+            }
+            System.out.printf(Locale.ROOT, "%-8s %12.1f %12d %9.2f us %10d %9.2f ms %9.2f ms %8.3f  (checksum %d)\n",
+                    store, populateSeconds, heapPerBook, lookups.getPercentile(0.99) / 1e3, pauses.getCount(),
+                    pauses.getPercentile(0.99) / 1e6, pauses.getMax() / 1e6, reopenSeconds, sink);
+        }
+        // Remove the column files, which are as large as the capacity
+        if (Files.isDirectory(directory)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+                for (Path file : files) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Fills a library with books and readers.
+     *
+     * @param library   the library
+     * @param bookCount the number of books
+     */
+    private static void populate(Library library, int bookCount) {
+        List<Book> books = new ArrayList<Book>(BATCH);
+        for (int b = 0; b < bookCount; b++) {
+            books.add(new Book("Title " + b, "Author " + (b % 100000), isbn(b), 1900 + b % 125, 2));
+            if (books.size() == BATCH || b == bookCount - 1) {
+                library.addBooks(books);
+                books.clear();
+            }
+        }
+        for (int r = 0; r < READERS; r++) {
+            library.addReader("R" + r, "Reader " + r, "r" + r + "@example.com");
+        }
+    }
+
+    /**
+     * Returns the heap in use after a full collection.
+     *
+     * @return the heap in use, in bytes
+     */
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Returns the ISBN of the i-th book.
+     *
+     * @param i the index of the book
+     * @return the ISBN
+     */
+    private static String isbn(int i) {
+        return String.format("978%010d", i);
+    }
+}
@@ -0,0 +1,51 @@
+package library;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+public class WriterSink implements OutputSink {
+    
+    /**
+     * The buffered writer receiving the text.
+     */
+    private final BufferedWriter writer;
+    
+    /**
+     * Constructs a WriterSink buffering text for a writer.
+     *
+     * @param writer the writer receiving the text
+     */
+    public WriterSink(Writer writer) {
+        this.writer = new BufferedWriter(writer, 1 << 16);
+    }
+    
+    /**
+     * Returns a sink writing to standard output.
+     *
+     * @return the console sink
+     */
+    public static WriterSink console() {
+        return new WriterSink(new OutputStreamWriter(System.out));
+    }
+    
+    @Override
+    public synchronized void print(String text) {
+        try {
+            writer.write(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    @Override
+    public synchronized void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,364 @@
+package library;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * JMH benchmarks of every Library operation, the same scenarios LibraryBenchmark runs.
+ * Each trial populates a concurrent library with the catalog size of the trial and one
+ * reader per ten books; lookups miss the catalog with probability 1 - hit ratio.
+ * The thread count is JMH's: run with -t to share the library between threads.
+ *
+ * Usage: gradle :benchmarks:jmh -Pjmh='-t 4 -p size=10000,100000 -p hitRatio=0.5'
+ * The results are written as JSON to benchmarks/build/results/jmh/results.json.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LibraryOperations {
+
+    /**
+     * The number of books per reader in a populated library.
+     */
+    private static final int BOOKS_PER_READER = 10;
+    /**
+     * The ISBN of the book every thread contends for in the hotTitle benchmark.
+     */
+    private static final String HOT_ISBN = "hot-title";
+    /**
+     * The number of copies of the contended book.
+     */
+    private static final int HOT_COPIES = 16;
+    /**
+     * The number of readers each thread borrows the contended book for.
+     */
+    private static final int HOT_READERS_PER_THREAD = 64;
+    /**
+     * The exponent of the Zipfian distribution of displayed records.
+     */
+    private static final double ZIPF_EXPONENT = 0.99;
+
+    /**
+     * A sink that accepts and discards text, so display benchmarks include formatting.
+     */
+    private static final OutputSink DISCARD = new OutputSink() {
+        @Override
+        public void print(String text) {
+        }
+
+        @Override
+        public void flush() {
+        }
+    };
+
+    // Benchmark parameters
+    @Param({ "10000", "100000" })
+    public int size;
+    @Param({ "0.9" })
+    public double hitRatio;
+    @Param({ "true" })
+    public boolean metrics;
+    @Param({ "false" })
+    public boolean snapshots;
+    @Param({ "0" })
+    public int cache;
+
+    // The library and its precomputed keys, so key formatting stays out of the measured operations
+    private Library library;
+    private String[] ISBNs;
+    private String[] missingISBNs;
+    private String[] readerIds;
+    // The cumulative probabilities of the Zipfian ranks
+    private double[] zipf;
+
+    /**
+     * The state of one benchmark thread: its index and the number of operations it has run.
+     */
+    @State(Scope.Thread)
+    public static class Worker {
+        int index;
+        long step;
+
+        /**
+         * Takes the index of the thread.
+         *
+         * @param params the parameters of the thread
+         */
+        @Setup(Level.Trial)
+        public void setUp(ThreadParams params) {
+            index = params.getThreadIndex();
+        }
+    }
+
+    /**
+     * Populates a concurrent library for the trial.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        library = new Library(true);
+        library.setOutput(DISCARD);
+        library.getMetrics().setEnabled(metrics);
+        readerIds = new String[Math.max(1, size / BOOKS_PER_READER)];
+        List<Reader> readers = new ArrayList<Reader>();
+        for (int i = 0; i < readerIds.length; i++) {
+            readerIds[i] = "R" + i;
+            readers.add(new Reader(readerIds[i], "Reader " + i, "reader" + i + "@example.com"));
+        }
+        library.addReaders(readers);
+        ISBNs = new String[size];
+        missingISBNs = new String[size];
+        List<Book> books = new ArrayList<Book>();
+        for (int i = 0; i < size; i++) {
+            ISBNs[i] = String.format("978%010d", i);
+            missingISBNs[i] = "979" + ISBNs[i].substring(3);
+            books.add(new Book("Title " + i, "Author " + (i % 1000), ISBNs[i], 1900 + i % 125));
+        }
+        library.addBooks(books);
+        library.addBook(HOT_ISBN, "Hot Title", "Hot Author", 2000, HOT_COPIES);
+        library.setSnapshotReads(snapshots);
+        library.setInfoCacheCapacity(cache);
+        zipf = zipfDistribution(size);
+    }
+
+    /**
+     * Checks that the contended book lost no copy and lent none twice.
+     *
+     * @throws IllegalStateException if the hot title's copies do not add up
+     */
+    @TearDown(Level.Trial)
+    public void verify() {
+        Book book = library.searchBookByISBN(HOT_ISBN);
+        List<Loan> loans = library.getCopyLoans(HOT_ISBN);
+        List<String> waiting = library.getHoldQueue(HOT_ISBN);
+        if (loans.size() + book.getAvailableCopies() != HOT_COPIES
+                || (book.getAvailableCopies() > 0 && !waiting.isEmpty())) {
+            throw new IllegalStateException("Hot title has " + loans.size() + " copies on loan, "
+                    + book.getAvailableCopies() + " available and " + waiting.size() + " readers waiting");
+        }
+    }
+
+    // Catalog Benchmarks
+
+    @Benchmark
+    public Outcome addBook(Worker worker) {
+        // Each thread adds books under its own fresh keys
+        return library.addBook("new-" + worker.index + "-" + worker.step++, "New Title", "New Author", 2000);
+    }
+
+    @Benchmark
+    public Book searchBookByISBN() {
+        return library.searchBookByISBN(lookupISBN(ThreadLocalRandom.current()));
+    }
+
+    @Benchmark
+    public Outcome updateBook(Worker worker) {
+        long step = worker.step++;
+        return library.updateBook(randomISBN(ThreadLocalRandom.current()), "Title " + step, "Author " + (step % 1000), 2000);
+    }
+
+    @Benchmark
+    public Outcome removeBook() {
+        // Remove a book and put it back, keeping the catalog size stable
+        String ISBN = randomISBN(ThreadLocalRandom.current());
+        Outcome outcome = library.removeBook(ISBN);
+        if (outcome == Outcome.SUCCESS) {
+            library.addBook(ISBN, "Title", "Author", 2000);
+        }
+        return outcome;
+    }
+
+    @Benchmark
+    public Outcome addReader(Worker worker) {
+        return library.addReader("new-" + worker.index + "-" + worker.step++, "New Reader", "new@example.com");
+    }
+
+    @Benchmark
+    public Reader searchReaderById() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return library.searchReaderById(random.nextDouble() < hitRatio ? randomReaderId(random) : missingISBNs[random.nextInt(size)]);
+    }
+
+    // Circulation Benchmarks
+
+    @Benchmark
+    public Outcome borrowReturn() {
+        return circulate(ThreadLocalRandom.current(), randomISBN(ThreadLocalRandom.current()));
+    }
+
+    @Benchmark
+    public Outcome hotTitle(Worker worker) {
+        // Borrow a copy, return it, or wait in the hold queue when none is free
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        String readerId = readerIds[(worker.index * HOT_READERS_PER_THREAD + random.nextInt(HOT_READERS_PER_THREAD))
+                % readerIds.length];
+        Outcome outcome = library.borrowBook(readerId, HOT_ISBN);
+        if (outcome == Outcome.ALREADY_HAS_COPY) {
+            return library.returnBook(readerId, HOT_ISBN);
+        } else if (outcome == Outcome.ALREADY_BORROWED) {
+            return library.placeHold(readerId, HOT_ISBN);
+        }
+        return outcome;
+    }
+
+    // Display Benchmarks
+
+    @Benchmark
+    public Outcome displayBookInfo() {
+        return library.displayBookInfo(lookupISBN(ThreadLocalRandom.current()));
+    }
+
+    @Benchmark
+    public Outcome displayReaderInfo() {
+        return library.displayReaderInfo(randomReaderId(ThreadLocalRandom.current()));
+    }
+
+    @Benchmark
+    public String displayBooksPage() {
+        return library.displayBooksPage(new BookFilter(), randomISBN(ThreadLocalRandom.current()), 20);
+    }
+
+    // Mixed Benchmarks
+
+    @Benchmark
+    public Object circulationMix(Worker worker) {
+        // 80% lookups, 15% borrow or return, 5% catalog edits
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int roll = random.nextInt(100);
+        if (roll < 60) {
+            return library.searchBookByISBN(lookupISBN(random));
+        } else if (roll < 80) {
+            return library.searchReaderById(randomReaderId(random));
+        } else if (roll < 95) {
+            return circulate(random, randomISBN(random));
+        }
+        return library.updateBook(randomISBN(random), "Title " + worker.step++, "Author", 2000);
+    }
+
+    @Benchmark
+    public Object readMostly() {
+        // 99% lookups, displays and listings, 1% borrow or return
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int roll = random.nextInt(100);
+        if (roll < 60) {
+            return library.searchBookByISBN(lookupISBN(random));
+        } else if (roll < 90) {
+            return library.displayBookInfo(lookupISBN(random));
+        } else if (roll < 99) {
+            return library.listBooks(new BookFilter(), randomISBN(random), 20);
+        }
+        return circulate(random, randomISBN(random));
+    }
+
+    @Benchmark
+    public Outcome zipfDisplay() {
+        // 90% book displays and 5% reader displays of popular records, 5% borrow or return of a popular book
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int roll = random.nextInt(100);
+        if (roll < 90) {
+            return library.displayBookInfo(ISBNs[zipfRank(random)]);
+        } else if (roll < 95) {
+            return library.displayReaderInfo(readerIds[zipfRank(random) % readerIds.length]);
+        }
+        return circulate(random, ISBNs[zipfRank(random)]);
+    }
+
+    /**
+     * Borrows a book for a random reader, or returns it if it is already borrowed.
+     *
+     * @param random the thread's random source
+     * @param ISBN   the ISBN of the book
+     * @return the outcome of the borrow, or of the return if one was made
+     */
+    private Outcome circulate(ThreadLocalRandom random, String ISBN) {
+        Outcome outcome = library.borrowBook(randomReaderId(random), ISBN);
+        if (outcome == Outcome.ALREADY_BORROWED || outcome == Outcome.ALREADY_HAS_COPY) {
+            List<Loan> loans = library.getCopyLoans(ISBN);
+            if (!loans.isEmpty()) {
+                return library.returnBook(loans.get(0).getReaderId(), ISBN);
+            }
+        }
+        return outcome;
+    }
+
+    /**
+     * Returns an ISBN to look up, missing the catalog with probability 1 - hit ratio.
+     *
+     * @param random the thread's random source
+     * @return the ISBN
+     */
+    private String lookupISBN(ThreadLocalRandom random) {
+        int i = random.nextInt(size);
+        return random.nextDouble() < hitRatio ? ISBNs[i] : missingISBNs[i];
+    }
+
+    /**
+     * Returns the ISBN of a random populated book.
+     *
+     * @param random the thread's random source
+     * @return the ISBN
+     */
+    private String randomISBN(ThreadLocalRandom random) {
+        return ISBNs[random.nextInt(size)];
+    }
+
+    /**
+     * Returns the ID of a random populated reader.
+     *
+     * @param random the thread's random source
+     * @return the reader ID
+     */
+    private String randomReaderId(ThreadLocalRandom random) {
+        return readerIds[random.nextInt(readerIds.length)];
+    }
+
+    /**
+     * Returns the cumulative probabilities of the ranks of a Zipfian distribution.
+     *
+     * @param ranks the number of ranks
+     * @return the probability of each rank or a lower one
+     */
+    private static double[] zipfDistribution(int ranks) {
+        double[] cumulative = new double[ranks];
+        double sum = 0;
+        for (int k = 0; k < ranks; k++) {
+            sum += 1 / Math.pow(k + 1, ZIPF_EXPONENT);
+            cumulative[k] = sum;
+        }
+        for (int k = 0; k < ranks; k++) {
+            cumulative[k] /= sum;
+        }
+        return cumulative;
+    }
+
+    /**
+     * Returns a rank picked from the Zipfian distribution, 0 being the most popular.
+     *
+     * @param random the thread's random source
+     * @return the rank
+     */
+    private int zipfRank(ThreadLocalRandom random) {
+        int rank = Arrays.binarySearch(zipf, random.nextDouble());
+        return Math.min(rank < 0 ? -rank - 1 : rank, zipf.length - 1);
+    }
+}
@@ -0,0 +1,188 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Races operations on the same books and readers across threads, which the library's
+ * striped locks and its per-reader index updates must keep consistent.
+ */
+class ConcurrencyTest {
+
+    /**
+     * Runs tasks on their own threads, all released at once, and waits for them to finish.
+     *
+     * @param tasks the tasks
+     * @throws InterruptedException if interrupted while waiting
+     */
+    private static void race(Runnable... tasks) throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (Runnable task : tasks) {
+            Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task.run();
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    /**
+     * Creates a concurrent library that prints nothing.
+     *
+     * @return the library
+     */
+    private static Library library() {
+        Library library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        return library;
+    }
+
+    @Test
+    void aSingleCopyIsLentOnce() throws InterruptedException {
+        for (int round = 0; round < 200; round++) {
+            Library library = library();
+            library.addBook("9780000000001", "Title", "Author", 2000);
+            Runnable[] borrowers = new Runnable[4];
+            AtomicInteger lent = new AtomicInteger();
+            for (int r = 0; r < borrowers.length; r++) {
+                String readerId = "R" + r;
+                library.addReader(readerId, "Reader", "contact");
+                borrowers[r] = () -> {
+                    if (library.borrowBook(readerId, "9780000000001") == Outcome.SUCCESS) {
+                        lent.incrementAndGet();
+                    }
+                };
+            }
+            race(borrowers);
+            assertEquals(1, lent.get());
+            assertEquals(1, library.getCopyLoans("9780000000001").size());
+            assertEquals(0, library.searchBookByISBN("9780000000001").getAvailableCopies());
+        }
+    }
+
+    @Test
+    void removedReaderKeepsNoLoanOrHold() throws InterruptedException {
+        for (int round = 0; round < 500; round++) {
+            Library library = library();
+            library.addBook("9780000000001", "Free", "Author", 2000);
+            library.addBook("9780000000002", "Lent", "Author", 2000);
+            library.addReader("R1", "Reader 1", "r1@example.com");
+            library.addReader("R2", "Reader 2", "r2@example.com");
+            library.borrowBook("R2", "9780000000002");
+            race(() -> library.borrowBook("R1", "9780000000001"),
+                    () -> library.placeHold("R1", "9780000000002"),
+                    () -> library.removeReader("R1"));
+            if (library.searchReaderById("R1") == null) {
+                assertTrue(library.getLoans("R1").isEmpty());
+                assertTrue(library.getHolds("R1").isEmpty());
+                assertTrue(library.getCopyLoans("9780000000001").isEmpty());
+                assertTrue(library.getHoldQueue("9780000000002").isEmpty());
+                assertEquals(1, library.searchBookByISBN("9780000000001").getAvailableCopies());
+            }
+        }
+    }
+
+    @Test
+    void circulationKeepsCopyCountsConsistent() throws InterruptedException {
+        Library library = library();
+        int books = 64;
+        int readers = 32;
+        for (int b = 0; b < books; b++) {
+            library.addBook("978" + b, "Title " + b, "Author", 2000, 1 + b % 3);
+        }
+        for (int r = 0; r < readers; r++) {
+            library.addReader("R" + r, "Reader " + r, "r" + r + "@example.com");
+        }
+        Runnable circulate = () -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            for (int i = 0; i < 20000; i++) {
+                String ISBN = "978" + random.nextInt(books);
+                String readerId = "R" + random.nextInt(readers);
+                switch (random.nextInt(4)) {
+                case 0:
+                    library.borrowBook(readerId, ISBN);
+                    break;
+                case 1:
+                    library.returnBook(readerId, ISBN);
+                    break;
+                case 2:
+                    library.placeHold(readerId, ISBN);
+                    break;
+                default:
+                    library.cancelHold(readerId, ISBN);
+                }
+            }
+        };
+        race(circulate, circulate, circulate, circulate);
+
+        long onLoan = 0;
+        for (int b = 0; b < books; b++) {
+            String ISBN = "978" + b;
+            Book book = library.searchBookByISBN(ISBN);
+            List<Loan> loans = library.getCopyLoans(ISBN);
+            assertEquals(book.getCopies() - loans.size(), book.getAvailableCopies(), ISBN);
+            // Nobody waits while a copy is free
+            assertTrue(book.getAvailableCopies() == 0 || library.getHoldQueue(ISBN).isEmpty(), ISBN);
+            for (Loan loan : loans) {
+                assertTrue(library.getLoans(loan.getReaderId()).contains(ISBN), ISBN);
+            }
+            for (String readerId : library.getHoldQueue(ISBN)) {
+                assertTrue(library.getHolds(readerId).contains(ISBN), ISBN);
+            }
+            onLoan += loans.size();
+        }
+        assertEquals(onLoan, library.getMetrics().getBooksOnLoan());
+    }
+
+    @Test
+    void searchFindsExactlyTheBooksPresent() throws InterruptedException {
+        Library library = library();
+        library.addBook("978-anchor", "Common Anchor", "Author", 2000);
+        Runnable[] writers = new Runnable[4];
+        for (int t = 0; t < writers.length; t++) {
+            int writer = t;
+            writers[t] = () -> {
+                for (int i = 0; i < 5000; i++) {
+                    String ISBN = "978-" + writer + "-" + (i % 50);
+                    if (library.removeBook(ISBN) != Outcome.SUCCESS) {
+                        library.addBook(ISBN, "Common Title " + writer, "Author", 2000);
+                    }
+                }
+            };
+        }
+        race(writers);
+
+        Set<String> present = new HashSet<String>();
+        library.streamBooks().forEach(book -> present.add(book.getISBN()));
+        Set<String> found = new HashSet<String>();
+        for (Book book : library.searchBooks("common", 10000)) {
+            found.add(book.getISBN());
+        }
+        assertEquals(present, found);
+        Set<String> prefixed = new HashSet<String>();
+        for (Book book : library.searchBooks("comm*", 10000)) {
+            prefixed.add(book.getISBN());
+        }
+        assertEquals(present, prefixed);
+    }
+}
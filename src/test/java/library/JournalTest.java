@@ -0,0 +1,183 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests restoring a library from its journal and snapshots.
+ */
+class JournalTest {
+
+    /**
+     * The data directory of the library under test.
+     */
+    @TempDir
+    Path directory;
+
+    /**
+     * An output sink keeping everything printed to it.
+     */
+    private static class RecordingSink implements OutputSink {
+
+        /**
+         * The text printed so far.
+         */
+        private final StringBuilder text = new StringBuilder();
+
+        @Override
+        public synchronized void print(String printed) {
+            text.append(printed);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        /**
+         * Returns the text printed so far.
+         *
+         * @return the text
+         */
+        synchronized String getText() {
+            return text.toString();
+        }
+    }
+
+    /**
+     * Restores a library from the data directory and closes its journal again.
+     *
+     * @param concurrent whether the restored library is concurrent
+     * @return the restored library
+     * @throws IOException if the data cannot be read
+     */
+    private Library restore(boolean concurrent) throws IOException {
+        Library library = new Library(concurrent);
+        library.setOutput(OutputSink.SILENT);
+        Journal.open(directory, library).close();
+        return library;
+    }
+
+    @Test
+    void replayRestoresBooksReadersLoansAndHolds() throws IOException {
+        Library library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        Journal journal = Journal.open(directory, library);
+        library.addBook("9780000000001", "Title", "Author", 2000);
+        library.addBook("9780000000002", "Other", "Author", 2001, 3);
+        library.addBook("9780000000003", "Gone", "Author", 2002);
+        library.addReader("R1", "Reader 1", "r1@example.com");
+        library.addReader("R2", "Reader 2", "r2@example.com");
+        library.borrowBook("R1", "9780000000001");
+        library.placeHold("R2", "9780000000001");
+        library.borrowBook("R2", "9780000000002");
+        library.updateBook("9780000000002", "Renamed", "Author", 2003);
+        library.removeBook("9780000000003");
+        journal.close();
+
+        Library restored = new Library(true);
+        restored.setOutput(OutputSink.SILENT);
+        journal = Journal.open(directory, restored);
+        assertNull(restored.searchBookByISBN("9780000000003"));
+        assertEquals("Renamed", restored.searchBookByISBN("9780000000002").getTitle());
+        assertEquals(2, restored.searchBookByISBN("9780000000002").getAvailableCopies());
+        assertEquals(Set.of("9780000000001"), restored.getLoans("R1"));
+        assertEquals(List.of("R2"), restored.getHoldQueue("9780000000001"));
+        assertEquals(Set.of("9780000000001"), restored.getHolds("R2"));
+        assertEquals(2, restored.getMetrics().getBooksOnLoan());
+
+        // The restored hold still receives the returned copy
+        assertEquals(Outcome.SUCCESS, restored.returnBook("R1", "9780000000001"));
+        assertTrue(restored.getLoans("R2").contains("9780000000001"));
+        journal.close();
+    }
+
+    @Test
+    void snapshotThenReplayRestoresTheSameState() throws IOException {
+        Library library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        Journal journal = Journal.open(directory, library);
+        library.addBook("9780000000001", "Title", "Author", 2000);
+        library.addReader("R1", "Reader 1", "r1@example.com");
+        library.borrowBook("R1", "9780000000001");
+        journal.snapshot();
+        library.returnBook("R1", "9780000000001");
+        library.addReader("R2", "Reader 2", "r2@example.com");
+        journal.close();
+
+        Library restored = restore(true);
+        assertNotNull(restored.searchReaderById("R2"));
+        assertTrue(restored.getLoans("R1").isEmpty());
+        assertEquals(1, restored.searchBookByISBN("9780000000001").getAvailableCopies());
+    }
+
+    /**
+     * Adds and removes books on several threads while automatic snapshots are taken, then
+     * checks no snapshot failed, on the library's output or on any thread, and the restored
+     * catalog matches the library's.
+     * A single-threaded library is written by one thread only, as its indexes require.
+     */
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void snapshotsUnderConcurrentWrites(boolean concurrent) throws Exception {
+        Library library = new Library(concurrent);
+        RecordingSink output = new RecordingSink();
+        library.setOutput(output);
+        Queue<Throwable> uncaught = new ConcurrentLinkedQueue<Throwable>();
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> uncaught.add(e));
+        try {
+            Journal journal = Journal.open(directory, library);
+            journal.setSnapshotInterval(1000);
+            int threads = concurrent ? 4 : 1;
+            Thread[] writers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                int writer = t;
+                writers[t] = new Thread(() -> {
+                    for (int i = 0; i < 100000 / threads; i++) {
+                        String ISBN = "978" + writer + "-" + (i % 2000);
+                        if (library.searchBookByISBN(ISBN) == null) {
+                            library.addBook(ISBN, "Title", "Author", 2000);
+                        } else {
+                            library.removeBook(ISBN);
+                        }
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers) {
+                writer.join();
+            }
+            journal.close();
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+        assertTrue(uncaught.isEmpty(), () -> uncaught.peek().toString());
+        assertFalse(output.getText().contains("Failed to snapshot"), output.getText());
+
+        Set<String> expected = new HashSet<String>();
+        for (Book book : library.allBooks()) {
+            expected.add(book.getISBN());
+        }
+        Set<String> restored = new HashSet<String>();
+        for (Book book : restore(concurrent).allBooks()) {
+            restored.add(book.getISBN());
+        }
+        assertEquals(expected, restored);
+    }
+}
@@ -0,0 +1,205 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the borrow, return and hold semantics of a library.
+ */
+class LibraryTest {
+
+    /**
+     * The ISBN of the book with one copy.
+     */
+    private static final String SINGLE = "9780000000001";
+    /**
+     * The ISBN of the book with two copies.
+     */
+    private static final String DOUBLE = "9780000000002";
+
+    /**
+     * The library under test, with both books and readers R1 to R3.
+     */
+    private Library library;
+
+    /**
+     * Creates the library under test.
+     */
+    @BeforeEach
+    void setUp() {
+        library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        library.addBook(SINGLE, "Single", "Author", 2000);
+        library.addBook(DOUBLE, "Double", "Author", 2001, 2);
+        for (int r = 1; r <= 3; r++) {
+            library.addReader("R" + r, "Reader " + r, "r" + r + "@example.com");
+        }
+    }
+
+    @Test
+    void borrowAndReturnSingleCopy() {
+        assertEquals(Outcome.SUCCESS, library.borrowBook("R1", SINGLE));
+        assertEquals(0, library.searchBookByISBN(SINGLE).getAvailableCopies());
+        assertEquals(Set.of(SINGLE), library.getLoans("R1"));
+        assertEquals(1, library.getMetrics().getBooksOnLoan());
+
+        assertEquals(Outcome.ALREADY_BORROWED, library.borrowBook("R2", SINGLE));
+        assertEquals(Outcome.NOT_BORROWED_BY_READER, library.returnBook("R2", SINGLE));
+
+        assertEquals(Outcome.SUCCESS, library.returnBook("R1", SINGLE));
+        assertEquals(1, library.searchBookByISBN(SINGLE).getAvailableCopies());
+        assertTrue(library.getLoans("R1").isEmpty());
+        assertEquals(0, library.getMetrics().getBooksOnLoan());
+        assertEquals(Outcome.ALREADY_RETURNED, library.returnBook("R1", SINGLE));
+    }
+
+    @Test
+    void borrowingASingleCopyTwiceReportsItBorrowed() {
+        library.borrowBook("R1", SINGLE);
+        // No copy is free, which a single-copy book has always reported before the reader's own copy
+        assertEquals(Outcome.ALREADY_BORROWED, library.borrowBook("R1", SINGLE));
+    }
+
+    @Test
+    void unknownReaderOrBook() {
+        assertEquals(Outcome.READER_NOT_FOUND, library.borrowBook("R9", SINGLE));
+        assertEquals(Outcome.BOOK_NOT_FOUND, library.borrowBook("R1", "9789999999999"));
+        assertEquals(Outcome.READER_NOT_FOUND, library.returnBook("R9", SINGLE));
+        assertEquals(Outcome.BOOK_NOT_FOUND, library.returnBook("R1", "9789999999999"));
+        assertEquals(Outcome.READER_NOT_FOUND, library.placeHold("R9", SINGLE));
+        assertEquals(Outcome.BOOK_NOT_FOUND, library.placeHold("R1", "9789999999999"));
+    }
+
+    @Test
+    void copiesAreLentToDifferentReaders() {
+        assertEquals(Outcome.SUCCESS, library.borrowBook("R1", DOUBLE));
+        assertEquals(Outcome.ALREADY_HAS_COPY, library.borrowBook("R1", DOUBLE));
+        assertEquals(Outcome.SUCCESS, library.borrowBook("R2", DOUBLE));
+        assertEquals(Outcome.ALREADY_BORROWED, library.borrowBook("R3", DOUBLE));
+
+        List<Loan> loans = library.getCopyLoans(DOUBLE);
+        assertEquals(2, loans.size());
+        assertNotEquals(loans.get(0).getCopy(), loans.get(1).getCopy());
+        assertEquals(BookStatus.BORROWED, library.searchBookByISBN(DOUBLE).getAvailabilityStatus());
+    }
+
+    @Test
+    void holdIsRefusedWhileACopyIsFree() {
+        assertEquals(Outcome.COPY_AVAILABLE, library.placeHold("R2", SINGLE));
+        library.borrowBook("R1", SINGLE);
+        assertEquals(Outcome.ALREADY_HAS_COPY, library.placeHold("R1", SINGLE));
+        assertEquals(Outcome.SUCCESS, library.placeHold("R2", SINGLE));
+        assertEquals(Outcome.ALREADY_ON_HOLD, library.placeHold("R2", SINGLE));
+        assertEquals(Set.of(SINGLE), library.getHolds("R2"));
+    }
+
+    @Test
+    void returnedCopyGoesToTheLongestWaitingReader() {
+        library.borrowBook("R1", SINGLE);
+        library.placeHold("R2", SINGLE);
+        library.placeHold("R3", SINGLE);
+        assertEquals(List.of("R2", "R3"), library.getHoldQueue(SINGLE));
+
+        assertEquals(Outcome.SUCCESS, library.returnBook("R1", SINGLE));
+        assertEquals(Set.of(SINGLE), library.getLoans("R2"));
+        assertTrue(library.getHolds("R2").isEmpty());
+        assertEquals(List.of("R3"), library.getHoldQueue(SINGLE));
+        assertEquals(0, library.searchBookByISBN(SINGLE).getAvailableCopies());
+
+        assertEquals(Outcome.SUCCESS, library.returnBook("R2", SINGLE));
+        assertEquals(Set.of(SINGLE), library.getLoans("R3"));
+        assertTrue(library.getHoldQueue(SINGLE).isEmpty());
+    }
+
+    @Test
+    void cancelledHoldIsSkipped() {
+        library.borrowBook("R1", SINGLE);
+        assertEquals(Outcome.NOT_ON_HOLD, library.cancelHold("R2", SINGLE));
+        library.placeHold("R2", SINGLE);
+        assertEquals(Outcome.SUCCESS, library.cancelHold("R2", SINGLE));
+        assertTrue(library.getHolds("R2").isEmpty());
+
+        library.returnBook("R1", SINGLE);
+        assertTrue(library.getLoans("R2").isEmpty());
+        assertEquals(1, library.searchBookByISBN(SINGLE).getAvailableCopies());
+    }
+
+    @Test
+    void newCopiesGoToWaitingReaders() {
+        library.borrowBook("R1", SINGLE);
+        library.placeHold("R2", SINGLE);
+        assertEquals(Outcome.SUCCESS, library.setCopies(SINGLE, 2));
+        assertEquals(Set.of(SINGLE), library.getLoans("R2"));
+        assertEquals(0, library.searchBookByISBN(SINGLE).getAvailableCopies());
+        assertEquals(Outcome.COPIES_ON_LOAN, library.setCopies(SINGLE, 1));
+    }
+
+    @Test
+    void removingAReaderWithLoans() {
+        library.borrowBook("R1", SINGLE);
+        library.borrowBook("R2", DOUBLE);
+        library.placeHold("R2", SINGLE);
+        assertEquals(Outcome.READER_HAS_LOANS, library.removeReader("R1"));
+
+        assertEquals(Outcome.SUCCESS, library.removeReader("R2", true));
+        assertNull(library.searchReaderById("R2"));
+        assertTrue(library.getLoans("R2").isEmpty());
+        assertTrue(library.getHolds("R2").isEmpty());
+        assertTrue(library.getHoldQueue(SINGLE).isEmpty());
+        assertEquals(2, library.searchBookByISBN(DOUBLE).getAvailableCopies());
+        assertEquals(1, library.getMetrics().getBooksOnLoan());
+    }
+
+    @Test
+    void removingABookDropsItsLoansAndHolds() {
+        library.borrowBook("R1", SINGLE);
+        library.placeHold("R2", SINGLE);
+        assertEquals(Outcome.SUCCESS, library.removeBook(SINGLE));
+        assertTrue(library.getLoans("R1").isEmpty());
+        assertTrue(library.getHolds("R2").isEmpty());
+        assertEquals(0, library.getMetrics().getBooksOnLoan());
+        assertEquals(Outcome.SUCCESS, library.removeReader("R1"));
+    }
+
+    @Test
+    void batchesApplyPairsInOrder() {
+        Outcome[] borrowed = library.borrowBatch(new String[] { "R1", "R2", "R9", "R3" },
+                new String[] { SINGLE, SINGLE, DOUBLE, DOUBLE });
+        assertArrayEquals(new Outcome[] { Outcome.SUCCESS, Outcome.ALREADY_BORROWED, Outcome.READER_NOT_FOUND,
+                Outcome.SUCCESS }, borrowed);
+        Outcome[] returned = library.returnBatch(new String[] { "R2", "R1", "R1" },
+                new String[] { SINGLE, SINGLE, SINGLE });
+        assertArrayEquals(new Outcome[] { Outcome.NOT_BORROWED_BY_READER, Outcome.SUCCESS, Outcome.ALREADY_RETURNED },
+                returned);
+    }
+
+    @Test
+    void overdueLoansComeMostOverdueFirst() {
+        Instant start = Instant.parse("2020-01-01T00:00:00Z");
+        library.setClock(Clock.fixed(start, ZoneOffset.UTC));
+        library.borrowBook("R1", SINGLE);
+        library.setClock(Clock.fixed(start.plusSeconds(60), ZoneOffset.UTC));
+        library.borrowBook("R2", DOUBLE);
+        assertTrue(library.getOverdueLoans(10).isEmpty());
+
+        library.setClock(Clock.fixed(start.plus(Duration.ofDays(30)), ZoneOffset.UTC));
+        List<Loan> overdue = library.getOverdueLoans(10);
+        assertEquals(2, overdue.size());
+        assertEquals(SINGLE, overdue.get(0).getISBN());
+        library.returnBook("R1", SINGLE);
+        assertEquals(1, library.getOverdueLoans(10).size());
+    }
+}
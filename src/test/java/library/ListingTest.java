@@ -0,0 +1,140 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Tests paged and full listings of books and readers, read from the live indexes and from snapshots.
+ */
+class ListingTest {
+
+    /**
+     * The separator printed around each listed record.
+     */
+    private static final String SEPARATOR = "--------------------\n";
+
+    /**
+     * Creates a library with five books, added out of ISBN order, and three readers.
+     *
+     * @param snapshots whether the library reads snapshots
+     * @return the library
+     */
+    private static Library library(boolean snapshots) {
+        Library library = new Library(true);
+        library.setOutput(OutputSink.SILENT);
+        for (int b : new int[] { 3, 1, 4, 5, 2 }) {
+            library.addBook("978000000000" + b, "Title " + b, b % 2 == 0 ? "Even" : "Odd", 2000 + b);
+        }
+        library.addReader("R2", "Reader 2", "r2@example.com");
+        library.addReader("R1", "Reader 1", "r1@example.com");
+        library.addReader("R3", "Reader 3", "r3@example.com");
+        library.setSnapshotReads(snapshots);
+        return library;
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void pagesFollowISBNOrder(boolean snapshots) {
+        Library library = library(snapshots);
+        List<String> ISBNs = new ArrayList<String>();
+        String cursor = null;
+        int pages = 0;
+        do {
+            Page<Book> page = library.listBooks(new BookFilter(), cursor, 2);
+            for (Book book : page.getItems()) {
+                ISBNs.add(book.getISBN());
+            }
+            cursor = page.getNextCursor();
+            pages++;
+        } while (cursor != null);
+        assertEquals(List.of("9780000000001", "9780000000002", "9780000000003", "9780000000004", "9780000000005"),
+                ISBNs);
+        assertEquals(3, pages);
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void pagesApplyTheFilter(boolean snapshots) {
+        Library library = library(snapshots);
+        Page<Book> page = library.listBooks(new BookFilter().author("Even"), null, 10);
+        assertEquals(List.of("9780000000002", "9780000000004"),
+                page.getItems().stream().map(Book::getISBN).collect(Collectors.toList()));
+        assertNull(page.getNextCursor());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void readerPagesFollowIdOrder(boolean snapshots) {
+        Library library = library(snapshots);
+        Page<Reader> first = library.listReaders(null, 2);
+        assertEquals(List.of("R1", "R2"), first.getItems().stream().map(Reader::getId).collect(Collectors.toList()));
+        Page<Reader> second = library.listReaders(first.getNextCursor(), 2);
+        assertEquals(List.of("R3"), second.getItems().stream().map(Reader::getId).collect(Collectors.toList()));
+        assertNull(second.getNextCursor());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void fullListingPrintsEveryBookBetweenSeparators(boolean snapshots) {
+        Library library = library(snapshots);
+        StringWriter out = new StringWriter();
+        library.setOutput(new WriterSink(out));
+        library.displayAllBooksInfo();
+
+        StringBuilder expected = new StringBuilder(SEPARATOR);
+        library.streamBooks().forEach(book -> expected.append(book.formatInfo()).append(SEPARATOR));
+        assertEquals(expected.toString(), out.toString());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void pagedListingPrintsTheSameBooksAsTheFullListing(boolean snapshots) {
+        Library library = library(snapshots);
+        StringWriter paged = new StringWriter();
+        library.setOutput(new WriterSink(paged));
+        String cursor = null;
+        do {
+            cursor = library.displayBooksPage(new BookFilter(), cursor, 2);
+        } while (cursor != null);
+
+        StringBuilder expected = new StringBuilder(SEPARATOR);
+        for (Book book : library.listBooks(new BookFilter(), null, 10).getItems()) {
+            expected.append(book.formatInfo()).append(SEPARATOR);
+        }
+        assertEquals(expected.toString(), paged.toString());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void emptyListingsSaySo(boolean snapshots) {
+        Library library = new Library(true);
+        library.setSnapshotReads(snapshots);
+        StringWriter out = new StringWriter();
+        library.setOutput(new WriterSink(out));
+        library.displayAllBooksInfo();
+        assertNull(library.displayReadersPage(null, 10));
+        assertEquals(SEPARATOR + "No books in the system.\nNo readers in the system.\n", out.toString());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = { false, true })
+    void readerLoansListTheBorrowedBooks(boolean snapshots) {
+        Library library = library(snapshots);
+        library.borrowBook("R1", "9780000000002");
+        StringWriter out = new StringWriter();
+        library.setOutput(new WriterSink(out));
+        assertEquals(Outcome.SUCCESS, library.displayReaderLoans("R1"));
+        assertTrue(out.toString().startsWith(SEPARATOR));
+        assertTrue(out.toString().contains("9780000000002"));
+        assertEquals(Outcome.READER_NOT_FOUND, library.displayReaderLoans("R9"));
+    }
+}
@@ -0,0 +1,222 @@
+package library;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests the mapped book store on its own and reopened under a journaled library.
+ */
+class MappedBookStoreTest {
+
+    /**
+     * The data directory of the store or library under test.
+     */
+    @TempDir
+    Path directory;
+
+    /**
+     * A library over a mapped store, restored from the journal in the data directory.
+     */
+    private class Opened {
+
+        /**
+         * The book store of the library.
+         */
+        final MappedBookStore store;
+        /**
+         * The restored library.
+         */
+        final Library library;
+        /**
+         * The journal of the library.
+         */
+        final Journal journal;
+
+        /**
+         * Opens the store and journal in the data directory, as Main does on start.
+         *
+         * @param capacity the capacity of the store
+         * @throws IOException if the data cannot be read
+         */
+        Opened(int capacity) throws IOException {
+            store = Journal.openStore(directory, capacity);
+            library = new Library(store, false);
+            library.setOutput(OutputSink.SILENT);
+            journal = Journal.open(directory, library, store.getCheckpoint());
+        }
+
+        /**
+         * Closes the journal and the store, checkpointing the store only if closing cleanly.
+         *
+         * @param clean whether to checkpoint the store
+         * @throws IOException if the data cannot be written
+         */
+        void close(boolean clean) throws IOException {
+            journal.close();
+            if (clean) {
+                journal.checkpoint(store);
+            }
+            store.close();
+        }
+    }
+
+    /**
+     * Fills a library with books, readers, loans and a hold, then changes some of them.
+     *
+     * @param library the empty library
+     */
+    private static void populate(Library library) {
+        for (int b = 0; b < 10; b++) {
+            library.addBook("B" + b, "Title " + b, "Author", 2000);
+        }
+        library.addReader("R1", "Reader 1", "r1@example.com");
+        library.addReader("R2", "Reader 2", "r2@example.com");
+        library.setCopies("B2", 3);
+        library.borrowBook("R1", "B2");
+        library.borrowBook("R1", "B3");
+        library.placeHold("R2", "B3");
+        library.updateBook("B1", "Renamed", "Author", 2001);
+        library.removeBook("B0");
+    }
+
+    /**
+     * Checks a library holds what populate left in it.
+     *
+     * @param library the library
+     */
+    private static void verify(Library library) {
+        assertNull(library.searchBookByISBN("B0"));
+        assertEquals("Renamed", library.searchBookByISBN("B1").getTitle());
+        assertEquals(3, library.searchBookByISBN("B2").getCopies());
+        assertEquals(2, library.searchBookByISBN("B2").getAvailableCopies());
+        assertEquals(0, library.searchBookByISBN("B3").getAvailableCopies());
+        assertEquals(Set.of("B2", "B3"), library.getLoans("R1"));
+        assertEquals(List.of("R2"), library.getHoldQueue("B3"));
+        assertNotNull(library.searchBookByISBN("B9"));
+    }
+
+    @Test
+    void booksSurviveReopening() throws IOException {
+        MappedBookStore store = MappedBookStore.create(directory, 4);
+        store.put(new Book("Title", "Author", "B1", 2000, 2));
+        Book book = store.get("B1");
+        book.updateInfo("Renamed", "Other", 2001);
+        book.setAvailableCopies(1);
+        store.update(book);
+        store.close();
+
+        store = MappedBookStore.open(directory, 4);
+        Book reopened = store.get("B1");
+        assertEquals("Renamed", reopened.getTitle());
+        assertEquals("Other", reopened.getAuthor());
+        assertEquals(2001, reopened.getPublicationYear());
+        assertEquals(2, reopened.getCopies());
+        assertEquals(1, reopened.getAvailableCopies());
+        store.close();
+    }
+
+    @Test
+    void removedRowsAreReusedBeforeTheStoreIsFull() throws IOException {
+        MappedBookStore store = MappedBookStore.create(directory, 2);
+        store.put(new Book("First", "Author", "B1", 2000));
+        store.put(new Book("Second", "Author", "B2", 2000));
+        assertNotNull(store.remove("B1"));
+        store.put(new Book("Third", "Author", "B3", 2000));
+        assertNull(store.get("B1"));
+        assertEquals("Third", store.get("B3").getTitle());
+        assertEquals(2, store.size());
+
+        IllegalStateException full = assertThrows(IllegalStateException.class,
+                () -> store.put(new Book("Fourth", "Author", "B4", 2000)));
+        assertTrue(full.getMessage().contains("full"), full.getMessage());
+        store.close();
+    }
+
+    @Test
+    void reopeningWithALargerCapacityGrowsTheStore() throws IOException {
+        MappedBookStore store = MappedBookStore.create(directory, 2);
+        store.put(new Book("First", "Author", "B1", 2000));
+        store.put(new Book("Second", "Author", "B2", 2000));
+        store.close();
+
+        store = MappedBookStore.open(directory, 4);
+        store.put(new Book("Third", "Author", "B3", 2000));
+        store.put(new Book("Fourth", "Author", "B4", 2000));
+        assertEquals(4, store.size());
+        assertEquals("First", store.get("B1").getTitle());
+        store.close();
+
+        // A smaller capacity keeps the larger one the store has
+        store = MappedBookStore.open(directory, 1);
+        assertEquals(4, store.size());
+        store.close();
+    }
+
+    @Test
+    void churnKeepsLookupsCorrect() throws IOException {
+        MappedBookStore store = MappedBookStore.create(directory, 8);
+        store.put(new Book("Kept", "Author", "K", 2000));
+        for (int i = 0; i < 2000; i++) {
+            store.put(new Book("Churn", "Author", "C" + i, 2000));
+            assertNotNull(store.remove("C" + i));
+        }
+        assertEquals(1, store.size());
+        assertEquals("Kept", store.get("K").getTitle());
+        assertNull(store.get("C1999"));
+        store.close();
+    }
+
+    @Test
+    void cleanCloseKeepsTheStoreAndReplaysOnlyWhatFollows() throws IOException {
+        Opened opened = new Opened(12);
+        populate(opened.library);
+        opened.journal.snapshot();
+        opened.library.borrowBook("R2", "B9");
+        opened.close(true);
+
+        opened = new Opened(12);
+        assertTrue(opened.store.getCheckpoint() > 0);
+        verify(opened.library);
+        assertEquals(Set.of("B9"), opened.library.getLoans("R2"));
+        assertEquals(0, opened.library.searchBookByISBN("B9").getAvailableCopies());
+        opened.close(true);
+    }
+
+    @Test
+    void uncleanCloseRebuildsTheStoreFromTheJournal() throws IOException {
+        Opened opened = new Opened(12);
+        populate(opened.library);
+        opened.close(false);
+
+        opened = new Opened(12);
+        assertEquals(0, opened.store.getCheckpoint());
+        verify(opened.library);
+        opened.close(true);
+    }
+
+    @Test
+    void reopenedStoreGrowsForNewBooks() throws IOException {
+        Opened opened = new Opened(10);
+        populate(opened.library);
+        opened.library.addBook("B10", "Title", "Author", 2000);
+        assertThrows(IllegalStateException.class, () -> opened.library.addBook("B12", "Title", "Author", 2000));
+        opened.close(true);
+
+        Opened grown = new Opened(20);
+        assertTrue(grown.store.getCheckpoint() > 0);
+        verify(grown.library);
+        assertEquals(Outcome.SUCCESS, grown.library.addBook("B12", "Title", "Author", 2000));
+        grown.close(true);
+    }
+}